@@ -0,0 +1,479 @@
+package com.jetbrains.lang.dart;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleUtilCore;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.*;
+import com.intellij.openapi.roots.ex.ProjectRootManagerEx;
+import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.*;
+import com.intellij.util.PairConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import com.jetbrains.lang.dart.util.DartUrlResolver;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static com.jetbrains.lang.dart.util.PubspecYamlUtil.PUBSPEC_YAML;
+
+/**
+ * Keeps <code>packages</code> folders created by pub excluded from the project content.
+ * <p/>
+ * The set of folders to exclude is remembered per pub package root (the folder of a pubspec.yaml file). Folders are created, deleted,
+ * moved and renamed all the time (e.g. 'pub get' creates a lot of symlinks in the <code>packages</code> folder), so such events
+ * update the remembered sets of the enclosing package roots for the changed subtree only: a deleted folder removes the urls under it,
+ * a created folder is scanned when the events are over. A whole package is scanned again only when its pubspec.yaml file changes or
+ * it has not been scanned yet. The changes of all modules are applied in one write action and cause a single roots change event.
+ * <p/>
+ * The tracker doesn't use indices, so it may be called in dumb mode.
+ */
+public class DartExcludedFoldersTracker {
+
+  private static final Set<String> ENTRYPOINT_FOLDERS = new THashSet<String>(Arrays.asList("benchmark", "example", "test", "tool", "web"));
+
+  private final Project myProject;
+
+  // all guarded by this
+  private final Map<VirtualFile, Set<String>> myRootToExcludedUrls = new THashMap<VirtualFile, Set<String>>();
+  // roots to scan completely
+  private final Set<VirtualFile> myDirtyRoots = new THashSet<VirtualFile>();
+  // roots whose remembered urls have changed and folders that have appeared in them
+  private final Map<VirtualFile, Set<VirtualFile>> myChangedRootToCreatedFolders = new THashMap<VirtualFile, Set<VirtualFile>>();
+  private boolean myUpdateScheduled;
+
+  public DartExcludedFoldersTracker(@NotNull final Project project) {
+    myProject = project;
+
+    VirtualFileManager.getInstance().addVirtualFileListener(new VirtualFileAdapter() {
+      public void fileCreated(@NotNull final VirtualFileEvent event) {
+        if (event.getFile().isDirectory()) {
+          folderCreated(event.getFile(), event.getParent());
+        }
+        else if (PUBSPEC_YAML.equals(event.getFileName())) {
+          pubspecYamlChanged(event.getParent());
+        }
+      }
+
+      public void beforeFileDeletion(@NotNull final VirtualFileEvent event) {
+        if (event.getFile().isDirectory()) {
+          folderDeleted(event.getFile().getUrl(), event.getParent());
+        }
+        else if (PUBSPEC_YAML.equals(event.getFileName())) {
+          pubspecYamlChanged(event.getParent());
+        }
+      }
+
+      public void beforeFileMovement(@NotNull final VirtualFileMoveEvent event) {
+        if (event.getFile().isDirectory()) {
+          folderDeleted(event.getFile().getUrl(), event.getOldParent());
+        }
+        else if (PUBSPEC_YAML.equals(event.getFileName())) {
+          pubspecYamlChanged(event.getOldParent());
+        }
+      }
+
+      public void fileMoved(@NotNull final VirtualFileMoveEvent event) {
+        if (event.getFile().isDirectory()) {
+          folderCreated(event.getFile(), event.getNewParent());
+        }
+        else if (PUBSPEC_YAML.equals(event.getFileName())) {
+          pubspecYamlChanged(event.getNewParent());
+        }
+      }
+
+      public void propertyChanged(@NotNull final VirtualFilePropertyEvent event) {
+        if (!VirtualFile.PROP_NAME.equals(event.getPropertyName())) return;
+
+        final VirtualFile parent = event.getParent();
+        if (event.getFile().isDirectory()) {
+          if (parent != null) {
+            folderDeleted(parent.getUrl() + "/" + event.getOldValue(), parent);
+          }
+          folderCreated(event.getFile(), parent);
+        }
+        else if (PUBSPEC_YAML.equals(event.getOldValue()) || PUBSPEC_YAML.equals(event.getNewValue())) {
+          pubspecYamlChanged(parent);
+        }
+      }
+    }, project);
+  }
+
+  @NotNull
+  public static DartExcludedFoldersTracker getInstance(@NotNull final Project project) {
+    return ServiceManager.getService(project, DartExcludedFoldersTracker.class);
+  }
+
+  /**
+   * Updates excluded folders of the given pub packages right now, must be called in EDT.
+   */
+  public void excludePackagesFolders(@NotNull final Collection<VirtualFile> pubspecYamlFiles) {
+    final Collection<VirtualFile> roots = new THashSet<VirtualFile>();
+    for (VirtualFile pubspecYamlFile : pubspecYamlFiles) {
+      ContainerUtil.addIfNotNull(roots, pubspecYamlFile.getParent());
+    }
+
+    synchronized (this) {
+      myDirtyRoots.removeAll(roots);
+      for (VirtualFile root : roots) {
+        myChangedRootToCreatedFolders.remove(root);
+      }
+    }
+
+    updateExcludedFolders(roots, Collections.<VirtualFile, Set<VirtualFile>>emptyMap());
+  }
+
+  @NotNull
+  private List<VirtualFile> getEnclosingRoots(@Nullable final VirtualFile dir) {
+    final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(myProject).getFileIndex();
+    final List<VirtualFile> result = new ArrayList<VirtualFile>();
+    // a folder affects excluded folders of all enclosing pub packages, see collectFoldersToExclude()
+    for (VirtualFile root = dir; root != null && fileIndex.isInContent(root); root = root.getParent()) {
+      if (root.findChild(PUBSPEC_YAML) != null) {
+        result.add(root);
+      }
+    }
+    return result;
+  }
+
+  private void pubspecYamlChanged(@Nullable final VirtualFile dir) {
+    if (dir == null) return;
+
+    final List<VirtualFile> roots = getEnclosingRoots(dir);
+    synchronized (this) {
+      // a package that has lost its pubspec.yaml file is updated as well, so that its folders are not excluded any more
+      if (myRootToExcludedUrls.containsKey(dir) && !roots.contains(dir)) {
+        roots.add(dir);
+      }
+      myDirtyRoots.addAll(roots);
+    }
+    scheduleUpdate();
+  }
+
+  private void folderCreated(@NotNull final VirtualFile folder, @Nullable final VirtualFile parent) {
+    final List<VirtualFile> roots = getEnclosingRoots(parent);
+    synchronized (this) {
+      for (VirtualFile root : roots) {
+        if (!myRootToExcludedUrls.containsKey(root)) {
+          myDirtyRoots.add(root);
+        }
+        else if (!myDirtyRoots.contains(root)) {
+          getCreatedFolders(root).add(folder);
+        }
+      }
+      if (folder.isValid() && folder.findChild(PUBSPEC_YAML) != null) {
+        myDirtyRoots.add(folder);
+      }
+    }
+    scheduleUpdate();
+  }
+
+  private void folderDeleted(@NotNull final String folderUrl, @Nullable final VirtualFile parent) {
+    final List<VirtualFile> roots = getEnclosingRoots(parent);
+    synchronized (this) {
+      for (VirtualFile root : roots) {
+        final Set<String> urls = myRootToExcludedUrls.get(root);
+        if (urls == null || myDirtyRoots.contains(root)) continue;
+
+        // urls of live packages don't depend on existing folders, see collectFoldersToExclude()
+        final String livePackagesUrlPrefix = root.getUrl() + "/packages/";
+        for (Iterator<String> iterator = urls.iterator(); iterator.hasNext(); ) {
+          final String url = iterator.next();
+          if (url.startsWith(folderUrl + "/") && !url.startsWith(livePackagesUrlPrefix)) {
+            iterator.remove();
+          }
+        }
+        getCreatedFolders(root);
+      }
+
+      // packages inside the deleted folder
+      for (VirtualFile root : myRootToExcludedUrls.keySet()) {
+        if (root.getUrl().equals(folderUrl) || root.getUrl().startsWith(folderUrl + "/")) {
+          myDirtyRoots.add(root);
+        }
+      }
+    }
+    scheduleUpdate();
+  }
+
+  @NotNull
+  private Set<VirtualFile> getCreatedFolders(@NotNull final VirtualFile root) {
+    Set<VirtualFile> result = myChangedRootToCreatedFolders.get(root);
+    if (result == null) {
+      result = new THashSet<VirtualFile>();
+      myChangedRootToCreatedFolders.put(root, result);
+    }
+    return result;
+  }
+
+  private void scheduleUpdate() {
+    synchronized (this) {
+      if (myUpdateScheduled || myDirtyRoots.isEmpty() && myChangedRootToCreatedFolders.isEmpty()) return;
+      myUpdateScheduled = true;
+    }
+
+    ApplicationManager.getApplication().invokeLater(new Runnable() {
+      public void run() {
+        final Collection<VirtualFile> dirtyRoots;
+        final Map<VirtualFile, Set<VirtualFile>> changedRoots;
+        synchronized (DartExcludedFoldersTracker.this) {
+          myUpdateScheduled = false;
+          dirtyRoots = new ArrayList<VirtualFile>(myDirtyRoots);
+          changedRoots = new THashMap<VirtualFile, Set<VirtualFile>>(myChangedRootToCreatedFolders);
+          myDirtyRoots.clear();
+          myChangedRootToCreatedFolders.clear();
+        }
+
+        if (!myProject.isDisposed()) {
+          updateExcludedFolders(dirtyRoots, changedRoots);
+        }
+      }
+    });
+  }
+
+  /**
+   * @param dirtyRoots   roots to scan completely
+   * @param changedRoots roots to update by scanning the created folders only
+   */
+  private void updateExcludedFolders(@NotNull final Collection<VirtualFile> dirtyRoots,
+                                     @NotNull final Map<VirtualFile, Set<VirtualFile>> changedRoots) {
+    final Map<Module, Map<String, Collection<String>>> moduleToOldUrls = new THashMap<Module, Map<String, Collection<String>>>();
+    final Map<Module, Map<String, Set<String>>> moduleToNewUrls = new THashMap<Module, Map<String, Set<String>>>();
+
+    final Set<VirtualFile> roots = new THashSet<VirtualFile>(dirtyRoots);
+    roots.addAll(changedRoots.keySet());
+
+    for (VirtualFile root : roots) {
+      final VirtualFile pubspecYamlFile = root.isValid() ? root.findChild(PUBSPEC_YAML) : null;
+      final Module module = root.isValid() ? ModuleUtilCore.findModuleForFile(root, myProject) : null;
+      final VirtualFile contentRoot =
+        module == null ? null : ProjectRootManager.getInstance(myProject).getFileIndex().getContentRootForFile(root);
+
+      if (contentRoot == null) {
+        synchronized (this) {
+          myRootToExcludedUrls.remove(root);
+        }
+        continue;
+      }
+
+      final Set<String> oldExcludedUrls;
+      synchronized (this) {
+        oldExcludedUrls = myRootToExcludedUrls.get(root);
+      }
+
+      final Set<String> newExcludedUrls;
+      if (pubspecYamlFile == null) {
+        if (oldExcludedUrls == null) continue;
+        newExcludedUrls = Collections.emptySet();
+      }
+      else if (oldExcludedUrls == null || dirtyRoots.contains(root)) {
+        newExcludedUrls = collectFoldersToExclude(module, pubspecYamlFile);
+      }
+      else {
+        newExcludedUrls = new THashSet<String>(oldExcludedUrls);
+        appendFoldersToExclude(newExcludedUrls, module, pubspecYamlFile, changedRoots.get(root));
+      }
+
+      final Collection<String> currentUrls = getExcludedPackagesUrls(module, root);
+      if (currentUrls.size() != newExcludedUrls.size() || !newExcludedUrls.containsAll(currentUrls)) {
+        getOrCreate(moduleToOldUrls, module).put(contentRoot.getUrl(), currentUrls);
+        getOrCreate(moduleToNewUrls, module).put(contentRoot.getUrl(), newExcludedUrls);
+      }
+
+      synchronized (this) {
+        // the set of a package is remembered even if empty, so that created folders don't cause a full scan
+        if (pubspecYamlFile == null) {
+          myRootToExcludedUrls.remove(root);
+        }
+        else {
+          myRootToExcludedUrls.put(root, newExcludedUrls);
+        }
+      }
+    }
+
+    if (moduleToNewUrls.isEmpty()) return;
+
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      public void run() {
+        ProjectRootManagerEx.getInstanceEx(myProject).mergeRootsChangesDuring(new Runnable() {
+          public void run() {
+            for (Map.Entry<Module, Map<String, Set<String>>> entry : moduleToNewUrls.entrySet()) {
+              final Module module = entry.getKey();
+              if (module.isDisposed()) continue;
+
+              final ModifiableRootModel model = ModuleRootManager.getInstance(module).getModifiableModel();
+              updateExcludedFolders(model, moduleToOldUrls.get(module), entry.getValue());
+              if (model.isChanged()) {
+                model.commit();
+              }
+              else {
+                model.dispose();
+              }
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private static void updateExcludedFolders(@NotNull final ModifiableRootModel model,
+                                            @NotNull final Map<String, Collection<String>> contentRootToOldUrls,
+                                            @NotNull final Map<String, Set<String>> contentRootToNewUrls) {
+    for (ContentEntry contentEntry : model.getContentEntries()) {
+      final Collection<String> oldUrls = contentRootToOldUrls.get(contentEntry.getUrl());
+      final Set<String> newUrls = contentRootToNewUrls.get(contentEntry.getUrl());
+      if (oldUrls == null || newUrls == null) continue;
+
+      for (ExcludeFolder excludeFolder : contentEntry.getExcludeFolders()) {
+        if (oldUrls.contains(excludeFolder.getUrl()) && !newUrls.contains(excludeFolder.getUrl())) {
+          contentEntry.removeExcludeFolder(excludeFolder);
+        }
+      }
+
+      final Set<String> existingUrls = new THashSet<String>();
+      for (ExcludeFolder excludeFolder : contentEntry.getExcludeFolders()) {
+        existingUrls.add(excludeFolder.getUrl());
+      }
+      for (String url : newUrls) {
+        if (!existingUrls.contains(url)) {
+          contentEntry.addExcludeFolder(url);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private static <V> Map<String, V> getOrCreate(@NotNull final Map<Module, Map<String, V>> map, @NotNull final Module module) {
+    Map<String, V> result = map.get(module);
+    if (result == null) {
+      result = new THashMap<String, V>();
+      map.put(module, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static Collection<String> getExcludedPackagesUrls(@NotNull final Module module, @NotNull final VirtualFile root) {
+    final String rootUrl = root.getUrl();
+
+    return ContainerUtil.filter(ModuleRootManager.getInstance(module).getExcludeRootUrls(), new Condition<String>() {
+      public boolean value(final String url) {
+        if (!url.startsWith(rootUrl + "/packages/") &&
+            !url.startsWith(rootUrl + "/bin/") &&
+            !url.startsWith(rootUrl + "/benchmark/") &&
+            !url.startsWith(rootUrl + "/example/") &&
+            !url.startsWith(rootUrl + "/test/") &&
+            !url.startsWith(rootUrl + "/tool/") &&
+            !url.startsWith(rootUrl + "/web/")) {
+          return false;
+        }
+
+        if (url.endsWith("/packages")) return true;
+
+        // excluded subfolder of 'packages' folder
+        if (url.startsWith(rootUrl + "/packages/")) return true;
+
+        return false;
+      }
+    });
+  }
+
+  @NotNull
+  private static Set<String> collectFoldersToExclude(@NotNull final Module module, @NotNull final VirtualFile pubspecYamlFile) {
+    // http://pub.dartlang.org/doc/glossary.html#entrypoint-directory
+    // Entrypoint directory: A directory inside your package that is allowed to contain Dart entrypoints.
+    // Pub will ensure all of these directories get a “packages” directory, which is needed for “package:” imports to work.
+    // Pub has a whitelist of these directories: benchmark, bin, example, test, tool, and web.
+    // Any subdirectories of those (except bin) may also contain entrypoints.
+    //
+    // the same can be seen in the pub tool source code: [repo root]/sdk/lib/_internal/pub/lib/src/entrypoint.dart
+
+    final THashSet<String> newExcludedPackagesUrls = new THashSet<String>();
+    final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(module.getProject()).getFileIndex();
+    final VirtualFile root = pubspecYamlFile.getParent();
+
+    final VirtualFile binFolder = root.findChild("bin");
+    if (binFolder != null && binFolder.isDirectory() && fileIndex.isInContent(binFolder)) {
+      newExcludedPackagesUrls.add(binFolder.getUrl() + "/packages");
+    }
+
+    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("benchmark"), fileIndex);
+    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("example"), fileIndex);
+    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("test"), fileIndex);
+    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("tool"), fileIndex);
+    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("web"), fileIndex);
+
+    // Folders like packages/PathPackage and packages/ThisProject (where ThisProject is the name specified in pubspec.yaml) are symlinks to local 'lib' folders. Exclude it in order not to have duplicates. Resolve goes to local 'lib' folder.
+    // Empty nodes like 'ThisProject (ThisProject/lib)' are added to Project Structure by DartTreeStructureProvider
+    final DartUrlResolver resolver = DartUrlResolver.getInstance(module.getProject(), pubspecYamlFile);
+    resolver.processLivePackages(new PairConsumer<String, VirtualFile>() {
+      public void consume(final String packageName, final VirtualFile packageDir) {
+        newExcludedPackagesUrls.add(root.getUrl() + "/packages/" + packageName);
+      }
+    });
+
+    return newExcludedPackagesUrls;
+  }
+
+  /**
+   * Adds the folders to exclude that have appeared with the created folders, the same way as collectFoldersToExclude() finds them.
+   */
+  private static void appendFoldersToExclude(@NotNull final Set<String> excludedPackagesUrls,
+                                             @NotNull final Module module,
+                                             @NotNull final VirtualFile pubspecYamlFile,
+                                             @Nullable final Set<VirtualFile> createdFolders) {
+    if (createdFolders == null) return;
+
+    final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(module.getProject()).getFileIndex();
+    final VirtualFile root = pubspecYamlFile.getParent();
+
+    for (VirtualFile folder : createdFolders) {
+      final String relativePath = folder.isValid() ? VfsUtilCore.getRelativePath(folder, root, '/') : null;
+      if (relativePath == null) continue;
+
+      final List<String> names = StringUtil.split(relativePath, "/");
+      if (names.isEmpty() || names.contains("packages")) continue;
+
+      if ("bin".equals(relativePath)) {
+        if (fileIndex.isInContent(folder)) {
+          excludedPackagesUrls.add(folder.getUrl() + "/packages");
+        }
+      }
+      else if (ENTRYPOINT_FOLDERS.contains(names.get(0))) {
+        appendPackagesFolders(excludedPackagesUrls, folder, fileIndex);
+      }
+    }
+  }
+
+  private static void appendPackagesFolders(final @NotNull Collection<String> excludedPackagesUrls,
+                                            final @Nullable VirtualFile folder,
+                                            final @NotNull ProjectFileIndex fileIndex) {
+    if (folder == null) return;
+
+    VfsUtilCore.visitChildrenRecursively(folder, new VirtualFileVisitor() {
+      @NotNull
+      public Result visitFileEx(@NotNull final VirtualFile file) {
+        if (!fileIndex.isInContent(file)) {
+          return SKIP_CHILDREN;
+        }
+
+        if (file.isDirectory()) {
+          if ("packages".equals(file.getName())) {
+            return SKIP_CHILDREN;
+          }
+          // do not exclude 'packages' folder near another pubspec.yaml file
+          else if (file.findChild(PUBSPEC_YAML) == null) {
+            excludedPackagesUrls.add(file.getUrl() + "/packages");
+          }
+        }
+
+        return CONTINUE;
+      }
+    });
+  }
+}
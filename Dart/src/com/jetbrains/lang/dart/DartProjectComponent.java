@@ -11,25 +11,16 @@ import com.intellij.openapi.module.ModuleType;
 import com.intellij.openapi.module.ModuleUtilCore;
 import com.intellij.openapi.module.WebModuleTypeBase;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ModuleRootManager;
-import com.intellij.openapi.roots.ModuleRootModificationUtil;
-import com.intellij.openapi.roots.ProjectFileIndex;
-import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.roots.impl.libraries.ApplicationLibraryTable;
 import com.intellij.openapi.roots.impl.libraries.LibraryEx;
 import com.intellij.openapi.roots.libraries.PersistentLibraryKind;
 import com.intellij.openapi.startup.StartupManager;
 import com.intellij.openapi.util.Computable;
-import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.JDOMUtil;
-import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.vfs.VirtualFileVisitor;
 import com.intellij.psi.search.FileTypeIndex;
 import com.intellij.psi.search.FilenameIndex;
 import com.intellij.psi.search.GlobalSearchScope;
-import com.intellij.util.PairConsumer;
-import com.intellij.util.containers.ContainerUtil;
 import com.intellij.xdebugger.XDebuggerManager;
 import com.intellij.xdebugger.XSourcePosition;
 import com.intellij.xdebugger.breakpoints.XBreakpoint;
@@ -39,8 +30,7 @@ import com.jetbrains.lang.dart.ide.runner.client.DartiumUtil;
 import com.jetbrains.lang.dart.sdk.DartSdk;
 import com.jetbrains.lang.dart.sdk.DartSdkGlobalLibUtil;
 import com.jetbrains.lang.dart.sdk.DartSdkUtil;
-import com.jetbrains.lang.dart.util.DartUrlResolver;
-import gnu.trove.THashSet;
+import gnu.trove.THashMap;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
@@ -49,6 +39,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 import static com.jetbrains.lang.dart.util.PubspecYamlUtil.PUBSPEC_YAML;
 
@@ -75,11 +67,29 @@ public class DartProjectComponent extends AbstractProjectComponent {
         final Collection<VirtualFile> pubspecYamlFiles =
           FilenameIndex.getVirtualFilesByName(myProject, PUBSPEC_YAML, GlobalSearchScope.projectScope(myProject));
 
+        // only modules with Dart files are touched; the Dart file check runs once per module
+        final Map<Module, Boolean> moduleHasDartFiles = new THashMap<Module, Boolean>();
+        final Collection<VirtualFile> dartPubspecYamlFiles = new ArrayList<VirtualFile>();
         for (VirtualFile pubspecYamlFile : pubspecYamlFiles) {
           final Module module = ModuleUtilCore.findModuleForFile(pubspecYamlFile, myProject);
-          if (module != null && FileTypeIndex.containsFileOfType(DartFileType.INSTANCE, module.getModuleContentScope())) {
-            excludePackagesFolders(module, pubspecYamlFile);
+          if (module == null) continue;
 
+          Boolean hasDartFiles = moduleHasDartFiles.get(module);
+          if (hasDartFiles == null) {
+            hasDartFiles = FileTypeIndex.containsFileOfType(DartFileType.INSTANCE, module.getModuleContentScope());
+            moduleHasDartFiles.put(module, hasDartFiles);
+          }
+          if (hasDartFiles) {
+            dartPubspecYamlFiles.add(pubspecYamlFile);
+          }
+        }
+
+        // excluded folders of all modules are updated at once
+        DartExcludedFoldersTracker.getInstance(myProject).excludePackagesFolders(dartPubspecYamlFiles);
+
+        for (Map.Entry<Module, Boolean> entry : moduleHasDartFiles.entrySet()) {
+          final Module module = entry.getKey();
+          if (entry.getValue()) {
             if (dartSdkGlobalLibName != null &&
                 dartSdkWasEnabledInOldModel &&
                 ModuleType.get(module) instanceof WebModuleTypeBase &&
@@ -211,102 +221,6 @@ public class DartProjectComponent extends AbstractProjectComponent {
   }
 
   public static void excludePackagesFolders(final @NotNull Module module, final @NotNull VirtualFile pubspecYamlFile) {
-    final VirtualFile root = pubspecYamlFile.getParent();
-    final VirtualFile contentRoot =
-      root == null ? null : ProjectRootManager.getInstance(module.getProject()).getFileIndex().getContentRootForFile(root);
-    if (contentRoot == null) return;
-
-    // http://pub.dartlang.org/doc/glossary.html#entrypoint-directory
-    // Entrypoint directory: A directory inside your package that is allowed to contain Dart entrypoints.
-    // Pub will ensure all of these directories get a “packages” directory, which is needed for “package:” imports to work.
-    // Pub has a whitelist of these directories: benchmark, bin, example, test, tool, and web.
-    // Any subdirectories of those (except bin) may also contain entrypoints.
-    //
-    // the same can be seen in the pub tool source code: [repo root]/sdk/lib/_internal/pub/lib/src/entrypoint.dart
-
-    final Collection<String> oldExcludedPackagesUrls =
-      ContainerUtil.filter(ModuleRootManager.getInstance(module).getExcludeRootUrls(), new Condition<String>() {
-        final String rootUrl = root.getUrl();
-
-        public boolean value(final String url) {
-          if (!url.startsWith(rootUrl + "/packages/") &&
-              !url.startsWith(rootUrl + "/bin/") &&
-              !url.startsWith(rootUrl + "/benchmark/") &&
-              !url.startsWith(rootUrl + "/example/") &&
-              !url.startsWith(rootUrl + "/test/") &&
-              !url.startsWith(rootUrl + "/tool/") &&
-              !url.startsWith(rootUrl + "/web/")) {
-            return false;
-          }
-
-          if (url.endsWith("/packages")) return true;
-
-          // excluded subfolder of 'packages' folder
-          if (url.startsWith(root + "/packages/")) return true;
-
-          return false;
-        }
-      });
-
-    final THashSet<String> newExcludedPackagesUrls = collectFoldersToExclude(module, pubspecYamlFile);
-
-    if (oldExcludedPackagesUrls.size() != newExcludedPackagesUrls.size() || !newExcludedPackagesUrls.containsAll(oldExcludedPackagesUrls)) {
-      ModuleRootModificationUtil.updateExcludedFolders(module, contentRoot, oldExcludedPackagesUrls, newExcludedPackagesUrls);
-    }
-  }
-
-  private static THashSet<String> collectFoldersToExclude(final Module module, final VirtualFile pubspecYamlFile) {
-    final THashSet<String> newExcludedPackagesUrls = new THashSet<String>();
-    final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(module.getProject()).getFileIndex();
-    final VirtualFile root = pubspecYamlFile.getParent();
-
-    final VirtualFile binFolder = root.findChild("bin");
-    if (binFolder != null && binFolder.isDirectory() && fileIndex.isInContent(binFolder)) {
-      newExcludedPackagesUrls.add(binFolder.getUrl() + "/packages");
-    }
-
-    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("benchmark"), fileIndex);
-    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("example"), fileIndex);
-    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("test"), fileIndex);
-    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("tool"), fileIndex);
-    appendPackagesFolders(newExcludedPackagesUrls, root.findChild("web"), fileIndex);
-
-    // Folders like packages/PathPackage and packages/ThisProject (where ThisProject is the name specified in pubspec.yaml) are symlinks to local 'lib' folders. Exclude it in order not to have duplicates. Resolve goes to local 'lib' folder.
-    // Empty nodes like 'ThisProject (ThisProject/lib)' are added to Project Structure by DartTreeStructureProvider
-    final DartUrlResolver resolver = DartUrlResolver.getInstance(module.getProject(), pubspecYamlFile);
-    resolver.processLivePackages(new PairConsumer<String, VirtualFile>() {
-      public void consume(final String packageName, final VirtualFile packageDir) {
-        newExcludedPackagesUrls.add(root.getUrl() + "/packages/" + packageName);
-      }
-    });
-
-    return newExcludedPackagesUrls;
-  }
-
-  private static void appendPackagesFolders(final @NotNull Collection<String> excludedPackagesUrls,
-                                            final @Nullable VirtualFile folder,
-                                            final @NotNull ProjectFileIndex fileIndex) {
-    if (folder == null) return;
-
-    VfsUtilCore.visitChildrenRecursively(folder, new VirtualFileVisitor() {
-      @NotNull
-      public Result visitFileEx(@NotNull final VirtualFile file) {
-        if (!fileIndex.isInContent(file)) {
-          return SKIP_CHILDREN;
-        }
-
-        if (file.isDirectory()) {
-          if ("packages".equals(file.getName())) {
-            return SKIP_CHILDREN;
-          }
-          // do not exclude 'packages' folder near another pubspec.yaml file
-          else if (file.findChild(PUBSPEC_YAML) == null) {
-            excludedPackagesUrls.add(file.getUrl() + "/packages");
-          }
-        }
-
-        return CONTINUE;
-      }
-    });
+    DartExcludedFoldersTracker.getInstance(module.getProject()).excludePackagesFolders(Collections.singletonList(pubspecYamlFile));
   }
 }
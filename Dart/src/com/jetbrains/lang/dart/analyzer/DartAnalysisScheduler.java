@@ -0,0 +1,250 @@
+package com.jetbrains.lang.dart.analyzer;
+
+import com.google.dart.engine.context.AnalysisContext;
+import com.google.dart.engine.error.AnalysisError;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerAdapter;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.NullableComputable;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.jetbrains.lang.dart.DartFileType;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Caches errors computed by {@link DartInProcessAnnotator} and recomputes errors of open Dart editors affected by a change in
+ * background, so that switching to another editor shows its errors without waiting for the analyzer.
+ * <p/>
+ * Each source has a generation that is changed when a change set applied to the analysis context touches the source or a library
+ * it depends on, see {@link #sourcesChanged}. Cached errors of a source are valid while the analysis context, the source generation
+ * and the source modification stamp are the same. Cached errors are dropped when the editor is closed or the file is deleted.
+ * The analysis context is not thread safe, so all calls to it are synchronized on the context, and there is one context per project.
+ * That's why background work is done on a single pooled thread: more workers would only wait for each other on the context lock
+ * and keep highlighting of the selected editor waiting longer.
+ */
+class DartAnalysisScheduler {
+  private static class CachedErrors {
+    private final AnalysisContext myContext;
+    private final long myGeneration;
+    private final long myModificationStamp;
+    private final AnalysisError[] myErrors;
+
+    private CachedErrors(final AnalysisContext context,
+                         final long generation,
+                         final long modificationStamp,
+                         final AnalysisError[] errors) {
+      myContext = context;
+      myGeneration = generation;
+      myModificationStamp = modificationStamp;
+      myErrors = errors;
+    }
+  }
+
+  private final Project myProject;
+
+  // guarded by myErrorsCache
+  private final Map<DartFileBasedSource, CachedErrors> myErrorsCache = new THashMap<DartFileBasedSource, CachedErrors>();
+  private final Map<DartFileBasedSource, Long> mySourceGenerations = new THashMap<DartFileBasedSource, Long>();
+  // generations are never reused, so that a source forgotten and changed again can't get its old generation back
+  private long myLastGeneration;
+
+  // guarded by myQueue
+  private final Queue<VirtualFile> myQueue = new ArrayDeque<VirtualFile>();
+  private final Set<VirtualFile> myQueuedFiles = new THashSet<VirtualFile>();
+  private boolean myWorkerRunning;
+
+  private volatile boolean myDisposed;
+
+  DartAnalysisScheduler(@NotNull final Project project) {
+    myProject = project;
+
+    project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerAdapter() {
+      public void fileClosed(@NotNull final FileEditorManager source, @NotNull final VirtualFile file) {
+        if (!source.isFileOpen(file)) {
+          forgetFile(file);
+        }
+      }
+    });
+  }
+
+  @Nullable
+  AnalysisError[] getCachedErrors(@NotNull final AnalysisContext context, @NotNull final DartFileBasedSource source) {
+    synchronized (myErrorsCache) {
+      final CachedErrors cachedErrors = myErrorsCache.get(source);
+      if (cachedErrors == null ||
+          cachedErrors.myContext != context ||
+          cachedErrors.myGeneration != getGeneration(source) ||
+          cachedErrors.myModificationStamp != source.getModificationStamp()) {
+        return null;
+      }
+      return cachedErrors.myErrors;
+    }
+  }
+
+  /**
+   * @return generation of the source to be passed to {@link #cacheErrors}
+   */
+  long getGeneration(@NotNull final DartFileBasedSource source) {
+    synchronized (myErrorsCache) {
+      final Long generation = mySourceGenerations.get(source);
+      return generation == null ? 0 : generation;
+    }
+  }
+
+  /**
+   * @param generation        {@link #getGeneration} taken before errors computation started
+   * @param modificationStamp source modification stamp taken before errors computation started
+   */
+  void cacheErrors(@NotNull final AnalysisContext context,
+                   final long generation,
+                   @NotNull final DartFileBasedSource source,
+                   final long modificationStamp,
+                   @NotNull final AnalysisError[] errors) {
+    synchronized (myErrorsCache) {
+      myErrorsCache.put(source, new CachedErrors(context, generation, modificationStamp, errors));
+    }
+  }
+
+  void clearCache() {
+    synchronized (myErrorsCache) {
+      myErrorsCache.clear();
+      mySourceGenerations.clear();
+    }
+  }
+
+  /**
+   * Called when a change set touching the given sources has been applied to the analysis context. Invalidates their cached errors
+   * and queues errors computation for those of them that are open in editors, except the given file that is being analyzed anyway.
+   */
+  void sourcesChanged(@NotNull final Collection<DartFileBasedSource> sources, @Nullable final VirtualFile exceptFile) {
+    if (sources.isEmpty()) return;
+
+    synchronized (myErrorsCache) {
+      for (DartFileBasedSource source : sources) {
+        mySourceGenerations.put(source, ++myLastGeneration);
+      }
+    }
+
+    if (myDisposed || myProject.isDisposed()) return;
+
+    final FileEditorManager fileEditorManager = FileEditorManager.getInstance(myProject);
+    boolean startWorker = false;
+    synchronized (myQueue) {
+      for (DartFileBasedSource source : sources) {
+        final VirtualFile file = source.getFile();
+        if (file.equals(exceptFile) || !isAnalyzable(file) || !fileEditorManager.isFileOpen(file) || myQueuedFiles.contains(file)) {
+          continue;
+        }
+
+        myQueue.add(file);
+        myQueuedFiles.add(file);
+      }
+
+      if (!myWorkerRunning && !myQueue.isEmpty()) {
+        myWorkerRunning = true;
+        startWorker = true;
+      }
+    }
+
+    if (startWorker) {
+      ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        public void run() {
+          processQueue();
+        }
+      });
+    }
+  }
+
+  /**
+   * Drops cached errors of the file, called when it is closed or deleted.
+   */
+  void forgetFile(@NotNull final VirtualFile file) {
+    synchronized (myErrorsCache) {
+      for (Iterator<DartFileBasedSource> iterator = myErrorsCache.keySet().iterator(); iterator.hasNext(); ) {
+        final DartFileBasedSource source = iterator.next();
+        if (file.equals(source.getFile())) {
+          iterator.remove();
+          mySourceGenerations.remove(source);
+        }
+      }
+    }
+
+    synchronized (myQueue) {
+      if (myQueuedFiles.remove(file)) {
+        myQueue.remove(file);
+      }
+    }
+  }
+
+  void dispose() {
+    myDisposed = true;
+    synchronized (myQueue) {
+      myQueue.clear();
+      myQueuedFiles.clear();
+    }
+    clearCache();
+  }
+
+  private static boolean isAnalyzable(@NotNull final VirtualFile file) {
+    return file.isValid() &&
+           (FileUtilRt.extensionEquals(file.getName(), DartFileType.DEFAULT_EXTENSION) ||
+            FileUtilRt.extensionEquals(file.getName(), "html"));
+  }
+
+  private void processQueue() {
+    while (true) {
+      final VirtualFile file;
+      synchronized (myQueue) {
+        file = myQueue.poll();
+        if (file == null) {
+          myWorkerRunning = false;
+          return;
+        }
+        myQueuedFiles.remove(file);
+      }
+
+      if (myDisposed || myProject.isDisposed()) continue;
+
+      try {
+        analyzeFile(file);
+      }
+      catch (Exception e) {
+        DartInProcessAnnotator.LOG.info(e);
+      }
+    }
+  }
+
+  private void analyzeFile(@NotNull final VirtualFile file) {
+    if (DumbService.isDumb(myProject)) return;
+
+    final DartInProcessAnnotator annotator = new DartInProcessAnnotator();
+    final DartInProcessAnnotator.DartAnnotatorInfo annotatorInfo =
+      ApplicationManager.getApplication().runReadAction(new NullableComputable<DartInProcessAnnotator.DartAnnotatorInfo>() {
+        @Nullable
+        public DartInProcessAnnotator.DartAnnotatorInfo compute() {
+          if (!file.isValid() || myProject.isDisposed()) return null;
+          final PsiFile psiFile = PsiManager.getInstance(myProject).findFile(file);
+          return psiFile == null ? null : annotator.collectInformation(psiFile);
+        }
+      });
+
+    if (annotatorInfo != null) {
+      DartInProcessAnnotator.computeAndCacheErrors(annotatorInfo, this);
+    }
+  }
+}
@@ -3,6 +3,8 @@ package com.jetbrains.lang.dart.analyzer;
 import com.google.dart.engine.AnalysisEngine;
 import com.google.dart.engine.context.AnalysisContext;
 import com.google.dart.engine.context.ChangeSet;
+import com.google.dart.engine.element.CompilationUnitElement;
+import com.google.dart.engine.element.LibraryElement;
 import com.google.dart.engine.sdk.DirectoryBasedDartSdk;
 import com.google.dart.engine.source.DartUriResolver;
 import com.google.dart.engine.source.ExplicitPackageUriResolver;
@@ -11,7 +13,11 @@ import com.google.dart.engine.source.SourceFactory;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentAdapter;
+import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleUtilCore;
@@ -19,9 +25,9 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.openapi.vfs.*;
-import com.intellij.reference.SoftReference;
 import com.intellij.util.Function;
 import com.jetbrains.lang.dart.DartFileType;
 import com.jetbrains.lang.dart.sdk.DartConfigurable;
@@ -32,11 +38,18 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
-
+import java.util.*;
+
+/**
+ * Keeps the analysis context of the project.
+ * <p/>
+ * The context is held strongly and reused as long as SDK, pubspec.yaml and package roots stay the same. Otherwise, or when the IDE is
+ * low on memory, it is dropped and created again on next request. File system and document changes are collected by listeners and
+ * applied to the reused context as a single change set, so the context doesn't have to look through all its sources on each
+ * annotation pass.
+ */
 public class DartAnalyzerService {
+  private static final Logger LOG = Logger.getInstance("#com.jetbrains.lang.dart.analyzer.DartAnalyzerService");
 
   private final Project myProject;
 
@@ -45,9 +58,24 @@ public class DartAnalyzerService {
   private @Nullable VirtualFile[] myDartPackageRoots;
   private @Nullable VirtualFile myContentRoot; // checked only in case of ExplicitPackageUriResolver
 
-  private @Nullable SoftReference<AnalysisContext> myAnalysisContextRef;
+  private @Nullable AnalysisContext myAnalysisContext;
+
+  private final DartAnalysisScheduler myAnalysisScheduler;
+
+  // change feed for myAnalysisContext, guarded by myPendingChangesLock
+  private final Object myPendingChangesLock = new Object();
+  private final Collection<VirtualFile> myCreatedFiles = new THashSet<VirtualFile>();
+  private final Collection<VirtualFile> myChangedFiles = new THashSet<VirtualFile>();
+  private final Collection<DartFileBasedSource> myRemovedSources = new THashSet<DartFileBasedSource>();
 
-  private final Collection<VirtualFile> myCreatedFiles = Collections.synchronizedSet(new THashSet<VirtualFile>());
+  private int myContextCreatedCount;
+  private int myContextEvictedOnLowMemoryCount;
+  private int myApplyChangesCount;
+  private long myApplyChangesTotalNanos;
+  private long myApplyChangesMaxNanos;
+
+  @SuppressWarnings("FieldCanBeLocal") // LowMemoryWatcher keeps only a weak reference
+  private final LowMemoryWatcher myLowMemoryWatcher;
 
   private final Map<VirtualFile, DartFileBasedSource> myFileToSourceMap =
     Collections.synchronizedMap(new THashMap<VirtualFile, DartFileBasedSource>());
@@ -56,21 +84,26 @@ public class DartAnalyzerService {
 
   public DartAnalyzerService(final Project project) {
     myProject = project;
+    myAnalysisScheduler = new DartAnalysisScheduler(project);
 
     final VirtualFileAdapter listener = new VirtualFileAdapter() {
       public void beforePropertyChange(@NotNull final VirtualFilePropertyEvent event) {
         if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
-          fileDeleted(event);
+          fileRemoved(event.getFile(), true);
         }
       }
 
       public void beforeFileMovement(@NotNull final VirtualFileMoveEvent event) {
-        fileDeleted(event);
+        fileRemoved(event.getFile(), true);
       }
 
       public void fileDeleted(@NotNull final VirtualFileEvent event) {
+        fileRemoved(event.getFile(), false);
+      }
+
+      public void contentsChanged(@NotNull final VirtualFileEvent event) {
         if (FileUtilRt.extensionEquals(event.getFileName(), DartFileType.DEFAULT_EXTENSION)) {
-          myFileToSourceMap.remove(event.getFile());
+          fileChanged(event.getFile());
         }
       }
 
@@ -90,33 +123,110 @@ public class DartAnalyzerService {
 
       public void fileCreated(@NotNull final VirtualFileEvent event) {
         if (FileUtilRt.extensionEquals(event.getFileName(), DartFileType.DEFAULT_EXTENSION)) {
-          myCreatedFiles.add(event.getFile());
+          synchronized (myPendingChangesLock) {
+            myCreatedFiles.add(event.getFile());
+          }
         }
       }
     };
 
     LocalFileSystem.getInstance().addVirtualFileListener(listener);
 
+    EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentAdapter() {
+      public void documentChanged(final DocumentEvent event) {
+        final VirtualFile file = FileDocumentManager.getInstance().getFile(event.getDocument());
+        if (file != null && FileUtilRt.extensionEquals(file.getName(), DartFileType.DEFAULT_EXTENSION)) {
+          fileChanged(file);
+        }
+      }
+    }, project);
+
+    myLowMemoryWatcher = LowMemoryWatcher.register(new Runnable() {
+      public void run() {
+        synchronized (DartAnalyzerService.this) {
+          if (myAnalysisContext != null) {
+            myContextEvictedOnLowMemoryCount++;
+            dropAnalysisContext();
+          }
+        }
+      }
+    });
+
     Disposer.register(project, new Disposable() {
       public void dispose() {
         LocalFileSystem.getInstance().removeVirtualFileListener(listener);
+        myLowMemoryWatcher.stop();
+        myAnalysisScheduler.dispose();
 
-        if (myAnalysisContextRef != null) {
-          myAnalysisContextRef.clear();
+        synchronized (DartAnalyzerService.this) {
+          dropAnalysisContext();
         }
       }
     });
   }
 
+  /**
+   * @param stillExists <code>true</code> if the file is going to be renamed or moved; files under such directory keep their
+   *                    VirtualFile and are reported as created at the new location
+   */
+  private void fileRemoved(@NotNull final VirtualFile file, final boolean stillExists) {
+    if (file.isDirectory()) {
+      final List<DartFileBasedSource> sources = new ArrayList<DartFileBasedSource>();
+      synchronized (myFileToSourceMap) {
+        final Iterator<Map.Entry<VirtualFile, DartFileBasedSource>> iterator = myFileToSourceMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+          final Map.Entry<VirtualFile, DartFileBasedSource> entry = iterator.next();
+          if (VfsUtilCore.isAncestor(file, entry.getKey(), true)) {
+            sources.add(entry.getValue());
+            iterator.remove();
+          }
+        }
+      }
+
+      for (DartFileBasedSource source : sources) {
+        myAnalysisScheduler.forgetFile(source.getFile());
+      }
+
+      if (!sources.isEmpty()) {
+        synchronized (myPendingChangesLock) {
+          for (DartFileBasedSource source : sources) {
+            myRemovedSources.add(source);
+            if (stillExists) {
+              myCreatedFiles.add(source.getFile());
+            }
+          }
+        }
+      }
+    }
+    else if (FileUtilRt.extensionEquals(file.getName(), DartFileType.DEFAULT_EXTENSION)) {
+      final DartFileBasedSource source = myFileToSourceMap.remove(file);
+      myAnalysisScheduler.forgetFile(file);
+      if (source != null) {
+        synchronized (myPendingChangesLock) {
+          myRemovedSources.add(source);
+        }
+      }
+    }
+  }
+
+  private void fileChanged(@NotNull final VirtualFile file) {
+    // sources that the context has never asked for don't need to be reported as changed
+    if (myFileToSourceMap.containsKey(file)) {
+      synchronized (myPendingChangesLock) {
+        myChangedFiles.add(file);
+      }
+    }
+  }
+
   @NotNull
   public static DartAnalyzerService getInstance(final @NotNull Project project) {
     return ServiceManager.getService(project, DartAnalyzerService.class);
   }
 
   @NotNull
-  public AnalysisContext getAnalysisContext(final @NotNull VirtualFile annotatedFile,
-                                            final @NotNull String sdkPath) {
-    AnalysisContext analysisContext = SoftReference.dereference(myAnalysisContextRef);
+  public synchronized AnalysisContext getAnalysisContext(final @NotNull VirtualFile annotatedFile,
+                                                         final @NotNull String sdkPath) {
+    AnalysisContext analysisContext = myAnalysisContext;
 
     final DartUrlResolver dartUrlResolver = DartUrlResolver.getInstance(myProject, annotatedFile);
     final VirtualFile yamlFile = dartUrlResolver.getPubspecYamlFile();
@@ -144,9 +254,10 @@ public class DartAnalyzerService {
 
     if (sameContext) {
       applyChangeSet(analysisContext, annotatedFile);
-      myCreatedFiles.clear();
     }
     else {
+      dropAnalysisContext();
+
       final DirectoryBasedDartSdk dirBasedSdk = getSdk(sdkPath);
       final DartUriResolver dartUriResolver = new DartUriResolver(dirBasedSdk);
       final DartFileAndPackageUriResolver fileAndPackageUriResolver = new DartFileAndPackageUriResolver(myProject, dartUrlResolver);
@@ -163,12 +274,44 @@ public class DartAnalyzerService {
       myPubspecYamlTimestamp = pubspecYamlTimestamp;
       myDartPackageRoots = packageRoots;
       myContentRoot = contentRoot;
-      myAnalysisContextRef = new SoftReference<AnalysisContext>(analysisContext);
+      myAnalysisContext = analysisContext;
+
+      myContextCreatedCount++;
+      LOG.debug("Analysis context created. " + getStatistics());
     }
 
     return analysisContext;
   }
 
+  @NotNull
+  DartAnalysisScheduler getAnalysisScheduler() {
+    return myAnalysisScheduler;
+  }
+
+  private void dropAnalysisContext() {
+    myAnalysisContext = null;
+    myAnalysisScheduler.clearCache();
+
+    // a new context will read all sources anyway
+    synchronized (myPendingChangesLock) {
+      myCreatedFiles.clear();
+      myChangedFiles.clear();
+      myRemovedSources.clear();
+    }
+  }
+
+  /**
+   * @return counters describing how often the analysis context is recreated and how long applying changes to it takes, for diagnostics
+   */
+  @NotNull
+  public synchronized String getStatistics() {
+    return "contexts created: " + myContextCreatedCount +
+           ", evicted on low memory: " + myContextEvictedOnLowMemoryCount +
+           ", change sets applied: " + myApplyChangesCount +
+           ", applyChanges total: " + myApplyChangesTotalNanos / 1000000 + " ms" +
+           ", max: " + myApplyChangesMaxNanos / 1000000 + " ms";
+  }
+
   private static synchronized DirectoryBasedDartSdk getSdk(@NotNull final String sdkPath) {
     DirectoryBasedDartSdk sdk = ourSdkMap.get(sdkPath);
     if (sdk == null) {
@@ -179,23 +322,111 @@ public class DartAnalyzerService {
   }
 
   private void applyChangeSet(final AnalysisContext context, final VirtualFile annotatedFile) {
+    final List<VirtualFile> createdFiles;
+    final List<VirtualFile> changedFiles;
+    final List<DartFileBasedSource> removedSources;
+    synchronized (myPendingChangesLock) {
+      createdFiles = new ArrayList<VirtualFile>(myCreatedFiles);
+      changedFiles = new ArrayList<VirtualFile>(myChangedFiles);
+      removedSources = new ArrayList<DartFileBasedSource>(myRemovedSources);
+      myCreatedFiles.clear();
+      myChangedFiles.clear();
+      myRemovedSources.clear();
+    }
+
     final ChangeSet changeSet = new ChangeSet();
 
-    final DartFileBasedSource source = myFileToSourceMap.get(annotatedFile);
-    if (source != null) {
-      handleDeletedAndOutOfDateSources(changeSet, source);
+    for (DartFileBasedSource source : removedSources) {
+      changeSet.removedSource(source);
+    }
+
+    final DartFileBasedSource annotatedSource = myFileToSourceMap.get(annotatedFile);
+    if (annotatedSource != null) {
+      handleDeletedAndOutOfDateSources(changeSet, annotatedSource);
+    }
+
+    for (VirtualFile file : changedFiles) {
+      final DartFileBasedSource source = myFileToSourceMap.get(file);
+      if (source != null && source != annotatedSource) {
+        handleDeletedAndOutOfDateSources(changeSet, source);
+      }
+    }
+
+    for (VirtualFile file : createdFiles) {
+      // may be deleted after a move
+      if (!file.isValid()) continue;
+      changeSet.addedSource(DartFileBasedSource.getSource(myProject, file));
+    }
+
+    if (changeSet.isEmpty()) return;
+
+    final Collection<DartFileBasedSource> affectedSources;
+    final long time;
+    // the context is not thread safe, errors may be computed in background at the same time, see DartInProcessAnnotator
+    synchronized (context) {
+      // dependencies of removed sources are forgotten by the context once the change set is applied
+      affectedSources = collectAffectedSources(context, changeSet);
+
+      final long start = System.nanoTime();
+      context.applyChanges(changeSet);
+      time = System.nanoTime() - start;
     }
 
-    handleDeletedAndOutOfDateSources(changeSet, context.getLibrarySources());
-    handleDeletedAndOutOfDateSources(changeSet, context.getHtmlSources());
+    myApplyChangesCount++;
+    myApplyChangesTotalNanos += time;
+    myApplyChangesMaxNanos = Math.max(myApplyChangesMaxNanos, time);
+
+    myAnalysisScheduler.sourcesChanged(affectedSources, annotatedFile);
+  }
 
-    synchronized (myCreatedFiles) {
-      for (VirtualFile file : myCreatedFiles) {
-        changeSet.addedSource(DartFileBasedSource.getSource(myProject, file));
+  /**
+   * @return sources of the change set, all units of libraries that contain them or depend on them, directly or not, and html files
+   *         referencing those libraries
+   */
+  @NotNull
+  private static Collection<DartFileBasedSource> collectAffectedSources(final AnalysisContext context, final ChangeSet changeSet) {
+    final Set<Source> libraries = new THashSet<Source>();
+    final Queue<Source> librariesToProcess = new ArrayDeque<Source>();
+    final Set<Source> result = new THashSet<Source>();
+
+    final List<Source> changedSources = new ArrayList<Source>();
+    changedSources.addAll(changeSet.getAddedSources());
+    changedSources.addAll(changeSet.getChangedSources());
+    changedSources.addAll(changeSet.getRemovedSources());
+
+    for (Source source : changedSources) {
+      result.add(source);
+      for (Source library : context.getLibrariesContaining(source)) {
+        if (libraries.add(library)) librariesToProcess.add(library);
       }
     }
 
-    context.applyChanges(changeSet);
+    Source library;
+    while ((library = librariesToProcess.poll()) != null) {
+      for (Source dependentLibrary : context.getLibrariesDependingOn(library)) {
+        if (libraries.add(dependentLibrary)) librariesToProcess.add(dependentLibrary);
+      }
+    }
+
+    for (Source librarySource : libraries) {
+      result.add(librarySource);
+      Collections.addAll(result, context.getHtmlFilesReferencing(librarySource));
+
+      final LibraryElement libraryElement = context.getLibraryElement(librarySource);
+      if (libraryElement != null) {
+        for (CompilationUnitElement part : libraryElement.getParts()) {
+          result.add(part.getSource());
+        }
+      }
+    }
+
+    final List<DartFileBasedSource> dartFileBasedSources = new ArrayList<DartFileBasedSource>(result.size());
+    for (Source source : result) {
+      if (source instanceof DartFileBasedSource) {
+        dartFileBasedSources.add((DartFileBasedSource)source);
+      }
+    }
+    return dartFileBasedSources;
   }
 
   private void handleDeletedAndOutOfDateSources(final ChangeSet changeSet, final Source... sources) {
@@ -42,13 +42,16 @@ public class DartInProcessAnnotator extends ExternalAnnotator<DartInProcessAnnot
   static final Logger LOG = Logger.getInstance("#com.jetbrains.lang.dart.analyzer.DartInProcessAnnotator");
 
   public static class DartAnnotatorInfo {
+    @NotNull private final Project project;
     @NotNull private final AnalysisContext analysisContext;
     @NotNull private final DartFileBasedSource annotatedFile;
     @NotNull private final DartFileBasedSource libraryFile;
 
-    public DartAnnotatorInfo(@NotNull final AnalysisContext analysisContext,
+    public DartAnnotatorInfo(@NotNull final Project project,
+                             @NotNull final AnalysisContext analysisContext,
                              @NotNull final DartFileBasedSource annotatedFile,
                              @NotNull final DartFileBasedSource libraryFile) {
+      this.project = project;
       this.analysisContext = analysisContext;
       this.annotatedFile = annotatedFile;
       this.libraryFile = libraryFile;
@@ -78,7 +81,8 @@ public class DartInProcessAnnotator extends ExternalAnnotator<DartInProcessAnnot
     final List<VirtualFile> libraries = DartResolveUtil.findLibrary(psiFile, GlobalSearchScope.projectScope(project));
     final VirtualFile libraryFile = libraries.isEmpty() || libraries.contains(annotatedFile) ? annotatedFile : libraries.get(0);
 
-    return new DartAnnotatorInfo(DartAnalyzerService.getInstance(project).getAnalysisContext(annotatedFile, sdk.getHomePath()),
+    return new DartAnnotatorInfo(project,
+                                 DartAnalyzerService.getInstance(project).getAnalysisContext(annotatedFile, sdk.getHomePath()),
                                  DartFileBasedSource.getSource(project, annotatedFile),
                                  DartFileBasedSource.getSource(project, libraryFile));
   }
@@ -99,17 +103,43 @@ public class DartInProcessAnnotator extends ExternalAnnotator<DartInProcessAnnot
   @Override
   @Nullable
   public AnalysisContext doAnnotate(final DartAnnotatorInfo annotatorInfo) {
+    final DartAnalysisScheduler scheduler = DartAnalyzerService.getInstance(annotatorInfo.project).getAnalysisScheduler();
+    return computeAndCacheErrors(annotatorInfo, scheduler) ? annotatorInfo.analysisContext : null;
+  }
+
+  /**
+   * Computes errors for the annotated file unless they are already cached.
+   *
+   * @return <code>false</code> if analysis failed
+   */
+  static boolean computeAndCacheErrors(@NotNull final DartAnnotatorInfo annotatorInfo,
+                                       @NotNull final DartAnalysisScheduler scheduler) {
+    final AnalysisContext analysisContext = annotatorInfo.analysisContext;
+    final DartFileBasedSource annotatedFile = annotatorInfo.annotatedFile;
+
+    if (scheduler.getCachedErrors(analysisContext, annotatedFile) != null) return true;
+
+    final long generation = scheduler.getGeneration(annotatedFile);
+    final long modificationStamp = annotatedFile.getModificationStamp();
+
     try {
-      if (annotatorInfo.annotatedFile != annotatorInfo.libraryFile) {
-        annotatorInfo.analysisContext.computeErrors(annotatorInfo.libraryFile);
+      final AnalysisError[] errors;
+      // the context is not thread safe, highlighting and the background scheduler may analyze at the same time
+      synchronized (analysisContext) {
+        if (annotatedFile != annotatorInfo.libraryFile) {
+          analysisContext.computeErrors(annotatorInfo.libraryFile);
+        }
+        errors = analysisContext.computeErrors(annotatedFile);
       }
-      annotatorInfo.analysisContext.computeErrors(annotatorInfo.annotatedFile);
-      return annotatorInfo.analysisContext;
+      if (errors != null) {
+        scheduler.cacheErrors(analysisContext, generation, annotatedFile, modificationStamp, errors);
+      }
+      return true;
     }
     catch (AnalysisException e) {
       LOG.info(e);
     }
-    return null;
+    return false;
   }
 
   @Override
@@ -123,7 +153,17 @@ public class DartInProcessAnnotator extends ExternalAnnotator<DartInProcessAnnot
     if (source == null) return;
 
     // analysisContext.getErrors() doesn't perform analysis and returns already calculated errors
-    final AnalysisError[] messages = analysisContext.getErrors(source).getErrors();
+    final AnalysisError[] cachedMessages =
+      DartAnalyzerService.getInstance(psiFile.getProject()).getAnalysisScheduler().getCachedErrors(analysisContext, source);
+    final AnalysisError[] messages;
+    if (cachedMessages != null) {
+      messages = cachedMessages;
+    }
+    else {
+      synchronized (analysisContext) {
+        messages = analysisContext.getErrors(source).getErrors();
+      }
+    }
     if (messages == null || messages.length == 0) return;
 
     final int fileTextLength = psiFile.getTextLength();
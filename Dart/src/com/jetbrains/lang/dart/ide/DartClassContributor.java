@@ -5,8 +5,10 @@ import com.intellij.navigation.NavigationItem;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.util.ArrayUtil;
+import com.jetbrains.lang.dart.DartComponentType;
 import com.jetbrains.lang.dart.ide.index.DartClassIndex;
-import com.jetbrains.lang.dart.psi.DartComponentName;
+import com.jetbrains.lang.dart.ide.index.DartSymbolIndex;
+import com.jetbrains.lang.dart.ide.index.DartSymbolNavigationItem;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
@@ -26,7 +28,7 @@ public class DartClassContributor implements ChooseByNameContributor {
   @Override
   public NavigationItem[] getItemsByName(String name, String pattern, Project project, boolean includeNonProjectItems) {
     final GlobalSearchScope scope = includeNonProjectItems ? GlobalSearchScope.allScope(project) : GlobalSearchScope.projectScope(project);
-    final Collection<DartComponentName> result = DartClassIndex.getItemsByName(name, project, scope);
+    final Collection<DartSymbolNavigationItem> result = DartSymbolIndex.getItemsByName(name, project, scope, DartComponentType.CLASS);
     if (result.size() == 0) {
       return NavigationItem.EMPTY_NAVIGATION_ITEM_ARRAY;
     }
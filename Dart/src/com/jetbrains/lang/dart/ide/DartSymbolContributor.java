@@ -6,7 +6,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.util.ArrayUtil;
 import com.jetbrains.lang.dart.ide.index.DartSymbolIndex;
-import com.jetbrains.lang.dart.psi.DartComponentName;
+import com.jetbrains.lang.dart.ide.index.DartSymbolNavigationItem;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
@@ -26,7 +26,7 @@ public class DartSymbolContributor implements ChooseByNameContributor {
   @Override
   public NavigationItem[] getItemsByName(String name, String pattern, Project project, boolean includeNonProjectItems) {
     final GlobalSearchScope scope = includeNonProjectItems ? GlobalSearchScope.allScope(project) : GlobalSearchScope.projectScope(project);
-    final Collection<DartComponentName> result = DartSymbolIndex.getItemsByName(name, project, scope);
+    final Collection<DartSymbolNavigationItem> result = DartSymbolIndex.getItemsByName(name, project, scope, null);
     return result.toArray(new NavigationItem[result.size()]);
   }
 }
@@ -0,0 +1,30 @@
+package com.jetbrains.lang.dart.ide.actions;
+
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.jetbrains.lang.dart.analyzer.DartAnalyzerService;
+import com.jetbrains.lang.dart.psi.DartClassResolveCache;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Internal action that shows hit/miss counters of Dart caches.
+ */
+public class DartCacheStatisticsAction extends DumbAwareAction {
+
+  @Override
+  public void update(@NotNull final AnActionEvent e) {
+    e.getPresentation().setEnabled(e.getProject() != null);
+  }
+
+  @Override
+  public void actionPerformed(@NotNull final AnActionEvent e) {
+    final Project project = e.getProject();
+    if (project == null) return;
+
+    final String message = "Class resolve cache: " + DartClassResolveCache.getInstance(project).getStatistics() + "\n" +
+                           "Analyzer: " + DartAnalyzerService.getInstance(project).getStatistics();
+    Messages.showInfoMessage(project, message, "Dart Cache Statistics");
+  }
+}
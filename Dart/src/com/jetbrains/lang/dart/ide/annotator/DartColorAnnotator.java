@@ -103,10 +103,8 @@ public class DartColorAnnotator implements Annotator {
   private static DartComponentName highlightReference(final DartReference element,
                                                       final AnnotationHolder holder) {
     DartComponentName componentName = null;
-    final DartReference[] references = PsiTreeUtil.getChildrenOfType(element, DartReference.class);
-    boolean chain = references != null && references.length > 1;
-    if (!chain) {
-      final PsiElement resolved = element.resolve(); // todo this takes too much time
+    if (DartHighlightingResolveCache.isResolvedForHighlighting(element)) {
+      final PsiElement resolved = DartHighlightingResolveCache.resolve(element);
       if (resolved != null) {
         final PsiElement parent = resolved.getParent();
         if (parent instanceof DartFunctionDeclarationWithBodyOrNative) {
@@ -0,0 +1,82 @@
+package com.jetbrains.lang.dart.ide.annotator;
+
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.jetbrains.lang.dart.psi.DartReference;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Resolve results of all references of a file, shared by {@link DartColorAnnotator} and {@link DartUnresolvedReferenceVisitor}.
+ * <p/>
+ * All references that the annotators are interested in (i.e. not qualified chains) are resolved in one pass over the file when the
+ * first of them is asked for, and the results are kept until the file or the project structure changes. Results are keyed by
+ * reference text range, so they don't depend on identity of PSI elements.
+ */
+final class DartHighlightingResolveCache {
+  private static final Key<CachedValue<Map<TextRange, PsiElement>>> RESOLVE_RESULTS_KEY = Key.create("dart.highlighting.resolve.results");
+
+  private DartHighlightingResolveCache() {
+  }
+
+  static boolean isResolvedForHighlighting(@NotNull final DartReference reference) {
+    final DartReference[] references = PsiTreeUtil.getChildrenOfType(reference, DartReference.class);
+    return references == null || references.length <= 1;
+  }
+
+  @Nullable
+  static PsiElement resolve(@NotNull final DartReference reference) {
+    final PsiFile file = reference.getContainingFile();
+    if (file == null || !isResolvedForHighlighting(reference)) return reference.resolve();
+
+    final Map<TextRange, PsiElement> results = getResolveResults(file);
+    final TextRange range = reference.getTextRange();
+    if (!results.containsKey(range)) {
+      // not a reference of the file itself, e.g. in a code fragment
+      return reference.resolve();
+    }
+
+    final PsiElement resolved = results.get(range);
+    return resolved == null || resolved.isValid() ? resolved : reference.resolve();
+  }
+
+  @NotNull
+  private static Map<TextRange, PsiElement> getResolveResults(@NotNull final PsiFile file) {
+    final CachedValuesManager manager = CachedValuesManager.getManager(file.getProject());
+    return manager.getCachedValue(file, RESOLVE_RESULTS_KEY, new CachedValueProvider<Map<TextRange, PsiElement>>() {
+      @Nullable
+      @Override
+      public Result<Map<TextRange, PsiElement>> compute() {
+        final Map<TextRange, PsiElement> results = new THashMap<TextRange, PsiElement>();
+
+        file.accept(new PsiRecursiveElementWalkingVisitor() {
+          @Override
+          public void visitElement(final PsiElement element) {
+            if (element instanceof DartReference && isResolvedForHighlighting((DartReference)element)) {
+              results.put(element.getTextRange(), ((DartReference)element).resolve());
+            }
+            super.visitElement(element);
+          }
+        });
+
+        return Result.create(Collections.unmodifiableMap(results),
+                             file,
+                             PsiModificationTracker.OUT_OF_CODE_BLOCK_MODIFICATION_COUNT,
+                             ProjectRootManager.getInstance(file.getProject()));
+      }
+    }, false);
+  }
+}
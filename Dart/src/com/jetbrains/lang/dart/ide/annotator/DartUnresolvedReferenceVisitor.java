@@ -30,7 +30,7 @@ public class DartUnresolvedReferenceVisitor extends DartVisitor implements Annot
     final boolean isSimpleReference = referenceText != null && !"void".equals(referenceText) && !referenceText.contains(".");
     final boolean isPrefix = referenceText != null &&
                              DartResolveUtil.getImportedFileByImportPrefix(reference.getContainingFile(), referenceText) != null;
-    if (isSimpleReference && !isPrefix && reference.resolve() == null) {
+    if (isSimpleReference && !isPrefix && DartHighlightingResolveCache.resolve(reference) == null) {
       myHolder.createErrorAnnotation(reference, DartBundle.message("cannot.resolve.reference"));
     }
     super.visitReferenceExpression(reference);
@@ -3,12 +3,12 @@ package com.jetbrains.lang.dart.ide.completion;
 import com.intellij.codeInsight.completion.CompletionResultSet;
 import com.intellij.codeInsight.completion.InsertHandler;
 import com.intellij.codeInsight.completion.InsertionContext;
+import com.intellij.codeInsight.completion.PrefixMatcher;
 import com.intellij.codeInsight.lookup.LookupElement;
 import com.intellij.codeInsight.lookup.LookupElementBuilder;
 import com.intellij.openapi.util.Condition;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.util.PsiTreeUtil;
-import com.intellij.util.Function;
 import com.intellij.util.PairProcessor;
 import com.intellij.util.containers.ContainerUtil;
 import com.jetbrains.lang.dart.ide.index.DartComponentIndex;
@@ -16,10 +16,10 @@ import com.jetbrains.lang.dart.ide.index.DartComponentInfo;
 import com.jetbrains.lang.dart.psi.DartComponentName;
 import com.jetbrains.lang.dart.psi.DartReference;
 import com.jetbrains.lang.dart.util.DartImportUtil;
+import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
 import java.util.Set;
 
 /**
@@ -33,14 +33,14 @@ public class DartGlobalVariantsCompletionHelper {
                                                  @NotNull PsiElement context,
                                                  Set<DartComponentName> variants,
                                                  @Nullable final Condition<DartComponentInfo> infoFilter) {
-    final List<String> addedNames = ContainerUtil.skipNulls(ContainerUtil.mapNotNull(variants, new Function<DartComponentName, String>() {
-      @Override
-      public String fun(DartComponentName name) {
-        return name.getName();
-      }
-    }));
-    DartComponentIndex.processAllComponents(
+    final Set<String> addedNames = new THashSet<String>();
+    for (DartComponentName variant : variants) {
+      ContainerUtil.addIfNotNull(variant.getName(), addedNames);
+    }
+    final PrefixMatcher prefixMatcher = result.getPrefixMatcher();
+    DartComponentIndex.processComponentsByPrefix(
       context,
+      prefixMatcher.getPrefix(),
       new PairProcessor<String, DartComponentInfo>() {
         @Override
         public boolean process(String componentName, DartComponentInfo info) {
@@ -52,7 +52,7 @@ public class DartGlobalVariantsCompletionHelper {
       }, new Condition<String>() {
         @Override
         public boolean value(String componentName) {
-          return addedNames.contains(componentName);
+          return addedNames.contains(componentName) || !prefixMatcher.prefixMatches(componentName);
         }
       }
     );
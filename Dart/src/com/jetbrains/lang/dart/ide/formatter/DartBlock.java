@@ -3,6 +3,7 @@ package com.jetbrains.lang.dart.ide.formatter;
 import com.intellij.formatting.*;
 import com.intellij.formatting.templateLanguages.BlockWithParent;
 import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiWhiteSpace;
 import com.intellij.psi.codeStyle.CodeStyleSettings;
 import com.intellij.psi.formatter.FormatterUtil;
@@ -29,15 +30,36 @@ public class DartBlock extends AbstractBlock implements BlockWithParent {
   private final Indent myIndent;
   private boolean myChildrenBuilt = false;
   private BlockWithParent myParent;
+  private final DartSpacingCache mySpacingCache;
+  @Nullable private TextRange myFocusRange;
+  private final boolean myLeaf;
 
   protected DartBlock(ASTNode node,
                       Wrap wrap,
                       Alignment alignment,
                       CodeStyleSettings settings) {
+    this(node, wrap, alignment, settings, new DartSpacingCache(), null, false);
+  }
+
+  /**
+   * @param focusRange if not <code>null</code>, sub-blocks are built only for those child nodes that intersect this range, other child
+   *                   nodes are represented by leaf blocks and are left as is
+   * @param leaf       <code>true</code> if the node is out of the range being formatted, so its sub-blocks are not needed
+   */
+  DartBlock(ASTNode node,
+            Wrap wrap,
+            Alignment alignment,
+            CodeStyleSettings settings,
+            DartSpacingCache spacingCache,
+            @Nullable TextRange focusRange,
+            boolean leaf) {
     super(node, wrap, alignment);
     mySettings = settings;
+    mySpacingCache = spacingCache;
+    myFocusRange = focusRange;
+    myLeaf = leaf;
     myIndentProcessor = new DartIndentProcessor(mySettings.getCommonSettings(DartLanguage.INSTANCE));
-    mySpacingProcessor = new DartSpacingProcessor(node, mySettings.getCommonSettings(DartLanguage.INSTANCE));
+    mySpacingProcessor = new DartSpacingProcessor(node, mySettings.getCommonSettings(DartLanguage.INSTANCE), spacingCache);
     myWrappingProcessor = new DartWrappingProcessor(node, mySettings.getCommonSettings(DartLanguage.INSTANCE));
     myAlignmentProcessor = new DartAlignmentProcessor(node, mySettings.getCommonSettings(DartLanguage.INSTANCE));
     myIndent = myIndentProcessor.getChildIndent(myNode);
@@ -62,7 +84,9 @@ public class DartBlock extends AbstractBlock implements BlockWithParent {
     final ArrayList<Block> tlChildren = new ArrayList<Block>();
     for (ASTNode childNode = getNode().getFirstChildNode(); childNode != null; childNode = childNode.getTreeNext()) {
       if (FormatterUtil.containsWhiteSpacesOnly(childNode)) continue;
-      final DartBlock childBlock = new DartBlock(childNode, createChildWrap(childNode), createChildAlignment(childNode), mySettings);
+      final boolean leaf = myFocusRange != null && !myFocusRange.intersects(childNode.getTextRange());
+      final DartBlock childBlock =
+        new DartBlock(childNode, createChildWrap(childNode), createChildAlignment(childNode), mySettings, mySpacingCache, null, leaf);
       childBlock.setParent(this);
       tlChildren.add(childBlock);
     }
@@ -117,7 +141,16 @@ public class DartBlock extends AbstractBlock implements BlockWithParent {
 
   @Override
   public boolean isLeaf() {
-    return false;
+    return myLeaf;
+  }
+
+  /**
+   * Restricts building of sub-blocks to the given range if it is not restricted yet. Has no effect once the sub-blocks have been built.
+   */
+  void setFocusRangeIfNotBuilt(@NotNull final TextRange focusRange) {
+    if (!myChildrenBuilt && myFocusRange == null) {
+      myFocusRange = focusRange;
+    }
   }
 
   private static boolean isEndsWithRPAREN(IElementType elementType, IElementType prevType) {
@@ -4,6 +4,8 @@ import com.intellij.formatting.FormattingModel;
 import com.intellij.formatting.FormattingModelBuilder;
 import com.intellij.formatting.FormattingModelProvider;
 import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
@@ -12,24 +14,90 @@ import com.jetbrains.lang.dart.psi.DartFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.WeakReference;
+
 /**
+ * Formatting of a part of a Dart file (Reformat Selection, reformatting of a single element, line indent adjustment) builds sub-blocks
+ * only for the top-level declarations that intersect the range being formatted, other top-level declarations are represented by leaf
+ * blocks.
+ * <p/>
+ * The platform doesn't pass the range to {@link #createModel}. For reformatting it is remembered by {@link DartPreFormatProcessor} and
+ * forgotten by {@link DartPostFormatProcessor}. For line indent the range is known only when {@link #getRangeAffectingIndent} is
+ * called, after the model is created but before its sub-blocks are built.
+ *
  * @author fedor.korotkov
  */
 public class DartFormattingModelBuilder implements FormattingModelBuilder {
+  private static final Key<Pair<Long, TextRange>> FORMATTED_RANGE_KEY = Key.create("DART_FORMATTED_RANGE");
+  private static final Key<WeakReference<DartBlock>> UNFOCUSED_ROOT_BLOCK_KEY = Key.create("DART_UNFOCUSED_ROOT_BLOCK");
+
   @NotNull
   @Override
   public FormattingModel createModel(PsiElement element, CodeStyleSettings settings) {
     final PsiFile psiFile = element.getContainingFile();
-    return FormattingModelProvider.createFormattingModelForPsiFile(
-      psiFile,
-      new DartBlock(psiFile instanceof DartFile ? psiFile.getNode() : element.getNode(), null, null, settings),
-      settings
-    );
+    final DartBlock rootBlock;
+    if (psiFile instanceof DartFile) {
+      final TextRange focusRange = element == psiFile ? takeFormattedRange((DartFile)psiFile) : element.getTextRange();
+      rootBlock = new DartBlock(psiFile.getNode(), null, null, settings, new DartSpacingCache(), focusRange, false);
+      psiFile.putUserData(UNFOCUSED_ROOT_BLOCK_KEY, focusRange == null ? new WeakReference<DartBlock>(rootBlock) : null);
+    }
+    else {
+      rootBlock = new DartBlock(element.getNode(), null, null, settings);
+    }
+    return FormattingModelProvider.createFormattingModelForPsiFile(psiFile, rootBlock, settings);
   }
 
   @Nullable
   @Override
   public TextRange getRangeAffectingIndent(PsiFile file, int offset, ASTNode elementAtOffset) {
-    return null;
+    if (!(file instanceof DartFile) || elementAtOffset == null) return null;
+
+    final ASTNode fileNode = file.getNode();
+    ASTNode topLevelNode = elementAtOffset;
+    while (topLevelNode.getTreeParent() != null && topLevelNode.getTreeParent() != fileNode) {
+      topLevelNode = topLevelNode.getTreeParent();
+    }
+    if (topLevelNode.getTreeParent() != fileNode) return null;
+
+    final TextRange range = topLevelNode.getTextRange();
+    final WeakReference<DartBlock> rootBlockRef = file.getUserData(UNFOCUSED_ROOT_BLOCK_KEY);
+    file.putUserData(UNFOCUSED_ROOT_BLOCK_KEY, null);
+    final DartBlock rootBlock = rootBlockRef == null ? null : rootBlockRef.get();
+    if (rootBlock != null) {
+      rootBlock.setFocusRangeIfNotBuilt(range);
+    }
+    return range;
+  }
+
+  /**
+   * Remembers the range of the file that is about to be formatted, see {@link DartPreFormatProcessor}. Several ranges of the same file
+   * are merged.
+   */
+  static void addFormattedRange(@NotNull final DartFile file, @NotNull final TextRange range) {
+    final Pair<Long, TextRange> previous = file.getUserData(FORMATTED_RANGE_KEY);
+    final long stamp = file.getModificationStamp();
+    final TextRange union = previous != null && previous.first == stamp ? previous.second.union(range) : range;
+    file.putUserData(FORMATTED_RANGE_KEY, Pair.create(stamp, union));
+  }
+
+  /**
+   * Forgets the range remembered by {@link #addFormattedRange(DartFile, TextRange)}, so that it isn't used by a later line indent
+   * adjustment if no model has been created for it, see {@link DartPostFormatProcessor}.
+   */
+  static void clearFormattedRange(@NotNull final DartFile file) {
+    file.putUserData(FORMATTED_RANGE_KEY, null);
+  }
+
+  /**
+   * @return range remembered by {@link #addFormattedRange(DartFile, TextRange)} if the file hasn't been changed since then,
+   *         <code>null</code> means that the whole file is formatted
+   */
+  @Nullable
+  private static TextRange takeFormattedRange(@NotNull final DartFile file) {
+    final Pair<Long, TextRange> range = file.getUserData(FORMATTED_RANGE_KEY);
+    if (range == null) return null;
+
+    clearFormattedRange(file);
+    return range.first == file.getModificationStamp() ? range.second : null;
   }
 }
@@ -0,0 +1,34 @@
+package com.jetbrains.lang.dart.ide.formatter;
+
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.codeStyle.CodeStyleSettings;
+import com.intellij.psi.impl.source.codeStyle.PostFormatProcessor;
+import com.jetbrains.lang.dart.psi.DartFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Makes {@link DartFormattingModelBuilder} forget the range remembered by {@link DartPreFormatProcessor} when formatting is over.
+ * Doesn't change anything.
+ */
+public class DartPostFormatProcessor implements PostFormatProcessor {
+  @Override
+  public PsiElement processElement(@NotNull final PsiElement source, @NotNull final CodeStyleSettings settings) {
+    final PsiFile file = source.getContainingFile();
+    if (file instanceof DartFile) {
+      DartFormattingModelBuilder.clearFormattedRange((DartFile)file);
+    }
+    return source;
+  }
+
+  @Override
+  public TextRange processText(@NotNull final PsiFile source,
+                               @NotNull final TextRange rangeToReformat,
+                               @NotNull final CodeStyleSettings settings) {
+    if (source instanceof DartFile) {
+      DartFormattingModelBuilder.clearFormattedRange((DartFile)source);
+    }
+    return rangeToReformat;
+  }
+}
@@ -0,0 +1,24 @@
+package com.jetbrains.lang.dart.ide.formatter;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.impl.source.codeStyle.PreFormatProcessor;
+import com.jetbrains.lang.dart.psi.DartFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lets {@link DartFormattingModelBuilder} know which part of a Dart file is being formatted, so that it doesn't build blocks for the
+ * rest of the file. Doesn't change the range.
+ */
+public class DartPreFormatProcessor implements PreFormatProcessor {
+  @NotNull
+  @Override
+  public TextRange process(@NotNull final ASTNode element, @NotNull final TextRange range) {
+    final PsiElement psiElement = element.getPsi();
+    if (psiElement instanceof DartFile && psiElement.isValid()) {
+      DartFormattingModelBuilder.addFormattedRange((DartFile)psiElement, range);
+    }
+    return range;
+  }
+}
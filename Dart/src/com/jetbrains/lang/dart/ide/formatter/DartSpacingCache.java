@@ -0,0 +1,38 @@
+package com.jetbrains.lang.dart.ide.formatter;
+
+import com.intellij.formatting.Spacing;
+import com.intellij.psi.tree.IElementType;
+import gnu.trove.TLongObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Spacing decisions of {@link DartSpacingProcessor} made during one formatting session, keyed by the types of the parent node, its
+ * parent and the two neighbouring child nodes. Shared by all blocks of one formatting model, so the cached values are valid only while
+ * the code style settings don't change.
+ */
+class DartSpacingCache {
+  private static final int NO_TYPE = 0xFFFF;
+
+  private final TLongObjectHashMap<Spacing> mySpacings = new TLongObjectHashMap<Spacing>();
+
+  @Nullable
+  Spacing get(final long key) {
+    return mySpacings.get(key);
+  }
+
+  void put(final long key, @NotNull final Spacing spacing) {
+    mySpacings.put(key, spacing);
+  }
+
+  static long getKey(@Nullable final IElementType parentType,
+                     @NotNull final IElementType elementType,
+                     @NotNull final IElementType type1,
+                     @NotNull final IElementType type2) {
+    return ((long)index(parentType) << 48) | ((long)index(elementType) << 32) | ((long)index(type1) << 16) | index(type2);
+  }
+
+  private static int index(@Nullable final IElementType type) {
+    return type == null ? NO_TYPE : type.getIndex() & 0xFFFF;
+  }
+}
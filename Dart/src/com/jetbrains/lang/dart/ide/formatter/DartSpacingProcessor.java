@@ -8,6 +8,7 @@ import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
 import com.intellij.psi.formatter.common.AbstractBlock;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.TokenSet;
+import org.jetbrains.annotations.Nullable;
 
 import static com.jetbrains.lang.dart.DartTokenTypes.*;
 import static com.jetbrains.lang.dart.DartTokenTypesSets.*;
@@ -43,10 +44,18 @@ public class DartSpacingProcessor {
 
   private final ASTNode myNode;
   private final CommonCodeStyleSettings mySettings;
+  @Nullable private final DartSpacingCache myCache;
+  // set when the spacing being computed depends on particular nodes, not only on their types, so it must not be cached
+  private boolean myNodeSpecific;
 
   public DartSpacingProcessor(ASTNode node, CommonCodeStyleSettings settings) {
+    this(node, settings, null);
+  }
+
+  DartSpacingProcessor(ASTNode node, CommonCodeStyleSettings settings, @Nullable DartSpacingCache cache) {
     myNode = node;
     mySettings = settings;
+    myCache = cache;
   }
 
   public Spacing getSpacing(final Block child1, final Block child2) {
@@ -61,6 +70,28 @@ public class DartSpacingProcessor {
     final ASTNode node2 = ((AbstractBlock)child2).getNode();
     final IElementType type2 = node2.getElementType();
 
+    if (myCache == null) {
+      return getSpacing(elementType, parentType, child1, node1, type1, type2);
+    }
+
+    final long key = DartSpacingCache.getKey(parentType, elementType, type1, type2);
+    final Spacing cached = myCache.get(key);
+    if (cached != null) return cached;
+
+    myNodeSpecific = false;
+    final Spacing spacing = getSpacing(elementType, parentType, child1, node1, type1, type2);
+    if (spacing != null && !myNodeSpecific) {
+      myCache.put(key, spacing);
+    }
+    return spacing;
+  }
+
+  private Spacing getSpacing(final IElementType elementType,
+                             final IElementType parentType,
+                             final Block child1,
+                             final ASTNode node1,
+                             final IElementType type1,
+                             final IElementType type2) {
     if (AT == type1) return Spacing.createSpacing(0, 0, 0, false, 0);
     if (METADATA == type1) return Spacing.createSpacing(1, 1, 0, true, 0);
 
@@ -76,6 +107,7 @@ public class DartSpacingProcessor {
       int lineFeeds = 1;
       if (!COMMENTS.contains(type1) && (elementType == CLASS_MEMBERS || topLevel && DECLARATIONS.contains(type2))) {
         if (type1 == SEMICOLON && type2 == VAR_DECLARATION_LIST) {
+          myNodeSpecific = true;
           final ASTNode node1TreePrev = node1.getTreePrev();
           if (node1TreePrev == null || node1TreePrev.getElementType() != VAR_DECLARATION_LIST) {
             lineFeeds = 2;
@@ -391,6 +423,7 @@ public class DartSpacingProcessor {
                                 TextRange textRange) {
     final int spaces = needSpaceSetting ? 1 : 0;
     if (braceStyleSetting == CommonCodeStyleSettings.NEXT_LINE_IF_WRAPPED && textRange != null) {
+      myNodeSpecific = true;
       return Spacing.createDependentLFSpacing(spaces, spaces, textRange, mySettings.KEEP_LINE_BREAKS, mySettings.KEEP_BLANK_LINES_IN_CODE);
     }
     else {
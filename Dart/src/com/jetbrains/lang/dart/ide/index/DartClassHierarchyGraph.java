@@ -0,0 +1,485 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootAdapter;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.vfs.*;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.GlobalSearchScopesCore;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.jetbrains.lang.dart.DartFileType;
+import gnu.trove.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.util.*;
+
+/**
+ * Class hierarchy of the project and libraries by class names, built from {@link DartInheritanceIndex} values.
+ * <p/>
+ * Class names are mapped to int ids and direct subclasses are kept as int id arrays, so transitive subclasses are found without
+ * loading PSI or querying the index again. A name loses its id when no file mentions it any more, the id is reused for another name.
+ * When a file changes only its own edges are recomputed, from its text by {@link DartLexerIndexer}; everything is rebuilt from the index
+ * after roots change. When a directory is created or moved, the edges of files under it are read from the index for that directory
+ * only; files that were known under a deleted or moved directory are just checked to be still valid and in scope. Reading the index
+ * and files is done outside of the graph monitor, which file and PSI listeners on the EDT need too.
+ * <p/>
+ * Names are not resolved, so classes with the same name in different libraries share a node. Results are candidates that callers
+ * must check against PSI before showing them to the user.
+ */
+public class DartClassHierarchyGraph {
+  private static final int[] NO_IDS = new int[0];
+
+  private final Project myProject;
+
+  // guarded by this
+  private boolean myBuilt;
+  private boolean myBuilding; // changes are collected while the graph is being built
+  private int myResetCount; // to detect resets while the graph is being built outside of the monitor
+  private final TObjectIntHashMap<String> myNameToId = new TObjectIntHashMap<String>();
+  private final List<String> myIdToName = new ArrayList<String>(); // null for free ids
+  private final TIntArrayList myIdUseCounts = new TIntArrayList(); // number of occurrences in myFileEdges
+  private final TIntArrayList myFreeIds = new TIntArrayList();
+  private final Map<VirtualFile, int[]> myFileEdges = new THashMap<VirtualFile, int[]>(); // pairs of super class id and subclass id
+  private final Set<VirtualFile> myDirtyFiles = new THashSet<VirtualFile>(); // to be lexed
+  private final Set<VirtualFile> myMovedFiles = new THashSet<VirtualFile>(); // to be checked for validity and scope only
+  private final Set<VirtualFile> myDirtyDirectories = new THashSet<VirtualFile>(); // to be read from the index
+
+  // derived from myFileEdges, null if out of date
+  private int[][] mySubclassIds;
+  // super class id -> file -> ids of its direct subclasses declared in the file
+  private TIntObjectHashMap<Map<VirtualFile, TIntHashSet>> mySubclassesByFile;
+
+  public DartClassHierarchyGraph(@NotNull final Project project) {
+    myProject = project;
+
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override
+      public void childAdded(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childRemoved(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childReplaced(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childMoved(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childrenChanged(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void propertyChanged(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+    }, project);
+
+    final VirtualFileAdapter fileListener = new VirtualFileAdapter() {
+      public void contentsChanged(@NotNull final VirtualFileEvent event) {
+        fileChanged(event.getFile());
+      }
+
+      public void fileCreated(@NotNull final VirtualFileEvent event) {
+        fileChanged(event.getFile());
+      }
+
+      public void fileDeleted(@NotNull final VirtualFileEvent event) {
+        fileChanged(event.getFile());
+      }
+
+      public void fileMoved(@NotNull final VirtualFileMoveEvent event) {
+        fileChanged(event.getFile());
+      }
+
+      public void propertyChanged(@NotNull final VirtualFilePropertyEvent event) {
+        if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+          fileChanged(event.getFile());
+        }
+      }
+    };
+    VirtualFileManager.getInstance().addVirtualFileListener(fileListener, project);
+
+    project.getMessageBus().connect(project).subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootAdapter() {
+      @Override
+      public void rootsChanged(final ModuleRootEvent event) {
+        reset();
+      }
+    });
+  }
+
+  @NotNull
+  public static DartClassHierarchyGraph getInstance(@NotNull final Project project) {
+    return ServiceManager.getService(project, DartClassHierarchyGraph.class);
+  }
+
+  /**
+   * Forgets everything, the graph is rebuilt from the index on next request.
+   */
+  public synchronized void reset() {
+    myBuilt = false;
+    myBuilding = false;
+    myResetCount++;
+    clearEdges();
+    myDirtyFiles.clear();
+    myMovedFiles.clear();
+    myDirtyDirectories.clear();
+  }
+
+  private void clearEdges() {
+    myFileEdges.clear();
+    myNameToId.clear();
+    myIdToName.clear();
+    myIdUseCounts.clear();
+    myFreeIds.clear();
+    mySubclassIds = null;
+    mySubclassesByFile = null;
+  }
+
+  private void psiChanged(@NotNull final PsiTreeChangeEvent event) {
+    final PsiFile psiFile = event.getFile();
+    if (psiFile != null) {
+      fileChanged(psiFile.getViewProvider().getVirtualFile());
+    }
+    else if (event.getChild() instanceof PsiFile) {
+      fileChanged(((PsiFile)event.getChild()).getViewProvider().getVirtualFile());
+    }
+    else if (event.getChild() instanceof PsiDirectory) {
+      fileChanged(((PsiDirectory)event.getChild()).getVirtualFile());
+    }
+  }
+
+  private synchronized void fileChanged(@NotNull final VirtualFile file) {
+    if (!myBuilt && !myBuilding) return;
+
+    if (file.isDirectory()) {
+      // files that were under the directory before it has been deleted or moved, their contents are the same
+      for (VirtualFile knownFile : myFileEdges.keySet()) {
+        if (VfsUtilCore.isAncestor(file, knownFile, true)) {
+          myMovedFiles.add(knownFile);
+        }
+      }
+      // files that are under the directory now
+      if (file.isValid()) {
+        myDirtyDirectories.add(file);
+      }
+    }
+    else {
+      myDirtyFiles.add(file);
+    }
+  }
+
+  @TestOnly
+  boolean hasId(@NotNull final String className) {
+    ensureUpToDate();
+    synchronized (this) {
+      return myNameToId.containsKey(className);
+    }
+  }
+
+  public boolean hasSubclasses(@NotNull final String className) {
+    ensureUpToDate();
+    synchronized (this) {
+      if (!myNameToId.containsKey(className)) return false;
+
+      final int[][] subclassIds = getSubclassIds();
+      final int id = myNameToId.get(className);
+      return id < subclassIds.length && subclassIds[id].length > 0;
+    }
+  }
+
+  /**
+   * @return names of direct or indirect subclasses of the class with the given name, by files that declare them
+   */
+  @NotNull
+  public Map<VirtualFile, Set<String>> getAllSubclassNamesByFile(@NotNull final String className) {
+    ensureUpToDate();
+    synchronized (this) {
+      if (!myNameToId.containsKey(className)) return Collections.emptyMap();
+
+      final int[][] subclassIds = getSubclassIds();
+      final Map<VirtualFile, Set<String>> result = new THashMap<VirtualFile, Set<String>>();
+      final TIntHashSet visited = new TIntHashSet();
+      final TIntArrayList queue = new TIntArrayList();
+      queue.add(myNameToId.get(className));
+
+      for (int i = 0; i < queue.size(); i++) {
+        final int id = queue.get(i);
+        if (!visited.add(id)) continue;
+
+        final Map<VirtualFile, TIntHashSet> subclassesByFile = mySubclassesByFile.get(id);
+        if (subclassesByFile != null) {
+          for (Map.Entry<VirtualFile, TIntHashSet> entry : subclassesByFile.entrySet()) {
+            if (!entry.getKey().isValid()) continue;
+
+            Set<String> names = result.get(entry.getKey());
+            if (names == null) {
+              names = new THashSet<String>();
+              result.put(entry.getKey(), names);
+            }
+            for (int subclassId : entry.getValue().toArray()) {
+              names.add(myIdToName.get(subclassId));
+            }
+          }
+        }
+        queue.add(subclassIds[id]);
+      }
+
+      return result;
+    }
+  }
+
+  @NotNull
+  private int[][] getSubclassIds() {
+    assert Thread.holdsLock(this);
+    if (mySubclassIds == null) {
+      buildAdjacency();
+    }
+    return mySubclassIds;
+  }
+
+  /**
+   * Applies pending changes. The index and files are read without holding the monitor, the result is put into the graph under it.
+   */
+  private void ensureUpToDate() {
+    while (true) {
+      final boolean built;
+      final int resetCount;
+      final List<VirtualFile> dirtyFiles;
+      final List<VirtualFile> movedFiles;
+      final List<VirtualFile> dirtyDirectories;
+      synchronized (this) {
+        built = myBuilt;
+        resetCount = myResetCount;
+        dirtyFiles = new ArrayList<VirtualFile>(myDirtyFiles);
+        movedFiles = new ArrayList<VirtualFile>(myMovedFiles);
+        dirtyDirectories = new ArrayList<VirtualFile>(myDirtyDirectories);
+        if (built && dirtyFiles.isEmpty() && movedFiles.isEmpty() && dirtyDirectories.isEmpty()) return;
+
+        // changes made from now on are collected again and applied on the next iteration
+        myDirtyFiles.clear();
+        myMovedFiles.clear();
+        myDirtyDirectories.clear();
+        if (!built) {
+          myBuilding = true;
+        }
+      }
+
+      if (!built) {
+        // a full build sees all changes made before it
+        final Map<VirtualFile, List<String>> edges = readFromIndex(GlobalSearchScope.allScope(myProject));
+        synchronized (this) {
+          if (resetCount != myResetCount) continue;
+
+          clearEdges();
+          for (Map.Entry<VirtualFile, List<String>> entry : edges.entrySet()) {
+            setFileEdges(entry.getKey(), entry.getValue());
+          }
+          myBuilt = true;
+          myBuilding = false;
+        }
+        continue;
+      }
+
+      final Map<VirtualFile, List<String>> edges = new THashMap<VirtualFile, List<String>>();
+      final GlobalSearchScope allScope = GlobalSearchScope.allScope(myProject);
+      for (VirtualFile file : movedFiles) {
+        if (!file.isValid() || !allScope.contains(file)) {
+          edges.put(file, Collections.<String>emptyList());
+        }
+      }
+      for (VirtualFile directory : dirtyDirectories) {
+        if (!directory.isValid()) continue;
+
+        final GlobalSearchScope directoryScope = allScope.intersectWith(GlobalSearchScopesCore.directoryScope(myProject, directory, true));
+        edges.putAll(readFromIndex(directoryScope));
+      }
+      for (VirtualFile file : dirtyFiles) {
+        edges.put(file, computeEdges(file));
+      }
+
+      synchronized (this) {
+        if (resetCount != myResetCount) continue;
+
+        for (Map.Entry<VirtualFile, List<String>> entry : edges.entrySet()) {
+          setFileEdges(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return pairs of super class name and subclass name by file
+   */
+  @NotNull
+  private Map<VirtualFile, List<String>> readFromIndex(@NotNull final GlobalSearchScope scope) {
+    final Map<VirtualFile, List<String>> edges = new THashMap<VirtualFile, List<String>>();
+    final FileBasedIndex index = FileBasedIndex.getInstance();
+
+    for (final String superClassName : index.getAllKeys(DartInheritanceIndex.DART_INHERITANCE_INDEX, myProject)) {
+      index.processValues(DartInheritanceIndex.DART_INHERITANCE_INDEX, superClassName, null,
+                          new FileBasedIndex.ValueProcessor<List<DartComponentInfo>>() {
+                            @Override
+                            public boolean process(final VirtualFile file, final List<DartComponentInfo> subclasses) {
+                              List<String> fileEdges = edges.get(file);
+                              if (fileEdges == null) {
+                                fileEdges = new ArrayList<String>();
+                                edges.put(file, fileEdges);
+                              }
+                              for (DartComponentInfo subclass : subclasses) {
+                                fileEdges.add(superClassName);
+                                fileEdges.add(subclass.getValue());
+                              }
+                              return true;
+                            }
+                          }, scope);
+    }
+
+    return edges;
+  }
+
+  /**
+   * @return pairs of super class name and subclass name
+   */
+  @NotNull
+  private List<String> computeEdges(@NotNull final VirtualFile file) {
+    if (!file.isValid() ||
+        !DartInputFilter.INSTANCE.acceptInput(file) ||
+        !GlobalSearchScope.allScope(myProject).contains(file)) {
+      return Collections.emptyList();
+    }
+
+    final DartFileIndexData data = computeIndexData(file);
+    if (data == null) return Collections.emptyList();
+
+    final List<String> edges = new ArrayList<String>();
+    for (Map.Entry<String, List<DartComponentInfo>> entry : data.getInheritorsMap().entrySet()) {
+      for (DartComponentInfo subclass : entry.getValue()) {
+        edges.add(entry.getKey());
+        edges.add(subclass.getValue());
+      }
+    }
+    return edges;
+  }
+
+  @Nullable
+  private DartFileIndexData computeIndexData(@NotNull final VirtualFile file) {
+    if (file.getFileType() == DartFileType.INSTANCE) {
+      final Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+      final CharSequence text = document != null ? document.getCharsSequence() : LoadTextUtil.loadText(file);
+      final DartFileIndexData data = DartLexerIndexer.indexFile(file.getName(), text);
+      if (data != null) return data;
+    }
+
+    final PsiFile psiFile = PsiManager.getInstance(myProject).findFile(file);
+    return psiFile == null ? null : DartIndexUtil.indexFileRoots(psiFile);
+  }
+
+  private void setFileEdges(@NotNull final VirtualFile file, @NotNull final List<String> edges) {
+    assert Thread.holdsLock(this);
+    final int[] oldIds = myFileEdges.remove(file);
+    if (edges.isEmpty()) {
+      if (oldIds == null) return;
+    }
+    else {
+      // new ids are taken before the old ones are released, so that names used by both keep their ids
+      final int[] ids = new int[edges.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = acquireId(edges.get(i));
+      }
+      myFileEdges.put(file, ids);
+    }
+    if (oldIds != null) {
+      for (int id : oldIds) {
+        releaseId(id);
+      }
+    }
+    mySubclassIds = null;
+    mySubclassesByFile = null;
+  }
+
+  private int acquireId(@NotNull final String className) {
+    final int id;
+    if (myNameToId.containsKey(className)) {
+      id = myNameToId.get(className);
+    }
+    else if (!myFreeIds.isEmpty()) {
+      id = myFreeIds.remove(myFreeIds.size() - 1);
+      myNameToId.put(className, id);
+      myIdToName.set(id, className);
+    }
+    else {
+      id = myIdToName.size();
+      myNameToId.put(className, id);
+      myIdToName.add(className);
+      myIdUseCounts.add(0);
+    }
+    myIdUseCounts.set(id, myIdUseCounts.get(id) + 1);
+    return id;
+  }
+
+  private void releaseId(final int id) {
+    final int useCount = myIdUseCounts.get(id) - 1;
+    myIdUseCounts.set(id, useCount);
+    if (useCount == 0) {
+      myNameToId.remove(myIdToName.get(id));
+      myIdToName.set(id, null);
+      myFreeIds.add(id);
+    }
+  }
+
+  private void buildAdjacency() {
+    final int idCount = myIdToName.size();
+    final TIntArrayList[] subclasses = new TIntArrayList[idCount];
+    mySubclassesByFile = new TIntObjectHashMap<Map<VirtualFile, TIntHashSet>>();
+
+    for (Map.Entry<VirtualFile, int[]> entry : myFileEdges.entrySet()) {
+      final int[] edges = entry.getValue();
+      for (int i = 0; i < edges.length; i += 2) {
+        final int superClassId = edges[i];
+        final int subclassId = edges[i + 1];
+
+        if (subclasses[superClassId] == null) {
+          subclasses[superClassId] = new TIntArrayList();
+        }
+        if (!subclasses[superClassId].contains(subclassId)) {
+          subclasses[superClassId].add(subclassId);
+        }
+
+        Map<VirtualFile, TIntHashSet> subclassesByFile = mySubclassesByFile.get(superClassId);
+        if (subclassesByFile == null) {
+          subclassesByFile = new THashMap<VirtualFile, TIntHashSet>();
+          mySubclassesByFile.put(superClassId, subclassesByFile);
+        }
+        TIntHashSet fileSubclasses = subclassesByFile.get(entry.getKey());
+        if (fileSubclasses == null) {
+          fileSubclasses = new TIntHashSet();
+          subclassesByFile.put(entry.getKey(), fileSubclasses);
+        }
+        fileSubclasses.add(subclassId);
+      }
+    }
+
+    mySubclassIds = new int[idCount][];
+    for (int i = 0; i < idCount; i++) {
+      mySubclassIds[i] = subclasses[i] == null ? NO_IDS : subclasses[i].toNativeArray();
+    }
+  }
+}
@@ -1,10 +1,18 @@
 package com.jetbrains.lang.dart.ide.index;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.PairProcessor;
 import com.intellij.util.Processor;
 import com.intellij.util.indexing.*;
@@ -22,6 +30,7 @@ import java.util.*;
 public class DartComponentIndex extends FileBasedIndexExtension<String, DartComponentInfo> {
   public static final ID<String, DartComponentInfo> DART_COMPONENT_INDEX = ID.create("DartComponentIndex");
   private static final int INDEX_VERSION = 3;
+  private static final Key<CachedValue<SortedComponentNames>> ourSortedNamesKey = Key.create("dart.sorted.component.names");
   private final DataIndexer<String, DartComponentInfo, FileContent> myIndexer = new MyDataIndexer();
   private final DataExternalizer<DartComponentInfo> myExternalizer = new DartComponentInfoExternalizer();
 
@@ -73,15 +82,28 @@ public class DartComponentIndex extends FileBasedIndexExtension<String, DartComp
       FileBasedIndex.getInstance().getContainingFiles(DART_COMPONENT_INDEX, componentName, GlobalSearchScope.allScope(project)));
   }
 
-  public static void processAllComponents(@NotNull PsiElement contex,
-                                          final PairProcessor<String, DartComponentInfo> processor,
-                                          Condition<String> nameFilter) {
-    final Collection<String> allKeys = FileBasedIndex.getInstance().getAllKeys(DART_COMPONENT_INDEX, contex.getProject());
-    for (final String componentName : allKeys) {
+  /**
+   * Processes components with names that may match the given completion prefix: names whose first letter (ignoring leading '_' and
+   * '$') is the first letter of the prefix, case-insensitively. Names are taken from a sorted snapshot of the index keys that is
+   * recomputed after any change that may change the index: out-of-code-block PSI changes (this includes unsaved documents), any VFS
+   * change (this includes files without loaded PSI changed on disk) and root changes.
+   * Stops as soon as the processor returns <code>false</code>.
+   */
+  public static void processComponentsByPrefix(@NotNull PsiElement context,
+                                               @NotNull String prefix,
+                                               final PairProcessor<String, DartComponentInfo> processor,
+                                               Condition<String> nameFilter) {
+    final SortedComponentNames names = getSortedComponentNames(context.getProject());
+    final char firstLetter = SortedComponentNames.getFirstLetter(prefix);
+
+    final int start = firstLetter == 0 ? 0 : names.lowerBound(firstLetter);
+    final int end = firstLetter == 0 ? names.size() : names.lowerBound((char)(firstLetter + 1));
+    for (int i = start; i < end; i++) {
+      final String componentName = names.getName(i);
       if (nameFilter.value(componentName)) {
         continue;
       }
-      if (processComponentsByName(contex, new Processor<DartComponentInfo>() {
+      if (processComponentsByName(context, new Processor<DartComponentInfo>() {
         @Override
         public boolean process(DartComponentInfo info) {
           return processor.process(componentName, info);
@@ -92,6 +114,21 @@ public class DartComponentIndex extends FileBasedIndexExtension<String, DartComp
     }
   }
 
+  private static SortedComponentNames getSortedComponentNames(@NotNull final Project project) {
+    final CachedValuesManager manager = CachedValuesManager.getManager(project);
+    return manager.getCachedValue(project, ourSortedNamesKey, new CachedValueProvider<SortedComponentNames>() {
+      @Nullable
+      @Override
+      public Result<SortedComponentNames> compute() {
+        final Collection<String> allKeys = FileBasedIndex.getInstance().getAllKeys(DART_COMPONENT_INDEX, project);
+        return Result.create(new SortedComponentNames(allKeys),
+                             PsiModificationTracker.OUT_OF_CODE_BLOCK_MODIFICATION_COUNT,
+                             VirtualFileManager.getInstance(),
+                             ProjectRootManager.getInstance(project));
+      }
+    }, false);
+  }
+
   public static boolean processComponentsByName(PsiElement contex,
                                                 Processor<DartComponentInfo> processor,
                                                 String componentName) {
@@ -104,6 +141,68 @@ public class DartComponentIndex extends FileBasedIndexExtension<String, DartComp
     return false;
   }
 
+  /**
+   * Component names sorted by their first letter, see {@link #getFirstLetter(String)}.
+   */
+  private static class SortedComponentNames {
+    private final String[] myNames;
+    private final char[] myFirstLetters;
+
+    private SortedComponentNames(@NotNull Collection<String> names) {
+      myNames = ArrayUtil.toStringArray(names);
+      Arrays.sort(myNames, new Comparator<String>() {
+        @Override
+        public int compare(String name1, String name2) {
+          return getFirstLetter(name1) - getFirstLetter(name2);
+        }
+      });
+
+      myFirstLetters = new char[myNames.length];
+      for (int i = 0; i < myNames.length; i++) {
+        myFirstLetters[i] = getFirstLetter(myNames[i]);
+      }
+    }
+
+    /**
+     * @return lower-cased first character after leading '_' and '$', or 0 if there is none
+     */
+    private static char getFirstLetter(@NotNull String name) {
+      for (int i = 0; i < name.length(); i++) {
+        final char c = name.charAt(i);
+        if (c != '_' && c != '$') {
+          return Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+        }
+      }
+      return 0;
+    }
+
+    private int size() {
+      return myNames.length;
+    }
+
+    private String getName(int index) {
+      return myNames[index];
+    }
+
+    /**
+     * @return index of the first name with first letter not less than the given one
+     */
+    private int lowerBound(char letter) {
+      int low = 0;
+      int high = myFirstLetters.length;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (myFirstLetters[mid] < letter) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
   private static class MyDataIndexer implements DataIndexer<String, DartComponentInfo, FileContent> {
     @NotNull
     @Override
@@ -15,7 +15,7 @@ public class DartFileIndexData {
   final Map<String, List<DartComponentInfo>> myInheritorsMap = new THashMap<String, List<DartComponentInfo>>();
   @Nullable private String myLibraryName;
   private List<String> myPaths = new ArrayList<String>();
-  private List<String> mySymbols = new ArrayList<String>();
+  private Map<String, List<DartSymbolInfo>> mySymbols = new THashMap<String, List<DartSymbolInfo>>();
 
   public List<String> getClassNames() {
     return myClassNames;
@@ -75,13 +75,18 @@ public class DartFileIndexData {
     myPaths.add(path);
   }
 
-  public List<String> getSymbols() {
+  public Map<String, List<DartSymbolInfo>> getSymbols() {
     return mySymbols;
   }
 
-  public void addSymbol(@Nullable String name) {
+  public void addSymbol(@Nullable String name, @NotNull DartSymbolInfo info) {
     if (name != null) {
-      mySymbols.add(name);
+      List<DartSymbolInfo> list = mySymbols.get(name);
+      if (list == null) {
+        list = new ArrayList<DartSymbolInfo>(1);
+        mySymbols.put(name, list);
+      }
+      list.add(info);
     }
   }
 }
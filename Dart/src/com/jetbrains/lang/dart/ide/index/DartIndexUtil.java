@@ -10,6 +10,7 @@ import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.util.indexing.FileContent;
 import com.jetbrains.lang.dart.DartComponentType;
+import com.jetbrains.lang.dart.DartFileType;
 import com.jetbrains.lang.dart.psi.*;
 import com.jetbrains.lang.dart.util.DartControlFlowUtil;
 import com.jetbrains.lang.dart.util.DartResolveUtil;
@@ -25,7 +26,7 @@ import static com.jetbrains.lang.dart.ide.index.DartImportOrExportInfo.Kind;
 
 public class DartIndexUtil {
   // inc when change parser
-  public static final int BASE_VERSION = 7;
+  public static final int BASE_VERSION = 8;
 
   private static final Key<DartFileIndexData> ourDartCachesData = Key.create("dart.caches.index.data");
 
@@ -35,13 +36,20 @@ public class DartIndexUtil {
     synchronized (content) {
       indexData = content.getUserData(ourDartCachesData);
       if (indexData != null) return indexData;
-      indexData = indexFileRoots(content.getPsiFile());
+      if (content.getFileType() == DartFileType.INSTANCE) {
+        // most files are indexed from tokens; PSI is built only for html files and for code the lexer indexer gives up on
+        indexData = DartLexerIndexer.indexFile(content.getFileName(), content.getContentAsText());
+      }
+      if (indexData == null) {
+        indexData = indexFileRoots(content.getPsiFile());
+      }
+      content.putUserData(ourDartCachesData, indexData);
     }
 
     return indexData;
   }
 
-  private static DartFileIndexData indexFileRoots(PsiFile psiFile) {
+  static DartFileIndexData indexFileRoots(PsiFile psiFile) {
     DartFileIndexData result = new DartFileIndexData();
     result.setLibraryName(DartResolveUtil.getLibraryName(psiFile));
     for (PsiElement rootElement : findDartRoots(psiFile)) {
@@ -60,12 +68,19 @@ public class DartIndexUtil {
         final DartComponentType type = DartComponentType.typeOf(parent);
         if (type != null) {
           result.addComponentInfo(name, new DartComponentInfo(psiFile.getName(), type, libraryId));
+          if (type != DartComponentType.LABEL) {
+            result.addSymbol(name, new DartSymbolInfo(type, null, componentName.getTextOffset()));
+          }
         }
         if (parent instanceof DartClass) {
           result.addClassName(name);
           processInheritors(result, name, (DartClass)parent, libraryId);
           for (DartComponent subComponent : DartResolveUtil.getNamedSubComponents((DartClass)parent)) {
-            result.addSymbol(subComponent.getName());
+            final DartComponentType subComponentType = DartComponentType.typeOf(subComponent);
+            final DartComponentName subComponentName = subComponent.getComponentName();
+            if (subComponentType != null && subComponentName != null) {
+              result.addSymbol(subComponent.getName(), new DartSymbolInfo(subComponentType, name, subComponentName.getTextOffset()));
+            }
           }
         }
       }
@@ -1,6 +1,7 @@
 package com.jetbrains.lang.dart.ide.index;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiElement;
@@ -112,7 +113,12 @@ public class DartInheritanceIndex extends FileBasedIndexExtension<String, List<D
             return true;
           }
           if (dartComponent instanceof DartClass) {
-            processInheritors((DartClass)dartComponent, queryParameters, consumer);
+            final String className = dartComponent.getName();
+            if (className == null) return true;
+
+            processInheritors((DartClass)dartComponent,
+                              DartClassHierarchyGraph.getInstance(dartComponent.getProject()).getAllSubclassNamesByFile(className),
+                              consumer);
           }
           else if (DartComponentType.typeOf(dartComponent) == DartComponentType.METHOD) {
             final String nameToFind = dartComponent.getName();
@@ -121,7 +127,20 @@ public class DartInheritanceIndex extends FileBasedIndexExtension<String, List<D
             DartClass dartClass = PsiTreeUtil.getParentOfType(dartComponent, DartClass.class);
             assert dartClass != null;
 
-            processInheritors(dartClass, queryParameters, new Processor<PsiElement>() {
+            final String className = dartClass.getName();
+            if (className == null) return true;
+
+            // only subclasses in files that declare a member with this name may override it
+            final Project project = dartClass.getProject();
+            final Map<VirtualFile, Set<String>> fileToSubclassNames =
+              DartClassHierarchyGraph.getInstance(project).getAllSubclassNamesByFile(className);
+            if (fileToSubclassNames.isEmpty()) return true;
+            final Collection<VirtualFile> filesWithMember = FileBasedIndex.getInstance().getContainingFiles(
+              DartSymbolIndex.DART_SYMBOL_INDEX, nameToFind, GlobalSearchScope.filesScope(project, fileToSubclassNames.keySet()));
+            fileToSubclassNames.keySet().retainAll(new THashSet<VirtualFile>(filesWithMember));
+            if (fileToSubclassNames.isEmpty()) return true;
+
+            processInheritors(dartClass, fileToSubclassNames, new Processor<PsiElement>() {
               @Override
               public boolean process(PsiElement element) {
                 for (DartComponent subDartNamedComponent : DartResolveUtil.getNamedSubComponents((DartClass)element)) {
@@ -138,27 +157,22 @@ public class DartInheritanceIndex extends FileBasedIndexExtension<String, List<D
       });
     }
 
-    private static boolean processInheritors(final DartClass dartClass, final PsiElement context, final Processor<PsiElement> consumer) {
-      final Set<DartClass> classSet = new THashSet<DartClass>();
-      final LinkedList<DartClass> namesQueue = new LinkedList<DartClass>();
-      namesQueue.add(dartClass);
-      while (!namesQueue.isEmpty()) {
-        final DartClass currentClass = namesQueue.pollFirst();
-        final String currentClassName = currentClass.getName();
-        if (currentClassName == null || !classSet.add(currentClass)) {
-          continue;
-        }
-        final Collection<VirtualFile> files =
-          FileBasedIndex.getInstance()
-            .getContainingFiles(DART_INHERITANCE_INDEX, currentClassName, GlobalSearchScope.allScope(context.getProject()));
-        for (VirtualFile virtualFile : files) {
-          PsiFile psiFile = dartClass.getManager().findFile(virtualFile);
-          for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
-            for (DartClass subClass : DartResolveUtil.findClassesByParent(currentClass, root)) {
-              if (!consumer.process(subClass)) {
-                return true;
-              }
-              namesQueue.add(subClass);
+    /**
+     * Subclasses of all levels are taken from {@link DartClassHierarchyGraph#getAllSubclassNamesByFile} at once, PSI is loaded only
+     * to find the classes with these names in their files. Like the graph, this doesn't resolve names: a class whose super class
+     * has the same name as a class of the hierarchy is reported as well.
+     */
+    private static boolean processInheritors(final DartClass dartClass,
+                                             final Map<VirtualFile, Set<String>> fileToSubclassNames,
+                                             final Processor<PsiElement> consumer) {
+      for (Map.Entry<VirtualFile, Set<String>> entry : fileToSubclassNames.entrySet()) {
+        final PsiFile psiFile = dartClass.getManager().findFile(entry.getKey());
+        if (psiFile == null) continue;
+
+        for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
+          for (DartClass subClass : DartResolveUtil.getClassDeclarations(root)) {
+            if (subClass != dartClass && entry.getValue().contains(subClass.getName()) && !consumer.process(subClass)) {
+              return true;
             }
           }
         }
@@ -0,0 +1,631 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.tree.IElementType;
+import com.jetbrains.lang.dart.DartComponentType;
+import com.jetbrains.lang.dart.lexer.DartLexer;
+import com.jetbrains.lang.dart.util.DartResolveUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static com.jetbrains.lang.dart.DartTokenTypes.*;
+import static com.jetbrains.lang.dart.DartTokenTypesSets.*;
+
+/**
+ * Builds {@link DartFileIndexData} for a Dart file from its tokens, without building PSI.
+ * <p/>
+ * Only the top level structure is recognized: directives, class headers and member names, typedefs, functions and
+ * variables; bodies and initializers are skipped as balanced token ranges. The result is the same as
+ * {@link DartIndexUtil#indexFileRoots} gives for well-formed code. Whenever the tokens don't look like something this
+ * class understands (incomplete code being typed, unbalanced braces, unterminated strings) {@link #indexFile} returns
+ * <code>null</code> and the caller falls back to PSI.
+ */
+class DartLexerIndexer {
+  private final String myFileName;
+  private final CharSequence myText;
+
+  private IElementType[] myTypes = new IElementType[256];
+  private int[] myStarts = new int[256];
+  private int[] myEnds = new int[256];
+  private int myCount;
+
+  private String myLibraryStatementName;
+  private String myPartOfLibraryName;
+  private boolean myHasMainFunction;
+
+  private final List<Pair<String, DartComponentType>> myComponents = new ArrayList<Pair<String, DartComponentType>>();
+  private final List<Pair<String, List<String>>> myClassesAndSupers = new ArrayList<Pair<String, List<String>>>();
+  private final DartFileIndexData myResult = new DartFileIndexData();
+
+  private DartLexerIndexer(@NotNull final String fileName, @NotNull final CharSequence text) {
+    myFileName = fileName;
+    myText = text;
+  }
+
+  @Nullable
+  static DartFileIndexData indexFile(@NotNull final String fileName, @NotNull final CharSequence text) {
+    final DartLexerIndexer indexer = new DartLexerIndexer(fileName, text);
+    return indexer.tokenize() && indexer.parseUnit() ? indexer.buildResult() : null;
+  }
+
+  private boolean tokenize() {
+    final DartLexer lexer = new DartLexer();
+    lexer.start(myText);
+
+    // whole string literals, including template entries, become a single OPEN_QUOTE token
+    int stringDepth = 0;
+    int stringStart = -1;
+
+    IElementType type;
+    while ((type = lexer.getTokenType()) != null) {
+      if (type == BAD_CHARACTER) return false;
+
+      if (stringDepth > 0) {
+        if (type == OPEN_QUOTE) {
+          stringDepth++;
+        }
+        else if (type == CLOSING_QUOTE && --stringDepth == 0) {
+          addToken(OPEN_QUOTE, stringStart, lexer.getTokenEnd());
+        }
+      }
+      else if (type == OPEN_QUOTE) {
+        stringDepth = 1;
+        stringStart = lexer.getTokenStart();
+      }
+      else if (!WHITE_SPACES.contains(type) && !COMMENTS.contains(type)) {
+        addToken(type, lexer.getTokenStart(), lexer.getTokenEnd());
+      }
+
+      lexer.advance();
+    }
+
+    return stringDepth == 0;
+  }
+
+  private void addToken(final IElementType type, final int start, final int end) {
+    if (myCount == myTypes.length) {
+      myTypes = Arrays.copyOf(myTypes, myCount * 2);
+      myStarts = Arrays.copyOf(myStarts, myCount * 2);
+      myEnds = Arrays.copyOf(myEnds, myCount * 2);
+    }
+    myTypes[myCount] = type;
+    myStarts[myCount] = start;
+    myEnds[myCount] = end;
+    myCount++;
+  }
+
+  @Nullable
+  private IElementType type(final int index) {
+    return index >= 0 && index < myCount ? myTypes[index] : null;
+  }
+
+  @NotNull
+  private String text(final int index) {
+    return myText.subSequence(myStarts[index], myEnds[index]).toString();
+  }
+
+  private boolean isId(final int index) {
+    final IElementType type = type(index);
+    return type == IDENTIFIER || BUILT_IN_IDENTIFIERS.contains(type);
+  }
+
+  private boolean isString(final int index) {
+    final IElementType type = type(index);
+    return type == OPEN_QUOTE || type == RAW_SINGLE_QUOTED_STRING || type == RAW_TRIPLE_QUOTED_STRING;
+  }
+
+  private boolean parseUnit() {
+    int index = 0;
+    while (index < myCount) {
+      index = skipMetadata(index);
+      if (index < 0) return false;
+
+      final IElementType type = type(index);
+      if (type == null) break;
+
+      if (type == SEMICOLON) {
+        index++;
+      }
+      else if (type == LIBRARY && isId(index + 1)) {
+        final StringBuilder builder = new StringBuilder();
+        index = readQualifiedName(index + 1, builder);
+        if (type(index) != SEMICOLON) return false;
+        myLibraryStatementName = builder.toString();
+        index++;
+      }
+      else if (type == PART && type(index + 1) == OF && isId(index + 2)) {
+        final StringBuilder builder = new StringBuilder();
+        index = readQualifiedName(index + 2, builder);
+        if (type(index) != SEMICOLON) return false;
+        myPartOfLibraryName = builder.toString();
+        index++;
+      }
+      else if (type == PART && isString(index + 1)) {
+        if (type(index + 2) != SEMICOLON) return false;
+        myResult.addPath(FileUtil.toSystemIndependentName(StringUtil.unquoteString(text(index + 1))));
+        index += 3;
+      }
+      else if ((type == IMPORT || type == EXPORT) && isString(index + 1)) {
+        index = parseImportOrExport(index);
+      }
+      else if (type == CLASS || type == ABSTRACT && type(index + 1) == CLASS) {
+        index = parseClass(type == ABSTRACT ? index + 1 : index);
+      }
+      else if (type == TYPEDEF && type(index + 1) != LPAREN && type(index + 1) != SEMICOLON) {
+        index = parseTypedef(index);
+      }
+      else {
+        index = parseMember(index, null);
+      }
+
+      if (index < 0) return false;
+    }
+
+    return true;
+  }
+
+  private int skipMetadata(int index) {
+    while (type(index) == AT) {
+      index++;
+      while (isId(index)) {
+        index++;
+        if (type(index) != DOT) break;
+        index++;
+      }
+      if (type(index) == LPAREN) {
+        index = skipBalanced(index);
+        if (index < 0) return -1;
+      }
+    }
+    return index;
+  }
+
+  private int readQualifiedName(int index, @NotNull final StringBuilder builder) {
+    while (isId(index)) {
+      builder.append(text(index));
+      index++;
+      if (type(index) != DOT || !isId(index + 1)) break;
+      builder.append('.');
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * @param index index of an opening '(', '[' or '{'
+   * @return index after the matching closing token or -1
+   */
+  private int skipBalanced(int index) {
+    int depth = 0;
+    for (; index < myCount; index++) {
+      final IElementType type = myTypes[index];
+      if (type == LPAREN || type == LBRACKET || type == LBRACE) {
+        depth++;
+      }
+      else if (type == RPAREN || type == RBRACKET || type == RBRACE) {
+        depth--;
+        if (depth == 0) return index + 1;
+        if (depth < 0) return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param index index of '&lt;'
+   * @return index after the matching '&gt;' or -1
+   */
+  private int skipTypeArguments(int index) {
+    int depth = 0;
+    for (; index < myCount; index++) {
+      final IElementType type = myTypes[index];
+      if (type == LT) {
+        depth++;
+      }
+      else if (type == GT) {
+        depth--;
+        if (depth == 0) return index + 1;
+      }
+      else if (type == SEMICOLON || type == LBRACE || type == RBRACE) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Skips an expression up to a ',' or ';' that is not nested into brackets.
+   *
+   * @return index of that ',' or ';' or -1
+   */
+  private int skipExpression(int index) {
+    while (index >= 0 && index < myCount) {
+      final IElementType type = myTypes[index];
+      if (type == COMMA || type == SEMICOLON) return index;
+      if (type == RPAREN || type == RBRACKET || type == RBRACE) return -1;
+
+      index = type == LPAREN || type == LBRACKET || type == LBRACE ? skipBalanced(index) : index + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Reads a type like <code>prefix.Name&lt;T&gt;</code>.
+   *
+   * @return index after the type or -1
+   */
+  private int readType(int index, @NotNull final List<String> typeNames) {
+    final StringBuilder builder = new StringBuilder();
+    index = readQualifiedName(index, builder);
+    if (builder.length() == 0) return -1;
+
+    typeNames.add(builder.toString());
+    return type(index) == LT ? skipTypeArguments(index) : index;
+  }
+
+  private int readTypeList(int index, @NotNull final List<String> typeNames) {
+    index = readType(index, typeNames);
+    while (index > 0 && type(index) == COMMA) {
+      index = readType(index + 1, typeNames);
+    }
+    return index;
+  }
+
+  private int parseImportOrExport(int index) {
+    final DartImportOrExportInfo.Kind kind = type(index) == IMPORT ? DartImportOrExportInfo.Kind.Import
+                                                                   : DartImportOrExportInfo.Kind.Export;
+    final String uri = StringUtil.unquoteString(text(index + 1));
+    index += 2;
+
+    String importPrefix = null;
+    if (kind == DartImportOrExportInfo.Kind.Import) {
+      if (type(index) == DEFERRED && type(index + 1) == AS) {
+        index++;
+      }
+      if (type(index) == AS) {
+        if (!isId(index + 1)) return -1;
+        importPrefix = text(index + 1);
+        index += 2;
+      }
+    }
+
+    final Set<String> showComponentNames = new THashSet<String>();
+    final Set<String> hideComponentNames = new THashSet<String>();
+    while (type(index) == SHOW || type(index) == HIDE) {
+      final Set<String> names = type(index) == SHOW ? showComponentNames : hideComponentNames;
+      do {
+        index++;
+        if (!isId(index)) return -1;
+        names.add(text(index));
+        index++;
+      }
+      while (type(index) == COMMA);
+    }
+
+    if (type(index) != SEMICOLON) return -1;
+
+    myResult.addImportInfo(new DartImportOrExportInfo(kind, uri, importPrefix, showComponentNames, hideComponentNames));
+    if (importPrefix != null) {
+      myComponents.add(Pair.create(importPrefix, DartComponentType.LABEL));
+    }
+
+    return index + 1;
+  }
+
+  /**
+   * @param index index of the 'class' keyword
+   */
+  private int parseClass(int index) {
+    index++;
+    if (!isId(index)) return -1;
+
+    final String className = text(index);
+    myComponents.add(Pair.create(className, DartComponentType.CLASS));
+    myResult.addSymbol(className, new DartSymbolInfo(DartComponentType.CLASS, null, myStarts[index]));
+    index++;
+
+    if (type(index) == LT) {
+      index = skipTypeArguments(index);
+      if (index < 0) return -1;
+    }
+
+    final List<String> superClass = new ArrayList<String>(1);
+    final List<String> interfaces = new ArrayList<String>();
+    final List<String> mixins = new ArrayList<String>();
+
+    final boolean mixinApplication = type(index) == EQ;
+    if (mixinApplication) {
+      index = readType(index + 1, superClass);
+    }
+    else if (type(index) == EXTENDS) {
+      index = readType(index + 1, superClass);
+    }
+    if (index > 0 && type(index) == WITH) {
+      index = readTypeList(index + 1, mixins);
+    }
+    if (index > 0 && type(index) == IMPLEMENTS) {
+      index = readTypeList(index + 1, interfaces);
+    }
+    if (index < 0) return -1;
+
+    final List<String> supers = new ArrayList<String>();
+    supers.add(superClass.isEmpty() ? DartResolveUtil.OBJECT : superClass.get(0));
+    supers.addAll(interfaces);
+    supers.addAll(mixins);
+    myClassesAndSupers.add(Pair.create(className, supers));
+
+    if (mixinApplication) {
+      return type(index) == SEMICOLON ? index + 1 : -1;
+    }
+
+    if (type(index) == NATIVE) {
+      index++;
+      if (isString(index)) index++;
+    }
+
+    if (type(index) != LBRACE) {
+      // class without body
+      return index;
+    }
+
+    index++;
+    while (true) {
+      index = skipMetadata(index);
+      if (index < 0) return -1;
+
+      final IElementType type = type(index);
+      if (type == null) return -1;
+      if (type == RBRACE) return index + 1;
+
+      if (type == SEMICOLON) {
+        index++;
+      }
+      else {
+        index = parseMember(index, className);
+        if (index < 0) return -1;
+      }
+    }
+  }
+
+  /**
+   * @param index index of the 'typedef' keyword
+   */
+  private int parseTypedef(int index) {
+    final int start = ++index;
+    int angleDepth = 0;
+    for (; index < myCount; index++) {
+      final IElementType type = myTypes[index];
+      if (type == LT) angleDepth++;
+      else if (type == GT) angleDepth--;
+      else if (type == LPAREN && angleDepth == 0) break;
+      else if (type == SEMICOLON || type == LBRACE) return -1;
+    }
+
+    int nameIndex = index - 1;
+    if (type(nameIndex) == GT) {
+      // type parameters of the typedef itself
+      int depth = 0;
+      for (; nameIndex >= start; nameIndex--) {
+        if (myTypes[nameIndex] == GT) depth++;
+        else if (myTypes[nameIndex] == LT && --depth == 0) break;
+      }
+      nameIndex--;
+    }
+    if (nameIndex < start || !isId(nameIndex)) return -1;
+
+    myComponents.add(Pair.create(text(nameIndex), DartComponentType.TYPEDEF));
+    myResult.addSymbol(text(nameIndex), new DartSymbolInfo(DartComponentType.TYPEDEF, null, myStarts[nameIndex]));
+
+    index = skipBalanced(index);
+    return type(index) == SEMICOLON ? index + 1 : -1;
+  }
+
+  /**
+   * Parses a top level function, getter, setter or variable declaration list, or a class member.
+   *
+   * @param className <code>null</code> for top level declarations
+   */
+  private int parseMember(final int start, @Nullable final String className) {
+    final boolean inClass = className != null;
+
+    int index = start;
+    int angleDepth = 0;
+    int getIndex = -1;
+    int setIndex = -1;
+    boolean factory = false;
+
+    // scan the declaration header up to the parameter list, the body or the variable initializer
+    while (true) {
+      final IElementType type = type(index);
+      if (type == null || type == RBRACE) return -1;
+
+      if (type == LT) {
+        angleDepth++;
+      }
+      else if (type == GT) {
+        if (--angleDepth < 0) return -1;
+      }
+      else if (angleDepth == 0) {
+        if (type == LPAREN || type == EQ || type == COMMA || type == SEMICOLON || type == LBRACE || type == EXPRESSION_BODY_DEF) {
+          break;
+        }
+
+        if (type == OPERATOR && type(index + 1) != LPAREN && !inClassHeaderTerminator(type(index + 1))) {
+          // operator declaration, not a DartComponent
+          while (type(index) != null && type(index) != LPAREN) index++;
+          return skipFunctionTail(skipBalanced(index));
+        }
+
+        if (type == GET && isId(index + 1)) getIndex = index;
+        if (type == SET && isId(index + 1)) setIndex = index;
+        if (type == FACTORY) factory = true;
+      }
+
+      index++;
+    }
+
+    final IElementType terminator = myTypes[index];
+    final int nameIndex = index - 1;
+
+    if (terminator == LPAREN) {
+      final String name;
+      final DartComponentType componentType;
+
+      if (factory) {
+        name = type(nameIndex - 1) == DOT && isId(nameIndex) ? text(nameIndex) : null;
+        componentType = DartComponentType.CONSTRUCTOR;
+      }
+      else if (getIndex >= 0 && getIndex + 1 == nameIndex || setIndex >= 0 && setIndex + 1 == nameIndex) {
+        name = text(nameIndex);
+        componentType = inClass ? DartComponentType.METHOD : DartComponentType.FUNCTION;
+      }
+      else {
+        if (nameIndex < start || !isId(nameIndex)) return -1;
+        name = text(nameIndex);
+        if (inClass && (type(nameIndex - 1) == DOT || name.equals(className))) {
+          componentType = DartComponentType.CONSTRUCTOR;
+        }
+        else {
+          componentType = inClass ? DartComponentType.METHOD : DartComponentType.FUNCTION;
+        }
+      }
+
+      addMember(name, myStarts[nameIndex], componentType, className);
+      return skipFunctionTail(skipBalanced(index));
+    }
+
+    final boolean getter = getIndex >= 0 && getIndex + 1 == nameIndex;
+    if (terminator == LBRACE || terminator == EXPRESSION_BODY_DEF || terminator == SEMICOLON && getter) {
+      // getter without parameter list
+      if (!getter) return -1;
+
+      addMember(text(nameIndex), myStarts[nameIndex], inClass ? DartComponentType.METHOD : DartComponentType.FUNCTION, className);
+      return skipFunctionTail(index);
+    }
+
+    // variable declaration list; there must be a type or 'var'/'final'/'const' before the first name
+    if (nameIndex <= start || !isId(nameIndex)) return -1;
+
+    final DartComponentType componentType = inClass ? DartComponentType.FIELD : DartComponentType.VARIABLE;
+    addMember(text(nameIndex), myStarts[nameIndex], componentType, className);
+
+    while (true) {
+      if (type(index) == EQ) {
+        index = skipExpression(index + 1);
+        if (index < 0) return -1;
+      }
+
+      if (type(index) == SEMICOLON) return index + 1;
+      if (type(index) != COMMA || !isId(index + 1)) return -1;
+
+      addMember(text(index + 1), myStarts[index + 1], componentType, className);
+      index += 2;
+    }
+  }
+
+  private static boolean inClassHeaderTerminator(@Nullable final IElementType type) {
+    return type == null || type == EQ || type == COMMA || type == SEMICOLON || type == LBRACE || type == EXPRESSION_BODY_DEF;
+  }
+
+  /**
+   * @param className <code>null</code> for top level declarations
+   */
+  private void addMember(@Nullable final String name, final int offset, @NotNull final DartComponentType type, @Nullable final String className) {
+    myResult.addSymbol(name, new DartSymbolInfo(type, className, offset));
+    if (className == null && name != null) {
+      myComponents.add(Pair.create(name, type));
+      if (type == DartComponentType.FUNCTION && "main".equals(name)) {
+        myHasMainFunction = true;
+      }
+    }
+  }
+
+  /**
+   * Skips whatever follows the parameter list of a function: initializers, redirection, 'native' and the body.
+   */
+  private int skipFunctionTail(int index) {
+    while (index >= 0) {
+      final IElementType type = type(index);
+      if (type == null) return -1;
+
+      if (type == SEMICOLON) return index + 1;
+      if (type == LBRACE) return skipBalanced(index);
+
+      if (type == EXPRESSION_BODY_DEF || type == EQ) {
+        index = skipExpression(index + 1);
+        if (index < 0 || type(index) != SEMICOLON) return -1;
+        return index + 1;
+      }
+
+      if (type == COLON || type == COMMA) {
+        // initializers or redirection: skip one item
+        index = index + 1;
+        while (index >= 0 && index < myCount) {
+          final IElementType itemType = myTypes[index];
+          if (itemType == COMMA || itemType == SEMICOLON || itemType == LBRACE || itemType == EXPRESSION_BODY_DEF) break;
+          if (itemType == RPAREN || itemType == RBRACKET || itemType == RBRACE) return -1;
+          index = itemType == LPAREN || itemType == LBRACKET ? skipBalanced(index) : index + 1;
+        }
+        continue;
+      }
+
+      if (type == NATIVE || isString(index)) {
+        // 'native "name"'
+        index++;
+        continue;
+      }
+
+      return -1;
+    }
+    return -1;
+  }
+
+  @NotNull
+  private DartFileIndexData buildResult() {
+    final String libraryName;
+    if (myLibraryStatementName != null) {
+      libraryName = myLibraryStatementName.isEmpty() ? myFileName : myLibraryStatementName;
+    }
+    else if (!myResult.getPaths().isEmpty()) {
+      libraryName = myFileName;
+    }
+    else {
+      libraryName = myHasMainFunction ? myFileName : null;
+    }
+
+    myResult.setLibraryName(libraryName);
+    final String libraryId = myPartOfLibraryName != null ? myPartOfLibraryName : libraryName;
+
+    for (Pair<String, DartComponentType> component : myComponents) {
+      if (component.second != DartComponentType.LABEL) {
+        myResult.addComponentInfo(component.first, new DartComponentInfo(myFileName, component.second, libraryId));
+      }
+    }
+    for (Pair<String, DartComponentType> component : myComponents) {
+      if (component.second == DartComponentType.LABEL) {
+        // import prefixes are not bound to a library and are put after declarations, same as DartIndexUtil does
+        myResult.addComponentInfo(component.first, new DartComponentInfo(myFileName, component.second, null));
+      }
+    }
+
+    for (Pair<String, List<String>> classAndSupers : myClassesAndSupers) {
+      final String className = classAndSupers.first;
+      myResult.addClassName(className);
+
+      final DartComponentInfo value = new DartComponentInfo(className, DartComponentType.CLASS, libraryId);
+      for (String superName : classAndSupers.second) {
+        myResult.addInheritor(superName, value);
+      }
+    }
+
+    return myResult;
+  }
+}
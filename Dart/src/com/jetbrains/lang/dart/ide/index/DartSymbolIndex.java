@@ -2,36 +2,35 @@ package com.jetbrains.lang.dart.ide.index;
 
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiManager;
 import com.intellij.psi.search.GlobalSearchScope;
-import com.intellij.psi.search.PsiElementProcessor;
-import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.EnumeratorStringDescriptor;
 import com.intellij.util.io.KeyDescriptor;
-import com.jetbrains.lang.dart.psi.DartClass;
-import com.jetbrains.lang.dart.psi.DartComponent;
-import com.jetbrains.lang.dart.psi.DartComponentName;
-import com.jetbrains.lang.dart.util.DartResolveUtil;
-import gnu.trove.THashMap;
-import gnu.trove.THashSet;
+import com.jetbrains.lang.dart.DartComponentType;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Class members and top level declarations by name. Values carry kind, containing class and offset of each declaration, so that
+ * navigation items can be built without parsing files.
+ *
  * @author: Fedor.Korotkov
  */
-public class DartSymbolIndex extends ScalarIndexExtension<String> {
-  public static final ID<String, Void> DART_SYMBOL_INDEX = ID.create("DartSymbolIndex");
-  private static final int INDEX_VERSION = 1;
-  private DataIndexer<String, Void, FileContent> myDataIndexer = new MyDataIndexer();
+public class DartSymbolIndex extends FileBasedIndexExtension<String, List<DartSymbolInfo>> {
+  public static final ID<String, List<DartSymbolInfo>> DART_SYMBOL_INDEX = ID.create("DartSymbolIndex");
+  private static final int INDEX_VERSION = 2;
+  private final DataIndexer<String, List<DartSymbolInfo>, FileContent> myDataIndexer = new MyDataIndexer();
+  private final DataExternalizer<List<DartSymbolInfo>> myExternalizer = new DartSymbolInfoListExternalizer();
 
   @NotNull
   @Override
-  public ID<String, Void> getName() {
+  public ID<String, List<DartSymbolInfo>> getName() {
     return DART_SYMBOL_INDEX;
   }
 
@@ -42,7 +41,7 @@ public class DartSymbolIndex extends ScalarIndexExtension<String> {
 
   @NotNull
   @Override
-  public DataIndexer<String, Void, FileContent> getIndexer() {
+  public DataIndexer<String, List<DartSymbolInfo>, FileContent> getIndexer() {
     return myDataIndexer;
   }
 
@@ -52,6 +51,12 @@ public class DartSymbolIndex extends ScalarIndexExtension<String> {
     return new EnumeratorStringDescriptor();
   }
 
+  @NotNull
+  @Override
+  public DataExternalizer<List<DartSymbolInfo>> getValueExternalizer() {
+    return myExternalizer;
+  }
+
   @NotNull
   @Override
   public FileBasedIndex.InputFilter getInputFilter() {
@@ -67,62 +72,33 @@ public class DartSymbolIndex extends ScalarIndexExtension<String> {
     return FileBasedIndex.getInstance().getAllKeys(DART_SYMBOL_INDEX, project);
   }
 
-  public static List<DartComponentName> getItemsByName(final String name, Project project, GlobalSearchScope searchScope) {
-    final Collection<VirtualFile> files =
-      FileBasedIndex.getInstance().getContainingFiles(DART_SYMBOL_INDEX, name, searchScope);
-    final Set<DartComponentName> result = new THashSet<DartComponentName>();
-    for (VirtualFile vFile : files) {
-      final PsiFile psiFile = PsiManager.getInstance(project).findFile(vFile);
-      for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
-        processComponents(root, new PsiElementProcessor<DartComponent>() {
-          @Override
-          public boolean execute(@NotNull DartComponent component) {
-            if (name.equals(component.getName())) {
-              result.add(component.getComponentName());
-            }
-            return true;
+  /**
+   * @param kind <code>null</code> to get declarations of any kind
+   */
+  public static List<DartSymbolNavigationItem> getItemsByName(@NotNull final String name,
+                                                              @NotNull final Project project,
+                                                              @NotNull GlobalSearchScope searchScope,
+                                                              @Nullable final DartComponentType kind) {
+    final List<DartSymbolNavigationItem> result = new ArrayList<DartSymbolNavigationItem>();
+    FileBasedIndex.getInstance().processValues(DART_SYMBOL_INDEX, name, null, new FileBasedIndex.ValueProcessor<List<DartSymbolInfo>>() {
+      @Override
+      public boolean process(VirtualFile file, List<DartSymbolInfo> infos) {
+        for (DartSymbolInfo info : infos) {
+          if (kind == null || info.getKind() == kind) {
+            result.add(new DartSymbolNavigationItem(project, file, name, info));
           }
-        });
+        }
+        return true;
       }
-    }
-    return new ArrayList<DartComponentName>(result);
+    }, searchScope);
+    return result;
   }
 
-  private static class MyDataIndexer implements DataIndexer<String, Void, FileContent> {
+  private static class MyDataIndexer implements DataIndexer<String, List<DartSymbolInfo>, FileContent> {
     @Override
     @NotNull
-    public Map<String, Void> map(@NotNull final FileContent inputData) {
-      List<String> symbols = DartIndexUtil.indexFile(inputData).getSymbols();
-      final Map<String, Void> result = new THashMap<String, Void>();
-      for (String symbol : symbols) {
-        result.put(symbol, null);
-      }
-      return result;
-    }
-  }
-
-  private static void processComponents(PsiElement context, PsiElementProcessor<DartComponent> processor) {
-    final DartComponent[] components = PsiTreeUtil.getChildrenOfType(context, DartComponent.class);
-    if (components == null) {
-      return;
-    }
-    for (DartComponent component : components) {
-      final String componentName = component.getName();
-      if (componentName == null) {
-        continue;
-      }
-      if (component instanceof DartClass) {
-        for (DartComponent subComponent : DartResolveUtil.getNamedSubComponents((DartClass)component)) {
-          if (!processor.execute(subComponent)) {
-            return;
-          }
-        }
-      }
-      else {
-        if (!processor.execute(component)) {
-          return;
-        }
-      }
+    public Map<String, List<DartSymbolInfo>> map(@NotNull final FileContent inputData) {
+      return DartIndexUtil.indexFile(inputData).getSymbols();
     }
   }
 }
@@ -0,0 +1,35 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.jetbrains.lang.dart.DartComponentType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A declaration as stored in {@link DartSymbolIndex}: its kind, the name of the class it belongs to (<code>null</code>
+ * for top level declarations) and the offset of its name in the file.
+ */
+public class DartSymbolInfo {
+  @NotNull private final DartComponentType myKind;
+  @Nullable private final String myContainerName;
+  private final int myOffset;
+
+  public DartSymbolInfo(@NotNull DartComponentType kind, @Nullable String containerName, int offset) {
+    myKind = kind;
+    myContainerName = containerName;
+    myOffset = offset;
+  }
+
+  @NotNull
+  public DartComponentType getKind() {
+    return myKind;
+  }
+
+  @Nullable
+  public String getContainerName() {
+    return myContainerName;
+  }
+
+  public int getOffset() {
+    return myOffset;
+  }
+}
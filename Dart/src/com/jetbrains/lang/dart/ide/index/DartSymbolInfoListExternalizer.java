@@ -0,0 +1,46 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.jetbrains.lang.dart.DartComponentType;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kind and presence of the container name share one byte; sizes and offsets are written as variable-length ints.
+ */
+public class DartSymbolInfoListExternalizer implements DataExternalizer<List<DartSymbolInfo>> {
+  @Override
+  public void save(@NotNull DataOutput out, List<DartSymbolInfo> infos) throws IOException {
+    DataInputOutputUtil.writeINT(out, infos.size());
+    for (DartSymbolInfo info : infos) {
+      final String containerName = info.getContainerName();
+      out.writeByte(info.getKind().getKey() << 1 | (containerName != null ? 1 : 0));
+      if (containerName != null) {
+        out.writeUTF(containerName);
+      }
+      DataInputOutputUtil.writeINT(out, info.getOffset());
+    }
+  }
+
+  @Override
+  public List<DartSymbolInfo> read(@NotNull DataInput in) throws IOException {
+    final int size = DataInputOutputUtil.readINT(in);
+    final List<DartSymbolInfo> result = new ArrayList<DartSymbolInfo>(size);
+    for (int i = 0; i < size; i++) {
+      final int kindAndFlag = in.readByte();
+      final DartComponentType kind = DartComponentType.valueOf(kindAndFlag >> 1);
+      if (kind == null) {
+        throw new IOException("Unknown component type: " + (kindAndFlag >> 1));
+      }
+      final String containerName = (kindAndFlag & 1) != 0 ? in.readUTF() : null;
+      result.add(new DartSymbolInfo(kind, containerName, DataInputOutputUtil.readINT(in)));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,129 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.navigation.ItemPresentation;
+import com.intellij.navigation.NavigationItem;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.jetbrains.lang.dart.DartComponentType;
+import com.jetbrains.lang.dart.psi.DartComponentName;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+
+/**
+ * Go to Symbol and Go to Class item built from {@link DartSymbolIndex} data, so that the file is not parsed before
+ * the user navigates to the item. Only the file navigated to is parsed.
+ */
+public class DartSymbolNavigationItem implements NavigationItem, ItemPresentation {
+  @NotNull private final Project myProject;
+  @NotNull private final VirtualFile myFile;
+  @NotNull private final String myName;
+  @NotNull private final DartSymbolInfo myInfo;
+
+  public DartSymbolNavigationItem(@NotNull Project project, @NotNull VirtualFile file, @NotNull String name, @NotNull DartSymbolInfo info) {
+    myProject = project;
+    myFile = file;
+    myName = name;
+    myInfo = info;
+  }
+
+  @NotNull
+  public VirtualFile getFile() {
+    return myFile;
+  }
+
+  @NotNull
+  public DartSymbolInfo getInfo() {
+    return myInfo;
+  }
+
+  @NotNull
+  @Override
+  public String getName() {
+    return myName;
+  }
+
+  @Override
+  public ItemPresentation getPresentation() {
+    return this;
+  }
+
+  @Override
+  public void navigate(boolean requestFocus) {
+    new OpenFileDescriptor(myProject, myFile, findNameOffset()).navigate(requestFocus);
+  }
+
+  /**
+   * The offset comes from the index and the file may have been changed since the item was created, so the offset is checked against
+   * PSI of the file. If the name is not there any more, the declaration with the same name closest to the old offset is used.
+   */
+  private int findNameOffset() {
+    final int offset = myInfo.getOffset();
+    final PsiFile psiFile = myFile.isValid() ? PsiManager.getInstance(myProject).findFile(myFile) : null;
+    if (psiFile == null) return offset;
+
+    final DartComponentName nameAtOffset = PsiTreeUtil.getParentOfType(psiFile.findElementAt(offset), DartComponentName.class, false);
+    if (nameAtOffset != null && nameAtOffset.getTextOffset() == offset && myName.equals(nameAtOffset.getName())) return offset;
+
+    int result = -1;
+    for (DartComponentName componentName : PsiTreeUtil.findChildrenOfType(psiFile, DartComponentName.class)) {
+      if (myName.equals(componentName.getName())) {
+        final int nameOffset = componentName.getTextOffset();
+        if (result == -1 || Math.abs(nameOffset - offset) < Math.abs(result - offset)) {
+          result = nameOffset;
+        }
+      }
+    }
+    return result != -1 ? result : Math.min(offset, psiFile.getTextLength());
+  }
+
+  @Override
+  public boolean canNavigate() {
+    return myFile.isValid();
+  }
+
+  @Override
+  public boolean canNavigateToSource() {
+    return canNavigate();
+  }
+
+  @Override
+  public String getPresentableText() {
+    final String containerName = myInfo.getContainerName();
+    if (myInfo.getKind() == DartComponentType.CONSTRUCTOR && containerName != null && !containerName.equals(myName)) {
+      return containerName + "." + myName;
+    }
+    return myName;
+  }
+
+  @Nullable
+  @Override
+  public String getLocationString() {
+    final String containerName = myInfo.getContainerName();
+    return containerName != null ? containerName : myFile.getName();
+  }
+
+  @Override
+  public Icon getIcon(boolean unused) {
+    return myInfo.getKind().getIcon();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    final DartSymbolNavigationItem item = (DartSymbolNavigationItem)o;
+    return myInfo.getOffset() == item.myInfo.getOffset() && myFile.equals(item.myFile) && myName.equals(item.myName);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * myFile.hashCode() + myName.hashCode()) + myInfo.getOffset();
+  }
+}
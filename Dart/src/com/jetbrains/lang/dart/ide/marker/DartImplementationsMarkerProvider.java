@@ -15,6 +15,7 @@ import com.intellij.psi.NavigatablePsiElement;
 import com.intellij.psi.PsiElement;
 import com.intellij.util.Function;
 import com.intellij.util.containers.ContainerUtil;
+import com.jetbrains.lang.dart.ide.index.DartClassHierarchyGraph;
 import com.jetbrains.lang.dart.ide.index.DartInheritanceIndex;
 import com.jetbrains.lang.dart.psi.DartClass;
 import com.jetbrains.lang.dart.psi.DartComponent;
@@ -46,6 +47,10 @@ public class DartImplementationsMarkerProvider implements LineMarkerProvider {
   }
 
   private static void collectMarkers(@NotNull final Collection<LineMarkerInfo> result, @NotNull final DartClass dartClass) {
+    // most classes have no subclasses at all, that is known without looking at PSI of other files
+    final String className = dartClass.getName();
+    if (className == null || !DartClassHierarchyGraph.getInstance(dartClass.getProject()).hasSubclasses(className)) return;
+
     final List<DartClass> subClasses = DartInheritanceIndex.getItemsByName(dartClass);
     if (!subClasses.isEmpty() && !DartResolveUtil.OBJECT.equals(dartClass.getName())) {
       result.add(createImplementationMarker(dartClass, subClasses));
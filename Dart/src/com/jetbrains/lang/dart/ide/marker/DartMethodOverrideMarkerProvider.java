@@ -9,6 +9,7 @@ import com.intellij.codeInsight.daemon.impl.PsiElementListNavigator;
 import com.intellij.icons.AllIcons;
 import com.intellij.ide.util.DefaultPsiElementCellRenderer;
 import com.intellij.openapi.editor.markup.GutterIconRenderer;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.util.Condition;
 import com.intellij.psi.NavigatablePsiElement;
 import com.intellij.psi.PsiElement;
@@ -21,6 +22,7 @@ import com.jetbrains.lang.dart.psi.DartClass;
 import com.jetbrains.lang.dart.psi.DartComponent;
 import com.jetbrains.lang.dart.psi.DartComponentName;
 import com.jetbrains.lang.dart.util.DartResolveUtil;
+import gnu.trove.THashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -28,29 +30,42 @@ import javax.swing.*;
 import java.awt.event.MouseEvent;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public class DartMethodOverrideMarkerProvider implements LineMarkerProvider {
 
   @Override
   public LineMarkerInfo getLineMarkerInfo(@NotNull PsiElement element) {
-    if (!(element instanceof DartComponentName)) {
-      return null;
-    }
-    final PsiElement parent = element.getParent();
-    if (DartComponentType.typeOf(parent) == DartComponentType.METHOD) {
-      final DartClass dartClass = PsiTreeUtil.getParentOfType(element, DartClass.class);
-      return dartClass == null ? null : createOverrideMarker(dartClass, (DartComponent)parent);
-    }
     return null;
   }
 
+  /**
+   * Super classes are resolved once per class, not once per method.
+   */
   @Override
   public void collectSlowLineMarkers(@NotNull List<PsiElement> elements, @NotNull Collection<LineMarkerInfo> result) {
-  }
+    final Map<DartClass, List<DartComponent>> classToSuperItems = new THashMap<DartClass, List<DartComponent>>();
+    for (PsiElement element : elements) {
+      ProgressManager.checkCanceled();
+      if (!(element instanceof DartComponentName)) continue;
 
-  @Nullable
-  private static LineMarkerInfo createOverrideMarker(DartClass dartClass, DartComponent dartComponent) {
-    return tryCreateOverrideMarker(dartComponent, DartResolveUtil.findNamedSuperComponents(dartClass));
+      final PsiElement parent = element.getParent();
+      if (DartComponentType.typeOf(parent) != DartComponentType.METHOD) continue;
+
+      final DartClass dartClass = PsiTreeUtil.getParentOfType(element, DartClass.class);
+      if (dartClass == null) continue;
+
+      List<DartComponent> superItems = classToSuperItems.get(dartClass);
+      if (superItems == null) {
+        superItems = DartResolveUtil.findNamedSuperComponents(dartClass);
+        classToSuperItems.put(dartClass, superItems);
+      }
+
+      final LineMarkerInfo markerInfo = tryCreateOverrideMarker((DartComponent)parent, superItems);
+      if (markerInfo != null) {
+        result.add(markerInfo);
+      }
+    }
   }
 
   @Nullable
@@ -78,7 +93,7 @@ public class DartMethodOverrideMarkerProvider implements LineMarkerProvider {
       element,
       element.getTextRange(),
       icon,
-      Pass.UPDATE_ALL,
+      Pass.UPDATE_OVERRIDEN_MARKERS,
       new Function<PsiElement, String>() {
         @Override
         public String fun(PsiElement element) {
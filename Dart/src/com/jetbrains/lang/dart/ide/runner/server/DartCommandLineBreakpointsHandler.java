@@ -18,6 +18,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -59,9 +60,23 @@ public class DartCommandLineBreakpointsHandler {
   }
 
   void registerInitialBreakpoints() {
-    for (XLineBreakpoint<?> breakpoint : myInitialBreakpoints) {
-      doRegisterBreakpoint(breakpoint);
-    }
+    final VmIsolate isolate = myDebugProcess.getMainIsolate();
+    if (isolate == null) return;
+
+    // all initial breakpoints are sent within a single interrupt/resume
+    suspendPerformActionAndResume(new ThrowableRunnable<IOException>() {
+      public void run() throws IOException {
+        final List<VmConnection.BreakpointRequest> requests = new ArrayList<VmConnection.BreakpointRequest>();
+        for (XLineBreakpoint<?> breakpoint : myInitialBreakpoints) {
+          final VmConnection.BreakpointRequest request = createBreakpointRequest(breakpoint);
+          if (request != null) {
+            requests.add(request);
+          }
+        }
+
+        myDebugProcess.getVmConnection().setBreakpoints(isolate, requests);
+      }
+    });
     //myInitialBreakpoints.clear(); do not clear - it is used later in hasInitialBreakpointHere()
   }
 
@@ -111,18 +126,15 @@ public class DartCommandLineBreakpointsHandler {
   }
 
   private void doRegisterBreakpoint(final XLineBreakpoint<?> breakpoint) {
-    final XSourcePosition position = breakpoint.getSourcePosition();
-    if (position == null) return;
-    if (position.getFile().getFileType() != DartFileType.INSTANCE) return;
-
     final VmIsolate isolate = myDebugProcess.getMainIsolate();
     if (isolate == null) return;
 
     suspendPerformActionAndResume(new ThrowableRunnable<IOException>() {
       public void run() throws IOException {
-        final String dartUrl = myDebugProcess.getDartUrlResolver().getDartUrlForFile(position.getFile());
-        final int line = position.getLine() + 1;
-        sendSetBreakpointCommand(isolate, breakpoint, dartUrl, line);
+        final VmConnection.BreakpointRequest request = createBreakpointRequest(breakpoint);
+        if (request != null) {
+          myDebugProcess.getVmConnection().setBreakpoints(isolate, Collections.singletonList(request));
+        }
       }
     });
   }
@@ -153,11 +165,16 @@ public class DartCommandLineBreakpointsHandler {
     }
   }
 
-  private void sendSetBreakpointCommand(final VmIsolate isolate,
-                                        final XLineBreakpoint<?> breakpoint,
-                                        final String url,
-                                        final int line) throws IOException {
-    myDebugProcess.getVmConnection().setBreakpoint(isolate, url, line, new VmCallback<VmBreakpoint>() {
+  @Nullable
+  private VmConnection.BreakpointRequest createBreakpointRequest(final XLineBreakpoint<?> breakpoint) {
+    final XSourcePosition position = breakpoint.getSourcePosition();
+    if (position == null) return null;
+    if (position.getFile().getFileType() != DartFileType.INSTANCE) return null;
+
+    final String dartUrl = myDebugProcess.getDartUrlResolver().getDartUrlForFile(position.getFile());
+    final int line = position.getLine() + 1;
+
+    return new VmConnection.BreakpointRequest(dartUrl, line, new VmCallback<VmBreakpoint>() {
       @Override
       public void handleResult(VmResult<VmBreakpoint> result) {
         if (result.isError()) {
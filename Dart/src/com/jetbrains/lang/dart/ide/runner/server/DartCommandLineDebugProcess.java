@@ -8,11 +8,14 @@ import com.intellij.openapi.actionSystem.DefaultActionGroup;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.TimeoutUtil;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.xdebugger.XDebugProcess;
 import com.intellij.xdebugger.XDebugSession;
 import com.intellij.xdebugger.XDebuggerBundle;
+import com.intellij.xdebugger.XDebuggerUtil;
 import com.intellij.xdebugger.XSourcePosition;
 import com.intellij.xdebugger.breakpoints.XBreakpointHandler;
 import com.intellij.xdebugger.evaluation.XDebuggerEditorsProvider;
@@ -20,11 +23,14 @@ import com.jetbrains.lang.dart.DartBundle;
 import com.jetbrains.lang.dart.ide.runner.base.DartDebuggerEditorsProvider;
 import com.jetbrains.lang.dart.ide.runner.server.google.VmConnection;
 import com.jetbrains.lang.dart.ide.runner.server.google.VmIsolate;
+import com.jetbrains.lang.dart.ide.runner.server.google.VmLocation;
 import com.jetbrains.lang.dart.util.DartUrlResolver;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
 
 public class DartCommandLineDebugProcess extends XDebugProcess {
   public static final Logger LOG = Logger.getInstance(DartCommandLineDebugProcess.class.getName());
@@ -36,6 +42,9 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
   private final int myObservatoryPort;
   private boolean myVmConnected;
   private @Nullable VmIsolate myMainIsolate;
+  private volatile int myPauseGeneration;
+  // source code doesn't change while the VM is running, so positions resolved once are valid till the end of the session
+  private final ConcurrentMap<String, Ref<XSourcePosition>> mySourcePositions = ContainerUtil.newConcurrentMap();
 
   public DartCommandLineDebugProcess(final @NotNull XDebugSession session,
                                      final DartCommandLineRunningState commandLineState,
@@ -55,6 +64,21 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
     connect();
   }
 
+  /**
+   * Debug process without a Dart VM process, working through the given connection; the caller connects it.
+   */
+  @TestOnly
+  public DartCommandLineDebugProcess(final @NotNull XDebugSession session,
+                                     final @NotNull VmConnection vmConnection,
+                                     final @NotNull DartUrlResolver dartUrlResolver) {
+    super(session);
+    myObservatoryPort = -1;
+    myDartUrlResolver = dartUrlResolver;
+    myBreakpointsHandler = new DartCommandLineBreakpointsHandler(this);
+    myExecutionResult = null;
+    myVmConnection = vmConnection;
+  }
+
   private void connect() {
     // see com.google.dart.tools.debug.core.server.ServerDebugTarget.connect()
 
@@ -128,6 +152,7 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
   @Override
   public void startStepOver() {
     if (myMainIsolate != null) {
+      nextPauseGeneration();
       try {
         myVmConnection.stepOver(myMainIsolate);
       }
@@ -140,6 +165,7 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
   @Override
   public void startStepInto() {
     if (myMainIsolate != null) {
+      nextPauseGeneration();
       try {
         myVmConnection.stepInto(myMainIsolate);
       }
@@ -152,6 +178,7 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
   @Override
   public void startStepOut() {
     if (myMainIsolate != null) {
+      nextPauseGeneration();
       try {
         myVmConnection.stepOut(myMainIsolate);
       }
@@ -175,6 +202,7 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
   @Override
   public void resume() {
     if (myMainIsolate != null) {
+      nextPauseGeneration();
       try {
         myVmConnection.resume(myMainIsolate);
       }
@@ -206,6 +234,44 @@ public class DartCommandLineDebugProcess extends XDebugProcess {
     return myDartUrlResolver;
   }
 
+  /**
+   * @return position of the given location in the source code, or <code>null</code> if the file is not found
+   */
+  @Nullable
+  public XSourcePosition getSourcePosition(@NotNull final VmLocation location) {
+    final String url = location.getUnescapedUrl();
+    if (url == null) return null;
+
+    final String key = url + ":" + location.getTokenOffset();
+    final Ref<XSourcePosition> cached = mySourcePositions.get(key);
+    if (cached != null) return cached.get();
+
+    final VirtualFile file = myDartUrlResolver.findFileByDartUrl(url);
+    if (file == null) {
+      mySourcePositions.put(key, Ref.<XSourcePosition>create(null));
+      return null;
+    }
+
+    final int line = location.getLineNumber(myVmConnection) - 1;
+    // line number is unknown if the line number table couldn't be received, maybe next time it will be
+    if (line < 0) return null;
+
+    final XSourcePosition position = XDebuggerUtil.getInstance().createPosition(file, line);
+    mySourcePositions.put(key, Ref.create(position));
+    return position;
+  }
+
+  /**
+   * Incremented each time the VM pauses or resumes, frames of the previous pauses are obsolete then.
+   */
+  public int getPauseGeneration() {
+    return myPauseGeneration;
+  }
+
+  void nextPauseGeneration() {
+    myPauseGeneration++;
+  }
+
   public VmConnection getVmConnection() {
     return myVmConnection;
   }
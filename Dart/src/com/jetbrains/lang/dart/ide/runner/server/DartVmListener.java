@@ -55,6 +55,7 @@ public class DartVmListener implements VmListener {
                              final VmValue exception,
                              final boolean isStepping) {
     LOG.debug("debugger paused, reason: " + reason.name());
+    myDebugProcess.nextPauseGeneration();
     final VmCallFrame topFrame = frames.isEmpty() ? null : frames.get(0);
 
     // todo handle exception
@@ -171,5 +172,6 @@ public class DartVmListener implements VmListener {
 
   public void debuggerResumed(final VmIsolate isolate) {
     LOG.debug("debugger resumed: " + isolate.getId());
+    myDebugProcess.nextPauseGeneration();
   }
 }
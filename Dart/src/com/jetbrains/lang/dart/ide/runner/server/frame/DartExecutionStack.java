@@ -1,7 +1,7 @@
 package com.jetbrains.lang.dart.ide.runner.server.frame;
 
-import com.intellij.openapi.util.Condition;
-import com.intellij.util.containers.ContainerUtil;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
 import com.intellij.xdebugger.frame.XExecutionStack;
 import com.intellij.xdebugger.frame.XStackFrame;
 import com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess;
@@ -11,48 +11,133 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Stack frames are created on demand and passed to the frames view in pages, so that a deep stack (e.g. recursion) doesn't delay
+ * the pause: the first page is added right away, the others from a pooled thread. Frames are not added any more after the VM
+ * pauses once again.
+ */
 public class DartExecutionStack extends XExecutionStack {
-  @NotNull private final List<DartStackFrame> myStackFrames;
+  private static final int FRAMES_PAGE_SIZE = 50;
+
+  @NotNull private final DartCommandLineDebugProcess myDebugProcess;
+  @NotNull private final List<VmCallFrame> myVmCallFrames;
+  @Nullable private final VmValue myException;
+  private final int myPauseGeneration;
+
+  // guarded by this
+  @NotNull private final DartStackFrame[] myStackFrames;
+  private int myFrameToStopAtIndex = -1;
 
   public DartExecutionStack(@NotNull final DartCommandLineDebugProcess debugProcess,
                             @NotNull final List<VmCallFrame> vmCallFrames,
                             @Nullable VmValue exception) {
     super("");
-
-    myStackFrames = new ArrayList<DartStackFrame>(vmCallFrames.size());
-
-    for (VmCallFrame vmCallFrame : vmCallFrames) {
-      final DartStackFrame frame = new DartStackFrame(debugProcess, vmCallFrame, exception);
-      myStackFrames.add(frame);
-
-      if (frame.getSourcePosition() != null) {
-        // exception (if any) is added to the frame where debugger stops (the highest frame with not null source position) and to the upper frames
-        exception = null;
-      }
-    }
+    myDebugProcess = debugProcess;
+    myVmCallFrames = vmCallFrames;
+    myException = exception;
+    myPauseGeneration = debugProcess.getPauseGeneration();
+    myStackFrames = new DartStackFrame[vmCallFrames.size()];
   }
 
   @Override
   @Nullable
   public XStackFrame getTopFrame() {
-    return myStackFrames.isEmpty() ? null : myStackFrames.get(0);
+    return myStackFrames.length == 0 ? null : getFrame(0);
   }
 
   @Override
-  public void computeStackFrames(int firstFrameIndex, @NotNull final XStackFrameContainer container) {
-    final List<DartStackFrame> result = firstFrameIndex == 0 ? myStackFrames : myStackFrames.subList(firstFrameIndex, myStackFrames.size());
-    container.addStackFrames(result, true);
+  public void computeStackFrames(final int firstFrameIndex, @NotNull final XStackFrameContainer container) {
+    if (firstFrameIndex >= myStackFrames.length) {
+      container.addStackFrames(Collections.<XStackFrame>emptyList(), true);
+      return;
+    }
+
+    // the first page is enough to show the pause, the rest is added in background unless the VM pauses once again meanwhile
+    if (!addFramesPage(firstFrameIndex, container)) {
+      ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          for (int from = firstFrameIndex + FRAMES_PAGE_SIZE; from < myStackFrames.length; from += FRAMES_PAGE_SIZE) {
+            if (myDebugProcess.getPauseGeneration() != myPauseGeneration) return;
+
+            final int pageStart = from;
+            final boolean last = ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+              @Override
+              public Boolean compute() {
+                return addFramesPage(pageStart, container);
+              }
+            });
+            if (last) return;
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the page is the last one
+   */
+  private boolean addFramesPage(final int from, @NotNull final XStackFrameContainer container) {
+    final int to = Math.min(from + FRAMES_PAGE_SIZE, myStackFrames.length);
+    final List<DartStackFrame> page = new ArrayList<DartStackFrame>(to - from);
+    for (int i = from; i < to; i++) {
+      page.add(getFrame(i));
+    }
+    final boolean last = to == myStackFrames.length;
+    container.addStackFrames(page, last);
+    return last;
   }
 
   @Nullable
   public DartStackFrame getFrameToStopAt() {
-    return ContainerUtil.find(myStackFrames, new Condition<DartStackFrame>() {
-      @Override
-      public boolean value(final DartStackFrame frame) {
-        return frame.getSourcePosition() != null;
+    final int index = getFrameToStopAtIndex();
+    return index < myStackFrames.length ? getFrame(index) : null;
+  }
+
+  @NotNull
+  private DartStackFrame getFrame(final int index) {
+    synchronized (this) {
+      if (myStackFrames[index] != null) return myStackFrames[index];
+    }
+
+    // exception (if any) is added to the frame where debugger stops (the highest frame with not null source position) and to the upper frames
+    final VmValue exception = myException != null && index <= getFrameToStopAtIndex() ? myException : null;
+
+    synchronized (this) {
+      DartStackFrame frame = myStackFrames[index];
+      if (frame == null) {
+        frame = new DartStackFrame(myDebugProcess, myVmCallFrames.get(index), exception);
+        myStackFrames[index] = frame;
+      }
+      return frame;
+    }
+  }
+
+  /**
+   * Source positions are resolved outside the lock as each of them may need a request to the VM.
+   *
+   * @return index of the highest frame with not null source position, or the number of frames if there's no such frame
+   */
+  private int getFrameToStopAtIndex() {
+    synchronized (this) {
+      if (myFrameToStopAtIndex != -1) return myFrameToStopAtIndex;
+    }
+
+    int index = 0;
+    while (index < myVmCallFrames.size()) {
+      final VmCallFrame vmCallFrame = myVmCallFrames.get(index);
+      if (vmCallFrame.getLocation() != null && myDebugProcess.getSourcePosition(vmCallFrame.getLocation()) != null) break;
+      index++;
+    }
+
+    synchronized (this) {
+      if (myFrameToStopAtIndex == -1) {
+        myFrameToStopAtIndex = index;
       }
-    });
+      return myFrameToStopAtIndex;
+    }
   }
 }
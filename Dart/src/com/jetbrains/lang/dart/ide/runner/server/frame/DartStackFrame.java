@@ -1,10 +1,8 @@
 package com.jetbrains.lang.dart.ide.runner.server.frame;
 
 import com.intellij.icons.AllIcons;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.ColoredTextContainer;
 import com.intellij.ui.SimpleTextAttributes;
-import com.intellij.xdebugger.XDebuggerUtil;
 import com.intellij.xdebugger.XSourcePosition;
 import com.intellij.xdebugger.evaluation.XDebuggerEvaluator;
 import com.intellij.xdebugger.frame.XCompositeNode;
@@ -21,8 +19,9 @@ public class DartStackFrame extends XStackFrame {
   @NotNull private final DartCommandLineDebugProcess myDebugProcess;
   @NotNull private final VmCallFrame myVmCallFrame;
   @Nullable private final VmValue myException;
-  @Nullable private final XSourcePosition mySourcePosition;
   @Nullable private final String myLocationUrl;
+  @Nullable private XSourcePosition mySourcePosition;
+  private volatile boolean mySourcePositionComputed;
 
   public DartStackFrame(@NotNull final DartCommandLineDebugProcess debugProcess,
                         @NotNull final VmCallFrame vmCallFrame,
@@ -33,14 +32,6 @@ public class DartStackFrame extends XStackFrame {
 
     final VmLocation location = vmCallFrame.getLocation();
     myLocationUrl = location == null ? null : location.getUnescapedUrl();
-    if (myLocationUrl != null) {
-      final VirtualFile file = myDebugProcess.getDartUrlResolver().findFileByDartUrl(myLocationUrl);
-      final int line = location.getLineNumber(debugProcess.getVmConnection()) - 1;
-      mySourcePosition = file == null || line < 0 ? null : XDebuggerUtil.getInstance().createPosition(file, line);
-    }
-    else {
-      mySourcePosition = null;
-    }
   }
 
   @Nullable
@@ -51,6 +42,11 @@ public class DartStackFrame extends XStackFrame {
   @Nullable
   @Override
   public XSourcePosition getSourcePosition() {
+    if (!mySourcePositionComputed) {
+      final VmLocation location = myVmCallFrame.getLocation();
+      mySourcePosition = location == null ? null : myDebugProcess.getSourcePosition(location);
+      mySourcePositionComputed = true;
+    }
     return mySourcePosition;
   }
 
@@ -61,6 +57,7 @@ public class DartStackFrame extends XStackFrame {
 
   @Override
   public void computeChildren(final @NotNull XCompositeNode node) {
+    // locals are converted from the VM response only now, when the frame is shown
     final List<VmVariable> locals = myVmCallFrame.getLocals();
 
     final XValueChildrenList childrenList = new XValueChildrenList(locals == null ? 1 : locals.size() + 1);
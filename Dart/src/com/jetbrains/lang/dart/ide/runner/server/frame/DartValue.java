@@ -5,7 +5,6 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.Consumer;
-import com.intellij.util.containers.SortedList;
 import com.intellij.xdebugger.frame.*;
 import com.intellij.xdebugger.frame.presentation.XNumericValuePresentation;
 import com.intellij.xdebugger.frame.presentation.XRegularValuePresentation;
@@ -18,8 +17,9 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.IOException;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 // todo navigate to source, type
@@ -236,113 +236,101 @@ public class DartValue extends XNamedValue {
                                           @NotNull final Consumer<List<DartValue>> listChildrenConsumer) throws IOException {
     DartCommandLineDebugProcess.LOG.assertTrue(listValue.isList(), listValue);
 
-    final AtomicInteger handledResponsesAmount = new AtomicInteger(0);
-
-    final SortedList<DartValue> sortedChildren = new SortedList<DartValue>(new Comparator<DartValue>() {
-      public int compare(DartValue o1, DartValue o2) {
-        return StringUtil.naturalCompare(o1.getName(), o2.getName());
-      }
-    });
-
-    for (int listIndex = fromIndex; listIndex < fromIndex + childrenAmount; listIndex++) {
-      final String nodeName = String.valueOf(listIndex);
-      debugProcess.getVmConnection()
-        .getListElements(listValue.getIsolate(), listValue.getObjectId(), listIndex, new VmCallbackAdapter<VmValue>(node) {
-          @Override
-          public void handleResult(final VmResult<VmValue> result) {
-            synchronized (node) {
-              handledResponsesAmount.addAndGet(1);
-              super.handleResult(result);
-            }
-          }
-
-          @Override
-          protected void handleGoodResult(@NotNull final VmValue result) {
-            sortedChildren.add(new DartValue(debugProcess, nodeName, result, false));
+    debugProcess.getVmConnection()
+      .getListElements(listValue.getIsolate(), listValue.getObjectId(), fromIndex, childrenAmount,
+                       new VmCallbackAdapter<List<VmValue>>(node) {
+                         @Override
+                         protected void handleGoodResult(@NotNull final List<VmValue> result) {
+                           final List<DartValue> children = new ArrayList<DartValue>(result.size());
+                           for (int i = 0; i < result.size(); i++) {
+                             final VmValue element = result.get(i);
+                             if (element == null) {
+                               node.setErrorMessage("<no response from the Dart VM>");
+                               return;
+                             }
+                             children.add(new DartValue(debugProcess, String.valueOf(fromIndex + i), element, false));
+                           }
 
-            if (handledResponsesAmount.get() == childrenAmount) {
-              listChildrenConsumer.consume(sortedChildren);
-            }
-          }
-        });
-    }
+                           listChildrenConsumer.consume(children);
+                         }
+                       });
   }
 
   private void computeMapChildren(@NotNull final XCompositeNode node) {
     DartCommandLineDebugProcess.LOG.assertTrue(myVmValue != null);
 
-    try {
-      myDebugProcess.getVmConnection()
-        .evaluateObject(myVmValue.getIsolate(), myVmValue, "keys.toList()", new VmCallback<VmValue>() {
-          @Override
-          public void handleResult(@NotNull final VmResult<VmValue> result) {
-            if (node.isObsolete()) return;
-
-            if (!result.isError() && result.getResult() != null && result.getResult().isList()) {
-              computeMapChildrenForKeys(node, result.getResult());
-            }
-            else {
-              computeObjectChildren(node);
-            }
-          }
-        });
-    }
-    catch (IOException e) {
-      DartCommandLineDebugProcess.LOG.error(e);
-    }
-  }
+    // keys and values are requested together, the second response completes the pair
+    final VmValue[] keysAndValues = new VmValue[2];
+    final AtomicInteger responsesLeft = new AtomicInteger(2);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+
+    final String[] expressions = {"keys.toList()", "values.toList()"};
+    for (int i = 0; i < expressions.length; i++) {
+      final int index = i;
+      try {
+        myDebugProcess.getVmConnection()
+          .evaluateObject(myVmValue.getIsolate(), myVmValue, expressions[i], new VmCallback<VmValue>() {
+            @Override
+            public void handleResult(@NotNull final VmResult<VmValue> result) {
+              if (!result.isError() && result.getResult() != null && result.getResult().isList()) {
+                keysAndValues[index] = result.getResult();
+              }
+              else {
+                failed.set(true);
+              }
 
-  private void computeMapChildrenForKeys(@NotNull final XCompositeNode node, @NotNull final VmValue mapKeysList) {
-    DartCommandLineDebugProcess.LOG.assertTrue(myVmValue != null && mapKeysList.isList());
+              if (responsesLeft.decrementAndGet() != 0 || node.isObsolete()) return;
 
-    try {
-      myDebugProcess.getVmConnection()
-        .evaluateObject(myVmValue.getIsolate(), myVmValue, "values.toList()", new VmCallback<VmValue>() {
-          @Override
-          public void handleResult(@NotNull final VmResult<VmValue> result) {
-            if (node.isObsolete()) return;
-
-            if (!result.isError() && result.getResult() != null && result.getResult().isList()) {
-              computeMapChildrenForKeysAndValues(node, mapKeysList, result.getResult());
-            }
-            else {
-              computeObjectChildren(node);
+              if (failed.get()) {
+                computeObjectChildren(node);
+              }
+              else {
+                computeMapChildrenForKeysAndValues(node, keysAndValues[0], keysAndValues[1]);
+              }
             }
-          }
-        });
-    }
-    catch (IOException e) {
-      DartCommandLineDebugProcess.LOG.error(e);
+          });
+      }
+      catch (IOException e) {
+        // the pair is never completed then, even if the other request has been sent already
+        DartCommandLineDebugProcess.LOG.error(e);
+        node.setErrorMessage("failed to show Map contents");
+        return;
+      }
     }
   }
 
   private void computeMapChildrenForKeysAndValues(@NotNull final XCompositeNode node,
                                                   @NotNull final VmValue mapKeysList,
                                                   @NotNull final VmValue mapValuesList) {
-    try {
-      final Integer fromIndex = myListOrMapChildrenAlreadyShown.get();
-      final int childrenToShow = Math.min(mapKeysList.getLength() - fromIndex, XCompositeNode.MAX_CHILDREN_TO_SHOW);
-      DartCommandLineDebugProcess.LOG.assertTrue(childrenToShow > 0);
+    final Integer fromIndex = myListOrMapChildrenAlreadyShown.get();
+    final int childrenToShow = Math.min(mapKeysList.getLength() - fromIndex, XCompositeNode.MAX_CHILDREN_TO_SHOW);
+    DartCommandLineDebugProcess.LOG.assertTrue(childrenToShow > 0);
+
+    // both slices are requested at once
+    @SuppressWarnings("unchecked") final List<DartValue>[] keysAndValues = new List[2];
+    final AtomicInteger responsesLeft = new AtomicInteger(2);
+
+    final VmValue[] lists = {mapKeysList, mapValuesList};
+    for (int i = 0; i < lists.length; i++) {
+      final int index = i;
+      try {
+        computeListChildren(node, myDebugProcess, lists[i], fromIndex, childrenToShow, new Consumer<List<DartValue>>() {
+          @Override
+          public void consume(final List<DartValue> children) {
+            keysAndValues[index] = children;
 
-      computeListChildren(node, myDebugProcess, mapKeysList, fromIndex, childrenToShow, new Consumer<List<DartValue>>() {
-        @Override
-        public void consume(final List<DartValue> mapKeys) {
-          try {
-            computeListChildren(node, myDebugProcess, mapValuesList, fromIndex, childrenToShow, new Consumer<List<DartValue>>() {
-              @Override
-              public void consume(final List<DartValue> mapValues) {
-                addMapChildrenToNode(node, mapKeys, mapValues, mapKeysList.getLength());
-              }
-            });
-          }
-          catch (IOException e) {
-            DartCommandLineDebugProcess.LOG.error(e);
+            if (responsesLeft.decrementAndGet() == 0) {
+              addMapChildrenToNode(node, keysAndValues[0], keysAndValues[1], mapKeysList.getLength());
+            }
           }
-        }
-      });
-    }
-    catch (IOException e) {
-      DartCommandLineDebugProcess.LOG.error(e);
+        });
+      }
+      catch (IOException e) {
+        // the pair is never completed then, even if the other request has been sent already
+        DartCommandLineDebugProcess.LOG.error(e);
+        node.setErrorMessage("failed to show Map contents");
+        return;
+      }
     }
   }
 
@@ -14,6 +14,7 @@
 
 package com.jetbrains.lang.dart.ide.runner.server.google;
 
+import com.intellij.openapi.diagnostic.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -25,6 +26,7 @@ import java.util.List;
  * A VM frame object.
  */
 public class VmCallFrame extends VmRef {
+  private static final Logger LOG = Logger.getInstance(VmCallFrame.class.getName());
 
   static List<VmCallFrame> createFrom(VmIsolate isolate, JSONArray arr) throws JSONException {
     List<VmCallFrame> frames = new ArrayList<VmCallFrame>();
@@ -54,7 +56,8 @@ public class VmCallFrame extends VmRef {
 
     frame.functionName = JsonUtils.getString(object, "functionName");
     frame.location = VmLocation.createFrom(isolate, object.getJSONObject("location"));
-    frame.locals = VmVariable.createFrom(isolate, object.optJSONArray("locals"), true);
+    // locals are converted on demand, usually only for the frame that is shown in the debugger
+    frame.localsJson = object.optJSONArray("locals");
     frame.classId = object.optInt("classId", -1);
 
     return frame;
@@ -68,8 +71,12 @@ public class VmCallFrame extends VmRef {
 
   private VmLocation location;
 
+  private JSONArray localsJson;
+
   private List<VmVariable> locals;
 
+  private boolean localsCreated;
+
   private VmCallFrame(VmIsolate isolate, int frameId) {
     super(isolate);
 
@@ -98,7 +105,21 @@ public class VmCallFrame extends VmRef {
     return location.getLibraryId();
   }
 
-  public List<VmVariable> getLocals() {
+  public synchronized List<VmVariable> getLocals() {
+    if (!localsCreated) {
+      localsCreated = true;
+
+      try {
+        locals = VmVariable.createFrom(getIsolate(), localsJson, true);
+      }
+      catch (JSONException e) {
+        LOG.info(e);
+        locals = null;
+      }
+
+      localsJson = null;
+    }
+
     return locals;
   }
 
@@ -110,6 +131,12 @@ public class VmCallFrame extends VmRef {
   }
 
   public VmVariable getThisObject() {
+    List<VmVariable> locals = getLocals();
+
+    if (locals == null) {
+      return null;
+    }
+
     for (VmVariable variable : locals) {
       if (variable.isThisObject()) {
         return variable;
@@ -0,0 +1,192 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import com.intellij.openapi.application.ApplicationManager;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
+
+/**
+ * Writes VM commands on a dedicated thread.
+ * <p/>
+ * Callers only enqueue encoded commands, blocking if the bounded queue is full. The writer drains everything that is
+ * queued and flushes once, unless it has to wait for the VM to answer earlier commands, see below. Commands are
+ * written in enqueue order, which keeps the order of commands for each isolate.
+ * <p/>
+ * The number of commands the VM hasn't answered yet is limited. The writer flushes and waits when the limit is
+ * reached. If the VM doesn't answer for a while the writer goes on anyway, so a lost response can't stall the
+ * connection.
+ * <p/>
+ * The VM is known to lose events when flooded with setBreakpoint commands
+ * (https://code.google.com/p/dart/issues/detail?id=9705). The in-flight limit hasn't been verified to avoid that, so
+ * a batch enqueued with <code>pauseAfter</code> (e.g. all breakpoints set at session start) is flushed and followed by
+ * a single short pause on the writer thread.
+ */
+class VmCommandWriter {
+  private static final int QUEUE_CAPACITY = 1024;
+  private static final int MAX_IN_FLIGHT = 32;
+  private static final long IN_FLIGHT_WAIT_MS = 1000;
+  private static final long PAUSE_AFTER_MS = 10;
+
+  private static final Command CLOSE_MARKER = new Command(new byte[0][], false);
+
+  private final VmConnection connection;
+  private final OutputStream out;
+  private final BlockingQueue<Command> queue = new LinkedBlockingQueue<Command>(QUEUE_CAPACITY);
+
+  private final Object inFlightLock = new Object();
+  private int inFlight;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  VmCommandWriter(VmConnection connection, OutputStream out) {
+    this.connection = connection;
+    this.out = new BufferedOutputStream(out, 16 * 1024);
+  }
+
+  void start() {
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeCommands();
+        }
+        catch (IOException e) {
+          if (!closed.get()) {
+            LOG.info(e);
+          }
+        }
+        catch (InterruptedException e) {
+          // connection is being closed
+        }
+        finally {
+          closed.set(true);
+          queue.clear();
+
+          try {
+            connection.close();
+          }
+          catch (IOException ignore) {
+
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Enqueues commands to be written together.
+   *
+   * @param pauseAfter if true the writer flushes after the last of these commands and gives the VM some time before
+   *                   writing more
+   */
+  void enqueue(List<byte[]> commands, boolean pauseAfter) throws IOException {
+    if (closed.get()) {
+      throw new IOException("connection closed");
+    }
+
+    try {
+      queue.put(new Command(commands.toArray(new byte[commands.size()][]), pauseAfter));
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Called by the reader for every command response.
+   */
+  void responseReceived() {
+    synchronized (inFlightLock) {
+      if (inFlight > 0) {
+        inFlight--;
+      }
+
+      inFlightLock.notifyAll();
+    }
+  }
+
+  /**
+   * May be called several times, e.g. by both the reader and the writer threads when the connection breaks.
+   */
+  void close() {
+    if (closed.compareAndSet(false, true)) {
+      queue.offer(CLOSE_MARKER);
+    }
+  }
+
+  private void writeCommands() throws IOException, InterruptedException {
+    while (!closed.get()) {
+      Command command = queue.take();
+
+      while (command != null) {
+        if (command == CLOSE_MARKER) {
+          return;
+        }
+
+        for (byte[] bytes : command.bytes) {
+          waitForInFlightSlot();
+          out.write(bytes);
+        }
+
+        if (command.pauseAfter) {
+          out.flush();
+          Thread.sleep(PAUSE_AFTER_MS);
+        }
+
+        // don't flush while there is more to write
+        command = queue.poll();
+      }
+
+      out.flush();
+    }
+  }
+
+  private void waitForInFlightSlot() throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + IN_FLIGHT_WAIT_MS;
+    boolean flushed = false;
+
+    while (true) {
+      synchronized (inFlightLock) {
+        if (inFlight < MAX_IN_FLIGHT) {
+          inFlight++;
+          return;
+        }
+
+        long timeout = deadline - System.currentTimeMillis();
+
+        if (timeout <= 0) {
+          LOG.debug("Dart VM has not answered " + inFlight + " commands, sending more anyway");
+          inFlight++;
+          return;
+        }
+
+        if (flushed) {
+          inFlightLock.wait(timeout);
+          continue;
+        }
+      }
+
+      // let the VM see what has been written so far before waiting for its answers; not under inFlightLock, which the
+      // reader thread needs to report those answers
+      out.flush();
+      flushed = true;
+    }
+  }
+
+  private static class Command {
+    final byte[][] bytes;
+    final boolean pauseAfter;
+
+    Command(byte[][] bytes, boolean pauseAfter) {
+      this.bytes = bytes;
+      this.pauseAfter = pauseAfter;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import java.net.SocketException;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
 
@@ -40,6 +41,30 @@ public class VmConnection {
     unhandled
   }
 
+  public static class BreakpointRequest {
+    private final String url;
+    private final int line;
+    private final VmCallback<VmBreakpoint> callback;
+
+    public BreakpointRequest(String url, int line, VmCallback<VmBreakpoint> callback) {
+      this.url = url;
+      this.line = line;
+      this.callback = callback;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public int getLine() {
+      return line;
+    }
+
+    public VmCallback<VmBreakpoint> getCallback() {
+      return callback;
+    }
+  }
+
   //public static interface BreakpointResolvedCallback {
   //  public void handleResolved(VmBreakpoint bp);
   //}
@@ -52,6 +77,9 @@ public class VmConnection {
   private static final String EVENT_PAUSED = "paused";
   private static final String EVENT_BREAKPOINTRESOLVED = "breakpointResolved";
 
+  // reply of the VM debugger to a command it does not know
+  private static final String UNKNOWN_COMMAND_ERROR = "unknown debugger command";
+
   private static Charset UTF8 = Charset.forName("UTF-8");
 
   private List<VmListener> listeners = new ArrayList<VmListener>();
@@ -64,16 +92,19 @@ public class VmConnection {
   private int nextCommandId = 1;
 
   private Socket socket;
-  private OutputStream out;
+  private VmCommandWriter writer;
+  private volatile VmTrafficRecorder recorder;
 
   private List<VmBreakpoint> breakpoints = Collections.synchronizedList(new ArrayList<VmBreakpoint>());
 
   private Map<String, String> sourceCache = new HashMap<String, String>();
 
-  private Map<String, VmLineNumberTable> lineNumberTableCache = new HashMap<String, VmLineNumberTable>();
+  private final VmLineNumberCache lineNumberCache = new VmLineNumberCache(this);
 
   private Map<Integer, VmIsolate> isolateMap = new HashMap<Integer, VmIsolate>();
 
+  private volatile boolean listSlicesSupported = true;
+
   private VmLocation currentLocation;
   private boolean isStepping;
   private String stepCommand;
@@ -92,10 +123,27 @@ public class VmConnection {
     evaluateObject(object.getIsolate(), object, "toString()", callback);
   }
 
+  /**
+   * May be called several times, e.g. by both the reader and the writer threads when the connection breaks.
+   */
   public void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+
+    Socket socket;
+
+    synchronized (this) {
+      socket = this.socket;
+      this.socket = null;
+    }
+
     if (socket != null) {
       socket.close();
-      socket = null;
+    }
+
+    if (recorder != null) {
+      recorder.close();
     }
   }
 
@@ -107,7 +155,11 @@ public class VmConnection {
   public void connect() throws IOException {
     socket = new Socket(host, port);
 
-    out = socket.getOutputStream();
+    recorder = VmTrafficRecorder.createIfEnabled();
+
+    writer = new VmCommandWriter(this, socket.getOutputStream());
+    writer.start();
+
     final InputStream in = socket.getInputStream();
 
     // Start a reader thread.
@@ -137,6 +189,10 @@ public class VmConnection {
         }
         finally {
           socket = null;
+
+          if (recorder != null) {
+            recorder.close();
+          }
         }
 
         for (VmListener listener : listeners) {
@@ -453,50 +509,20 @@ public class VmConnection {
     return getLibraryPropertiesSync(obj.getIsolate(), vmClass.getLibraryId());
   }
 
+  /**
+   * Never blocks: returns 0 if the line number table for the location is not cached yet, it is requested then. Tables of the
+   * frames are cached before listeners are notified about a pause.
+   */
   public int getLineNumberFromLocation(VmIsolate isolate, VmLocation location) {
-    String cacheKey = location.getLibraryId() + ":" + location.getUrl();
-
-    if (!lineNumberTableCache.containsKey(cacheKey)) {
-      final CountDownLatch latch = new CountDownLatch(1);
-      final VmLineNumberTable[] result = new VmLineNumberTable[1];
-
-      try {
-        getLineNumberTable(
-          isolate,
-          location.getLibraryId(),
-          location.getUrl(),
-          new VmCallback<VmLineNumberTable>() {
-            @Override
-            public void handleResult(VmResult<VmLineNumberTable> r) {
-              result[0] = r.getResult();
-
-              latch.countDown();
-            }
-          }
-        );
-      }
-      catch (IOException ex) {
-        latch.countDown();
-      }
-
-      try {
-        latch.await();
-      }
-      catch (InterruptedException e) {
-
-      }
-
-      lineNumberTableCache.put(cacheKey, result[0]);
-    }
-
-    VmLineNumberTable lineNumberTable = lineNumberTableCache.get(cacheKey);
+    return lineNumberCache.getCachedLineNumber(isolate, location);
+  }
 
-    if (lineNumberTable == null) {
-      return 0;
-    }
-    else {
-      return lineNumberTable.getLineForLocation(location);
-    }
+  /**
+   * The callback receives the line number, or 0 if it is unknown. It is called on the current thread if the line
+   * number table for the location is already cached.
+   */
+  public void getLineNumberFromLocationAsync(VmIsolate isolate, VmLocation location, VmCallback<Integer> callback) {
+    lineNumberCache.getLineNumber(isolate, location, callback);
   }
 
   public void getLineNumberTable(final VmIsolate isolate, final int libraryId,
@@ -557,6 +583,147 @@ public class VmConnection {
     }
   }
 
+  /**
+   * Fetch <code>length</code> list elements starting at <code>fromIndex</code> with a single getListElements request.
+   * If the VM doesn't understand the "length" parameter, fall back to one request per element; those are all written
+   * before the first response arrives, so the fallback still costs a single round-trip of latency.
+   *
+   * @param isolate
+   * @param listObjectId
+   * @param fromIndex
+   * @param length
+   * @param callback receives the elements in index order
+   * @throws IOException
+   */
+  public void getListElements(final VmIsolate isolate, final int listObjectId, final int fromIndex, final int length,
+                              final VmCallback<List<VmValue>> callback) throws IOException {
+    if (callback == null) {
+      throw new IllegalArgumentException("a callback is required");
+    }
+
+    if (length == 0) {
+      callback.handleResult(VmResult.<List<VmValue>>createFrom(new ArrayList<VmValue>()));
+      return;
+    }
+
+    if (!listSlicesSupported) {
+      getListElementsOneByOne(isolate, listObjectId, fromIndex, length, callback);
+      return;
+    }
+
+    try {
+      JSONObject request = new JSONObject();
+
+      request.put("command", "getListElements");
+      request.put("params",
+                  new JSONObject().put("objectId", listObjectId).put("index", fromIndex).put("length", length));
+
+      sendRequest(request, isolate.getId(), new Callback() {
+        @Override
+        public void handleResult(JSONObject result) throws JSONException {
+          JSONObject jsonResult = result.optJSONObject("result");
+          JSONArray elements = jsonResult == null ? null : jsonResult.optJSONArray("elements");
+
+          if (elements == null || elements.length() != length) {
+            String error = result.optString("error", null);
+            if (error != null && !isUnsupportedCommandError(error)) {
+              // e.g. the isolate is not paused any more; slices still work for later requests
+              callback.handleResult(VmResult.<List<VmValue>>createErrorResult(error));
+              return;
+            }
+
+            listSlicesSupported = false;
+
+            try {
+              getListElementsOneByOne(isolate, listObjectId, fromIndex, length, callback);
+            }
+            catch (IOException e) {
+              callback.handleResult(VmResult.<List<VmValue>>createErrorResult(e.toString()));
+            }
+
+            return;
+          }
+
+          List<VmValue> values = new ArrayList<VmValue>(length);
+
+          for (int i = 0; i < length; i++) {
+            values.add(VmValue.createFrom(isolate, elements.optJSONObject(i)));
+          }
+
+          callback.handleResult(VmResult.createFrom(values));
+        }
+      });
+    }
+    catch (JSONException exception) {
+      throw new IOException(exception);
+    }
+  }
+
+  /**
+   * The error the VM replies with to a command it doesn't know; VMs which don't know the length parameter of getListElements
+   * answer with a single element and no error instead.
+   */
+  private static boolean isUnsupportedCommandError(String error) {
+    return error.toLowerCase().contains(UNKNOWN_COMMAND_ERROR);
+  }
+
+  private void getListElementsOneByOne(final VmIsolate isolate, final int listObjectId, final int fromIndex,
+                                       final int length, final VmCallback<List<VmValue>> callback) throws IOException {
+    final VmValue[] values = new VmValue[length];
+    final String[] error = new String[1];
+    final AtomicInteger responsesLeft = new AtomicInteger(length);
+
+    for (int i = 0; i < length; i++) {
+      final int offset = i;
+
+      try {
+        getListElements(isolate, listObjectId, fromIndex + i, new VmCallback<VmValue>() {
+          @Override
+          public void handleResult(VmResult<VmValue> result) {
+            synchronized (values) {
+              if (result.isError()) {
+                error[0] = result.getError();
+              }
+              else {
+                values[offset] = result.getResult();
+              }
+            }
+
+            if (responsesLeft.decrementAndGet() == 0) {
+              handleListElements(values, error, callback);
+            }
+          }
+        });
+      }
+      catch (IOException e) {
+        // nothing has been sent yet, the caller handles the exception
+        if (i == 0) throw e;
+
+        // the elements requested so far will be answered, the rest won't be
+        synchronized (values) {
+          error[0] = e.toString();
+        }
+
+        if (responsesLeft.addAndGet(i - length) == 0) {
+          handleListElements(values, error, callback);
+        }
+
+        return;
+      }
+    }
+  }
+
+  private static void handleListElements(VmValue[] values, String[] error, VmCallback<List<VmValue>> callback) {
+    synchronized (values) {
+      if (error[0] != null) {
+        callback.handleResult(VmResult.<List<VmValue>>createErrorResult(error[0]));
+      }
+      else {
+        callback.handleResult(VmResult.createFrom(Arrays.asList(values)));
+      }
+    }
+  }
+
   public void getObjectProperties(final VmIsolate isolate, final int objectId,
                                   final VmCallback<VmObject> callback) throws IOException {
     if (callback == null) {
@@ -783,55 +950,71 @@ public class VmConnection {
    */
   public void setBreakpoint(final VmIsolate isolate, final String url, final int line,
                             final VmCallback<VmBreakpoint> callback) throws IOException {
+    setBreakpoints(isolate, Collections.singletonList(new BreakpointRequest(url, line, callback)));
+  }
+
+  /**
+   * Set several breakpoints at once. All commands are written to the VM together, without waiting for the VM between
+   * them, and results are reported to each request's callback.
+   *
+   * @param isolate
+   * @param requests
+   * @throws IOException
+   */
+  public void setBreakpoints(final VmIsolate isolate, final List<BreakpointRequest> requests) throws IOException {
     if (!isolate.isPaused()) {
-      throw new IOException("attempt to set breakpoint on a running isolate");
+      throw new IOException("attempt to set breakpoints on a running isolate");
     }
 
+    List<JSONObject> commands = new ArrayList<JSONObject>(requests.size());
+    List<Callback> callbacks = new ArrayList<Callback>(requests.size());
+
     try {
-      JSONObject request = new JSONObject();
+      for (BreakpointRequest request : requests) {
+        JSONObject command = new JSONObject();
 
-      request.put("command", "setBreakpoint");
-      request.put(
-        "params",
-        new JSONObject().put("url", VmUtils.eclipseUrlToVm(url)).put("line", line));
+        command.put("command", "setBreakpoint");
+        command.put(
+          "params",
+          new JSONObject().put("url", VmUtils.eclipseUrlToVm(request.getUrl())).put("line", request.getLine()));
 
-      sendRequest(request, isolate.getId(), new Callback() {
-        @Override
-        public void handleResult(JSONObject object) throws JSONException {
-          VmResult<VmBreakpoint> result = new VmResult<VmBreakpoint>();
+        commands.add(command);
+        callbacks.add(setBreakpointCallback(isolate, request.getCallback()));
+      }
+    }
+    catch (JSONException exception) {
+      throw new IOException(exception);
+    }
 
-          if (!object.has("error")) {
-            int breakpointId = JsonUtils.getInt(object.getJSONObject("result"), "breakpointId");
+    // workaround for bug https://code.google.com/p/dart/issues/detail?id=9705: the writer gives the VM time to
+    // process all the events after the batch before it sends more
+    sendRequests(commands, isolate.getId(), callbacks, true);
+  }
 
-            VmBreakpoint breakpoint = new VmBreakpoint(isolate, null, breakpointId);
+  private Callback setBreakpointCallback(final VmIsolate isolate, final VmCallback<VmBreakpoint> callback) {
+    return new Callback() {
+      @Override
+      public void handleResult(JSONObject object) throws JSONException {
+        VmResult<VmBreakpoint> result = new VmResult<VmBreakpoint>();
 
-            breakpoints.add(breakpoint);
+        if (!object.has("error")) {
+          int breakpointId = JsonUtils.getInt(object.getJSONObject("result"), "breakpointId");
 
-            result.setResult(breakpoint);
-          }
-          else {
-            result.setError(object.getString("error"));
-          }
+          VmBreakpoint breakpoint = new VmBreakpoint(isolate, null, breakpointId);
 
-          if (callback != null) {
-            callback.handleResult(result);
-          }
-        }
-      });
-    }
-    catch (JSONException exception) {
-      throw new IOException(exception);
-    }
+          breakpoints.add(breakpoint);
 
-    try {
-      // TODO(devoncarew): workaround for bug https://code.google.com/p/dart/issues/detail?id=9705
-      // We need to give the VM time to process all the events before we start sending more.
-      // There's some race condition going on in the VM's queue.
-      Thread.sleep(10);
-    }
-    catch (InterruptedException e) {
+          result.setResult(breakpoint);
+        }
+        else {
+          result.setError(object.getString("error"));
+        }
 
-    }
+        if (callback != null) {
+          callback.handleResult(result);
+        }
+      }
+    };
   }
 
   /**
@@ -981,31 +1164,32 @@ public class VmConnection {
     ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
       @Override
       public void run() {
-        try {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("<== (" + Thread.currentThread().getName() + ")" + result);
-          }
-
-          if (result.has("id")) {
-            processResponse(result);
-          }
-          else {
-            processNotification(result);
-          }
-        }
-        catch (IOException exception) {
-          LOG.info(exception);
-        }
-        catch (JSONException exception) {
-          LOG.info(exception);
-        }
-        //catch (Throwable exception) {
-        //  LOG.info(exception);
-        //}
+        processJsonSync(result);
       }
     });
   }
 
+  private void processJsonSync(final JSONObject result) {
+    try {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("<== (" + Thread.currentThread().getName() + ")" + result);
+      }
+
+      if (result.has("id")) {
+        processResponse(result);
+      }
+      else {
+        processNotification(result);
+      }
+    }
+    catch (IOException exception) {
+      LOG.info(exception);
+    }
+    catch (JSONException exception) {
+      LOG.info(exception);
+    }
+  }
+
   protected void sendSimpleCommand(String command, int isolateId) throws IOException {
     sendSimpleCommand(command, isolateId, null);
   }
@@ -1025,52 +1209,74 @@ public class VmConnection {
   }
 
   void sendRequest(JSONObject request, int isolateId, Callback callback) throws IOException {
-    int id = 0;
+    sendRequests(Collections.singletonList(request), isolateId, Collections.singletonList(callback), false);
+  }
 
+  /**
+   * Sends the requests as one batch, so that they are written to the VM together.
+   *
+   * @param callbacks  callback for each request, may contain nulls
+   * @param pauseAfter if true the writer gives the VM some time after the batch before writing more
+   */
+  private void sendRequests(List<JSONObject> requests, int isolateId, List<Callback> callbacks, boolean pauseAfter)
+    throws IOException {
     try {
       if (!isConnected()) {
-        if (callback != null) {
-          callback.handleResult(VmResult.createJsonErrorResult("connection termination"));
+        for (Callback callback : callbacks) {
+          if (callback != null) {
+            callback.handleResult(VmResult.createJsonErrorResult("connection termination"));
+          }
         }
 
         return;
       }
 
-      if (!request.has("params")) {
-        request.put("params", new JSONObject());
-      }
+      for (JSONObject request : requests) {
+        if (!request.has("params")) {
+          request.put("params", new JSONObject());
+        }
 
-      JSONObject params = request.getJSONObject("params");
+        JSONObject params = request.getJSONObject("params");
 
-      if (!params.has("isolateId") && isolateId != -1) {
-        params.put("isolateId", isolateId);
+        if (!params.has("isolateId") && isolateId != -1) {
+          params.put("isolateId", isolateId);
+        }
       }
     }
     catch (JSONException jse) {
       throw new IOException(jse);
     }
 
+    int[] ids = new int[requests.size()];
+    List<String> texts = new ArrayList<String>(requests.size());
+
     synchronized (this) {
-      id = nextCommandId++;
+      for (int i = 0; i < requests.size(); i++) {
+        ids[i] = nextCommandId++;
 
-      try {
-        request.put("id", id);
-      }
-      catch (JSONException ex) {
-        throw new IOException(ex);
-      }
+        try {
+          requests.get(i).put("id", ids[i]);
+        }
+        catch (JSONException ex) {
+          throw new IOException(ex);
+        }
 
-      if (callback != null) {
-        callbackMap.put(id, callback);
+        if (callbacks.get(i) != null) {
+          callbackMap.put(ids[i], callbacks.get(i));
+        }
       }
     }
 
+    for (JSONObject request : requests) {
+      texts.add(request.toString());
+    }
+
     try {
-      send(request.toString());
+      send(texts, pauseAfter);
     }
     catch (IOException ex) {
-      if (callback != null) {
-        synchronized (this) {
+      synchronized (this) {
+        for (int id : ids) {
           callbackMap.remove(id);
         }
       }
@@ -1353,6 +1559,10 @@ public class VmConnection {
 
         isolate.setPaused(true);
 
+        if (location != null) {
+          lineNumberCache.prefetchLibrary(isolate, location.getLibraryId());
+        }
+
         if (!"interrupted".equals(reason) || !isolate.isTemporarilyInterrupted()) {
           sendDelayedDebuggerPaused(PausedReason.parse(reason), isolate, location, exception);
         }
@@ -1389,6 +1599,7 @@ public class VmConnection {
           isolate.setPaused(false);
 
           isolateMap.remove(isolate.getId());
+          lineNumberCache.isolateShutdown(isolate);
         }
       }
       else {
@@ -1422,76 +1633,68 @@ public class VmConnection {
   }
 
   private void processVmEvents(InputStream in) throws IOException {
-    Reader reader = new InputStreamReader(in, UTF8);
-
-    JSONObject obj = readJson(reader);
-
-    while (obj != null) {
-      processJson(obj);
+    VmJsonReader reader = new VmJsonReader(in);
 
-      obj = readJson(reader);
-    }
-  }
+    while (true) {
+      reader.readFrame();
 
-  private JSONObject readJson(Reader in) throws IOException {
-    StringBuilder builder = new StringBuilder();
+      if (recorder != null) {
+        recorder.messageReceived(reader.getFrameText());
+      }
 
-    boolean inQuote = false;
-    boolean ignoreLast = false;
-    int curlyCount = 0;
+      if (reader.frameHadRawNewLine()) {
+        // TODO(devoncarew): we know this is occurring for exception text.
+        // Possibly from toString() invocations?
+        LOG.error("bad json from vm: " + reader.getFrameText());
+      }
 
-    int c = in.read();
+      int id = reader.getFrameId();
 
-    while (true) {
-      if (c == -1) {
-        throw new EOFException();
+      if (id != VmJsonReader.NO_ID) {
+        writer.responseReceived();
       }
 
-      builder.append((char)c);
+      if (id != VmJsonReader.NO_ID && !reader.frameHasError()) {
+        boolean hasCallback;
 
-      if (!ignoreLast) {
-        if (c == '"') {
-          inQuote = !inQuote;
+        synchronized (this) {
+          hasCallback = callbackMap.containsKey(id);
         }
-      }
 
-      if (inQuote && c == '\\') {
-        ignoreLast = true;
-      }
-      else {
-        ignoreLast = false;
-      }
+        // Nobody waits for this response and it is not an error worth logging, so don't even parse it.
+        if (!hasCallback) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("<== (" + Thread.currentThread().getName() + ")" + reader.getFrameText());
+          }
 
-      if (!inQuote) {
-        if (c == '{') {
-          curlyCount++;
+          continue;
         }
-        else if (c == '}') {
-          curlyCount--;
-
-          if (curlyCount == 0) {
-            try {
-              String str = builder.toString();
+      }
 
-              // TODO(devoncarew): we know this is occurring for exception text.
-              // Possibly from toString() invocations?
-              if (str.indexOf('\n') != -1) {
-                LOG.error("bad json from vm: " + str);
+      processFrame(reader.copyFrame());
+    }
+  }
 
-                str = str.replace("\n", "\\n");
-              }
+  /**
+   * Parsing is done on a pooled thread so that the reader thread only does byte-level framing.
+   */
+  private void processFrame(final byte[] frame) {
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        final JSONObject result;
 
-              return new JSONObject(str);
-            }
-            catch (JSONException e) {
-              throw new IOException(e);
-            }
-          }
+        try {
+          result = VmJsonReader.parse(frame, frame.length);
+        }
+        catch (IOException exception) {
+          LOG.info(exception);
+          return;
         }
-      }
 
-      c = in.read();
-    }
+        processJsonSync(result);
+      }
+    });
   }
 
   private Callback resumeOnSuccess(final VmIsolate isolate) {
@@ -1511,55 +1714,106 @@ public class VmConnection {
   }
 
   /**
-   * Return whether the given vm locations represent the same source line.
+   * Calls the callback with whether the given vm locations represent the same source line.
    */
-  private boolean sameSourceLine(VmLocation location1, VmLocation location2) {
+  private void sameSourceLine(final VmLocation location1, final VmLocation location2, final VmCallback<Boolean> callback) {
     if (location1 == null || location2 == null) {
-      return false;
+      callback.handleResult(VmResult.createFrom(false));
+      return;
     }
 
-    int line1 = getLineNumberFromLocation(location1.getIsolate(), location1);
-    int line2 = getLineNumberFromLocation(location2.getIsolate(), location2);
+    getLineNumberFromLocationAsync(location1.getIsolate(), location1, new VmCallback<Integer>() {
+      @Override
+      public void handleResult(VmResult<Integer> result1) {
+        final int line1 = result1.getResult();
 
-    if (line1 <= 0 || line2 <= 0) {
-      return false;
-    }
+        if (line1 <= 0) {
+          callback.handleResult(VmResult.createFrom(false));
+          return;
+        }
 
-    return line1 == line2;
+        getLineNumberFromLocationAsync(location2.getIsolate(), location2, new VmCallback<Integer>() {
+          @Override
+          public void handleResult(VmResult<Integer> result2) {
+            callback.handleResult(VmResult.createFrom(line1 == result2.getResult()));
+          }
+        });
+      }
+    });
   }
 
-  private void send(String str) throws IOException {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("==> (" + Thread.currentThread().getName() + ")" + str);
-    }
+  private void send(List<String> commands, boolean pauseAfter) throws IOException {
+    List<byte[]> bytes = new ArrayList<byte[]>(commands.size());
+
+    for (String str : commands) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("==> (" + Thread.currentThread().getName() + ")" + str);
+      }
 
-    byte[] bytes = str.getBytes(UTF8);
+      if (recorder != null) {
+        recorder.commandSent(str);
+      }
+
+      bytes.add(str.getBytes(UTF8));
+    }
 
-    out.write(bytes);
-    out.flush();
+    writer.enqueue(bytes, pauseAfter);
   }
 
   private void sendDelayedDebuggerPaused(final PausedReason reason, final VmIsolate isolate,
                                          final VmLocation location, final VmValue exception) throws JSONException, IOException {
     // If we're stepping, check here to see if we should continue stepping.
-    if (reason == PausedReason.breakpoint && isStepping && sameSourceLine(currentLocation, location)) {
-      sendSimpleCommand(stepCommand, isolate.getId());
+    if (reason == PausedReason.breakpoint && isStepping) {
+      sameSourceLine(currentLocation, location, new VmCallback<Boolean>() {
+        @Override
+        public void handleResult(VmResult<Boolean> result) {
+          try {
+            if (result.getResult()) {
+              sendSimpleCommand(stepCommand, isolate.getId());
+            }
+            else {
+              sendDebuggerPaused(reason, isolate, location, exception);
+            }
+          }
+          catch (IOException e) {
+            LOG.info(e);
+          }
+        }
+      });
     }
     else {
-      try {
-        getStackTrace(isolate, new VmCallback<List<VmCallFrame>>() {
+      sendDebuggerPaused(reason, isolate, location, exception);
+    }
+  }
+
+  private void sendDebuggerPaused(final PausedReason reason, final VmIsolate isolate,
+                                  final VmLocation location, final VmValue exception) throws IOException {
+    getStackTrace(isolate, new VmCallback<List<VmCallFrame>>() {
+      @Override
+      public void handleResult(VmResult<List<VmCallFrame>> result) {
+        if (result.isError()) {
+          LOG.info(result.getError());
+          currentLocation = location;
+          isStepping = false;
+          return;
+        }
+
+        final List<VmCallFrame> frames = result.getResult();
+        List<VmLocation> locations = new ArrayList<VmLocation>(frames.size());
+
+        for (VmCallFrame frame : frames) {
+          if (frame.getLocation() != null) {
+            locations.add(frame.getLocation());
+          }
+        }
+
+        // listeners ask for source positions of the frames, they must not wait for line number tables
+        lineNumberCache.whenTablesKnown(isolate, locations, new Runnable() {
           @Override
-          public void handleResult(VmResult<List<VmCallFrame>> result) {
+          public void run() {
             try {
-              if (result.isError()) {
-                LOG.info(result.getError());
-              }
-              else {
-                List<VmCallFrame> frames = result.getResult();
-
-                for (VmListener listener : listeners) {
-                  listener.debuggerPaused(reason, isolate, frames, exception, isStepping);
-                }
+              for (VmListener listener : listeners) {
+                listener.debuggerPaused(reason, isolate, frames, exception, isStepping);
               }
             }
             finally {
@@ -1569,9 +1823,6 @@ public class VmConnection {
           }
         });
       }
-      catch (IOException e) {
-        throw new JSONException(e);
-      }
-    }
+    });
   }
 }
@@ -0,0 +1,226 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits the VM debugger byte stream into top-level JSON objects.
+ * <p/>
+ * Framing works on raw UTF-8 bytes: '{', '}', '"' and '\\' never occur inside multi-byte sequences, so brace and quote
+ * tracking does not need a char decoder. Input is read in chunks into a reusable buffer, and the current frame is
+ * accumulated into a second reusable buffer that only grows when the VM sends a bigger message than seen before.
+ * <p/>
+ * Besides the frame itself the reader remembers the value of a top-level numeric <code>"id"</code> key and whether
+ * there is a top-level <code>"error"</code> key, so that responses can be routed (or dropped) without parsing them.
+ * <p/>
+ * Only framing is done on the stream. A frame which has to be parsed is parsed as a whole by {@link #parse(byte[], int)}.
+ */
+public class VmJsonReader {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] ID_KEY = {'i', 'd'};
+  private static final byte[] ERROR_KEY = {'e', 'r', 'r', 'o', 'r'};
+
+  public static final int NO_ID = -1;
+
+  private final InputStream in;
+
+  private final byte[] input;
+  private int inputPos;
+  private int inputEnd;
+
+  private byte[] frame = new byte[8192];
+  private int frameLength;
+
+  private int frameId;
+  private boolean frameHasError;
+  private boolean frameHadRawNewLine;
+
+  public VmJsonReader(InputStream in) {
+    this(in, 8192);
+  }
+
+  VmJsonReader(InputStream in, int bufferSize) {
+    this.in = in;
+    this.input = new byte[bufferSize];
+  }
+
+  /**
+   * Reads the next top-level JSON object. The frame is available through {@link #getFrameBytes()} and
+   * {@link #getFrameLength()} until the next call.
+   *
+   * @throws EOFException if the stream ends before a complete object was read
+   */
+  public void readFrame() throws IOException {
+    frameLength = 0;
+    frameId = NO_ID;
+    frameHasError = false;
+    frameHadRawNewLine = false;
+
+    boolean inQuote = false;
+    boolean escaped = false;
+    int depth = 0;
+
+    // start of the most recently closed string at depth 1, used to recognize top-level keys
+    int lastStringStart = -1;
+    int lastStringEnd = -1;
+    boolean expectIdValue = false;
+
+    while (true) {
+      if (inputPos == inputEnd) {
+        inputEnd = in.read(input, 0, input.length);
+        inputPos = 0;
+
+        if (inputEnd == -1) {
+          inputEnd = 0;
+          throw new EOFException();
+        }
+      }
+
+      final byte b = input[inputPos++];
+
+      if (depth == 0) {
+        // skip anything between objects
+        if (b == '{') {
+          depth = 1;
+          append(b);
+        }
+        continue;
+      }
+
+      if (inQuote) {
+        if (escaped) {
+          escaped = false;
+        }
+        else if (b == '\\') {
+          escaped = true;
+        }
+        else if (b == '"') {
+          inQuote = false;
+          lastStringEnd = frameLength;
+        }
+        else if (b == '\n') {
+          // the VM sometimes sends unescaped new lines in exception text
+          frameHadRawNewLine = true;
+          append((byte)'\\');
+          append((byte)'n');
+          continue;
+        }
+
+        append(b);
+        continue;
+      }
+
+      append(b);
+
+      if (expectIdValue) {
+        if (b >= '0' && b <= '9') {
+          frameId = (frameId == NO_ID ? 0 : frameId * 10) + (b - '0');
+          continue;
+        }
+        else if (b != ' ' && b != ':' || frameId != NO_ID) {
+          expectIdValue = false;
+        }
+      }
+
+      switch (b) {
+        case '"':
+          inQuote = true;
+          lastStringStart = depth == 1 ? frameLength : -1;
+          break;
+        case ':':
+          if (lastStringStart != -1 && lastStringEnd > lastStringStart) {
+            if (keyEquals(lastStringStart, lastStringEnd, ID_KEY)) {
+              expectIdValue = true;
+            }
+            else if (keyEquals(lastStringStart, lastStringEnd, ERROR_KEY)) {
+              frameHasError = true;
+            }
+          }
+          lastStringStart = -1;
+          break;
+        case '{':
+        case '[':
+          depth++;
+          break;
+        case '}':
+        case ']':
+          depth--;
+          if (depth == 0) {
+            return;
+          }
+          break;
+      }
+    }
+  }
+
+  private boolean keyEquals(int start, int end, byte[] key) {
+    if (end - start != key.length) return false;
+
+    for (int i = 0; i < key.length; i++) {
+      if (frame[start + i] != key[i]) return false;
+    }
+
+    return true;
+  }
+
+  private void append(byte b) {
+    if (frameLength == frame.length) {
+      frame = Arrays.copyOf(frame, frame.length * 2);
+    }
+
+    frame[frameLength++] = b;
+  }
+
+  public byte[] getFrameBytes() {
+    return frame;
+  }
+
+  public int getFrameLength() {
+    return frameLength;
+  }
+
+  /**
+   * @return value of the top-level <code>"id"</code> key of the current frame, or {@link #NO_ID} for notifications
+   */
+  public int getFrameId() {
+    return frameId;
+  }
+
+  public boolean frameHasError() {
+    return frameHasError;
+  }
+
+  public boolean frameHadRawNewLine() {
+    return frameHadRawNewLine;
+  }
+
+  /**
+   * @return a copy of the current frame that stays valid after the next {@link #readFrame()}
+   */
+  public byte[] copyFrame() {
+    return Arrays.copyOf(frame, frameLength);
+  }
+
+  public String getFrameText() {
+    return new String(frame, 0, frameLength, UTF8);
+  }
+
+  /**
+   * Decodes the complete frame into a string and parses it; the bundled org.json can only tokenize a string.
+   */
+  public static JSONObject parse(byte[] bytes, int length) throws IOException {
+    try {
+      return new JSONObject(new String(bytes, 0, length, UTF8));
+    }
+    catch (JSONException e) {
+      throw new IOException(e);
+    }
+  }
+}
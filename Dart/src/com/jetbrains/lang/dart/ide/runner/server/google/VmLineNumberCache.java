@@ -0,0 +1,252 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
+
+/**
+ * Line number tables of a VM connection, kept per isolate and per library.
+ * <p/>
+ * Concurrent lookups of the same table share a single getLineNumberTable request. The first time a library is seen
+ * in an isolate, the tables of all its scripts are requested in the background, so that by the time the user steps
+ * into another part file the table is usually there already.
+ */
+class VmLineNumberCache {
+
+  private static class TableRequest {
+    private boolean done;
+    private VmLineNumberTable table;
+    private List<VmCallback<VmLineNumberTable>> waiting = new ArrayList<VmCallback<VmLineNumberTable>>();
+
+    /**
+     * @return false if the table is already known and the callback must be called by the caller
+     */
+    synchronized boolean addWaiting(VmCallback<VmLineNumberTable> callback) {
+      if (done) {
+        return false;
+      }
+
+      waiting.add(callback);
+
+      return true;
+    }
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    synchronized VmLineNumberTable getTable() {
+      return table;
+    }
+
+    void complete(VmLineNumberTable table) {
+      List<VmCallback<VmLineNumberTable>> callbacks;
+
+      synchronized (this) {
+        this.table = table;
+        this.done = true;
+
+        callbacks = waiting;
+        waiting = null;
+      }
+
+      for (VmCallback<VmLineNumberTable> callback : callbacks) {
+        callback.handleResult(VmResult.createFrom(table));
+      }
+    }
+  }
+
+  private static class IsolateTables {
+    private final ConcurrentMap<Integer, Boolean> prefetchedLibraries = new ConcurrentHashMap<Integer, Boolean>();
+
+    private final ConcurrentMap<Integer, ConcurrentMap<String, TableRequest>> libraryTables =
+      new ConcurrentHashMap<Integer, ConcurrentMap<String, TableRequest>>();
+
+    ConcurrentMap<String, TableRequest> getLibraryTables(int libraryId) {
+      ConcurrentMap<String, TableRequest> tables = libraryTables.get(libraryId);
+
+      if (tables == null) {
+        tables = new ConcurrentHashMap<String, TableRequest>();
+        ConcurrentMap<String, TableRequest> existing = libraryTables.putIfAbsent(libraryId, tables);
+
+        if (existing != null) {
+          tables = existing;
+        }
+      }
+
+      return tables;
+    }
+  }
+
+  private final VmConnection connection;
+
+  private final ConcurrentMap<Integer, IsolateTables> isolateTables = new ConcurrentHashMap<Integer, IsolateTables>();
+
+  VmLineNumberCache(VmConnection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * Calls the callback with the line number for the given location, or 0 if it is unknown. The callback is called on
+   * the current thread if the table is already cached.
+   */
+  void getLineNumber(final VmIsolate isolate, final VmLocation location, final VmCallback<Integer> callback) {
+    prefetchLibrary(isolate, location.getLibraryId());
+
+    getTable(isolate, location.getLibraryId(), location.getUrl(), new VmCallback<VmLineNumberTable>() {
+      @Override
+      public void handleResult(VmResult<VmLineNumberTable> result) {
+        callback.handleResult(VmResult.createFrom(getLine(result.getResult(), location)));
+      }
+    });
+  }
+
+  /**
+   * Non-blocking variant of {@link #getLineNumber(VmIsolate, VmLocation, VmCallback)}: returns 0 if the table is not cached yet
+   * and requests it in the background then.
+   */
+  int getCachedLineNumber(VmIsolate isolate, VmLocation location) {
+    prefetchLibrary(isolate, location.getLibraryId());
+
+    TableRequest request = getIsolateTables(isolate).getLibraryTables(location.getLibraryId()).get(location.getUrl());
+
+    if (request == null || !request.isDone()) {
+      getTable(isolate, location.getLibraryId(), location.getUrl(), null);
+      return 0;
+    }
+
+    return getLine(request.getTable(), location);
+  }
+
+  /**
+   * Runs the runnable once the tables of all the given locations are cached or have failed to arrive, on the current thread
+   * if they are all cached already.
+   */
+  void whenTablesKnown(VmIsolate isolate, List<VmLocation> locations, final Runnable runnable) {
+    Set<String> requested = new HashSet<String>();
+    List<VmLocation> toRequest = new ArrayList<VmLocation>();
+
+    for (VmLocation location : locations) {
+      if (requested.add(location.getLibraryId() + ":" + location.getUrl())) {
+        toRequest.add(location);
+      }
+    }
+
+    // one more for this method itself, so that the runnable doesn't run before all tables are requested
+    final AtomicInteger left = new AtomicInteger(toRequest.size() + 1);
+    VmCallback<VmLineNumberTable> callback = new VmCallback<VmLineNumberTable>() {
+      @Override
+      public void handleResult(VmResult<VmLineNumberTable> result) {
+        if (left.decrementAndGet() == 0) {
+          runnable.run();
+        }
+      }
+    };
+
+    for (VmLocation location : toRequest) {
+      getTable(isolate, location.getLibraryId(), location.getUrl(), callback);
+    }
+
+    callback.handleResult(null);
+  }
+
+  private static int getLine(VmLineNumberTable table, VmLocation location) {
+    int line = table == null ? -1 : table.getLineForLocation(location);
+
+    return line < 0 ? 0 : line;
+  }
+
+  /**
+   * Requests line number tables of all scripts of the library unless it has already been done for this isolate.
+   */
+  void prefetchLibrary(final VmIsolate isolate, final int libraryId) {
+    if (libraryId == -1 || getIsolateTables(isolate).prefetchedLibraries.putIfAbsent(libraryId, Boolean.TRUE) != null) {
+      return;
+    }
+
+    try {
+      connection.getScriptURLs(isolate, libraryId, new VmCallback<List<String>>() {
+        @Override
+        public void handleResult(VmResult<List<String>> result) {
+          if (result.isError() || result.getResult() == null) {
+            return;
+          }
+
+          for (String url : result.getResult()) {
+            getTable(isolate, libraryId, url, null);
+          }
+        }
+      });
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  void isolateShutdown(VmIsolate isolate) {
+    isolateTables.remove(isolate.getId());
+  }
+
+  private IsolateTables getIsolateTables(VmIsolate isolate) {
+    IsolateTables tables = isolateTables.get(isolate.getId());
+
+    if (tables == null) {
+      tables = new IsolateTables();
+      IsolateTables existing = isolateTables.putIfAbsent(isolate.getId(), tables);
+
+      if (existing != null) {
+        tables = existing;
+      }
+    }
+
+    return tables;
+  }
+
+  private void getTable(VmIsolate isolate, int libraryId, String url, VmCallback<VmLineNumberTable> callback) {
+    final ConcurrentMap<String, TableRequest> tables = getIsolateTables(isolate).getLibraryTables(libraryId);
+
+    TableRequest request = tables.get(url);
+    boolean newRequest = false;
+
+    if (request == null) {
+      request = new TableRequest();
+      TableRequest existing = tables.putIfAbsent(url, request);
+
+      if (existing != null) {
+        request = existing;
+      }
+      else {
+        newRequest = true;
+      }
+    }
+
+    if (callback != null && !request.addWaiting(callback)) {
+      callback.handleResult(VmResult.createFrom(request.getTable()));
+    }
+
+    if (newRequest) {
+      final TableRequest finalRequest = request;
+
+      try {
+        connection.getLineNumberTable(isolate, libraryId, url, new VmCallback<VmLineNumberTable>() {
+          @Override
+          public void handleResult(VmResult<VmLineNumberTable> result) {
+            finalRequest.complete(result.getResult());
+          }
+        });
+      }
+      catch (IOException e) {
+        // don't cache the failure, the next lookup will ask again
+        tables.remove(url, request);
+        request.complete(null);
+      }
+    }
+  }
+}
@@ -18,8 +18,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
 
@@ -30,57 +29,102 @@ public class VmLineNumberTable {
 
   static VmLineNumberTable createFrom(VmIsolate isolate, int libraryId, String url,
                                       JSONObject object) throws JSONException {
-    VmLineNumberTable lineNumberTable = new VmLineNumberTable(libraryId, url);
-
     // { "id": 2, "result": { "lines": [[1,0,0,1,5,2,9,3,10,4,12], [2, ...
 
     JSONArray lineInfos = object.getJSONArray("lines");
 
+    int count = 0;
+
+    for (int i = 0; i < lineInfos.length(); i++) {
+      count += lineInfos.getJSONArray(i).length() / 2;
+    }
+
+    int[] tokenOffsets = new int[count];
+    int[] lines = new int[count];
+    int size = 0;
+    boolean sorted = true;
+
     for (int i = 0; i < lineInfos.length(); i++) {
       JSONArray lineInfo = lineInfos.getJSONArray(i);
 
       // Retrieve the line number of the current line.
-      Integer lineNumber = lineInfo.getInt(0);
+      int lineNumber = lineInfo.getInt(0);
 
       // Index over the remaining (tokenOffset, charOffset) tuples.
       for (int index = 1; index < lineInfo.length(); index += 2) {
-        Integer tokenOffset = lineInfo.getInt(index);
+        int tokenOffset = lineInfo.getInt(index);
 
         // We don't use this info currently, so we don't decode it.
         //Integer columnNumber = lineInfo.getInt(index + 1);
 
-        lineNumberTable.lineMap.put(tokenOffset, lineNumber);
+        if (size > 0 && tokenOffsets[size - 1] >= tokenOffset) {
+          sorted = false;
+        }
+
+        tokenOffsets[size] = tokenOffset;
+        lines[size] = lineNumber;
+        size++;
       }
     }
 
-    return lineNumberTable;
+    if (!sorted) {
+      sortByTokenOffset(tokenOffsets, lines, size);
+    }
+
+    return new VmLineNumberTable(libraryId, url, tokenOffsets, lines, size);
   }
 
-  Map<Integer, Integer> lineMap = new HashMap<Integer, Integer>();
+  private static void sortByTokenOffset(int[] tokenOffsets, int[] lines, int size) {
+    // pack (tokenOffset, line) pairs into longs so that a primitive sort keeps them together
+    long[] pairs = new long[size];
+
+    for (int i = 0; i < size; i++) {
+      pairs[i] = ((long)tokenOffsets[i] << 32) | (lines[i] & 0xFFFFFFFFL);
+    }
+
+    Arrays.sort(pairs);
+
+    for (int i = 0; i < size; i++) {
+      tokenOffsets[i] = (int)(pairs[i] >>> 32);
+      lines[i] = (int)pairs[i];
+    }
+  }
+
+  private final int[] tokenOffsets;
+
+  private final int[] lines;
+
+  private final int size;
 
   private int libraryId;
 
   private String url;
 
-  VmLineNumberTable(int libraryId, String url) {
+  VmLineNumberTable(int libraryId, String url, int[] tokenOffsets, int[] lines, int size) {
     this.libraryId = libraryId;
     this.url = url;
+    this.tokenOffsets = tokenOffsets;
+    this.lines = lines;
+    this.size = size;
   }
 
   public int getLibraryId() {
     return libraryId;
   }
 
+  /**
+   * @return line of the token that starts at the location, or -1 if there is no such token in the table
+   */
   public int getLineForLocation(VmLocation location) {
-    Integer ret = lineMap.get(location.getTokenOffset());
+    int index = Arrays.binarySearch(tokenOffsets, 0, size, location.getTokenOffset());
 
-    if (ret != null) {
-      return ret.intValue();
+    if (index >= 0) {
+      return lines[index];
     }
 
-    LOG.error("no line mapping found for " + location);
+    LOG.info("no line mapping found for " + location);
 
-    return 0;
+    return -1;
   }
 
   public String getUrl() {
@@ -89,6 +133,6 @@ public class VmLineNumberTable {
 
   @Override
   public String toString() {
-    return "[lineNumberTable for " + url + "," + lineMap.size() + " mappings]";
+    return "[lineNumberTable for " + url + "," + size + " mappings]";
   }
 }
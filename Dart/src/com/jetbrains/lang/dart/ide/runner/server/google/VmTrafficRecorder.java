@@ -0,0 +1,94 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
+
+/**
+ * Writes the JSON traffic of a VM connection to a file, so that a debugger session can be replayed later without a
+ * Dart VM.
+ * <p/>
+ * Recording is turned on by the <code>dart.vm.record</code> system property that holds the path of the file to write.
+ * Each message is stored as a header line <code>&lt;ms since connect&gt; &lt;direction&gt; &lt;length&gt;</code>, where
+ * direction is <code>&gt;</code> for commands and <code>&lt;</code> for VM responses and events, followed by the
+ * message text and a line break. The length is in chars, so unescaped new lines sent by the VM don't break the format.
+ */
+class VmTrafficRecorder {
+  static final String RECORD_FILE_PROPERTY = "dart.vm.record";
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Writer writer;
+  private final long startNanos = System.nanoTime();
+
+  // guarded by this
+  private boolean closed;
+
+  VmTrafficRecorder(File file) throws IOException {
+    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+  }
+
+  /**
+   * @return recorder writing to the file set by the <code>dart.vm.record</code> system property, or null
+   */
+  static VmTrafficRecorder createIfEnabled() {
+    String path = System.getProperty(RECORD_FILE_PROPERTY);
+
+    if (path == null) {
+      return null;
+    }
+
+    try {
+      return new VmTrafficRecorder(new File(path));
+    }
+    catch (IOException e) {
+      LOG.warn("Can't record Dart VM traffic to " + path, e);
+      return null;
+    }
+  }
+
+  void commandSent(String text) {
+    write(true, text);
+  }
+
+  void messageReceived(String text) {
+    write(false, text);
+  }
+
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    try {
+      writer.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  private synchronized void write(boolean command, String text) {
+    if (closed) {
+      return;
+    }
+
+    long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+    try {
+      writer.write(time + (command ? " > " : " < ") + text.length() + "\n");
+      writer.write(text);
+      writer.write("\n");
+      // keep the file usable if the session is killed
+      writer.flush();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      close();
+    }
+  }
+}
@@ -1,52 +1,401 @@
 package com.jetbrains.lang.dart.psi;
 
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.project.Project;
-import com.intellij.psi.impl.AnyPsiChangeListener;
-import com.intellij.psi.impl.PsiManagerImpl;
-import com.intellij.util.containers.ConcurrentWeakHashMap;
-import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.messages.MessageBus;
+import com.intellij.openapi.roots.ModuleRootAdapter;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.jetbrains.lang.dart.util.DartClassResolveResult;
+import com.jetbrains.lang.dart.util.DartResolveUtil;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.SoftReference;
+import java.util.*;
+
 /**
+ * Caches {@link DartClassResolveResult} of classes, i.e. specialization of their super classes, interfaces and mixins.
+ * <p/>
+ * Entries are keyed by the file and the name of the class, so the cache doesn't keep PSI of a class alive, and results are held softly.
+ * A result is returned only for the same PSI instance it was computed for, so a reparsed file gets its entries recomputed.
+ * <p/>
+ * An entry depends on the file of its class and on the files of all its resolved supertypes. When a file changes only entries that
+ * depend on it are dropped, as well as entries with a supertype name (unqualified, i.e. without import prefix) that is declared in the
+ * changed part of the file, because such a supertype may resolve differently now. Classes of non-physical files (e.g. completion
+ * copies) are not cached.
+ * <p/>
+ * The number of entries is limited by <code>dart.class.resolve.cache.size</code> system property, least recently used entries are
+ * evicted first.
+ *
  * @author: Fedor.Korotkov
  */
 public class DartClassResolveCache {
-  private final ConcurrentWeakHashMap<DartClass, DartClassResolveResult> myMap = createWeakMap();
+  private static final int MAX_SIZE = Math.max(16, Integer.getInteger("dart.class.resolve.cache.size", 5000));
+
+  private static class ClassKey {
+    private final VirtualFile myFile;
+    private final String myName;
+
+    private ClassKey(@NotNull final VirtualFile file, @NotNull final String name) {
+      myFile = file;
+      myName = name;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ClassKey)) return false;
+      final ClassKey key = (ClassKey)o;
+      return myFile.equals(key.myFile) && myName.equals(key.myName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myFile.hashCode() + myName.hashCode();
+    }
+  }
+
+  private static class Entry {
+    private final SoftReference<DartClassResolveResult> myResult;
+    private final Set<VirtualFile> myDependencies = new THashSet<VirtualFile>();
+    private final Set<String> mySuperNames = new THashSet<String>();
+
+    private Entry(@NotNull final DartClassResolveResult result) {
+      myResult = new SoftReference<DartClassResolveResult>(result);
+    }
+  }
+
+  // all guarded by this
+  private final LinkedHashMap<ClassKey, Entry> myMap = new LinkedHashMap<ClassKey, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<ClassKey, Entry> eldest) {
+      if (size() <= MAX_SIZE) return false;
+
+      myEvictionCount++;
+      unregister(eldest.getKey(), eldest.getValue());
+      return true;
+    }
+  };
+  private final Map<VirtualFile, Set<ClassKey>> myDependentClasses = new THashMap<VirtualFile, Set<ClassKey>>();
+  private final Map<String, Set<ClassKey>> mySubclassesBySuperName = new THashMap<String, Set<ClassKey>>();
+
+  private long myHitCount;
+  private long myMissCount;
+  private long myEvictionCount;
+  private long myInvalidationCount;
 
   public static DartClassResolveCache getInstance(Project project) {
     ProgressIndicatorProvider.checkCanceled(); // We hope this method is being called often enough to cancel daemon processes smoothly
     return ServiceManager.getService(project, DartClassResolveCache.class);
   }
 
-  public DartClassResolveCache(@NotNull MessageBus messageBus) {
-    messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, new AnyPsiChangeListener() {
+  public DartClassResolveCache(@NotNull final Project project) {
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
       @Override
-      public void beforePsiChanged(boolean isPhysical) {
-        myMap.clear();
+      public void childAdded(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
       }
 
       @Override
-      public void afterPsiChanged(boolean isPhysical) {
+      public void childRemoved(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childReplaced(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childMoved(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void childrenChanged(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+
+      @Override
+      public void propertyChanged(@NotNull final PsiTreeChangeEvent event) {
+        psiChanged(event);
+      }
+    }, project);
+
+    project.getMessageBus().connect(project).subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootAdapter() {
+      @Override
+      public void rootsChanged(final ModuleRootEvent event) {
+        clear();
       }
     });
+
+    Disposer.register(project, new Disposable() {
+      @Override
+      public void dispose() {
+        clear();
+      }
+    });
+  }
+
+  private void psiChanged(@NotNull final PsiTreeChangeEvent event) {
+    // nothing to invalidate, don't walk the changed file
+    if (isEmpty()) return;
+
+    final PsiFile psiFile = event.getFile() != null
+                            ? event.getFile()
+                            : event.getChild() instanceof PsiFile ? (PsiFile)event.getChild() : null;
+    if (psiFile == null) {
+      // e.g. a directory has been moved or deleted
+      clear();
+      return;
+    }
+
+    final VirtualFile file = psiFile.getViewProvider().getVirtualFile();
+    final Set<String> classNames = new THashSet<String>();
+    if (psiFile.isValid()) {
+      final PsiElement parent = event.getParent();
+      final DartClass enclosingClass = parent == null ? null : PsiTreeUtil.getParentOfType(parent, DartClass.class, false);
+      if (enclosingClass != null) {
+        addClassName(classNames, enclosingClass);
+      }
+      else {
+        // only classes inside the changed subtree may have been added, removed or renamed
+        final PsiElement[] changedElements = {event.getChild(), event.getOldChild(), event.getNewChild()};
+        boolean hasChangedElements = false;
+        for (PsiElement element : changedElements) {
+          if (element != null && !(element instanceof PsiFile)) {
+            hasChangedElements = true;
+            addClassNames(classNames, element);
+          }
+        }
+        if (!hasChangedElements) {
+          addClassNames(classNames, parent != null ? parent : psiFile);
+        }
+      }
+    }
+
+    fileChanged(file, classNames);
   }
 
-  private static <K, V> ConcurrentWeakHashMap<K, V> createWeakMap() {
-    return new ConcurrentWeakHashMap<K, V>(7, 0.75f, Runtime.getRuntime().availableProcessors(),
-                                           ContainerUtil.<K>canonicalStrategy());
+  private static void addClassNames(@NotNull final Set<String> classNames, @NotNull final PsiElement element) {
+    if (element instanceof PsiFile) {
+      for (PsiElement root : DartResolveUtil.findDartRoots((PsiFile)element)) {
+        for (DartClass dartClass : DartResolveUtil.getClassDeclarations(root)) {
+          addClassName(classNames, dartClass);
+        }
+      }
+      return;
+    }
+
+    if (element instanceof DartClass) {
+      addClassName(classNames, (DartClass)element);
+    }
+    for (DartClass dartClass : PsiTreeUtil.findChildrenOfType(element, DartClass.class)) {
+      addClassName(classNames, dartClass);
+    }
+  }
+
+  private static void addClassName(@NotNull final Set<String> classNames, @NotNull final DartClass dartClass) {
+    final String className = dartClass.getName();
+    if (className != null) {
+      classNames.add(className);
+    }
+  }
+
+  private synchronized boolean isEmpty() {
+    return myMap.isEmpty();
+  }
+
+  private synchronized void fileChanged(@NotNull final VirtualFile file, @NotNull final Set<String> declaredClassNames) {
+    if (myMap.isEmpty()) return;
+
+    final Set<ClassKey> classesToRemove = new THashSet<ClassKey>();
+
+    final Set<ClassKey> dependentClasses = myDependentClasses.get(file);
+    if (dependentClasses != null) {
+      classesToRemove.addAll(dependentClasses);
+    }
+
+    for (String className : declaredClassNames) {
+      final Set<ClassKey> subclasses = mySubclassesBySuperName.get(className);
+      if (subclasses != null) {
+        classesToRemove.addAll(subclasses);
+      }
+    }
+
+    for (ClassKey key : classesToRemove) {
+      final Entry entry = myMap.remove(key);
+      if (entry != null) {
+        myInvalidationCount++;
+        unregister(key, entry);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    myInvalidationCount += myMap.size();
+    myMap.clear();
+    myDependentClasses.clear();
+    mySubclassesBySuperName.clear();
   }
 
   public void put(@NotNull DartClass dartClass, @NotNull DartClassResolveResult result) {
-    myMap.put(dartClass, result);
+    final ClassKey key = createKey(dartClass);
+    if (key == null) return;
+
+    final Set<String> superNames = new THashSet<String>();
+    final DartType superClass = dartClass.getSuperClass();
+    superNames.add(superClass != null ? getUnqualifiedName(superClass) : DartResolveUtil.OBJECT);
+    for (DartType dartType : DartResolveUtil.getImplementsAndMixinsList(dartClass)) {
+      if (dartType != null) {
+        superNames.add(getUnqualifiedName(dartType));
+      }
+    }
+
+    synchronized (this) {
+      final Entry oldEntry = myMap.remove(key);
+      if (oldEntry != null) {
+        unregister(key, oldEntry);
+      }
+
+      final Entry entry = new Entry(result);
+      entry.myDependencies.add(key.myFile);
+      entry.mySuperNames.addAll(superNames);
+      myMap.put(key, entry);
+      register(key, entry);
+    }
+  }
+
+  /**
+   * Makes the entry of <code>dartClass</code> depend also on the given resolved supertypes and everything they depend on.
+   */
+  public void addSupertypes(@NotNull DartClass dartClass, @NotNull Collection<DartClass> supertypes) {
+    final ClassKey key = createKey(dartClass);
+    if (key == null) return;
+
+    final Set<VirtualFile> dependencies = new THashSet<VirtualFile>();
+    final List<ClassKey> supertypeKeys = new ArrayList<ClassKey>();
+    for (DartClass supertype : supertypes) {
+      final VirtualFile file = supertype.isValid() ? supertype.getContainingFile().getViewProvider().getVirtualFile() : null;
+      if (file != null) {
+        dependencies.add(file);
+      }
+      final ClassKey supertypeKey = supertype.isValid() ? createKey(supertype) : null;
+      if (supertypeKey != null) {
+        supertypeKeys.add(supertypeKey);
+      }
+    }
+
+    synchronized (this) {
+      final Entry entry = myMap.get(key);
+      if (entry == null) return;
+
+      for (ClassKey supertypeKey : supertypeKeys) {
+        final Entry superEntry = myMap.get(supertypeKey);
+        if (superEntry != null) {
+          dependencies.addAll(superEntry.myDependencies);
+        }
+      }
+
+      for (VirtualFile file : dependencies) {
+        if (entry.myDependencies.add(file)) {
+          getOrCreate(myDependentClasses, file).add(key);
+        }
+      }
+    }
   }
 
   @Nullable
   public DartClassResolveResult get(DartClass dartClass) {
-    return myMap.get(dartClass);
+    final ClassKey key = createKey(dartClass);
+
+    synchronized (this) {
+      final Entry entry = key == null ? null : myMap.get(key);
+      final DartClassResolveResult result = entry == null ? null : entry.myResult.get();
+      // the file may have been reparsed since the result was computed
+      if (result != null && result.getDartClass() == dartClass && dartClass.isValid()) {
+        myHitCount++;
+        return result;
+      }
+
+      myMissCount++;
+      if (entry != null) {
+        myMap.remove(key);
+        unregister(key, entry);
+      }
+      return null;
+    }
+  }
+
+  @NotNull
+  public synchronized String getStatistics() {
+    final long requests = myHitCount + myMissCount;
+    return "entries: " + myMap.size() + " (max " + MAX_SIZE + ")" +
+           ", hits: " + myHitCount +
+           ", misses: " + myMissCount +
+           (requests == 0 ? "" : " (hit rate " + (100 * myHitCount / requests) + "%)") +
+           ", evictions: " + myEvictionCount +
+           ", invalidations: " + myInvalidationCount;
+  }
+
+  @Nullable
+  private static ClassKey createKey(@NotNull final DartClass dartClass) {
+    final PsiFile psiFile = dartClass.getContainingFile();
+    if (psiFile == null || !psiFile.isPhysical()) return null;
+
+    final String name = dartClass.getName();
+    return name == null ? null : new ClassKey(psiFile.getViewProvider().getVirtualFile(), name);
+  }
+
+  /**
+   * @return name of the type without import prefix, e.g. <code>B</code> for <code>p.B</code>
+   */
+  @NotNull
+  private static String getUnqualifiedName(@NotNull final DartType dartType) {
+    final String text = dartType.getReferenceExpression().getText();
+    return text.substring(text.lastIndexOf('.') + 1);
+  }
+
+  private void register(@NotNull final ClassKey key, @NotNull final Entry entry) {
+    for (VirtualFile file : entry.myDependencies) {
+      getOrCreate(myDependentClasses, file).add(key);
+    }
+    for (String superName : entry.mySuperNames) {
+      getOrCreate(mySubclassesBySuperName, superName).add(key);
+    }
+  }
+
+  private void unregister(@NotNull final ClassKey key, @NotNull final Entry entry) {
+    for (VirtualFile file : entry.myDependencies) {
+      removeFrom(myDependentClasses, file, key);
+    }
+    for (String superName : entry.mySuperNames) {
+      removeFrom(mySubclassesBySuperName, superName, key);
+    }
+  }
+
+  @NotNull
+  private static <K> Set<ClassKey> getOrCreate(@NotNull final Map<K, Set<ClassKey>> map, @NotNull final K key) {
+    Set<ClassKey> classes = map.get(key);
+    if (classes == null) {
+      classes = new THashSet<ClassKey>();
+      map.put(key, classes);
+    }
+    return classes;
+  }
+
+  private static <K> void removeFrom(@NotNull final Map<K, Set<ClassKey>> map, @NotNull final K key, @NotNull final ClassKey classKey) {
+    final Set<ClassKey> classes = map.get(key);
+    if (classes != null && classes.remove(classKey) && classes.isEmpty()) {
+      map.remove(key);
+    }
   }
 }
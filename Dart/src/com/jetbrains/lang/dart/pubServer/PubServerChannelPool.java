@@ -0,0 +1,318 @@
+package com.jetbrains.lang.dart.pubServer;
+
+import com.intellij.openapi.diagnostic.Logger;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.io.NettyUtil;
+import org.jetbrains.io.SimpleChannelInboundHandlerAdapter;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connections to 'pub serve' processes, pooled per server address.
+ * <p/>
+ * At most <code>maxConnections</code> connections are opened to one server, further requests wait in a queue. A connection with a
+ * request in flight gets more requests (HTTP/1.1 pipelining) only if <code>pipeliningDepth</code> is greater than 1 and no more
+ * connections can be opened. Responses are matched to requests in the order the requests were sent; a connection returns to the pool
+ * when the last part of the response has been received.
+ * <p/>
+ * The channels must have {@link #getResponseHandler()} in their pipeline after HTTP client codec.
+ */
+final class PubServerChannelPool {
+  private static final Logger LOG = Logger.getInstance(PubServerChannelPool.class.getName());
+
+  interface ResponseConsumer {
+    /**
+     * Called for each part of the response, the last one is {@link LastHttpContent}. The consumer is responsible for releasing the message.
+     */
+    void consume(@NotNull HttpObject message);
+
+    /**
+     * Called instead of or in the middle of {@link #consume(HttpObject)} calls if connection could not be opened or has been closed.
+     */
+    void failed();
+  }
+
+  private static class PendingRequest {
+    private final FullHttpRequest myRequest;
+    private final ResponseConsumer myConsumer;
+
+    private PendingRequest(@NotNull final FullHttpRequest request, @NotNull final ResponseConsumer consumer) {
+      myRequest = request;
+      myConsumer = consumer;
+    }
+  }
+
+  private static class ServerPool {
+    private final InetSocketAddress myAddress;
+    private final List<Channel> myChannels = new ArrayList<Channel>();
+    private int myConnectingCount;
+    private final Queue<PendingRequest> myWaitingRequests = new ArrayDeque<PendingRequest>();
+
+    private ServerPool(@NotNull final InetSocketAddress address) {
+      myAddress = address;
+    }
+  }
+
+  private final Bootstrap myBootstrap;
+  private final int myMaxConnections;
+  private final int myPipeliningDepth;
+  private final ChannelHandler myResponseHandler = new ResponseHandler();
+
+  // all guarded by this
+  private final Map<InetSocketAddress, ServerPool> myServerPools = new HashMap<InetSocketAddress, ServerPool>();
+  private final Map<Channel, ServerPool> myChannelToServerPool = new HashMap<Channel, ServerPool>();
+  private final Map<Channel, Queue<ResponseConsumer>> myInFlightRequests = new HashMap<Channel, Queue<ResponseConsumer>>();
+  private boolean myClosed;
+
+  PubServerChannelPool(@NotNull final Bootstrap bootstrap, final int maxConnections, final int pipeliningDepth) {
+    myBootstrap = bootstrap;
+    myMaxConnections = Math.max(1, maxConnections);
+    myPipeliningDepth = Math.max(1, pipeliningDepth);
+  }
+
+  @NotNull
+  ChannelHandler getResponseHandler() {
+    return myResponseHandler;
+  }
+
+  /**
+   * The request is released when it is written to the server or when sending fails.
+   */
+  void send(@NotNull final InetSocketAddress address, @NotNull final FullHttpRequest request, @NotNull final ResponseConsumer consumer) {
+    ServerPool poolToConnect = null;
+
+    synchronized (this) {
+      if (myClosed) {
+        ReferenceCountUtil.release(request);
+        consumer.failed();
+        return;
+      }
+
+      ServerPool pool = myServerPools.get(address);
+      if (pool == null) {
+        pool = new ServerPool(address);
+        myServerPools.put(address, pool);
+      }
+
+      final Channel channel = findChannel(pool, !canConnect(pool));
+      if (channel != null) {
+        write(channel, request, consumer);
+      }
+      else {
+        pool.myWaitingRequests.add(new PendingRequest(request, consumer));
+        if (canConnect(pool)) {
+          pool.myConnectingCount++;
+          poolToConnect = pool;
+        }
+      }
+    }
+
+    if (poolToConnect != null) {
+      connect(poolToConnect, 1);
+    }
+  }
+
+  void close() {
+    final List<Channel> channels = new ArrayList<Channel>();
+    final List<PendingRequest> waitingRequests = new ArrayList<PendingRequest>();
+
+    synchronized (this) {
+      myClosed = true;
+      for (ServerPool pool : myServerPools.values()) {
+        channels.addAll(pool.myChannels);
+        waitingRequests.addAll(pool.myWaitingRequests);
+        pool.myWaitingRequests.clear();
+      }
+      myServerPools.clear();
+    }
+
+    failRequests(waitingRequests);
+    // in flight requests fail in the close listener
+    for (Channel channel : channels) {
+      channel.close();
+    }
+  }
+
+  synchronized int getOpenConnectionCount(@NotNull final InetSocketAddress address) {
+    final ServerPool pool = myServerPools.get(address);
+    return pool == null ? 0 : pool.myChannels.size();
+  }
+
+  private boolean canConnect(@NotNull final ServerPool pool) {
+    return pool.myChannels.size() + pool.myConnectingCount < myMaxConnections;
+  }
+
+  /**
+   * @return idle channel, or the least loaded channel that may get one more pipelined request if <code>allowPipelining</code>
+   */
+  @Nullable
+  private Channel findChannel(@NotNull final ServerPool pool, final boolean allowPipelining) {
+    Channel best = null;
+    int bestInFlight = Integer.MAX_VALUE;
+    for (Channel channel : pool.myChannels) {
+      final int inFlight = myInFlightRequests.get(channel).size();
+      if (inFlight < bestInFlight) {
+        best = channel;
+        bestInFlight = inFlight;
+      }
+    }
+
+    if (best == null) return null;
+    if (bestInFlight == 0) return best;
+    return allowPipelining && bestInFlight < myPipeliningDepth ? best : null;
+  }
+
+  // must be called under lock so that requests are written in the same order as consumers are queued
+  private void write(@NotNull final Channel channel, @NotNull final FullHttpRequest request, @NotNull final ResponseConsumer consumer) {
+    myInFlightRequests.get(channel).add(consumer);
+    channel.writeAndFlush(request);
+  }
+
+  private void dispatchWaitingRequests(@NotNull final ServerPool pool) {
+    while (!pool.myWaitingRequests.isEmpty()) {
+      final Channel channel = findChannel(pool, !canConnect(pool));
+      if (channel == null) break;
+
+      final PendingRequest pendingRequest = pool.myWaitingRequests.poll();
+      write(channel, pendingRequest.myRequest, pendingRequest.myConsumer);
+    }
+  }
+
+  private void connect(@NotNull final ServerPool pool, final int attempt) {
+    myBootstrap.connect(pool.myAddress).addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) throws Exception {
+        if (future.isSuccess()) {
+          connected(pool, future.channel());
+        }
+        else if (attempt >= NettyUtil.DEFAULT_CONNECT_ATTEMPT_COUNT) {
+          connectionFailed(pool);
+        }
+        else {
+          // do not block event loop thread while waiting for pub serve to start
+          myBootstrap.group().schedule(new Runnable() {
+            @Override
+            public void run() {
+              connect(pool, attempt + 1);
+            }
+          }, (attempt + 1) * NettyUtil.MIN_START_TIME, TimeUnit.MILLISECONDS);
+        }
+      }
+    });
+  }
+
+  private void connected(@NotNull final ServerPool pool, @NotNull final Channel channel) {
+    final boolean closed;
+    synchronized (this) {
+      pool.myConnectingCount--;
+      closed = myClosed;
+      if (!closed) {
+        pool.myChannels.add(channel);
+        myChannelToServerPool.put(channel, pool);
+        myInFlightRequests.put(channel, new ArrayDeque<ResponseConsumer>());
+        dispatchWaitingRequests(pool);
+      }
+    }
+
+    if (closed) {
+      channel.close();
+      return;
+    }
+
+    channel.closeFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) throws Exception {
+        channelClosed(future.channel());
+      }
+    });
+  }
+
+  private void connectionFailed(@NotNull final ServerPool pool) {
+    final List<PendingRequest> failedRequests = new ArrayList<PendingRequest>();
+    synchronized (this) {
+      pool.myConnectingCount--;
+      if (pool.myChannels.isEmpty() && pool.myConnectingCount == 0) {
+        failedRequests.addAll(pool.myWaitingRequests);
+        pool.myWaitingRequests.clear();
+      }
+    }
+    failRequests(failedRequests);
+  }
+
+  private void channelClosed(@NotNull final Channel channel) {
+    final Queue<ResponseConsumer> inFlight;
+    ServerPool poolToConnect = null;
+
+    synchronized (this) {
+      inFlight = myInFlightRequests.remove(channel);
+      final ServerPool pool = myChannelToServerPool.remove(channel);
+      if (pool != null) {
+        pool.myChannels.remove(channel);
+        if (!myClosed && !pool.myWaitingRequests.isEmpty() && canConnect(pool)) {
+          pool.myConnectingCount++;
+          poolToConnect = pool;
+        }
+      }
+    }
+
+    if (inFlight != null) {
+      for (ResponseConsumer consumer : inFlight) {
+        consumer.failed();
+      }
+    }
+    if (poolToConnect != null) {
+      connect(poolToConnect, 1);
+    }
+  }
+
+  private static void failRequests(@NotNull final List<PendingRequest> requests) {
+    for (PendingRequest request : requests) {
+      ReferenceCountUtil.release(request.myRequest);
+      request.myConsumer.failed();
+    }
+  }
+
+  @ChannelHandler.Sharable
+  private class ResponseHandler extends SimpleChannelInboundHandlerAdapter<HttpObject> {
+    private ResponseHandler() {
+      super(false);
+    }
+
+    @Override
+    protected void messageReceived(@NotNull final ChannelHandlerContext context, @NotNull final HttpObject message) throws Exception {
+      final Channel channel = context.channel();
+      final ResponseConsumer consumer;
+      synchronized (PubServerChannelPool.this) {
+        final Queue<ResponseConsumer> inFlight = myInFlightRequests.get(channel);
+        consumer = inFlight == null ? null : inFlight.peek();
+      }
+
+      if (consumer == null) {
+        LOG.debug("Unexpected response from pub serve");
+        ReferenceCountUtil.release(message);
+        return;
+      }
+
+      consumer.consume(message);
+
+      if (message instanceof LastHttpContent) {
+        synchronized (PubServerChannelPool.this) {
+          final Queue<ResponseConsumer> inFlight = myInFlightRequests.get(channel);
+          if (inFlight != null) {
+            inFlight.poll();
+            dispatchWaitingRequests(myChannelToServerPool.get(channel));
+          }
+        }
+      }
+    }
+  }
+}
@@ -55,6 +55,13 @@ public class PubServerManager implements Disposable {
                                   contentsChanged(event);
                                 }
 
+                                @Override
+                                public void fileCreated(@NotNull final VirtualFileEvent event) {
+                                  if (event.getFile().isDirectory()) {
+                                    packagesChanged();
+                                  }
+                                }
+
                                 @Override
                                 public void fileDeleted(@NotNull final VirtualFileEvent event) {
                                   contentsChanged(event);
@@ -63,16 +70,38 @@ public class PubServerManager implements Disposable {
                                 @Override
                                 public void contentsChanged(@NotNull final VirtualFileEvent event) {
                                   final VirtualFile file = event.getFile();
-                                  if (PubspecYamlUtil.PUBSPEC_YAML.equals(file.getName()) &&
-                                      file.getFileSystem() == LocalFileSystem.getInstance()) {
+                                  if (file.getFileSystem() != LocalFileSystem.getInstance()) return;
+
+                                  if (PubspecYamlUtil.PUBSPEC_YAML.equals(file.getName())) {
                                     pubspecYamlChanged(file);
                                   }
+                                  else {
+                                    // the file may belong to a package edited in the IDE
+                                    for (PubServerService service : dartProjectToPubService.asMap().values()) {
+                                      if (service.isPackageAssetSource(file)) {
+                                        service.clearResponseCache();
+                                      }
+                                    }
+
+                                    // deleted, moved or renamed folder may be a package symlink or the packages folder itself
+                                    if (file.isDirectory()) {
+                                      packagesChanged();
+                                    }
+                                  }
                                 }
                               },
                               project);
   }
 
+  private void packagesChanged() {
+    for (PubServerService service : dartProjectToPubService.asMap().values()) {
+      service.packagesChanged();
+    }
+  }
+
   private void pubspecYamlChanged(@NotNull final VirtualFile file) {
+    packagesChanged();
+
     final VirtualFile mainDir = file.getParent();
     if (mainDir == null) return;
 
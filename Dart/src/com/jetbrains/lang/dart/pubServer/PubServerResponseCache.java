@@ -0,0 +1,171 @@
+package com.jetbrains.lang.dart.pubServer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * In-memory cache of 'pub serve' responses for package assets (<code>packages/*</code>), that don't change while pub serve is running
+ * unless a package is edited. Cached responses are served without a round trip to pub serve; conditional requests with a matching
+ * <code>ETag</code> or <code>Last-Modified</code> get <code>304 Not Modified</code>.
+ * <p/>
+ * Only complete <code>200 OK</code> responses to <code>GET</code> requests are cached. Sizes of a single response and of the whole
+ * cache are limited, least recently used responses are evicted first.
+ */
+final class PubServerResponseCache {
+  private static final int MAX_RESPONSE_SIZE = 2 * 1024 * 1024;
+  private static final long MAX_TOTAL_SIZE = Long.getLong("dart.pub.serve.cache.size", 32 * 1024 * 1024);
+
+  private static class CachedResponse {
+    private final HttpResponseStatus myStatus;
+    private final HttpHeaders myHeaders;
+    private final byte[] myContent;
+
+    private CachedResponse(@NotNull final HttpResponseStatus status, @NotNull final HttpHeaders headers, @NotNull final byte[] content) {
+      myStatus = status;
+      myHeaders = headers;
+      myContent = content;
+    }
+  }
+
+  /**
+   * Collects parts of a streamed response from pub serve, see {@link #startCollecting(InetSocketAddress, HttpRequest, String)}.
+   */
+  final class Collector {
+    private final String myKey;
+    private final int myClearCountAtStart;
+    private HttpResponse myResponse;
+    private final ByteArrayOutputStream myContent = new ByteArrayOutputStream();
+    private boolean myAbandoned;
+
+    private Collector(@NotNull final String key, final int clearCount) {
+      myKey = key;
+      myClearCountAtStart = clearCount;
+    }
+
+    /**
+     * Must be called before the message is passed on, because passing on may release it.
+     */
+    void add(@NotNull final HttpObject message) {
+      if (myAbandoned) return;
+
+      if (message instanceof HttpResponse) {
+        myResponse = (HttpResponse)message;
+        if (!HttpResponseStatus.OK.equals(myResponse.getStatus())) {
+          myAbandoned = true;
+          return;
+        }
+      }
+
+      if (message instanceof HttpContent) {
+        final ByteBuf content = ((HttpContent)message).content();
+        if (myContent.size() + content.readableBytes() > MAX_RESPONSE_SIZE) {
+          myAbandoned = true;
+          return;
+        }
+
+        final byte[] bytes = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), bytes);
+        myContent.write(bytes, 0, bytes.length);
+      }
+
+      if (message instanceof LastHttpContent && myResponse != null) {
+        final HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set(myResponse.headers());
+        headers.remove(HttpHeaders.Names.TRANSFER_ENCODING);
+        headers.remove(HttpHeaders.Names.CONNECTION);
+        put(myKey, new CachedResponse(myResponse.getStatus(), headers, myContent.toByteArray()), myClearCountAtStart);
+      }
+    }
+  }
+
+  // keys are server address and path, see getKey(); guarded by this
+  private final LinkedHashMap<String, CachedResponse> myResponses = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+  private long myTotalSize;
+  private int myClearCount;
+
+  static boolean isCacheable(@NotNull final HttpRequest request, @NotNull final String pathForPubServer) {
+    return HttpMethod.GET.equals(request.getMethod()) &&
+           (pathForPubServer.startsWith("/packages/") || pathForPubServer.contains("/packages/"));
+  }
+
+  /**
+   * The same path is a different asset for different served directories, which are served on different addresses.
+   */
+  @NotNull
+  private static String getKey(@NotNull final InetSocketAddress serverAddress, @NotNull final String pathForPubServer) {
+    return serverAddress.getAddress().getHostAddress() + ':' + serverAddress.getPort() + pathForPubServer;
+  }
+
+  /**
+   * @return response to send to the client instead of passing the request to pub serve, or <code>null</code> if not cached
+   */
+  @Nullable
+  synchronized FullHttpResponse getResponse(@NotNull final InetSocketAddress serverAddress,
+                                            @NotNull final HttpRequest clientRequest,
+                                            @NotNull final String pathForPubServer) {
+    if (!isCacheable(clientRequest, pathForPubServer)) return null;
+
+    final CachedResponse cached = myResponses.get(getKey(serverAddress, pathForPubServer));
+    if (cached == null) return null;
+
+    final String eTag = cached.myHeaders.get(HttpHeaders.Names.ETAG);
+    final String lastModified = cached.myHeaders.get(HttpHeaders.Names.LAST_MODIFIED);
+    final String ifNoneMatch = clientRequest.headers().get(HttpHeaders.Names.IF_NONE_MATCH);
+    final String ifModifiedSince = clientRequest.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
+
+    final FullHttpResponse response;
+    if ((eTag != null && eTag.equals(ifNoneMatch)) || (ifNoneMatch == null && lastModified != null && lastModified.equals(ifModifiedSince))) {
+      response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+      if (eTag != null) response.headers().set(HttpHeaders.Names.ETAG, eTag);
+      if (lastModified != null) response.headers().set(HttpHeaders.Names.LAST_MODIFIED, lastModified);
+      HttpHeaders.setContentLength(response, 0);
+    }
+    else {
+      response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, cached.myStatus, Unpooled.wrappedBuffer(cached.myContent));
+      response.headers().set(cached.myHeaders);
+      HttpHeaders.setContentLength(response, cached.myContent.length);
+    }
+
+    HttpHeaders.setKeepAlive(response, HttpHeaders.isKeepAlive(clientRequest));
+    return response;
+  }
+
+  @Nullable
+  synchronized Collector startCollecting(@NotNull final InetSocketAddress serverAddress,
+                                         @NotNull final HttpRequest request,
+                                         @NotNull final String pathForPubServer) {
+    return isCacheable(request, pathForPubServer) ? new Collector(getKey(serverAddress, pathForPubServer), myClearCount) : null;
+  }
+
+  synchronized void clear() {
+    myResponses.clear();
+    myTotalSize = 0;
+    myClearCount++;
+  }
+
+  private synchronized void put(@NotNull final String key, @NotNull final CachedResponse response, final int clearCount) {
+    // the response may be obsolete if the cache has been cleared while it was being received
+    if (clearCount != myClearCount) return;
+
+    final CachedResponse old = myResponses.remove(key);
+    if (old != null) {
+      myTotalSize -= old.myContent.length;
+    }
+    myTotalSize += response.myContent.length;
+    myResponses.put(key, response);
+
+    final Iterator<CachedResponse> iterator = myResponses.values().iterator();
+    while (myTotalSize > MAX_TOTAL_SIZE && iterator.hasNext()) {
+      myTotalSize -= iterator.next().myContent.length;
+      iterator.remove();
+    }
+  }
+}
@@ -9,19 +9,19 @@ import com.intellij.openapi.actionSystem.DefaultActionGroup;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.AsyncResult;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Consumer;
-import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.containers.MultiMap;
 import com.intellij.util.net.NetUtils;
 import com.jetbrains.lang.dart.sdk.DartSdk;
 import com.jetbrains.lang.dart.sdk.DartSdkUtil;
+import gnu.trove.THashSet;
 import icons.DartIcons;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
-import io.netty.util.ReferenceCounted;
+import io.netty.util.ReferenceCountUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.builtInWebServer.ConsoleManager;
@@ -30,43 +30,30 @@ import org.jetbrains.io.*;
 
 import javax.swing.*;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
 final class PubServerService extends NetService {
   private static final Logger LOG = Logger.getInstance(PubServerService.class.getName());
 
-  private volatile VirtualFile firstServedDir;
+  // pub serve (dart:io HttpServer) handles pipelined requests one by one, so pipelining is off by default
+  private static final int MAX_CONNECTIONS = Integer.getInteger("dart.pub.serve.max.connections", 8);
+  private static final int PIPELINING_DEPTH = Integer.getInteger("dart.pub.serve.pipelining.depth", 1);
 
-  private final Bootstrap bootstrap = NettyUtil.nioClientBootstrap();
+  private volatile VirtualFile firstServedDir;
 
-  private final ConcurrentMap<Channel, ChannelHandlerContext> serverToClientContext = ContainerUtil.newConcurrentMap();
-  // client context could point to several server channels (because client connected to IDEA server, not to proxied server)
-  private final MultiMap<ChannelHandlerContext, Channel> clientContextToServerChannels = MultiMap.createConcurrentSet();
+  // folders that package assets come from, null if not known since the last change of the packages folder
+  private volatile Set<VirtualFile> packageAssetRoots;
+  private volatile int packagesChangeCount;
 
-  private final ConcurrentHashSet<Channel> freeServerChannels = new ConcurrentHashSet<Channel>();
-  private final ChannelInboundHandlerAdapter clientChannelStateHandler = new ClientChannelStateHandler();
+  private final Bootstrap bootstrap = NettyUtil.nioClientBootstrap();
+  private volatile PubServerChannelPool channelPool = new PubServerChannelPool(bootstrap, MAX_CONNECTIONS, PIPELINING_DEPTH);
+  private final PubServerResponseCache responseCache = new PubServerResponseCache();
   private final ChannelRegistrar serverChannelRegistrar = new ChannelRegistrar();
 
   private final ConcurrentMap<VirtualFile, InetSocketAddress> servedDirToSocketAddress = ContainerUtil.newConcurrentMap();
 
-  private final ChannelFutureListener serverChannelCloseListener = new ChannelFutureListener() {
-    @Override
-    public void operationComplete(ChannelFuture future) throws Exception {
-      Channel channel = future.channel();
-      freeServerChannels.remove(channel);
-
-      ChannelHandlerContext clientContext = serverToClientContext.remove(channel);
-      if (clientContext != null) {
-        clientContextToServerChannels.remove(clientContext, channel);
-        sendBadGateway(clientContext.channel());
-      }
-    }
-  };
-
   public PubServerService(@NotNull Project project, @NotNull ConsoleManager consoleManager) {
     super(project, consoleManager);
 
@@ -74,7 +61,8 @@ final class PubServerService extends NetService {
       @Override
       protected void initChannel(Channel channel) throws Exception {
         channel.pipeline().addLast(serverChannelRegistrar, new HttpClientCodec());
-        channel.pipeline().addLast(new PubServeChannelHandler(), ChannelExceptionHandler.getInstance());
+        // channels opened by a closed pool are closed right away, so current pool handler is fine for them too
+        channel.pipeline().addLast(channelPool.getResponseHandler(), ChannelExceptionHandler.getInstance());
       }
     });
   }
@@ -171,166 +159,140 @@ final class PubServerService extends NetService {
     }
   }
 
+  /**
+   * Cached package assets become obsolete if a package is edited.
+   */
+  void clearResponseCache() {
+    responseCache.clear();
+  }
+
+  /**
+   * @return <code>true</code> if the file or folder is (or contains) a source of package assets served by this pub serve: it is under
+   *         the <code>packages</code> folder of the served Dart project or under a folder that its symlinks point to
+   */
+  boolean isPackageAssetSource(@NotNull final VirtualFile file) {
+    for (VirtualFile root : getPackageAssetRoots()) {
+      if (VfsUtilCore.isAncestor(root, file, false) || VfsUtilCore.isAncestor(file, root, false)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Called when the <code>packages</code> folder or its symlinks may have changed, package asset roots are collected again then.
+   */
+  void packagesChanged() {
+    packagesChangeCount++;
+    packageAssetRoots = null;
+  }
+
+  @NotNull
+  private Set<VirtualFile> getPackageAssetRoots() {
+    Set<VirtualFile> roots = packageAssetRoots;
+    if (roots != null) return roots;
+
+    final VirtualFile servedDir = firstServedDir;
+    if (servedDir == null) return Collections.emptySet();
+
+    final int changeCount = packagesChangeCount;
+    roots = new THashSet<VirtualFile>();
+
+    final VirtualFile projectDir = servedDir.getParent();
+    final VirtualFile packagesDir = projectDir == null || !projectDir.isValid() ? null : projectDir.findChild("packages");
+    if (packagesDir != null && packagesDir.isDirectory()) {
+      roots.add(packagesDir);
+
+      for (VirtualFile packageDir : packagesDir.getChildren()) {
+        final VirtualFile packageRoot = packageDir.getCanonicalFile();
+        if (packageRoot != null) {
+          roots.add(packageRoot);
+        }
+      }
+    }
+
+    // roots collected concurrently with a change may be obsolete already
+    if (changeCount == packagesChangeCount) {
+      packageAssetRoots = roots;
+    }
+    return roots;
+  }
+
   @Override
   protected void closeProcessConnections() {
     servedDirToSocketAddress.clear();
+    responseCache.clear();
 
-    ChannelHandlerContext[] clientContexts;
+    final PubServerChannelPool oldChannelPool = channelPool;
+    channelPool = new PubServerChannelPool(bootstrap, MAX_CONNECTIONS, PIPELINING_DEPTH);
     try {
-      Collection<ChannelHandlerContext> clients = serverToClientContext.values();
-      clientContexts = clients.toArray(new ChannelHandlerContext[clients.size()]);
-      freeServerChannels.clear();
-      serverToClientContext.clear();
+      // requests in flight fail with 'Bad Gateway'
+      oldChannelPool.close();
     }
     finally {
       serverChannelRegistrar.close();
     }
-
-    for (ChannelHandlerContext context : clientContexts) {
-      try {
-        sendBadGateway(context.channel());
-      }
-      catch (Exception e) {
-        LOG.error(e);
-      }
-    }
-  }
-
-  private static void connect(@NotNull final Bootstrap bootstrap,
-                              @NotNull final SocketAddress remoteAddress,
-                              final @NotNull Consumer<Channel> channelConsumer) {
-    final AtomicInteger attemptCounter = new AtomicInteger(1);
-    bootstrap.connect(remoteAddress).addListener(new ChannelFutureListener() {
-      @Override
-      public void operationComplete(ChannelFuture future) throws Exception {
-        if (future.isSuccess()) {
-          channelConsumer.consume(future.channel());
-        }
-        else {
-          int attemptCount = attemptCounter.incrementAndGet();
-          if (attemptCount > NettyUtil.DEFAULT_CONNECT_ATTEMPT_COUNT) {
-            channelConsumer.consume(null);
-          }
-          else {
-            Thread.sleep(attemptCount * NettyUtil.MIN_START_TIME);
-            bootstrap.connect(remoteAddress).addListener(this);
-          }
-        }
-      }
-    });
   }
 
   void sendToServer(@NotNull final VirtualFile servedDir,
                     @NotNull final ChannelHandlerContext clientContext,
                     @NotNull final FullHttpRequest clientRequest,
                     @NotNull final String pathToPubServe) {
-    InetSocketAddress serverAddress = servedDirToSocketAddress.get(servedDir);
+    final InetSocketAddress serverAddress = servedDirToSocketAddress.get(servedDir);
     if (serverAddress == null) {
       serveDirAndSendRequest(clientContext, clientRequest, servedDir, pathToPubServe);
+      return;
     }
 
-    Channel serverChannel = findActiveServerChannel(clientContext, serverAddress);
-    if (serverChannel == null) {
-      serverAddress = servedDirToSocketAddress.get(servedDir);
-      if (serverAddress == null) {
-        serveDirAndSendRequest(clientContext, clientRequest, servedDir, pathToPubServe);
-      }
-
-      serverChannel = findFreeServerChannel(serverAddress);
-      if (serverChannel != null) {
-        clientContextToServerChannels.putValue(clientContext, serverChannel);
-      }
-    }
-
-    if (serverChannel == null) {
-      connect(bootstrap, serverAddress, new Consumer<Channel>() {
-        @Override
-        public void consume(final Channel serverChannel) {
-          if (serverChannel == null) {
-            sendBadGateway(clientContext.channel());
-          }
-          else {
-            serverChannel.closeFuture().addListener(serverChannelCloseListener);
-            ChannelHandlerContext oldClientContext = serverToClientContext.put(serverChannel, clientContext);
-            LOG.assertTrue(oldClientContext == null);
-            clientContextToServerChannels.putValue(clientContext, serverChannel);
-
-            clientContext.channel().pipeline().addLast(clientChannelStateHandler);
-            sendToServer(clientRequest, pathToPubServe, serverChannel);
-          }
-        }
-      });
-    }
-    else {
-      sendToServer(clientRequest, pathToPubServe, serverChannel);
-    }
-  }
-
-  @Nullable
-  private Channel findActiveServerChannel(@NotNull ChannelHandlerContext clientContext, @NotNull InetSocketAddress serverAddress) {
-    for (Channel serverChannel : clientContextToServerChannels.get(clientContext)) {
-      if (serverChannel.remoteAddress().equals(serverAddress)) {
-        return serverChannel;
-      }
-    }
-    return null;
-  }
-
-  @Nullable
-  private Channel findFreeServerChannel(@NotNull InetSocketAddress serverAddress) {
-    Iterator<Channel> iterator = freeServerChannels.iterator();
-    if (iterator.hasNext()) {
-      Channel serverChannel = iterator.next();
-      if (serverAddress.getPort() == ((InetSocketAddress)serverChannel.remoteAddress()).getPort()) {
-        iterator.remove();
-        return serverChannel;
+    final FullHttpResponse cachedResponse = responseCache.getResponse(serverAddress, clientRequest, pathToPubServe);
+    if (cachedResponse != null) {
+      clientRequest.release();
+      final ChannelFuture future = clientContext.channel().writeAndFlush(cachedResponse);
+      if (!HttpHeaders.isKeepAlive(cachedResponse)) {
+        future.addListener(ChannelFutureListener.CLOSE);
       }
+      return;
     }
-    return null;
-  }
 
-  private static void sendToServer(@NotNull FullHttpRequest clientRequest, @NotNull String pathToPubServe, @NotNull Channel serverChannel) {
     // duplicate - content will be shared (opposite to copy), so, we use duplicate. see ByteBuf javadoc.
-    FullHttpRequest request = clientRequest.duplicate().setUri(pathToPubServe);
+    final FullHttpRequest request = clientRequest.duplicate().setUri(pathToPubServe);
     // regardless of client, we always keep connection to server
     HttpHeaders.setKeepAlive(request, true);
-    InetSocketAddress serverAddress = (InetSocketAddress)serverChannel.remoteAddress();
     HttpHeaders.setHost(request, serverAddress.getAddress().getHostAddress() + ':' + serverAddress.getPort());
-    serverChannel.writeAndFlush(request);
-  }
 
-  @ChannelHandler.Sharable
-  private class PubServeChannelHandler extends SimpleChannelInboundHandlerAdapter<HttpObject> {
-    public PubServeChannelHandler() {
-      super(false);
+    final PubServerResponseCache.Collector collector = responseCache.startCollecting(serverAddress, request, pathToPubServe);
+    if (collector != null) {
+      // get the full response to cache it, the client gets it instead of 'Not Modified' this time only
+      request.headers().remove(HttpHeaders.Names.IF_NONE_MATCH);
+      request.headers().remove(HttpHeaders.Names.IF_MODIFIED_SINCE);
     }
 
-    @Override
-    protected void messageReceived(@NotNull ChannelHandlerContext context, @NotNull HttpObject message) throws Exception {
-      ChannelHandlerContext clientContext = serverToClientContext.get(context.channel());
-      if (clientContext != null && clientContext.channel().isActive()) {
-        clientContext.channel().writeAndFlush(message);
-      }
-      else if (message instanceof ReferenceCounted) {
-        ((ReferenceCounted)message).release();
+    channelPool.send(serverAddress, request, new PubServerChannelPool.ResponseConsumer() {
+      private boolean myResponseStarted;
+
+      @Override
+      public void consume(@NotNull final HttpObject message) {
+        myResponseStarted = true;
+        if (collector != null) {
+          collector.add(message);
+        }
+
+        if (clientContext.channel().isActive()) {
+          clientContext.channel().writeAndFlush(message);
+        }
+        else {
+          ReferenceCountUtil.release(message);
+        }
       }
-    }
-  }
 
-  @ChannelHandler.Sharable
-  private class ClientChannelStateHandler extends ChannelInboundHandlerAdapter {
-    @Override
-    public void channelInactive(ChannelHandlerContext context) throws Exception {
-      super.channelInactive(context);
-
-      Collection<Channel> serverChannels = clientContextToServerChannels.remove(context);
-      if (!ContainerUtil.isEmpty(serverChannels)) {
-        for (Channel serverChannel : serverChannels) {
-          if (serverToClientContext.remove(serverChannel, context)) {
-            freeServerChannels.add(serverChannel);
-          }
+      @Override
+      public void failed() {
+        if (myResponseStarted) {
+          // response is incomplete, client must not wait for the rest of it
+          clientContext.channel().close();
+        }
+        else {
+          sendBadGateway(clientContext.channel());
         }
       }
-    }
+    });
   }
-}
\ No newline at end of file
+}
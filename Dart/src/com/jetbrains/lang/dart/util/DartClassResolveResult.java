@@ -2,10 +2,12 @@ package com.jetbrains.lang.dart.util;
 
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.containers.ContainerUtil;
 import com.jetbrains.lang.dart.psi.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -43,23 +45,28 @@ public class DartClassResolveResult implements Cloneable {
       return new DartClassResolveResult(null);
     }
 
-    DartClassResolveResult resolveResult = DartClassResolveCache.getInstance(dartClass.getProject()).get(dartClass);
+    final DartClassResolveCache cache = DartClassResolveCache.getInstance(dartClass.getProject());
+    DartClassResolveResult resolveResult = cache.get(dartClass);
 
     if (resolveResult == null) {
       resolveResult = new DartClassResolveResult(dartClass);
-      DartClassResolveCache.getInstance(dartClass.getProject()).put(dartClass, resolveResult);
+      cache.put(dartClass, resolveResult);
 
+      final List<DartClass> supertypes = new ArrayList<DartClass>();
       final DartType superClass = dartClass.getSuperClass();
       if (superClass != null) {
         final DartClassResolveResult result = DartResolveUtil.resolveClassByType(superClass);
         result.specializeByParameters(superClass.getTypeArguments());
         resolveResult.merge(result.getSpecialization());
+        ContainerUtil.addIfNotNull(supertypes, result.getDartClass());
       }
       for (DartType dartType : DartResolveUtil.getImplementsAndMixinsList(dartClass)) {
         final DartClassResolveResult result = DartResolveUtil.resolveClassByType(dartType);
         result.specializeByParameters(dartType.getTypeArguments());
         resolveResult.merge(result.getSpecialization());
+        ContainerUtil.addIfNotNull(supertypes, result.getDartClass());
       }
+      cache.addSupertypes(dartClass, supertypes);
     }
 
     final DartClassResolveResult clone = resolveResult.clone();
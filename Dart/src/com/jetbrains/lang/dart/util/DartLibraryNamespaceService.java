@@ -0,0 +1,344 @@
+package com.jetbrains.lang.dart.util;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentAdapter;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Trinity;
+import com.intellij.openapi.vfs.*;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.ResolveState;
+import com.intellij.util.containers.SoftValueHashMap;
+import com.jetbrains.lang.dart.ide.index.DartImportAndExportIndex;
+import com.jetbrains.lang.dart.ide.index.DartImportOrExportInfo;
+import com.jetbrains.lang.dart.ide.index.DartPathIndex;
+import com.jetbrains.lang.dart.psi.impl.DartPsiCompositeElementImpl;
+import com.jetbrains.lang.dart.resolve.DartPsiScopeProcessor;
+import gnu.trove.TByteArrayList;
+import gnu.trove.THashSet;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.jetbrains.lang.dart.ide.index.DartImportOrExportInfo.Kind;
+import static com.jetbrains.lang.dart.util.PubspecYamlUtil.PUBSPEC_YAML;
+
+/**
+ * Namespaces of Dart libraries for {@link DartResolveUtil#processTopLevelDeclarations}.
+ * <p/>
+ * The namespace of a library is the list of files that contribute top-level declarations to it (the library itself, its parts,
+ * unprefixed imports and transitive exports) in the order they must be processed, together with the show/hide combinators that
+ * apply to each of them. Files are numbered, so a namespace is a few int arrays. It is computed once from {@link DartPathIndex} and
+ * {@link DartImportAndExportIndex} and kept until any of the contributing files changes, the project structure changes or any
+ * pubspec.yaml file changes (that may change where package: imports point to), so resolving a name only needs PSI of the files that
+ * declare it.
+ */
+public class DartLibraryNamespaceService {
+
+  private static final byte VISIT = 0;            // process declarations of the file
+  private static final byte VISIT_AGAIN = 1;      // the file has already been visited, process elements filtered out before
+  private static final byte IMPORT_STARTED = 2;   // show/hide combinators of the import or export apply from now on
+  private static final byte IMPORT_FINISHED = 3;
+
+  private static class Namespace {
+    private final VirtualFile[] myFiles;
+    private final long[] myFileStamps;
+    private final byte[] myStepKinds;
+    private final int[] myStepFileIds;
+    private final DartImportOrExportInfo[] myStepInfos;
+    private final long myRootsModificationCount;
+    private final long myVfsModificationCount;
+    private final long myPubspecModificationCount;
+
+    private Namespace(final VirtualFile[] files,
+                      final long[] fileStamps,
+                      final byte[] stepKinds,
+                      final int[] stepFileIds,
+                      final DartImportOrExportInfo[] stepInfos,
+                      final long rootsModificationCount,
+                      final long vfsModificationCount,
+                      final long pubspecModificationCount) {
+      myFiles = files;
+      myFileStamps = fileStamps;
+      myStepKinds = stepKinds;
+      myStepFileIds = stepFileIds;
+      myStepInfos = stepInfos;
+      myRootsModificationCount = rootsModificationCount;
+      myVfsModificationCount = vfsModificationCount;
+      myPubspecModificationCount = pubspecModificationCount;
+    }
+  }
+
+  private final Project myProject;
+
+  // key is root file, files of the library where the resolved element is located and 'private names only' flag; guarded by itself
+  private final Map<Trinity<VirtualFile, List<VirtualFile>, Boolean>, Namespace> myNamespaces =
+    new SoftValueHashMap<Trinity<VirtualFile, List<VirtualFile>, Boolean>, Namespace>();
+
+  private volatile long myPubspecModificationCount;
+
+  public DartLibraryNamespaceService(@NotNull final Project project) {
+    myProject = project;
+
+    VirtualFileManager.getInstance().addVirtualFileListener(new VirtualFileAdapter() {
+      public void contentsChanged(@NotNull final VirtualFileEvent event) {
+        pubspecChanged(event.getFileName());
+      }
+
+      public void fileCreated(@NotNull final VirtualFileEvent event) {
+        pubspecChanged(event.getFileName());
+      }
+
+      public void fileDeleted(@NotNull final VirtualFileEvent event) {
+        pubspecChanged(event.getFileName());
+      }
+
+      public void fileMoved(@NotNull final VirtualFileMoveEvent event) {
+        pubspecChanged(event.getFileName());
+      }
+
+      public void propertyChanged(@NotNull final VirtualFilePropertyEvent event) {
+        if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+          pubspecChanged((String)event.getOldValue());
+          pubspecChanged((String)event.getNewValue());
+        }
+      }
+    }, project);
+
+    EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentAdapter() {
+      public void documentChanged(final DocumentEvent event) {
+        final VirtualFile file = FileDocumentManager.getInstance().getFile(event.getDocument());
+        if (file != null) {
+          pubspecChanged(file.getName());
+        }
+      }
+    }, project);
+  }
+
+  private void pubspecChanged(@Nullable final String fileName) {
+    if (PUBSPEC_YAML.equals(fileName)) {
+      myPubspecModificationCount++;
+    }
+  }
+
+  @NotNull
+  public static DartLibraryNamespaceService getInstance(@NotNull final Project project) {
+    return ServiceManager.getService(project, DartLibraryNamespaceService.class);
+  }
+
+  public void clear() {
+    synchronized (myNamespaces) {
+      myNamespaces.clear();
+    }
+  }
+
+  /**
+   * @param contextLibraryFiles files of the library where the element being resolved is located; imports are followed only from
+   *                            these files, exports only from other files
+   * @param filesWithComponent  files that declare the name being resolved, <code>null</code> to process declarations of all files
+   * @param privateOnly         <code>true</code> to skip imports and exports, private names are not visible through them
+   * @return <code>false</code> if the processor has stopped processing
+   */
+  boolean processDeclarations(@NotNull final PsiElement context,
+                              @NotNull final DartPsiScopeProcessor processor,
+                              @NotNull final VirtualFile rootFile,
+                              @NotNull final List<VirtualFile> contextLibraryFiles,
+                              @Nullable final Collection<VirtualFile> filesWithComponent,
+                              final boolean privateOnly) {
+    final Namespace namespace = getNamespace(rootFile, contextLibraryFiles, privateOnly);
+
+    final boolean[] declaresComponent = new boolean[namespace.myFiles.length];
+    boolean declaredAnywhere = false;
+    for (int i = 0; i < namespace.myFiles.length; i++) {
+      declaresComponent[i] = filesWithComponent == null || filesWithComponent.contains(namespace.myFiles[i]);
+      declaredAnywhere |= declaresComponent[i];
+    }
+    if (!declaredAnywhere) return true;
+
+    final PsiManager psiManager = context.getManager();
+    final TIntArrayList startedImports = new TIntArrayList();
+
+    for (int i = 0; i < namespace.myStepKinds.length; i++) {
+      final int fileId = namespace.myStepFileIds[i];
+      final VirtualFile file = namespace.myFiles[fileId];
+
+      switch (namespace.myStepKinds[i]) {
+        case IMPORT_STARTED:
+          processor.importedFileProcessingStarted(file, namespace.myStepInfos[i]);
+          startedImports.add(fileId);
+          break;
+        case IMPORT_FINISHED:
+          processor.importedFileProcessingFinished(file);
+          startedImports.remove(startedImports.size() - 1);
+          break;
+        case VISIT_AGAIN:
+          processor.processFilteredOutElementsForImportedFile(file);
+          break;
+        case VISIT:
+          if (!declaresComponent[fileId] || !file.isValid()) break;
+
+          for (PsiElement root : DartResolveUtil.findDartRoots(psiManager.findFile(file))) {
+            if (!DartPsiCompositeElementImpl.processDeclarationsImpl(root, processor, ResolveState.initial(), null)) {
+              for (int j = startedImports.size() - 1; j >= 0; j--) {
+                processor.importedFileProcessingFinished(namespace.myFiles[startedImports.get(j)]);
+              }
+              return false;
+            }
+          }
+          break;
+      }
+    }
+
+    return true;
+  }
+
+  @NotNull
+  private Namespace getNamespace(@NotNull final VirtualFile rootFile,
+                                 @NotNull final List<VirtualFile> contextLibraryFiles,
+                                 final boolean privateOnly) {
+    final Trinity<VirtualFile, List<VirtualFile>, Boolean> key =
+      Trinity.create(rootFile, (List<VirtualFile>)new ArrayList<VirtualFile>(contextLibraryFiles), privateOnly);
+
+    synchronized (myNamespaces) {
+      final Namespace namespace = myNamespaces.get(key);
+      if (namespace != null && isUpToDate(namespace)) return namespace;
+    }
+
+    final Namespace namespace = new NamespaceBuilder(contextLibraryFiles).build(rootFile, privateOnly);
+    synchronized (myNamespaces) {
+      myNamespaces.put(key, namespace);
+    }
+    return namespace;
+  }
+
+  private boolean isUpToDate(@NotNull final Namespace namespace) {
+    if (namespace.myRootsModificationCount != ProjectRootManager.getInstance(myProject).getModificationCount() ||
+        namespace.myVfsModificationCount != VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS.getModificationCount() ||
+        namespace.myPubspecModificationCount != myPubspecModificationCount) {
+      return false;
+    }
+
+    for (int i = 0; i < namespace.myFiles.length; i++) {
+      if (!namespace.myFiles[i].isValid() || namespace.myFileStamps[i] != getModificationStamp(namespace.myFiles[i])) return false;
+    }
+    return true;
+  }
+
+  private static long getModificationStamp(@NotNull final VirtualFile file) {
+    final Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+    return document != null ? document.getModificationStamp() : file.getModificationStamp();
+  }
+
+  /**
+   * Collects namespace steps in the same order as the recursive walk over parts, imports and exports did before.
+   */
+  private class NamespaceBuilder {
+    private final List<VirtualFile> myContextLibraryFiles;
+    private final long myRootsModificationCount;
+    private final long myVfsModificationCount;
+    private final long myPubspecModificationCount;
+
+    private final TObjectIntHashMap<VirtualFile> myFileIds = new TObjectIntHashMap<VirtualFile>();
+    private final Set<VirtualFile> myVisitedFiles = new THashSet<VirtualFile>();
+    private final List<VirtualFile> myFiles = new ArrayList<VirtualFile>();
+    private final TByteArrayList myStepKinds = new TByteArrayList();
+    private final TIntArrayList myStepFileIds = new TIntArrayList();
+    private final List<DartImportOrExportInfo> myStepInfos = new ArrayList<DartImportOrExportInfo>();
+
+    private NamespaceBuilder(@NotNull final List<VirtualFile> contextLibraryFiles) {
+      myContextLibraryFiles = contextLibraryFiles;
+      // taken before the indices are queried, so that changes made meanwhile invalidate the result
+      myRootsModificationCount = ProjectRootManager.getInstance(myProject).getModificationCount();
+      myVfsModificationCount = VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS.getModificationCount();
+      myPubspecModificationCount = DartLibraryNamespaceService.this.myPubspecModificationCount;
+    }
+
+    @NotNull
+    private Namespace build(@NotNull final VirtualFile rootFile, final boolean privateOnly) {
+      addFile(rootFile, myContextLibraryFiles, privateOnly);
+
+      final VirtualFile[] files = myFiles.toArray(new VirtualFile[myFiles.size()]);
+      final long[] stamps = new long[files.length];
+      for (int i = 0; i < files.length; i++) {
+        stamps[i] = getModificationStamp(files[i]);
+      }
+
+      return new Namespace(files, stamps, myStepKinds.toNativeArray(), myStepFileIds.toNativeArray(),
+                           myStepInfos.toArray(new DartImportOrExportInfo[myStepInfos.size()]),
+                           myRootsModificationCount, myVfsModificationCount, myPubspecModificationCount);
+    }
+
+    private void addFile(@NotNull final VirtualFile file, @Nullable final List<VirtualFile> contextLibraryFiles, final boolean privateOnly) {
+      if (!myVisitedFiles.add(file)) {
+        addStep(VISIT_AGAIN, file, null);
+        return;
+      }
+
+      addStep(VISIT, file, null);
+
+      for (String relativePathOrUrl : DartPathIndex.getPaths(myProject, file)) {
+        VirtualFile childFile = DartResolveUtil.findRelativeFile(file, relativePathOrUrl);
+        childFile = childFile != null ? childFile : VirtualFileManager.getInstance().findFileByUrl(relativePathOrUrl);
+        if (childFile == null || childFile.isDirectory() || myVisitedFiles.contains(childFile)) {
+          continue;
+        }
+        // the part itself is the context of its own imports and exports
+        addFile(childFile, null, false);
+      }
+
+      if (privateOnly) return;
+
+      final List<DartImportOrExportInfo> infos = DartImportAndExportIndex.getImportAndExportInfos(myProject, file);
+      if (infos.isEmpty()) return;
+
+      final boolean processingContextLibrary = getContextLibraryFiles(file, contextLibraryFiles).contains(file);
+
+      for (DartImportOrExportInfo importOrExportInfo : infos) {
+        if (processingContextLibrary && importOrExportInfo.getKind() == Kind.Export) continue;
+        if (!processingContextLibrary && importOrExportInfo.getKind() == Kind.Import) continue;
+
+        // if statement has prefix all components are prefix.Name
+        if (importOrExportInfo.getKind() == Kind.Import && importOrExportInfo.getImportPrefix() != null) continue;
+
+        final VirtualFile importedFile = DartResolveUtil.getImportedFile(myProject, file, importOrExportInfo.getUri());
+        if (importedFile != null) {
+          addStep(IMPORT_STARTED, importedFile, importOrExportInfo);
+          addFile(importedFile, myContextLibraryFiles, false);
+          addStep(IMPORT_FINISHED, importedFile, null);
+        }
+      }
+    }
+
+    @NotNull
+    private List<VirtualFile> getContextLibraryFiles(@NotNull final VirtualFile file,
+                                                     @Nullable final List<VirtualFile> contextLibraryFiles) {
+      if (contextLibraryFiles != null) return contextLibraryFiles;
+
+      final PsiFile psiFile = PsiManager.getInstance(myProject).findFile(file);
+      return psiFile == null ? new ArrayList<VirtualFile>() : DartResolveUtil.findLibrary(psiFile);
+    }
+
+    private void addStep(final byte kind, @NotNull final VirtualFile file, @Nullable final DartImportOrExportInfo info) {
+      if (!myFileIds.containsKey(file)) {
+        myFileIds.put(file, myFiles.size());
+        myFiles.add(file);
+      }
+      myStepKinds.add(kind);
+      myStepFileIds.add(myFileIds.get(file));
+      myStepInfos.add(info);
+    }
+  }
+}
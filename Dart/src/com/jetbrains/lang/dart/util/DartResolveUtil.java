@@ -16,7 +16,6 @@ import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.util.BooleanValueHolder;
 import com.intellij.util.Function;
-import com.intellij.util.PathUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.ContainerUtilRt;
 import com.jetbrains.lang.dart.DartComponentType;
@@ -271,94 +270,24 @@ public class DartResolveUtil {
                                                     final @NotNull DartPsiScopeProcessor processor,
                                                     final @Nullable VirtualFile rootVirtualFile,
                                                     final @Nullable String componentNameHint) {
-    final Set<String> fileNames = new THashSet<String>();
-    for (VirtualFile virtualFile : DartComponentIndex.getAllFiles(context.getProject(), componentNameHint)) {
-      fileNames.add(virtualFile.getName());
-    }
-    return processTopLevelDeclarationsImpl(context, processor, rootVirtualFile, componentNameHint == null ? null : fileNames,
-                                           new THashSet<VirtualFile>(), componentNameHint != null && componentNameHint.startsWith("_"));
-  }
-
-  private static boolean processTopLevelDeclarationsImpl(final @NotNull PsiElement context,
-                                                         final @NotNull DartPsiScopeProcessor processor,
-                                                         final @Nullable VirtualFile virtualFile,
-                                                         final @Nullable Set<String> fileNames,
-                                                         final @NotNull Set<VirtualFile> processedFiles) {
-    return processTopLevelDeclarationsImpl(context, processor, virtualFile, fileNames, processedFiles, false);
-  }
-
-  private static boolean processTopLevelDeclarationsImpl(final @NotNull PsiElement context,
-                                                         final @NotNull DartPsiScopeProcessor processor,
-                                                         final @Nullable VirtualFile virtualFile,
-                                                         final @Nullable Set<String> fileNames,
-                                                         final @NotNull Set<VirtualFile> processedFiles,
-                                                         final boolean isLookingForPrivate) {
-    if (virtualFile == null) return false;
-
-    if (processedFiles.contains(virtualFile)) {
-      processor.processFilteredOutElementsForImportedFile(virtualFile);
-      return true;
-    }
-
-    processedFiles.add(virtualFile);
+    if (rootVirtualFile == null) return false;
 
-    boolean contains = fileNames == null || fileNames.contains(virtualFile.getName());
-    if (contains) {
-      final PsiFile psiFile = context.getManager().findFile(virtualFile);
-      for (PsiElement root : findDartRoots(psiFile)) {
-        if (!DartPsiCompositeElementImpl.processDeclarationsImpl(root, processor, ResolveState.initial(), null)) {
-          return false;
-        }
-      }
-    }
-
-    for (String relativePathOrUrl : DartPathIndex.getPaths(context.getProject(), virtualFile)) {
-      if (fileNames != null && !fileNames.contains(PathUtil.getFileName(relativePathOrUrl))) {
-        continue;
-      }
-      VirtualFile childFile = findRelativeFile(virtualFile, relativePathOrUrl);
-      childFile = childFile != null ? childFile : VirtualFileManager.getInstance().findFileByUrl(relativePathOrUrl);
-      if (childFile == null || processedFiles.contains(childFile)) {
-        continue;
-      }
-      final PsiFile childPsiFile = context.getManager().findFile(childFile);
-      if (childPsiFile != null) {
-        if (!processTopLevelDeclarationsImpl(childPsiFile, processor, childFile, fileNames, processedFiles)) {
-          return false;
-        }
-      }
-    }
-
-    if (isLookingForPrivate) {
-      return true;
-    }
-
-    final List<VirtualFile> libraryFiles = findLibrary(context.getContainingFile());
-    final boolean processingLibraryWhereContextElementLocated = libraryFiles.contains(virtualFile);
-
-    for (DartImportOrExportInfo importOrExportInfo : DartImportAndExportIndex.getImportAndExportInfos(context.getProject(), virtualFile)) {
-      if (processingLibraryWhereContextElementLocated && importOrExportInfo.getKind() == Kind.Export) continue;
-      if (!processingLibraryWhereContextElementLocated && importOrExportInfo.getKind() == Kind.Import) continue;
-
-      // if statement has prefix all components are prefix.Name
-      if (importOrExportInfo.getKind() == Kind.Import && importOrExportInfo.getImportPrefix() != null) continue;
-
-      final VirtualFile importedFile = getImportedFile(context.getProject(), virtualFile, importOrExportInfo.getUri());
-      if (importedFile != null) {
-        processor.importedFileProcessingStarted(importedFile, importOrExportInfo);
-        final boolean continueProcessing = processTopLevelDeclarationsImpl(context, processor, importedFile, fileNames, processedFiles);
-        processor.importedFileProcessingFinished(importedFile);
-        if (!continueProcessing) return false;
-      }
-    }
+    final Project project = context.getProject();
+    final Set<VirtualFile> filesWithComponent =
+      componentNameHint == null ? null : new THashSet<VirtualFile>(DartComponentIndex.getAllFiles(project, componentNameHint));
+    final PsiFile contextFile = context.getContainingFile();
+    final List<VirtualFile> contextLibraryFiles =
+      contextFile == null ? Collections.<VirtualFile>emptyList() : findLibrary(contextFile);
 
-    return true;
+    return DartLibraryNamespaceService.getInstance(project)
+      .processDeclarations(context, processor, rootVirtualFile, contextLibraryFiles, filesWithComponent,
+                           componentNameHint != null && componentNameHint.startsWith("_"));
   }
 
   @Nullable
-  private static VirtualFile getImportedFile(final @NotNull Project project,
-                                             final @NotNull VirtualFile contextFile,
-                                             final @NotNull String importText) {
+  static VirtualFile getImportedFile(final @NotNull Project project,
+                                     final @NotNull VirtualFile contextFile,
+                                     final @NotNull String importText) {
     if (importText.startsWith(DART_PREFIX) || importText.startsWith(PACKAGE_PREFIX) || importText.startsWith(FILE_PREFIX)) {
       return DartUrlResolver.getInstance(project, contextFile).findFileByDartUrl(importText);
     }
@@ -24,7 +24,8 @@ public abstract class DartUrlResolver {
   public static final String PACKAGES_FOLDER_NAME = "packages";
 
   /**
-   * Returned instance becomes obsolete if/when pubspec.yaml file is added or deleted or if module-specific custom package roots are changed,
+   * Returned instance is shared by all files of the same module and pubspec.yaml file (see {@link DartUrlResolverCache}).
+   * It becomes obsolete if/when pubspec.yaml file is added or deleted or if module-specific custom package roots are changed,
    * so do not keep returned instance too long.
    *
    * @param project
@@ -33,7 +34,7 @@ public abstract class DartUrlResolver {
    */
   @NotNull
   public static DartUrlResolver getInstance(final @NotNull Project project, final @NotNull VirtualFile contextFile) {
-    return new DartUrlResolverImpl(project, contextFile);
+    return DartUrlResolverCache.getInstance(project).getResolver(contextFile);
   }
 
   @Nullable
@@ -0,0 +1,178 @@
+package com.jetbrains.lang.dart.util;
+
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootAdapter;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.impl.libraries.ProjectLibraryTable;
+import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.libraries.LibraryTable;
+import com.intellij.openapi.util.Trinity;
+import com.intellij.openapi.vfs.*;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+import static com.jetbrains.lang.dart.util.PubspecYamlUtil.*;
+
+/**
+ * Shares {@link DartUrlResolver} instances between all files of the same module and pubspec.yaml file.
+ * <p/>
+ * Resolvers are dropped when pubspec.yaml files are created, deleted, moved or renamed, when folders are moved or renamed, when folders
+ * that may change packages folders, live package folders or which pubspec.yaml file a file belongs to are created or deleted (see
+ * {@link #isPackageRelatedFolder(VirtualFile)}), when project roots or the project library table change and when the pubspec.yaml file of
+ * a resolver is edited. Resolver keys of context files are cached as well; they are dropped in the same cases
+ * except unsaved pubspec.yaml edits, which can't change a key.
+ */
+public class DartUrlResolverCache {
+
+  private final Project myProject;
+
+  // guarded by itself
+  private final Map<Trinity<Module, VirtualFile, Boolean>, DartUrlResolverImpl> myResolvers =
+    new THashMap<Trinity<Module, VirtualFile, Boolean>, DartUrlResolverImpl>();
+  // resolver keys of context files, they depend on the same things as resolvers do except pubspec.yaml contents
+  private final Map<VirtualFile, Trinity<Module, VirtualFile, Boolean>> myKeys =
+    new THashMap<VirtualFile, Trinity<Module, VirtualFile, Boolean>>();
+  private int myClearCount;
+
+  public DartUrlResolverCache(@NotNull final Project project) {
+    myProject = project;
+
+    VirtualFileManager.getInstance().addVirtualFileListener(new VirtualFileAdapter() {
+      public void contentsChanged(@NotNull final VirtualFileEvent event) {
+        if (PUBSPEC_YAML.equals(event.getFileName())) {
+          clear();
+        }
+      }
+
+      public void fileCreated(@NotNull final VirtualFileEvent event) {
+        fileOrFolderCreatedOrDeleted(event);
+      }
+
+      public void fileDeleted(@NotNull final VirtualFileEvent event) {
+        fileOrFolderCreatedOrDeleted(event);
+        synchronized (myResolvers) {
+          myKeys.remove(event.getFile());
+        }
+      }
+
+      public void fileMoved(@NotNull final VirtualFileMoveEvent event) {
+        if (event.getFile().isDirectory() || PUBSPEC_YAML.equals(event.getFileName())) {
+          clear();
+        }
+      }
+
+      public void propertyChanged(@NotNull final VirtualFilePropertyEvent event) {
+        if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+          if (event.getFile().isDirectory() ||
+              PUBSPEC_YAML.equals(event.getOldValue()) ||
+              PUBSPEC_YAML.equals(event.getNewValue())) {
+            clear();
+          }
+        }
+      }
+
+      private void fileOrFolderCreatedOrDeleted(@NotNull final VirtualFileEvent event) {
+        final VirtualFile file = event.getFile();
+        if (file.isDirectory() ? isPackageRelatedFolder(file) : PUBSPEC_YAML.equals(event.getFileName())) {
+          clear();
+        }
+      }
+    }, project);
+
+    project.getMessageBus().connect(project).subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootAdapter() {
+      @Override
+      public void rootsChanged(final ModuleRootEvent event) {
+        clear();
+      }
+    });
+
+    ProjectLibraryTable.getInstance(project).addListener(new LibraryTable.Listener() {
+      @Override
+      public void afterLibraryAdded(final Library newLibrary) {
+        clear();
+      }
+
+      @Override
+      public void afterLibraryRenamed(final Library library) {
+        clear();
+      }
+
+      @Override
+      public void beforeLibraryRemoved(final Library library) {
+      }
+
+      @Override
+      public void afterLibraryRemoved(final Library library) {
+        clear();
+      }
+    }, project);
+  }
+
+  @NotNull
+  public static DartUrlResolverCache getInstance(@NotNull final Project project) {
+    return ServiceManager.getService(project, DartUrlResolverCache.class);
+  }
+
+  @NotNull
+  DartUrlResolver getResolver(@NotNull final VirtualFile contextFile) {
+    Trinity<Module, VirtualFile, Boolean> key;
+    int clearCount;
+    synchronized (myResolvers) {
+      key = myKeys.get(contextFile);
+      if (key != null) {
+        final DartUrlResolverImpl resolver = myResolvers.get(key);
+        if (resolver != null && resolver.isUpToDate()) return resolver;
+      }
+      clearCount = myClearCount;
+    }
+
+    if (key == null) {
+      key = DartUrlResolverImpl.getResolverKey(myProject, contextFile);
+      synchronized (myResolvers) {
+        if (clearCount == myClearCount) {
+          myKeys.put(contextFile, key);
+          final DartUrlResolverImpl resolver = myResolvers.get(key);
+          if (resolver != null && resolver.isUpToDate()) return resolver;
+        }
+      }
+    }
+
+    final DartUrlResolverImpl resolver = new DartUrlResolverImpl(myProject, key);
+    synchronized (myResolvers) {
+      // do not cache a resolver that might have been built from obsolete state
+      if (clearCount == myClearCount) {
+        myResolvers.put(key, resolver);
+      }
+    }
+    return resolver;
+  }
+
+  /**
+   * A created or deleted folder matters if it is a packages or lib folder, or if it is related to the pubspec.yaml file, package roots
+   * or live package folders of a cached resolver. Other folders, like build output or source folders, don't change resolvers.
+   */
+  private boolean isPackageRelatedFolder(@NotNull final VirtualFile folder) {
+    final String name = folder.getName();
+    if (DartUrlResolver.PACKAGES_FOLDER_NAME.equals(name) || LIB_DIRECTORY_NAME.equals(name)) return true;
+
+    synchronized (myResolvers) {
+      for (DartUrlResolverImpl resolver : myResolvers.values()) {
+        if (resolver.dependsOnFolder(folder)) return true;
+      }
+    }
+    return false;
+  }
+
+  public void clear() {
+    synchronized (myResolvers) {
+      myResolvers.clear();
+      myKeys.clear();
+      myClearCount++;
+    }
+  }
+}
@@ -1,6 +1,8 @@
 package com.jetbrains.lang.dart.util;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleUtilCore;
 import com.intellij.openapi.project.Project;
@@ -10,6 +12,7 @@ import com.intellij.openapi.roots.impl.libraries.ProjectLibraryTable;
 import com.intellij.openapi.roots.libraries.LibraryProperties;
 import com.intellij.openapi.roots.libraries.LibraryTablesRegistrar;
 import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.Trinity;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsUtilCore;
@@ -22,6 +25,7 @@ import com.jetbrains.lang.dart.sdk.DartSdk;
 import com.jetbrains.lang.dart.sdk.listPackageDirs.DartListPackageDirsLibraryProperties;
 import com.jetbrains.lang.dart.sdk.listPackageDirs.PubListPackageDirsAction;
 import gnu.trove.THashMap;
+import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -34,17 +38,75 @@ class DartUrlResolverImpl extends DartUrlResolver {
 
   private final @NotNull Project myProject;
   private final @Nullable DartSdk myDartSdk;
+  private final @Nullable VirtualFile mySdkLibFolder;
   private final @Nullable VirtualFile myPubspecYamlFile;
+  private final long myPubspecYamlStamp;
   private final @NotNull List<VirtualFile> myPackageRoots = new ArrayList<VirtualFile>();
   private final @NotNull Map<String, VirtualFile> myLivePackageNameToDirMap = new THashMap<String, VirtualFile>();
   private final @NotNull Map<String, Set<String>> myPubListPackageDirsMap = new THashMap<String, Set<String>>();
 
-  DartUrlResolverImpl(final @NotNull Project project, final @NotNull VirtualFile contextFile) {
+  // prefix tree of package directories: files are matched by walking up their parents
+  private final @NotNull Map<VirtualFile, String> myLivePackageDirToNameMap = new THashMap<VirtualFile, String>();
+  private final @NotNull Set<VirtualFile> myPackageRootsSet = new THashSet<VirtualFile>();
+  private final @NotNull Map<String, String> myPubListPackageDirToNameMap = new THashMap<String, String>();
+
+  /**
+   * @param key see {@link #getResolverKey(Project, VirtualFile)}
+   */
+  DartUrlResolverImpl(final @NotNull Project project, final @NotNull Trinity<Module, VirtualFile, Boolean> key) {
     myProject = project;
     myDartSdk = DartSdk.getGlobalDartSdk();
-    myPubspecYamlFile = initPackageRootsAndReturnPubspecYamlFile(contextFile);
+    mySdkLibFolder = myDartSdk == null ? null : LocalFileSystem.getInstance().findFileByPath(myDartSdk.getHomePath() + "/lib");
+    myPubspecYamlFile = key.second;
+    myPubspecYamlStamp = myPubspecYamlFile == null ? -1 : getPubspecYamlStamp(myPubspecYamlFile);
+    initPackageRoots(key.first);
     initLivePackageNameToDirMap();
-    initPubListPackageDirsMap(contextFile);
+    if (key.third) {
+      initPubListPackageDirsMap();
+    }
+    initPackageDirsTree();
+  }
+
+  /**
+   * Resolver state depends only on the module of the context file, pubspec.yaml file that the context file belongs to (<code>null</code>
+   * if the module has custom package roots) and whether 'Dart pub list-package-dirs' library is attached, so resolvers are shared by
+   * all context files with the same key.
+   */
+  @NotNull
+  static Trinity<Module, VirtualFile, Boolean> getResolverKey(final @NotNull Project project, final @NotNull VirtualFile contextFile) {
+    final Module module = ModuleUtilCore.findModuleForFile(contextFile, project);
+    final VirtualFile pubspecYamlFile =
+      module == null || DartConfigurable.getCustomPackageRoots(module).length > 0 ? null : findPubspecYamlFile(project, contextFile);
+
+    final List<OrderEntry> orderEntries = module != null
+                                          ? Arrays.asList(ModuleRootManager.getInstance(module).getOrderEntries())
+                                          : ProjectRootManager.getInstance(project).getFileIndex().getOrderEntriesForFile(contextFile);
+    boolean pubListPackageDirsLibAttached = false;
+    for (OrderEntry orderEntry : orderEntries) {
+      if (isPubListPackageDirsLibrary(orderEntry)) {
+        pubListPackageDirsLibAttached = true;
+        break;
+      }
+    }
+
+    return Trinity.create(module, pubspecYamlFile, pubListPackageDirsLibAttached);
+  }
+
+  /**
+   * @return <code>false</code> if pubspec.yaml file has been changed since this resolver was created
+   */
+  boolean isUpToDate() {
+    return myPubspecYamlFile == null || (myPubspecYamlFile.isValid() && myPubspecYamlStamp == getPubspecYamlStamp(myPubspecYamlFile));
+  }
+
+  /**
+   * The document stamp if the document is in memory, the file stamp otherwise. The document gets the file stamp when it is loaded and
+   * can't be garbage collected while it has unsaved changes, so both are the same for an unchanged file. The document is not loaded
+   * here, that would read the file on each check.
+   */
+  private static long getPubspecYamlStamp(final @NotNull VirtualFile pubspecYamlFile) {
+    final Document document = FileDocumentManager.getInstance().getCachedDocument(pubspecYamlFile);
+    return document != null ? document.getModificationStamp() : pubspecYamlFile.getModificationStamp();
   }
 
   @Nullable
@@ -64,7 +126,28 @@ class DartUrlResolverImpl extends DartUrlResolver {
   }
 
   public Collection<String> getLivePackageNames() {
-    return myLivePackageNameToDirMap.keySet();
+    return Collections.unmodifiableList(new ArrayList<String>(myLivePackageNameToDirMap.keySet()));
+  }
+
+  /**
+   * @return <code>true</code> if creation or deletion of the folder may change this resolver: the folder contains the pubspec.yaml file
+   *         or is a direct child of its folder, or it contains or is inside one of the package roots or live package folders
+   */
+  boolean dependsOnFolder(final @NotNull VirtualFile folder) {
+    final VirtualFile pubspecFolder = myPubspecYamlFile == null ? null : myPubspecYamlFile.getParent();
+    if (pubspecFolder != null && (VfsUtilCore.isAncestor(folder, pubspecFolder, false) || pubspecFolder.equals(folder.getParent()))) {
+      return true;
+    }
+
+    for (VirtualFile packageRoot : myPackageRoots) {
+      if (VfsUtilCore.isAncestor(folder, packageRoot, false) || VfsUtilCore.isAncestor(packageRoot, folder, true)) return true;
+    }
+
+    for (VirtualFile packageDir : myLivePackageNameToDirMap.values()) {
+      if (VfsUtilCore.isAncestor(folder, packageDir, false) || VfsUtilCore.isAncestor(packageDir, folder, true)) return true;
+    }
+
+    return false;
   }
 
   @Nullable
@@ -137,16 +220,13 @@ class DartUrlResolverImpl extends DartUrlResolver {
   public String getDartUrlForFile(final @NotNull VirtualFile file) {
     String result = null;
 
-    if (myDartSdk != null) result = getUrlIfFileFromSdkLib(myProject, file, myDartSdk);
-    if (result != null) return result;
-
-    result = getUrlIfFileFromLivePackage(file, myLivePackageNameToDirMap);
+    if (mySdkLibFolder != null) result = getUrlIfFileFromSdkLib(myProject, file, mySdkLibFolder);
     if (result != null) return result;
 
-    result = getUrlIfFileFromPackageRoot(file, myPackageRoots);
+    result = getUrlIfFileFromLivePackageOrPackageRoot(file);
     if (result != null) return result;
 
-    result = getUrlIfFileFromPubListPackageDirs(myProject, file, myPubListPackageDirsMap);
+    result = getUrlIfFileFromPubListPackageDirs(file);
     if (result != null) return result;
 
     // see com.google.dart.tools.debug.core.server.ServerBreakpointManager#getAbsoluteUrlForResource()
@@ -156,9 +236,8 @@ class DartUrlResolverImpl extends DartUrlResolver {
   @Nullable
   private static String getUrlIfFileFromSdkLib(final @NotNull Project project,
                                                final @NotNull VirtualFile file,
-                                               final @NotNull DartSdk sdk) {
-    final VirtualFile sdkLibFolder = LocalFileSystem.getInstance().findFileByPath(sdk.getHomePath() + "/lib");
-    final String relativeToSdkLibFolder = sdkLibFolder == null ? null : VfsUtilCore.getRelativePath(file, sdkLibFolder, '/');
+                                               final @NotNull VirtualFile sdkLibFolder) {
+    final String relativeToSdkLibFolder = VfsUtilCore.getRelativePath(file, sdkLibFolder, '/');
     final String sdkLibName = relativeToSdkLibFolder == null
                               ? null
                               : DartLibraryIndex.getStandardLibraryNameByRelativePath(project, relativeToSdkLibFolder);
@@ -169,74 +248,87 @@ class DartUrlResolverImpl extends DartUrlResolver {
              : null;
   }
 
+  /**
+   * Live packages take precedence over package roots, as before; the deepest package directory wins within each group.
+   */
   @Nullable
-  private static String getUrlIfFileFromLivePackage(final @NotNull VirtualFile file,
-                                                    final @NotNull Map<String, VirtualFile> livePackageNameToDirMap) {
-    for (Map.Entry<String, VirtualFile> entry : livePackageNameToDirMap.entrySet()) {
-      final String packageName = entry.getKey();
-      final VirtualFile packageDir = entry.getValue();
-      final String relPath = VfsUtilCore.getRelativePath(file, packageDir, '/');
-      if (relPath != null) {
-        return PACKAGE_PREFIX + packageName + "/" + relPath;
+  private String getUrlIfFileFromLivePackageOrPackageRoot(final @NotNull VirtualFile file) {
+    if (myLivePackageDirToNameMap.isEmpty() && myPackageRootsSet.isEmpty()) return null;
+
+    VirtualFile packageRoot = null;
+    for (VirtualFile dir = file; dir != null; dir = dir.getParent()) {
+      final String packageName = myLivePackageDirToNameMap.get(dir);
+      if (packageName != null) {
+        return PACKAGE_PREFIX + packageName + "/" + VfsUtilCore.getRelativePath(file, dir, '/');
+      }
+      if (packageRoot == null && myPackageRootsSet.contains(dir)) {
+        packageRoot = dir;
       }
     }
-    return null;
+
+    return packageRoot == null ? null : PACKAGE_PREFIX + VfsUtilCore.getRelativePath(file, packageRoot, '/');
   }
 
   @Nullable
-  private static String getUrlIfFileFromPackageRoot(final @NotNull VirtualFile file, final @NotNull List<VirtualFile> packageRoots) {
-    for (VirtualFile packageRoot : packageRoots) {
-      final String relPath = VfsUtilCore.getRelativePath(file, packageRoot, '/');
-      if (relPath != null) {
-        return PACKAGE_PREFIX + relPath;
+  private String getUrlIfFileFromPubListPackageDirs(final @NotNull VirtualFile file) {
+    if (myPubListPackageDirToNameMap.isEmpty()) return null;
+
+    final String filePath = file.getPath();
+    String dirPath = null;
+    String packageName = null;
+    for (int slashIndex = filePath.lastIndexOf('/'); slashIndex > 0; slashIndex = filePath.lastIndexOf('/', slashIndex - 1)) {
+      packageName = myPubListPackageDirToNameMap.get(filePath.substring(0, slashIndex));
+      if (packageName != null) {
+        dirPath = filePath.substring(0, slashIndex);
+        break;
+      }
+    }
+    if (dirPath == null) return null;
+
+    for (OrderEntry orderEntry : ProjectRootManager.getInstance(myProject).getFileIndex().getOrderEntriesForFile(file)) {
+      if (isPubListPackageDirsLibrary(orderEntry)) {
+        return PACKAGE_PREFIX + packageName + filePath.substring(dirPath.length());
       }
     }
     return null;
   }
 
-  @Nullable
-  private static String getUrlIfFileFromPubListPackageDirs(final @NotNull Project project,
-                                                           final @NotNull VirtualFile file,
-                                                           final @NotNull Map<String, Set<String>> pubListPackageDirsMap) {
-    final String filePath = file.getPath();
+  private static boolean isPubListPackageDirsLibrary(final @NotNull OrderEntry orderEntry) {
+    return orderEntry instanceof LibraryOrderEntry &&
+           LibraryTablesRegistrar.PROJECT_LEVEL.equals(((LibraryOrderEntry)orderEntry).getLibraryLevel()) &&
+           PubListPackageDirsAction.PUB_LIST_PACKAGE_DIRS_LIB_NAME.equals(((LibraryOrderEntry)orderEntry).getLibraryName());
+  }
 
-    for (OrderEntry orderEntry : ProjectRootManager.getInstance(project).getFileIndex().getOrderEntriesForFile(file)) {
-      if (orderEntry instanceof LibraryOrderEntry &&
-          LibraryTablesRegistrar.PROJECT_LEVEL.equals(((LibraryOrderEntry)orderEntry).getLibraryLevel()) &&
-          PubListPackageDirsAction.PUB_LIST_PACKAGE_DIRS_LIB_NAME.equals(((LibraryOrderEntry)orderEntry).getLibraryName())) {
-        for (Map.Entry<String, Set<String>> mapEntry : pubListPackageDirsMap.entrySet()) {
-          for (String dirPath : mapEntry.getValue()) {
-            if (filePath.startsWith(dirPath + "/")) {
-              final String packageName = mapEntry.getKey();
-              return PACKAGE_PREFIX + packageName + filePath.substring(dirPath.length());
-            }
-          }
+  private void initPackageDirsTree() {
+    for (Map.Entry<String, VirtualFile> entry : myLivePackageNameToDirMap.entrySet()) {
+      myLivePackageDirToNameMap.put(entry.getValue(), entry.getKey());
+    }
+
+    myPackageRootsSet.addAll(myPackageRoots);
+
+    for (Map.Entry<String, Set<String>> entry : myPubListPackageDirsMap.entrySet()) {
+      for (String dirPath : entry.getValue()) {
+        if (!myPubListPackageDirToNameMap.containsKey(dirPath)) {
+          myPubListPackageDirToNameMap.put(dirPath, entry.getKey());
         }
-        return null;
       }
     }
-    return null;
   }
 
-  @Nullable
-  private VirtualFile initPackageRootsAndReturnPubspecYamlFile(final @NotNull VirtualFile contextFile) {
-    final Module module = ModuleUtilCore.findModuleForFile(contextFile, myProject);
-    if (module == null) return null;
+  private void initPackageRoots(final @Nullable Module module) {
+    if (module == null) return;
 
     final VirtualFile[] customPackageRoots = DartConfigurable.getCustomPackageRoots(module);
     if (customPackageRoots.length > 0) {
       Collections.addAll(myPackageRoots, customPackageRoots);
-      return null;
+      return;
     }
 
-    final VirtualFile pubspecYamlFile = findPubspecYamlFile(myProject, contextFile);
-    final VirtualFile parentFolder = pubspecYamlFile == null ? null : pubspecYamlFile.getParent();
+    final VirtualFile parentFolder = myPubspecYamlFile == null ? null : myPubspecYamlFile.getParent();
     final VirtualFile packagesFolder = parentFolder == null ? null : parentFolder.findChild(PACKAGES_FOLDER_NAME);
     if (packagesFolder != null && packagesFolder.isDirectory()) {
       myPackageRoots.add(packagesFolder);
     }
-
-    return pubspecYamlFile;
   }
 
   private static VirtualFile findPubspecYamlFile(final @NotNull Project project, final @NotNull VirtualFile contextFile) {
@@ -300,25 +392,13 @@ class DartUrlResolverImpl extends DartUrlResolver {
     }
   }
 
-  private void initPubListPackageDirsMap(final @NotNull VirtualFile contextFile) {
-    final Module module = ModuleUtilCore.findModuleForFile(contextFile, myProject);
+  private void initPubListPackageDirsMap() {
+    final LibraryEx library =
+      (LibraryEx)ProjectLibraryTable.getInstance(myProject).getLibraryByName(PubListPackageDirsAction.PUB_LIST_PACKAGE_DIRS_LIB_NAME);
+    final LibraryProperties properties = library == null ? null : library.getProperties();
 
-    final List<OrderEntry> orderEntries = module != null
-                                          ? Arrays.asList(ModuleRootManager.getInstance(module).getOrderEntries())
-                                          : ProjectRootManager.getInstance(myProject).getFileIndex().getOrderEntriesForFile(contextFile);
-    for (OrderEntry orderEntry : orderEntries) {
-      if (orderEntry instanceof LibraryOrderEntry &&
-          LibraryTablesRegistrar.PROJECT_LEVEL.equals(((LibraryOrderEntry)orderEntry).getLibraryLevel()) &&
-          PubListPackageDirsAction.PUB_LIST_PACKAGE_DIRS_LIB_NAME.equals(((LibraryOrderEntry)orderEntry).getLibraryName())) {
-        final LibraryEx library =
-          (LibraryEx)ProjectLibraryTable.getInstance(myProject).getLibraryByName(PubListPackageDirsAction.PUB_LIST_PACKAGE_DIRS_LIB_NAME);
-        final LibraryProperties properties = library == null ? null : library.getProperties();
-
-        if (properties instanceof DartListPackageDirsLibraryProperties) {
-          myPubListPackageDirsMap.putAll(((DartListPackageDirsLibraryProperties)properties).getPackageNameToDirsMap());
-          return;
-        }
-      }
+    if (properties instanceof DartListPackageDirsLibraryProperties) {
+      myPubListPackageDirsMap.putAll(((DartListPackageDirsLibraryProperties)properties).getPackageNameToDirsMap());
     }
   }
 }
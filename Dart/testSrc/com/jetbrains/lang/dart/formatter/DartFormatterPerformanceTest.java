@@ -0,0 +1,229 @@
+package com.jetbrains.lang.dart.formatter;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.codeStyle.CodeStyleManager;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Formatting latency in a big file: whole file reformatting, Reformat Selection of one class and line indent adjustment (as on Enter).
+ * The latter two must not depend much on the file size, which is checked on files of {@link #SIZE_SUITE_LINE_COUNTS} lines in the
+ * performance test suite only.
+ */
+public class DartFormatterPerformanceTest extends LightPlatformCodeInsightFixtureTestCase {
+  private static final int LINE_COUNT = 5000;
+  private static final int LINES_PER_CLASS = 8;
+  private static final int[] SIZE_SUITE_LINE_COUNTS = {500, 1000, 2000, 5000};
+  private static final int SIZE_SUITE_RUNS = 11;
+
+  public void testWholeFileFormatting() throws Exception {
+    final String text = generateText(LINE_COUNT / LINES_PER_CLASS);
+    final PsiFile file = myFixture.configureByText("file.dart", text);
+
+    PlatformTestUtil.startPerformanceTest("Dart whole file formatting, " + LINE_COUNT + " lines", 5000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        reformatRange(file, 0, text.length());
+      }
+    }).setup(new ResetText(text)).cpuBound().assertTiming();
+  }
+
+  public void testRangeFormatting() throws Exception {
+    final int classCount = LINE_COUNT / LINES_PER_CLASS;
+    final String text = generateText(classCount);
+    final PsiFile file = myFixture.configureByText("range.dart", text);
+    final int start = text.indexOf(getClassText(classCount / 2));
+    final int end = start + getClassText(classCount / 2).length();
+
+    PlatformTestUtil.startPerformanceTest("Dart range formatting, " + LINE_COUNT + " lines", 200, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        reformatRange(file, start, end);
+      }
+    }).setup(new ResetText(text)).cpuBound().assertTiming();
+  }
+
+  public void testLineIndent() throws Exception {
+    final int classCount = LINE_COUNT / LINES_PER_CLASS;
+    final String text = generateText(classCount);
+    final PsiFile file = myFixture.configureByText("indent.dart", text);
+    final Document document = myFixture.getEditor().getDocument();
+    final int lineStart = document.getLineStartOffset(document.getLineNumber(text.indexOf(getClassText(classCount / 2))) + 3);
+
+    PlatformTestUtil.startPerformanceTest("Dart line indent, " + LINE_COUNT + " lines", 100, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        adjustLineIndent(file, lineStart);
+      }
+    }).setup(new ResetText(text)).cpuBound().assertTiming();
+  }
+
+  public void testRangeFormattingKeepsOtherDeclarations() throws Exception {
+    final int classCount = 20;
+    final String text = generateText(classCount);
+    final PsiFile file = myFixture.configureByText("range.dart", text);
+    final int start = text.indexOf(getClassText(classCount / 2));
+    final int end = start + getClassText(classCount / 2).length();
+
+    reformatRange(file, start, end);
+
+    final String result = myFixture.getEditor().getDocument().getText();
+    assertTrue(result.startsWith(text.substring(0, start)));
+    assertTrue(result.endsWith(text.substring(end)));
+    assertTrue(result.contains("int method" + classCount / 2 + "(int a, int b) {\n"));
+    assertTrue(result.contains("int method" + (classCount / 2 + 1) + "(int a,int b){\n"));
+  }
+
+  public void testRangeFormattingLatencyVersusFileSize() throws Exception {
+    if (!isPerformanceTestRun()) return;
+
+    final long[] times = measureForFileSizes(new FileOperation() {
+      @Override
+      public void run(@NotNull final PsiFile file, @NotNull final String text, final int classCount) {
+        final int start = text.indexOf(getClassText(classCount / 2));
+        reformatRange(file, start, start + getClassText(classCount / 2).length());
+      }
+    });
+    assertNotDependingOnFileSize("Range formatting", times);
+  }
+
+  public void testLineIndentLatencyVersusFileSize() throws Exception {
+    if (!isPerformanceTestRun()) return;
+
+    final long[] times = measureForFileSizes(new FileOperation() {
+      @Override
+      public void run(@NotNull final PsiFile file, @NotNull final String text, final int classCount) {
+        final Document document = myFixture.getEditor().getDocument();
+        adjustLineIndent(file, document.getLineStartOffset(document.getLineNumber(text.indexOf(getClassText(classCount / 2))) + 3));
+      }
+    });
+    assertNotDependingOnFileSize("Line indent", times);
+  }
+
+  public void testWholeFileFormattingLatencyVersusFileSize() throws Exception {
+    if (!isPerformanceTestRun()) return;
+
+    final long[] times = measureForFileSizes(new FileOperation() {
+      @Override
+      public void run(@NotNull final PsiFile file, @NotNull final String text, final int classCount) {
+        reformatRange(file, 0, text.length());
+      }
+    });
+    // linear growth with some tolerance, a quadratic one would be at least 10 times more for 10 times bigger file
+    final int sizeRatio = SIZE_SUITE_LINE_COUNTS[SIZE_SUITE_LINE_COUNTS.length - 1] / SIZE_SUITE_LINE_COUNTS[0];
+    final long limit = 3 * sizeRatio * times[0] + 50;
+    assertTrue("Whole file formatting: " + Arrays.toString(times) + " ms, expected at most " + limit + " ms for the biggest file",
+               times[times.length - 1] <= limit);
+  }
+
+  private static boolean isPerformanceTestRun() {
+    return Boolean.getBoolean("idea.performance.tests");
+  }
+
+  private interface FileOperation {
+    void run(@NotNull PsiFile file, @NotNull String text, int classCount);
+  }
+
+  /**
+   * @return median time of the operation in ms for each of {@link #SIZE_SUITE_LINE_COUNTS}
+   */
+  private long[] measureForFileSizes(@NotNull final FileOperation operation) {
+    final long[] result = new long[SIZE_SUITE_LINE_COUNTS.length];
+    for (int i = 0; i < SIZE_SUITE_LINE_COUNTS.length; i++) {
+      final int classCount = SIZE_SUITE_LINE_COUNTS[i] / LINES_PER_CLASS;
+      final String text = generateText(classCount);
+      final PsiFile file = myFixture.configureByText("size" + SIZE_SUITE_LINE_COUNTS[i] + ".dart", text);
+
+      final long[] times = new long[SIZE_SUITE_RUNS];
+      for (int run = 0; run < SIZE_SUITE_RUNS; run++) {
+        resetText(text);
+        final long start = System.nanoTime();
+        operation.run(file, text, classCount);
+        times[run] = (System.nanoTime() - start) / 1000000;
+      }
+      Arrays.sort(times);
+      result[i] = times[SIZE_SUITE_RUNS / 2];
+    }
+    System.out.println(getName() + ": " + Arrays.toString(SIZE_SUITE_LINE_COUNTS) + " lines, " + Arrays.toString(result) + " ms");
+    return result;
+  }
+
+  private static void assertNotDependingOnFileSize(@NotNull final String operation, @NotNull final long[] times) {
+    // the file grows 10 times, some growth comes from the document and PSI operations which are not ours
+    final long limit = 3 * times[0] + 20;
+    assertTrue(operation + ": " + Arrays.toString(times) + " ms, expected at most " + limit + " ms for the biggest file",
+               times[times.length - 1] <= limit);
+  }
+
+  private void resetText(@NotNull final String text) {
+    WriteCommandAction.runWriteCommandAction(getProject(), new Runnable() {
+      @Override
+      public void run() {
+        myFixture.getEditor().getDocument().setText(text);
+        PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+      }
+    });
+  }
+
+  /**
+   * Brings back the badly formatted text before each measured run.
+   */
+  private class ResetText implements ThrowableRunnable {
+    private final String myText;
+
+    private ResetText(final String text) {
+      myText = text;
+    }
+
+    @Override
+    public void run() throws Throwable {
+      resetText(myText);
+    }
+  }
+
+  private void reformatRange(final PsiFile file, final int start, final int end) {
+    WriteCommandAction.runWriteCommandAction(getProject(), new Runnable() {
+      @Override
+      public void run() {
+        CodeStyleManager.getInstance(getProject()).reformatText(file, start, end);
+        PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+      }
+    });
+  }
+
+  private void adjustLineIndent(final PsiFile file, final int offset) {
+    WriteCommandAction.runWriteCommandAction(getProject(), new Runnable() {
+      @Override
+      public void run() {
+        CodeStyleManager.getInstance(getProject()).adjustLineIndent(file, offset);
+        PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+      }
+    });
+  }
+
+  private static String generateText(final int classCount) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < classCount; i++) {
+      builder.append(getClassText(i)).append("\n");
+    }
+    return builder.toString();
+  }
+
+  // LINES_PER_CLASS lines including the empty line after the class, deliberately badly formatted
+  private static String getClassText(final int index) {
+    return "class C" + index + " extends Object{\n" +
+           "int field" + index + "=0;\n" +
+           "int method" + index + "(int a,int b){\n" +
+           "if(a>b){\n" +
+           "return a-b;}\n" +
+           "return a+field" + index + "*b;\n" +
+           "}}\n";
+  }
+}
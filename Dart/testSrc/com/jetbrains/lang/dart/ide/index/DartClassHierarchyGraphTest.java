@@ -0,0 +1,55 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public class DartClassHierarchyGraphTest extends DartCodeInsightFixtureTestCase {
+
+  public void testTransitiveSubclassesAndRemovedNames() throws Exception {
+    final VirtualFile file1 =
+      myFixture.addFileToProject("graph1.dart", "class GraphRoot {}\nclass GraphMiddle extends GraphRoot {}").getVirtualFile();
+    final VirtualFile file2 =
+      myFixture.addFileToProject("graph2.dart", "class GraphLeaf extends GraphMiddle implements GraphMarker {}").getVirtualFile();
+
+    final DartClassHierarchyGraph graph = DartClassHierarchyGraph.getInstance(getProject());
+    Map<VirtualFile, Set<String>> subclasses = graph.getAllSubclassNamesByFile("GraphRoot");
+    assertEquals(2, subclasses.size());
+    assertEquals(Collections.singleton("GraphMiddle"), subclasses.get(file1));
+    assertEquals(Collections.singleton("GraphLeaf"), subclasses.get(file2));
+    assertTrue(graph.hasSubclasses("GraphMarker"));
+
+    setText(file2, "class GraphLeaf extends GraphMiddle {}");
+
+    subclasses = graph.getAllSubclassNamesByFile("GraphRoot");
+    assertEquals(Collections.singleton("GraphLeaf"), subclasses.get(file2));
+    assertFalse(graph.hasSubclasses("GraphMarker"));
+    assertFalse("a name no file mentions must be forgotten", graph.hasId("GraphMarker"));
+
+    setText(file2, "class GraphLeaf {}");
+
+    subclasses = graph.getAllSubclassNamesByFile("GraphRoot");
+    assertEquals(1, subclasses.size());
+    assertFalse(graph.hasId("GraphLeaf"));
+    assertTrue(graph.hasId("GraphMiddle"));
+  }
+
+  private static void setText(final VirtualFile file, final String text) {
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      public void run() {
+        try {
+          VfsUtil.saveText(file, text);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,178 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+import com.jetbrains.lang.dart.util.DartTestUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class DartLexerIndexerTest extends DartCodeInsightFixtureTestCase {
+
+  private void doTest(@NotNull final String text) {
+    final PsiFile psiFile = myFixture.configureByText("file.dart", text);
+    final DartFileIndexData expected = DartIndexUtil.indexFileRoots(psiFile);
+    final DartFileIndexData actual = DartLexerIndexer.indexFile(psiFile.getName(), text);
+
+    assertNotNull(actual);
+    assertEquals(dump(expected), dump(actual));
+  }
+
+  private void doTestFallback(@NotNull final String text) {
+    assertNull(DartLexerIndexer.indexFile("file.dart", text));
+  }
+
+  @NotNull
+  private static String dump(@NotNull final DartFileIndexData data) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("library: ").append(data.getLibraryName()).append('\n');
+    builder.append("classes: ").append(sorted(data.getClassNames())).append('\n');
+    final List<String> symbols = new ArrayList<String>();
+    for (Map.Entry<String, List<DartSymbolInfo>> entry : data.getSymbols().entrySet()) {
+      for (DartSymbolInfo info : entry.getValue()) {
+        symbols.add(entry.getKey() + " " + info.getKind() + " " + info.getContainerName() + " " + info.getOffset());
+      }
+    }
+    builder.append("symbols: ").append(sorted(symbols)).append('\n');
+    builder.append("paths: ").append(data.getPaths()).append('\n');
+
+    for (String name : sorted(data.getComponentInfoMap().keySet())) {
+      final DartComponentInfo info = data.getComponentInfoMap().get(name);
+      builder.append("component: ").append(name).append(' ').append(info.getType()).append(' ').append(info.getLibraryId()).append('\n');
+    }
+
+    for (String name : sorted(data.getInheritorsMap().keySet())) {
+      final List<String> inheritors = new ArrayList<String>();
+      for (DartComponentInfo info : data.getInheritorsMap().get(name)) {
+        inheritors.add(info.getValue() + " " + info.getLibraryId());
+      }
+      builder.append("inheritors of ").append(name).append(": ").append(sorted(inheritors)).append('\n');
+    }
+
+    for (DartImportOrExportInfo info : data.getImportAndExportInfos()) {
+      builder.append(info.getKind()).append(' ').append(info.getUri()).append(" as ").append(info.getImportPrefix())
+        .append(" show ").append(sorted(info.getShowComponents())).append(" hide ").append(sorted(info.getHideComponents()))
+        .append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  @NotNull
+  private static List<String> sorted(@NotNull final Collection<String> strings) {
+    final List<String> result = new ArrayList<String>(strings);
+    Collections.sort(result);
+    return result;
+  }
+
+  public void testDirectives() {
+    doTest("library foo.bar;\n" +
+           "import 'dart:html';\n" +
+           "import 'package:a/a.dart' as a show A, B hide C;\n" +
+           "import 'b.dart' deferred as b;\n" +
+           "export \"c.dart\" show X;\n" +
+           "part 'src/d.dart';\n");
+  }
+
+  public void testPartOf() {
+    doTest("part of foo.bar;\n" +
+           "class A {}\n" +
+           "var x;\n");
+  }
+
+  public void testMainWithoutLibrary() {
+    doTest("import 'a.dart';\n" +
+           "void main() {\n" +
+           "  print('${1 + 2} }');\n" +
+           "}\n");
+  }
+
+  public void testTopLevelDeclarations() {
+    doTest("library lib;\n" +
+           "@deprecated\n" +
+           "typedef int Compare<T>(T a, T b);\n" +
+           "typedef void Callback();\n" +
+           "const int A = 1, B = const [1, 2];\n" +
+           "final Map<String, List<int>> map = {'a': [1]};\n" +
+           "var f = (x) { return x; };\n" +
+           "int get getter => 1;\n" +
+           "set setter(value) {}\n" +
+           "external int get externalGetter;\n" +
+           "foo(int x, [y = 2]) => x + y;\n" +
+           "Future bar() native 'bar';\n");
+  }
+
+  public void testClasses() {
+    doTest("library lib;\n" +
+           "abstract class A<T extends Comparable> extends p.B<T> with M1, M2 implements I, J {\n" +
+           "  static const X = 1, Y = 2;\n" +
+           "  final List<int> list = <int>[];\n" +
+           "  A(this.list) : super(), x = 1;\n" +
+           "  A.named() : this(null);\n" +
+           "  const A.constant();\n" +
+           "  factory A.create() = B<T>;\n" +
+           "  factory A.fromJson(json) { return null; }\n" +
+           "  @override\n" +
+           "  int get length => list.length;\n" +
+           "  set length(int value) {}\n" +
+           "  bool operator ==(other) => identical(this, other);\n" +
+           "  operator [](int index) => list[index];\n" +
+           "  operator []=(int index, value) {}\n" +
+           "  void method(void callback(int x), {named: 'str'});\n" +
+           "}\n" +
+           "class C = B with M implements I;\n" +
+           "class D native \"D\" {}\n");
+  }
+
+  public void testIncompleteCode() {
+    doTestFallback("class A {\n" +
+                   "  void foo() {\n" +
+                   "}\n");
+    doTestFallback("import 'a.dart'\n" +
+                   "class A {}\n");
+    doTestFallback("var s = 'unterminated;\n");
+    doTestFallback("foo(\n");
+  }
+
+  public void testExistingTestData() throws IOException {
+    final List<File> files = new ArrayList<File>();
+    collectDartFiles(new File(DartTestUtils.BASE_TEST_DATA_PATH), files);
+    assertFalse(files.isEmpty());
+
+    int compared = 0;
+    for (int i = 0; i < files.size(); i++) {
+      final File file = files.get(i);
+      // unique names, so that files with the same name in different folders don't replace each other
+      final PsiFile psiFile = myFixture.configureByText(i + "_" + file.getName(), FileUtil.loadFile(file, "UTF-8"));
+      // the lexer indexer only promises the same result for code without syntax errors
+      if (PsiTreeUtil.hasErrorElements(psiFile)) continue;
+
+      final DartFileIndexData actual = DartLexerIndexer.indexFile(psiFile.getName(), psiFile.getText());
+      if (actual == null) continue;
+
+      assertEquals(file.getPath(), dump(DartIndexUtil.indexFileRoots(psiFile)), dump(actual));
+      compared++;
+    }
+
+    assertTrue("no files compared of " + files.size(), compared > 0);
+  }
+
+  private static void collectDartFiles(@NotNull final File dir, @NotNull final List<File> result) {
+    final File[] children = dir.listFiles();
+    if (children == null) return;
+
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collectDartFiles(child, result);
+      }
+      else if (child.getName().endsWith(".dart")) {
+        result.add(child);
+      }
+    }
+  }
+}
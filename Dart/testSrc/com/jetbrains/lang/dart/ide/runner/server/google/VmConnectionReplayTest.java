@@ -0,0 +1,310 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.PairConsumer;
+import com.intellij.xdebugger.XDebugSession;
+import com.intellij.xdebugger.frame.XCompositeNode;
+import com.intellij.xdebugger.frame.XValueChildrenList;
+import com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess;
+import com.jetbrains.lang.dart.ide.runner.server.frame.DartValue;
+import com.jetbrains.lang.dart.util.DartUrlResolver;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs VmConnection against a recorded session served by {@link VmReplayServer}: pause with a deep stack, setting many
+ * breakpoints and loading children of a big list value page by page, as the debugger does when the user expands the list
+ * and clicks "more".
+ */
+public class VmConnectionReplayTest extends TestCase {
+  private static final int FRAME_COUNT = 200;
+  private static final int BREAKPOINT_COUNT = 500;
+  private static final int LIST_LENGTH = 1000;
+  private static final int LIST_PAGE_SIZE = XCompositeNode.MAX_CHILDREN_TO_SHOW;
+  private static final int LIST_OBJECT_ID = 7;
+  private static final String URL = "file:///main.dart";
+
+  public void testSession() throws Exception {
+    replay(record(0), 0);
+  }
+
+  public void testDelayedSession() throws Exception {
+    // VM messages keep their recorded delays, 10 times shorter
+    replay(record(300), 10);
+  }
+
+  /**
+   * Records the session the way VmConnection would, with the given delay of the paused event after the isolate start.
+   */
+  private static File record(final long pauseDelayMs) throws Exception {
+    final File file = FileUtil.createTempFile("dart-vm", ".txt", true);
+    final VmTrafficRecorder recorder = new VmTrafficRecorder(file);
+    int id = 1;
+
+    try {
+      recorder.messageReceived(new JSONObject().put("event", "isolate")
+                                 .put("params", new JSONObject().put("reason", "created").put("id", 1)).toString());
+      Thread.sleep(pauseDelayMs);
+      recorder.messageReceived(new JSONObject().put("event", "paused")
+                                 .put("params", new JSONObject().put("reason", "breakpoint").put("isolateId", 1)
+                                   .put("location", location(10))).toString());
+
+      final JSONArray frames = new JSONArray();
+      for (int i = 0; i < FRAME_COUNT; i++) {
+        final JSONArray locals = new JSONArray().put(new JSONObject().put("name", "local")
+                                                       .put("value", value(100 + i, "int", String.valueOf(i))));
+        if (i == 0) {
+          locals.put(new JSONObject().put("name", "list")
+                       .put("value", value(LIST_OBJECT_ID, "list", "List").put("length", LIST_LENGTH)));
+        }
+        frames.put(new JSONObject().put("functionName", "function" + i).put("location", location(i * 10)).put("locals", locals));
+      }
+      recorder.commandSent(command(id, "getStackTrace", new JSONObject()));
+      recorder.messageReceived(response(id++, new JSONObject().put("callFrames", frames)));
+
+      for (int i = 0; i < BREAKPOINT_COUNT; i++) {
+        recorder.commandSent(command(id, "setBreakpoint", new JSONObject().put("url", URL).put("line", i + 1)));
+        recorder.messageReceived(response(id++, new JSONObject().put("breakpointId", i + 1)));
+      }
+
+      for (int from = 0; from < LIST_LENGTH; from += LIST_PAGE_SIZE) {
+        final JSONArray elements = new JSONArray();
+        for (int i = from; i < from + LIST_PAGE_SIZE; i++) {
+          elements.put(value(1000 + i, "string", "element " + i));
+        }
+        recorder.commandSent(command(id, "getListElements", new JSONObject().put("objectId", LIST_OBJECT_ID).put("index", from)
+          .put("length", LIST_PAGE_SIZE)));
+        recorder.messageReceived(response(id++, new JSONObject().put("elements", elements)));
+      }
+    }
+    finally {
+      recorder.close();
+    }
+
+    return file;
+  }
+
+  private static void replay(final File recording, final double speedUp) throws Exception {
+    final VmReplayServer server = new VmReplayServer(VmTrafficReader.read(recording), speedUp);
+    server.start();
+
+    final VmConnection connection = new VmConnection("127.0.0.1", server.getPort());
+    final CountDownLatch paused = new CountDownLatch(1);
+    final Ref<VmIsolate> isolateRef = new Ref<VmIsolate>();
+    final Ref<List<VmCallFrame>> framesRef = new Ref<List<VmCallFrame>>();
+
+    connection.addListener(new VmListener() {
+      @Override
+      public void breakpointResolved(VmIsolate isolate, VmBreakpoint breakpoint) {
+      }
+
+      @Override
+      public void connectionClosed(VmConnection connection) {
+      }
+
+      @Override
+      public void connectionOpened(VmConnection connection) {
+      }
+
+      @Override
+      public void debuggerPaused(PausedReason reason, VmIsolate isolate, List<VmCallFrame> frames, VmValue exception,
+                                 boolean isStepping) {
+        isolateRef.set(isolate);
+        framesRef.set(frames);
+        paused.countDown();
+      }
+
+      @Override
+      public void debuggerResumed(VmIsolate isolate) {
+      }
+
+      @Override
+      public void isolateCreated(VmIsolate isolate) {
+      }
+
+      @Override
+      public void isolateShutdown(VmIsolate isolate) {
+      }
+    });
+
+    try {
+      connection.connect();
+      assertTrue(paused.await(10, TimeUnit.SECONDS));
+
+      final VmIsolate isolate = isolateRef.get();
+      final List<VmCallFrame> frames = framesRef.get();
+      assertEquals(FRAME_COUNT, frames.size());
+      assertEquals(String.valueOf(FRAME_COUNT - 1), frames.get(FRAME_COUNT - 1).getLocals().get(0).getValue().getText());
+
+      final CountDownLatch breakpointsSet = new CountDownLatch(BREAKPOINT_COUNT);
+      final AtomicInteger errors = new AtomicInteger();
+      final List<VmConnection.BreakpointRequest> requests = new ArrayList<VmConnection.BreakpointRequest>();
+      for (int i = 0; i < BREAKPOINT_COUNT; i++) {
+        requests.add(new VmConnection.BreakpointRequest(URL, i + 1, new VmCallback<VmBreakpoint>() {
+          @Override
+          public void handleResult(VmResult<VmBreakpoint> result) {
+            if (result.isError() || result.getResult().getBreakpointId() <= 0) errors.incrementAndGet();
+            breakpointsSet.countDown();
+          }
+        }));
+      }
+      connection.setBreakpoints(isolate, requests);
+      assertTrue(breakpointsSet.await(10, TimeUnit.SECONDS));
+      assertEquals(0, errors.get());
+
+      final VmValue list = frames.get(0).getLocals().get(1).getValue();
+      assertTrue(list.isList());
+      final DartValue listValue = new DartValue(createDebugProcess(connection), "list", list, false);
+      for (int from = 0; from < LIST_LENGTH; from += LIST_PAGE_SIZE) {
+        final ChildrenCollector collector = new ChildrenCollector(from + LIST_PAGE_SIZE < LIST_LENGTH);
+        listValue.computeChildren(collector.createNode());
+        collector.assertPage(from);
+      }
+
+      server.waitFor(10000);
+    }
+    finally {
+      connection.close();
+      server.close();
+    }
+  }
+
+  /**
+   * Debug process that only provides the connection, which is all that DartValue needs to load children.
+   */
+  private static DartCommandLineDebugProcess createDebugProcess(final VmConnection connection) {
+    final InvocationHandler unsupported = new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+    };
+    final XDebugSession session =
+      (XDebugSession)Proxy.newProxyInstance(XDebugSession.class.getClassLoader(), new Class[]{XDebugSession.class}, unsupported);
+    return new DartCommandLineDebugProcess(session, connection, new NoPackagesUrlResolver());
+  }
+
+  /**
+   * Collects children added by DartValue to a tree node.
+   */
+  private static class ChildrenCollector implements InvocationHandler {
+    private final boolean myHasMore;
+    // children are added, then the node is told about the rest of the list
+    private final CountDownLatch myDone;
+    private volatile XValueChildrenList myChildren;
+    private volatile String myError;
+
+    private ChildrenCollector(final boolean hasMore) {
+      myHasMore = hasMore;
+      myDone = new CountDownLatch(hasMore ? 2 : 1);
+    }
+
+    XCompositeNode createNode() {
+      return (XCompositeNode)Proxy.newProxyInstance(XCompositeNode.class.getClassLoader(), new Class[]{XCompositeNode.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      final String name = method.getName();
+      if ("isObsolete".equals(name)) {
+        return false;
+      }
+      if ("addChildren".equals(name)) {
+        myChildren = (XValueChildrenList)args[0];
+        if (!(Boolean)args[1]) myError = "children are not marked as last";
+        myDone.countDown();
+      }
+      else if ("tooManyChildren".equals(name)) {
+        if (!myHasMore) myError = "no more children expected";
+        myDone.countDown();
+      }
+      else if ("setErrorMessage".equals(name)) {
+        myError = (String)args[0];
+        while (myDone.getCount() > 0) myDone.countDown();
+      }
+      return null;
+    }
+
+    void assertPage(final int from) throws InterruptedException {
+      assertTrue(myDone.await(10, TimeUnit.SECONDS));
+      assertNull(myError, myError);
+      assertEquals(LIST_PAGE_SIZE, myChildren.size());
+      assertEquals(String.valueOf(from), myChildren.getName(0));
+      assertEquals(String.valueOf(from + LIST_PAGE_SIZE - 1), myChildren.getName(LIST_PAGE_SIZE - 1));
+    }
+  }
+
+  private static class NoPackagesUrlResolver extends DartUrlResolver {
+    @Nullable
+    @Override
+    public VirtualFile getPubspecYamlFile() {
+      return null;
+    }
+
+    @NotNull
+    @Override
+    public VirtualFile[] getPackageRoots() {
+      return VirtualFile.EMPTY_ARRAY;
+    }
+
+    @Override
+    public void processLivePackages(@NotNull PairConsumer<String, VirtualFile> packageNameAndDirConsumer) {
+    }
+
+    @Override
+    public Collection<String> getLivePackageNames() {
+      return Collections.emptyList();
+    }
+
+    @Nullable
+    @Override
+    public VirtualFile getPackageDirIfLivePackageOrFromPubListPackageDirs(@NotNull String packageName) {
+      return null;
+    }
+
+    @Nullable
+    @Override
+    public VirtualFile findFileByDartUrl(@NotNull String url) {
+      return null;
+    }
+
+    @NotNull
+    @Override
+    public String getDartUrlForFile(@NotNull VirtualFile file) {
+      return file.getUrl();
+    }
+  }
+
+  private static JSONObject location(final int tokenOffset) throws Exception {
+    return new JSONObject().put("url", URL).put("tokenOffset", tokenOffset);
+  }
+
+  private static JSONObject value(final int objectId, final String kind, final String text) throws Exception {
+    return new JSONObject().put("objectId", objectId).put("kind", kind).put("text", text);
+  }
+
+  private static String command(final int id, final String command, final JSONObject params) throws Exception {
+    return new JSONObject().put("id", id).put("command", command).put("params", params.put("isolateId", 1)).toString();
+  }
+
+  private static String response(final int id, final JSONObject result) throws Exception {
+    return new JSONObject().put("id", id).put("result", result).toString();
+  }
+}
@@ -0,0 +1,69 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+public class VmJsonReaderTest extends TestCase {
+
+  private static VmJsonReader createReader(final String text, final int bufferSize) throws IOException {
+    return new VmJsonReader(new ByteArrayInputStream(text.getBytes("UTF-8")), bufferSize);
+  }
+
+  private static JSONObject readObject(final VmJsonReader reader) throws IOException {
+    reader.readFrame();
+    return VmJsonReader.parse(reader.getFrameBytes(), reader.getFrameLength());
+  }
+
+  public void testResponseId() throws Exception {
+    final VmJsonReader reader = createReader("{\"id\": 12, \"result\": {\"id\": 5, \"text\": \"a}\\\"{b\"}}", 8192);
+    final JSONObject object = readObject(reader);
+    assertEquals(12, reader.getFrameId());
+    assertFalse(reader.frameHasError());
+    assertEquals("a}\"{b", object.getJSONObject("result").getString("text"));
+  }
+
+  public void testNotificationHasNoId() throws Exception {
+    final VmJsonReader reader = createReader("{\"event\": \"paused\", \"params\": {\"id\": 3, \"isolateId\": 7}}", 8192);
+    readObject(reader);
+    assertEquals(VmJsonReader.NO_ID, reader.getFrameId());
+  }
+
+  public void testError() throws Exception {
+    final VmJsonReader reader = createReader("{\"error\": \"oops\", \"id\": 7}", 8192);
+    readObject(reader);
+    assertEquals(7, reader.getFrameId());
+    assertTrue(reader.frameHasError());
+  }
+
+  public void testRawNewLineInString() throws Exception {
+    final VmJsonReader reader = createReader("{\"text\": \"line1\nline2\"}", 8192);
+    final JSONObject object = readObject(reader);
+    assertTrue(reader.frameHadRawNewLine());
+    assertEquals("line1\nline2", object.getString("text"));
+  }
+
+  public void testSeveralFramesAcrossSmallBuffer() throws Exception {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 1; i <= 100; i++) {
+      builder.append("{\"id\":").append(i).append(",\"result\":{\"text\":\"\u00e9l\u00e9ment ").append(i).append("\"}}\n");
+    }
+
+    final VmJsonReader reader = createReader(builder.toString(), 7);
+    for (int i = 1; i <= 100; i++) {
+      final JSONObject object = readObject(reader);
+      assertEquals(i, reader.getFrameId());
+      assertEquals("\u00e9l\u00e9ment " + i, object.getJSONObject("result").getString("text"));
+    }
+
+    try {
+      reader.readFrame();
+      fail("EOFException expected");
+    }
+    catch (EOFException ignored) {
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+public class VmLineNumberTableTest extends TestCase {
+
+  private static VmLocation location(final int tokenOffset) throws Exception {
+    return VmLocation.createFrom(null, new JSONObject().put("libraryId", 1).put("url", "file:///a.dart").put("tokenOffset", tokenOffset));
+  }
+
+  public void testLookup() throws Exception {
+    // lines are not necessarily reported in token offset order
+    final JSONObject json = new JSONObject("{\"lines\": [[3, 40, 0, 45, 4], [1, 0, 0, 5, 2], [2, 10, 0, 20, 6, 30, 9]]}");
+    final VmLineNumberTable table = VmLineNumberTable.createFrom(null, 1, "file:///a.dart", json);
+
+    assertEquals(1, table.getLineForLocation(location(0)));
+    assertEquals(1, table.getLineForLocation(location(5)));
+    assertEquals(2, table.getLineForLocation(location(10)));
+    assertEquals(2, table.getLineForLocation(location(30)));
+    assertEquals(3, table.getLineForLocation(location(45)));
+    // offsets which are not token starts are unknown, they don't belong to the preceding token
+    assertEquals(-1, table.getLineForLocation(location(25)));
+    assertEquals(-1, table.getLineForLocation(location(100)));
+  }
+}
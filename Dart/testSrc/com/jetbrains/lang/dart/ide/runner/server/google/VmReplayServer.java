@@ -0,0 +1,224 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a session recorded by {@link VmTrafficRecorder} back to a single VmConnection, in place of a Dart VM.
+ * <p/>
+ * Messages are replayed in the recorded order. For a recorded command the server waits until the client sends an
+ * equal command (ids aside); commands that are not in the recording are never answered. Responses go out with the id
+ * of the matching client command. Each VM message is delayed like in the original session, the delay being divided by
+ * the speed-up factor; a factor of 0 replays without delays.
+ */
+class VmReplayServer {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int READ_TIMEOUT_MS = 10000;
+
+  private static class ClientCommand {
+    private final String key;
+    private final int id;
+
+    private ClientCommand(String key, int id) {
+      this.key = key;
+      this.id = id;
+    }
+  }
+
+  private final List<VmTrafficReader.Message> messages;
+  private final double speedUp;
+  private final ServerSocket serverSocket;
+  private final CountDownLatch finished = new CountDownLatch(1);
+
+  private volatile Socket socket;
+  private volatile Throwable error;
+
+  VmReplayServer(List<VmTrafficReader.Message> messages, double speedUp) throws IOException {
+    this.messages = messages;
+    this.speedUp = speedUp;
+    this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  void start() {
+    Thread thread = new Thread("Dart VM replay") {
+      @Override
+      public void run() {
+        try {
+          socket = serverSocket.accept();
+          socket.setSoTimeout(READ_TIMEOUT_MS);
+          replay(socket);
+        }
+        catch (Throwable t) {
+          error = t;
+        }
+        finally {
+          finished.countDown();
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @throws AssertionError if the recording hasn't been replayed completely in time
+   */
+  void waitFor(long timeoutMs) throws InterruptedException {
+    if (!finished.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+      throw new AssertionError("recording has not been replayed in " + timeoutMs + " ms");
+    }
+
+    if (error != null) {
+      throw new AssertionError(error);
+    }
+  }
+
+  void close() throws IOException {
+    serverSocket.close();
+
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  private void replay(Socket socket) throws IOException, JSONException, InterruptedException {
+    VmJsonReader reader = new VmJsonReader(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+
+    List<ClientCommand> unmatched = new LinkedList<ClientCommand>();
+    Map<Integer, Integer> clientIds = new HashMap<Integer, Integer>();
+    long previousTime = messages.isEmpty() ? 0 : messages.get(0).time;
+
+    for (VmTrafficReader.Message message : messages) {
+      if (message.command) {
+        JSONObject command = new JSONObject(message.text);
+        clientIds.put(command.getInt("id"), waitForCommand(reader, getKey(command), unmatched));
+      }
+      else {
+        if (speedUp > 0 && message.time > previousTime) {
+          Thread.sleep((long)((message.time - previousTime) / speedUp));
+        }
+
+        out.write(withClientId(message.text, clientIds).getBytes(UTF8));
+        out.flush();
+      }
+
+      previousTime = message.time;
+    }
+  }
+
+  private static int waitForCommand(VmJsonReader reader, String key, List<ClientCommand> unmatched) throws IOException, JSONException {
+    for (Iterator<ClientCommand> iterator = unmatched.iterator(); iterator.hasNext(); ) {
+      ClientCommand command = iterator.next();
+
+      if (command.key.equals(key)) {
+        iterator.remove();
+        return command.id;
+      }
+    }
+
+    while (true) {
+      reader.readFrame();
+
+      JSONObject command = VmJsonReader.parse(reader.getFrameBytes(), reader.getFrameLength());
+      String commandKey = getKey(command);
+
+      if (commandKey.equals(key)) {
+        return command.getInt("id");
+      }
+
+      unmatched.add(new ClientCommand(commandKey, command.getInt("id")));
+    }
+  }
+
+  private static String withClientId(String text, Map<Integer, Integer> clientIds) {
+    JSONObject object;
+
+    try {
+      object = new JSONObject(text);
+    }
+    catch (JSONException e) {
+      // e.g. unescaped new lines in exception text; such messages are passed as is
+      return text;
+    }
+
+    try {
+      if (object.has("id") && clientIds.containsKey(object.getInt("id"))) {
+        object.put("id", clientIds.get(object.getInt("id")).intValue());
+        return object.toString();
+      }
+    }
+    catch (JSONException e) {
+      // not a numeric id
+    }
+
+    return text;
+  }
+
+  /**
+   * Text of a command without its id, with keys sorted.
+   */
+  private static String getKey(JSONObject command) throws JSONException {
+    StringBuilder builder = new StringBuilder();
+    appendSorted(builder, command, true);
+    return builder.toString();
+  }
+
+  private static void appendSorted(StringBuilder builder, Object value, boolean skipId) throws JSONException {
+    if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject)value;
+      List<String> keys = new ArrayList<String>();
+
+      for (Iterator iterator = object.keys(); iterator.hasNext(); ) {
+        String key = (String)iterator.next();
+
+        if (!(skipId && "id".equals(key))) {
+          keys.add(key);
+        }
+      }
+
+      Collections.sort(keys);
+      builder.append('{');
+
+      for (String key : keys) {
+        builder.append(JSONObject.quote(key)).append(':');
+        appendSorted(builder, object.get(key), false);
+        builder.append(',');
+      }
+
+      builder.append('}');
+    }
+    else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray)value;
+      builder.append('[');
+
+      for (int i = 0; i < array.length(); i++) {
+        appendSorted(builder, array.get(i), false);
+        builder.append(',');
+      }
+
+      builder.append(']');
+    }
+    else if (value instanceof String) {
+      builder.append(JSONObject.quote((String)value));
+    }
+    else {
+      builder.append(value);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a session written by {@link VmTrafficRecorder}.
+ */
+class VmTrafficReader {
+  static class Message {
+    final long time;
+    final boolean command;
+    final String text;
+
+    Message(long time, boolean command, String text) {
+      this.time = time;
+      this.command = command;
+      this.text = text;
+    }
+  }
+
+  private VmTrafficReader() {
+  }
+
+  static List<Message> read(File file) throws IOException {
+    List<Message> messages = new ArrayList<Message>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), VmTrafficRecorder.UTF8));
+
+    try {
+      String header;
+
+      while ((header = reader.readLine()) != null) {
+        if (header.length() == 0) {
+          continue;
+        }
+
+        String[] parts = header.split(" ");
+
+        if (parts.length != 3 || !(">".equals(parts[1]) || "<".equals(parts[1]))) {
+          throw new IOException("bad message header: " + header);
+        }
+
+        char[] text = new char[Integer.parseInt(parts[2])];
+        int read = 0;
+
+        while (read < text.length) {
+          int count = reader.read(text, read, text.length - read);
+
+          if (count == -1) {
+            throw new EOFException("message is cut: " + header);
+          }
+
+          read += count;
+        }
+
+        // line break after the message
+        reader.readLine();
+
+        messages.add(new Message(Long.parseLong(parts[0]), ">".equals(parts[1]), new String(text)));
+      }
+    }
+    finally {
+      reader.close();
+    }
+
+    return messages;
+  }
+}
@@ -0,0 +1,149 @@
+package com.jetbrains.lang.dart.performance;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.impl.PsiManagerEx;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+import com.jetbrains.lang.dart.DartComponentType;
+import com.jetbrains.lang.dart.ide.index.DartSymbolIndex;
+import com.jetbrains.lang.dart.ide.index.DartSymbolNavigationItem;
+import com.jetbrains.lang.dart.psi.DartClass;
+import com.jetbrains.lang.dart.psi.DartComponent;
+import com.jetbrains.lang.dart.util.DartResolveUtil;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Go to Symbol and Go to Class lookups built from {@link DartSymbolIndex} values. The lookup is checked and timed against the same
+ * declarations found in PSI of the files that contain the name, as it was done before the index stored kinds and offsets.
+ * <p/>
+ * The project size of the benchmark is set by the <code>dart.performance.symbol.files</code> system property; each file declares
+ * 10 classes.
+ */
+public class DartGotoSymbolPerformanceTest extends DartCodeInsightFixtureTestCase {
+  private static final int FILE_COUNT = Integer.getInteger("dart.performance.symbol.files", 1000);
+  private static final int SMALL_FILE_COUNT = 10;
+  private static final int CLASSES_PER_FILE = 10;
+
+  private final ThrowableRunnable<RuntimeException> myUnloadPsi = new ThrowableRunnable<RuntimeException>() {
+    @Override
+    public void run() {
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          ((PsiManagerEx)PsiManager.getInstance(getProject())).getFileManager().cleanupForNextTest();
+        }
+      });
+    }
+  };
+
+  @Override
+  protected boolean shouldRunTest() {
+    // timings are checked only in the performance test suite
+    return super.shouldRunTest() && (!"testGotoSymbol".equals(getName()) || DartPerformanceTestUtil.isPerformanceTestRun());
+  }
+
+  public void testGotoSymbol() throws Exception {
+    new DartSyntheticProjectGenerator(myFixture).addClassHierarchy("symbols", FILE_COUNT, CLASSES_PER_FILE);
+    // 'run' is declared in the base class and in every subclass
+    final int expectedCount = FILE_COUNT * CLASSES_PER_FILE + 1;
+    final GlobalSearchScope scope = GlobalSearchScope.projectScope(getProject());
+
+    final ThrowableRunnable<RuntimeException> indexLookup = new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        assertEquals(expectedCount, DartSymbolIndex.getItemsByName("run", getProject(), scope, null).size());
+      }
+    };
+    final ThrowableRunnable<RuntimeException> psiWalk = new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        assertEquals(expectedCount, countInPsi("run", scope));
+      }
+    };
+
+    DartPerformanceTestUtil.assertTiming("goto.symbol.index", 500, myUnloadPsi, indexLookup);
+
+    // the baseline: PSI of the files that contain the name, as Go to Symbol did before the index stored kinds and offsets
+    final long indexTime = measure(indexLookup);
+    final long psiTime = measure(psiWalk);
+    System.out.println("Go to Symbol for " + expectedCount + " declarations: index " + indexTime + " ms, PSI " + psiTime + " ms");
+    assertTrue("index lookup (" + indexTime + " ms) is not faster than the PSI walk (" + psiTime + " ms)", indexTime < psiTime);
+  }
+
+  public void testNavigationAfterChange() throws Exception {
+    new DartSyntheticProjectGenerator(myFixture).addClassHierarchy("symbols", SMALL_FILE_COUNT, CLASSES_PER_FILE);
+    final String name = "Symbols" + (SMALL_FILE_COUNT / 2) + "_3";
+    final DartSymbolNavigationItem item =
+      DartSymbolIndex.getItemsByName(name, getProject(), GlobalSearchScope.projectScope(getProject()), DartComponentType.CLASS).get(0);
+
+    myFixture.openFileInEditor(item.getFile());
+    final Document document = myFixture.getEditor().getDocument();
+    WriteCommandAction.runWriteCommandAction(getProject(), new Runnable() {
+      @Override
+      public void run() {
+        document.insertString(0, "// shifts all offsets\n");
+        PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+      }
+    });
+
+    item.navigate(true);
+    final Editor editor = FileEditorManager.getInstance(getProject()).getSelectedTextEditor();
+    assertNotNull(editor);
+    assertTrue(document.getText().startsWith(name, editor.getCaretModel().getOffset()));
+  }
+
+  /**
+   * @return time of {@link DartPerformanceTestUtil#ITERATIONS} runs of the operation with PSI unloaded before each run, in ms
+   */
+  private long measure(final ThrowableRunnable<RuntimeException> operation) {
+    long total = 0;
+    for (int i = 0; i < DartPerformanceTestUtil.ITERATIONS; i++) {
+      myUnloadPsi.run();
+      final long start = System.nanoTime();
+      operation.run();
+      total += System.nanoTime() - start;
+    }
+    return total / 1000000;
+  }
+
+  public void testGotoClass() throws Exception {
+    new DartSyntheticProjectGenerator(myFixture).addClassHierarchy("symbols", SMALL_FILE_COUNT, CLASSES_PER_FILE);
+    final String name = "Symbols" + (SMALL_FILE_COUNT / 2) + "_3";
+    final List<DartSymbolNavigationItem> items =
+      DartSymbolIndex.getItemsByName(name, getProject(), GlobalSearchScope.projectScope(getProject()), DartComponentType.CLASS);
+
+    assertEquals(1, items.size());
+    final DartSymbolNavigationItem item = items.get(0);
+    assertEquals("symbols" + (SMALL_FILE_COUNT / 2) + ".dart", item.getFile().getName());
+    assertNull(item.getInfo().getContainerName());
+
+    final String text = new String(item.getFile().contentsToByteArray(), "UTF-8");
+    assertTrue(text.startsWith(name, item.getInfo().getOffset()));
+  }
+
+  private int countInPsi(final String name, final GlobalSearchScope scope) {
+    int count = 0;
+    final Collection<VirtualFile> files = FileBasedIndex.getInstance().getContainingFiles(DartSymbolIndex.DART_SYMBOL_INDEX, name, scope);
+    for (VirtualFile file : files) {
+      final PsiFile psiFile = PsiManager.getInstance(getProject()).findFile(file);
+      for (DartClass dartClass : DartResolveUtil.getClassDeclarations(psiFile)) {
+        for (DartComponent component : DartResolveUtil.getNamedSubComponents(dartClass)) {
+          if (name.equals(component.getName())) count++;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,46 @@
+package com.jetbrains.lang.dart.performance;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Timing checks of the Dart performance tests, done by {@link PlatformTestUtil#startPerformanceTest} which adjusts the expected time to
+ * the machine speed, retries slow attempts and reports the results.
+ * <p/>
+ * These tests are slow and depend on the machine load, so they run only in the performance test suite, i.e. with the
+ * <code>idea.performance.tests</code> system property set. The expected time of an operation may be overridden with the
+ * <code>dart.performance.&lt;name&gt;</code> system property, in ms.
+ */
+class DartPerformanceTestUtil {
+  static final int ITERATIONS = Integer.getInteger("dart.performance.iterations", 30);
+
+  private DartPerformanceTestUtil() {
+  }
+
+  static boolean isPerformanceTestRun() {
+    return Boolean.getBoolean("idea.performance.tests");
+  }
+
+  /**
+   * Runs <code>setUp</code> and <code>operation</code> {@link #ITERATIONS} times per attempt; a single run is too short to be measured
+   * reliably. <code>setUp</code> is supposed to be cheap compared to <code>operation</code>.
+   */
+  static void assertTiming(@NotNull final String name,
+                           final long expectedMsPerRun,
+                           @Nullable final ThrowableRunnable<?> setUp,
+                           @NotNull final ThrowableRunnable<?> operation) {
+    final long expectedMs = Long.getLong("dart.performance." + name, expectedMsPerRun) * ITERATIONS;
+
+    PlatformTestUtil.startPerformanceTest("Dart " + name + ", " + ITERATIONS + " runs", (int)expectedMs, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int i = 0; i < ITERATIONS; i++) {
+          if (setUp != null) setUp.run();
+          operation.run();
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+}
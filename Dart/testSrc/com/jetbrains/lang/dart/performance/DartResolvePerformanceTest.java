@@ -0,0 +1,166 @@
+package com.jetbrains.lang.dart.performance;
+
+import com.google.dart.engine.context.AnalysisContext;
+import com.intellij.codeInsight.TargetElementUtilBase;
+import com.intellij.codeInsight.daemon.impl.AnnotationHolderImpl;
+import com.intellij.codeInsight.lookup.LookupElement;
+import com.intellij.codeInsight.lookup.LookupManager;
+import com.intellij.codeInsight.navigation.GotoImplementationHandler;
+import com.intellij.codeInsight.navigation.GotoTargetHandler;
+import com.intellij.lang.annotation.AnnotationSession;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiReference;
+import com.intellij.psi.impl.PsiModificationTrackerImpl;
+import com.intellij.psi.impl.source.resolve.ResolveCache;
+import com.intellij.util.ThrowableRunnable;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+import com.jetbrains.lang.dart.analyzer.DartInProcessAnnotator;
+import com.jetbrains.lang.dart.ide.index.DartClassHierarchyGraph;
+import com.jetbrains.lang.dart.psi.DartClassResolveCache;
+import com.jetbrains.lang.dart.util.DartLibraryNamespaceService;
+import com.jetbrains.lang.dart.util.DartUrlResolverCache;
+
+/**
+ * Latency of resolve, completion, implementations search and in-process analysis on big generated projects.
+ * <p/>
+ * Each operation runs after caches that depend on PSI modification have been dropped, as it happens after any change in the editor,
+ * together with the Dart resolve caches. Runs only in the performance test suite, see {@link DartPerformanceTestUtil}.
+ */
+public class DartResolvePerformanceTest extends DartCodeInsightFixtureTestCase {
+  private final ThrowableRunnable<RuntimeException> myDropCaches = new ThrowableRunnable<RuntimeException>() {
+    @Override
+    public void run() {
+      ((PsiModificationTrackerImpl)PsiManager.getInstance(getProject()).getModificationTracker()).incCounter();
+      ResolveCache.getInstance(getProject()).clearCache(true);
+      DartClassResolveCache.getInstance(getProject()).clear();
+      DartClassHierarchyGraph.getInstance(getProject()).reset();
+      DartLibraryNamespaceService.getInstance(getProject()).clear();
+      DartUrlResolverCache.getInstance(getProject()).clear();
+    }
+  };
+
+  private DartSyntheticProjectGenerator myGenerator;
+
+  @Override
+  protected boolean shouldRunTest() {
+    return super.shouldRunTest() && DartPerformanceTestUtil.isPerformanceTestRun();
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myGenerator = new DartSyntheticProjectGenerator(myFixture);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myGenerator = null;
+    super.tearDown();
+  }
+
+  public void testResolveThroughExportChain() throws Exception {
+    final String library = myGenerator.addExportChain("chain", 40, 20);
+    myFixture.configureByText("main.dart", "import '" + library + "';\n\n" +
+                                           "main() {\n  new Chain<caret>Target().targetMethod();\n}\n");
+    doTestResolve("resolve.export.chain", 200, "ChainTarget");
+  }
+
+  public void testResolveInLibraryWithManyParts() throws Exception {
+    final String library = myGenerator.addLibraryWithParts("parts", 200, 10);
+    myFixture.configureByText("main.dart", "import '" + library + "';\n\n" +
+                                           "main() {\n  new PartsPart199_9().meth<caret>od9(1);\n}\n");
+    doTestResolve("resolve.parts", 200, "method9");
+  }
+
+  public void testResolveMemberInClassHierarchy() throws Exception {
+    myGenerator.addClassHierarchy("hierarchy", 10, 50);
+    myFixture.configureByText("main.dart", "import 'hierarchy9.dart';\n\n" +
+                                           "main() {\n  new Hierarchy9_49().r<caret>un();\n}\n");
+    doTestResolve("resolve.hierarchy", 200, "run");
+  }
+
+  public void testCompletion() throws Exception {
+    final String chain = myGenerator.addExportChain("chain", 20, 50);
+    final String parts = myGenerator.addLibraryWithParts("parts", 100, 10);
+    myFixture.configureByText("main.dart", "import '" + chain + "';\nimport '" + parts + "';\n\n" +
+                                           "main() {\n  Pa<caret>\n}\n");
+
+    DartPerformanceTestUtil.assertTiming("completion", 500, myDropCaches, new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        final LookupElement[] elements = myFixture.completeBasic();
+        assertNotNull(elements);
+        assertTrue(elements.length > 0);
+        LookupManager.getInstance(getProject()).hideActiveLookup();
+      }
+    });
+  }
+
+  public void testImplementationsSearch() throws Exception {
+    myGenerator.addClassHierarchy("hierarchy", 20, 50);
+    myFixture.configureByText("main.dart", "import 'hierarchy_base.dart';\n\n" +
+                                           "class Main implements Hierarchy<caret>Base {\n  void run() {}\n}\n");
+
+    DartPerformanceTestUtil.assertTiming("implementations", 1000, myDropCaches, new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        final GotoTargetHandler.GotoData data =
+          new GotoImplementationHandler().getSourceAndTargetElements(myFixture.getEditor(), myFixture.getFile());
+        assertNotNull(data);
+        assertTrue(data.targets.length >= 20);
+      }
+    });
+  }
+
+  public void testInProcessAnnotator() throws Exception {
+    final String chain = myGenerator.addExportChain("chain", 20, 20);
+    final String parts = myGenerator.addLibraryWithParts("parts", 50, 10);
+    myFixture.configureByText("main.dart", "import '" + chain + "';\nimport '" + parts + "';\n\n" +
+                                           "main() {\n  new ChainTarget().targetMethod();\n  new PartsPart49_9().method9(1);\n}\n");
+
+    final ThrowableRunnable<RuntimeException> changeFile = new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        // the annotated file is changed each time as if the user typed in it
+        final Document document = myFixture.getEditor().getDocument();
+        WriteCommandAction.runWriteCommandAction(getProject(), new Runnable() {
+          @Override
+          public void run() {
+            document.insertString(document.getTextLength(), "\n");
+            PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+          }
+        });
+        myDropCaches.run();
+      }
+    };
+
+    DartPerformanceTestUtil.assertTiming("annotator", 2000, changeFile, new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        final DartInProcessAnnotator annotator = new DartInProcessAnnotator();
+        final DartInProcessAnnotator.DartAnnotatorInfo annotatorInfo = annotator.collectInformation(myFixture.getFile());
+        assertNotNull(annotatorInfo);
+        final AnalysisContext analysisContext = annotator.doAnnotate(annotatorInfo);
+        annotator.apply(myFixture.getFile(), analysisContext, new AnnotationHolderImpl(new AnnotationSession(myFixture.getFile())));
+      }
+    });
+  }
+
+  private void doTestResolve(final String name, final long allowedMs, final String expectedName) throws Exception {
+    final PsiReference reference = TargetElementUtilBase.findReference(myFixture.getEditor(), myFixture.getCaretOffset());
+    assertNotNull(reference);
+
+    DartPerformanceTestUtil.assertTiming(name, allowedMs, myDropCaches, new ThrowableRunnable<RuntimeException>() {
+      @Override
+      public void run() {
+        final PsiElement target = reference.resolve();
+        assertNotNull(target);
+        assertEquals(expectedName, target.getText());
+      }
+    });
+  }
+}
@@ -0,0 +1,107 @@
+package com.jetbrains.lang.dart.performance;
+
+import com.intellij.testFramework.fixtures.CodeInsightTestFixture;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adds generated Dart libraries to the test project. All names are prefixed to let several generated structures live in one project.
+ */
+class DartSyntheticProjectGenerator {
+  private final CodeInsightTestFixture myFixture;
+
+  DartSyntheticProjectGenerator(@NotNull final CodeInsightTestFixture fixture) {
+    myFixture = fixture;
+  }
+
+  /**
+   * <code>&lt;prefix&gt;0.dart</code> exports <code>&lt;prefix&gt;1.dart</code> and so on; each library declares
+   * <code>classesPerLibrary</code> classes, the last one also declares <code>&lt;Prefix&gt;Target</code> class.
+   *
+   * @return name of the first library of the chain
+   */
+  @NotNull
+  String addExportChain(@NotNull final String prefix, final int depth, final int classesPerLibrary) {
+    for (int i = 0; i < depth; i++) {
+      final StringBuilder text = new StringBuilder();
+      text.append("library ").append(prefix).append(i).append(";\n\n");
+      if (i < depth - 1) {
+        text.append("export '").append(prefix).append(i + 1).append(".dart';\n\n");
+      }
+      else {
+        text.append("class ").append(capitalize(prefix)).append("Target {\n  int targetField;\n  void targetMethod() {}\n}\n\n");
+      }
+      appendClasses(text, capitalize(prefix) + i + "_", classesPerLibrary);
+      myFixture.addFileToProject(prefix + i + ".dart", text.toString());
+    }
+    return prefix + "0.dart";
+  }
+
+  /**
+   * <code>&lt;prefix&gt;.dart</code> library consists of <code>partCount</code> parts, each declaring <code>classesPerPart</code>
+   * classes and a top-level function.
+   *
+   * @return name of the library file
+   */
+  @NotNull
+  String addLibraryWithParts(@NotNull final String prefix, final int partCount, final int classesPerPart) {
+    final StringBuilder library = new StringBuilder();
+    library.append("library ").append(prefix).append(";\n\n");
+    for (int i = 0; i < partCount; i++) {
+      library.append("part '").append(prefix).append("_part").append(i).append(".dart';\n");
+
+      final StringBuilder part = new StringBuilder();
+      part.append("part of ").append(prefix).append(";\n\n");
+      part.append("int ").append(prefix).append("Function").append(i).append("(int a) => a + ").append(i).append(";\n\n");
+      appendClasses(part, capitalize(prefix) + "Part" + i + "_", classesPerPart);
+      myFixture.addFileToProject(prefix + "_part" + i + ".dart", part.toString());
+    }
+    myFixture.addFileToProject(prefix + ".dart", library.toString());
+    return prefix + ".dart";
+  }
+
+  /**
+   * <code>&lt;Prefix&gt;Base</code> class and <code>fileCount * classesPerFile</code> classes that extend it, implement it or mix it
+   * in, directly or through chains of subclasses.
+   *
+   * @return name of the library that declares the base class
+   */
+  @NotNull
+  String addClassHierarchy(@NotNull final String prefix, final int fileCount, final int classesPerFile) {
+    final String base = capitalize(prefix) + "Base";
+    myFixture.addFileToProject(prefix + "_base.dart", "library " + prefix + "_base;\n\n" +
+                                                      "abstract class " + base + " {\n  void run();\n}\n");
+
+    for (int i = 0; i < fileCount; i++) {
+      final StringBuilder text = new StringBuilder();
+      text.append("library ").append(prefix).append(i).append(";\n\n");
+      text.append("import '").append(prefix).append("_base.dart';\n\n");
+      for (int j = 0; j < classesPerFile; j++) {
+        final String name = capitalize(prefix) + i + "_" + j;
+        final String supertype = j % 5 == 0 ? "implements " + base
+                                            : j % 5 == 1 ? "extends Object with " + base
+                                                         : "extends " + capitalize(prefix) + i + "_" + (j - 1);
+        text.append("class ").append(name).append(" ").append(supertype).append(" {\n");
+        text.append("  void run() {}\n");
+        text.append("}\n\n");
+      }
+      myFixture.addFileToProject(prefix + i + ".dart", text.toString());
+    }
+    return prefix + "_base.dart";
+  }
+
+  private static void appendClasses(@NotNull final StringBuilder text, @NotNull final String namePrefix, final int count) {
+    for (int i = 0; i < count; i++) {
+      text.append("class ").append(namePrefix).append(i).append(" {\n");
+      text.append("  int field").append(i).append(" = ").append(i).append(";\n");
+      text.append("  int method").append(i).append("(int a) {\n");
+      text.append("    return a + field").append(i).append(";\n");
+      text.append("  }\n");
+      text.append("}\n\n");
+    }
+  }
+
+  @NotNull
+  private static String capitalize(@NotNull final String s) {
+    return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+  }
+}
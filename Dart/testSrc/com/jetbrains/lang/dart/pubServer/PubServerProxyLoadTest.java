@@ -0,0 +1,195 @@
+package com.jetbrains.lang.dart.pubServer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for pub serve proxy connections: a local stub HTTP server plays the role of pub serve.
+ */
+public class PubServerProxyLoadTest extends TestCase {
+  private static final int MAX_CONNECTIONS = 4;
+  private static final int REQUEST_COUNT = 500;
+
+  private HttpServer myStubServer;
+  private InetSocketAddress myServerAddress;
+  private final AtomicInteger myActiveRequests = new AtomicInteger();
+  private final AtomicInteger myMaxActiveRequests = new AtomicInteger();
+
+  private NioEventLoopGroup myEventLoopGroup;
+  private PubServerChannelPool myPool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myStubServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    myStubServer.setExecutor(Executors.newFixedThreadPool(16));
+    myStubServer.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        final int active = myActiveRequests.incrementAndGet();
+        int max;
+        while ((max = myMaxActiveRequests.get()) < active && !myMaxActiveRequests.compareAndSet(max, active)) ;
+
+        try {
+          Thread.sleep(2);
+          final byte[] body = exchange.getRequestURI().getPath().getBytes(CharsetUtil.UTF_8);
+          exchange.getResponseHeaders().set("ETag", "\"" + body.length + "\"");
+          exchange.sendResponseHeaders(200, body.length);
+          final OutputStream out = exchange.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        finally {
+          myActiveRequests.decrementAndGet();
+        }
+      }
+    });
+    myStubServer.start();
+    myServerAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), myStubServer.getAddress().getPort());
+
+    myEventLoopGroup = new NioEventLoopGroup(2);
+    final Bootstrap bootstrap = new Bootstrap().group(myEventLoopGroup).channel(NioSocketChannel.class);
+    myPool = new PubServerChannelPool(bootstrap, MAX_CONNECTIONS, 1);
+    bootstrap.handler(new ChannelInitializer() {
+      @Override
+      protected void initChannel(final Channel channel) throws Exception {
+        channel.pipeline().addLast(new HttpClientCodec(), myPool.getResponseHandler());
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myPool.close();
+      myEventLoopGroup.shutdownGracefully().await(5, TimeUnit.SECONDS);
+      myStubServer.stop(0);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testParallelRequests() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(REQUEST_COUNT);
+    final AtomicInteger failures = new AtomicInteger();
+    final Map<String, String> responses = new ConcurrentHashMap<String, String>();
+
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      final String path = "/packages/pkg/file" + i + ".dart";
+      final FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+      HttpHeaders.setKeepAlive(request, true);
+      HttpHeaders.setHost(request, "127.0.0.1:" + myServerAddress.getPort());
+
+      myPool.send(myServerAddress, request, new PubServerChannelPool.ResponseConsumer() {
+        private final StringBuilder myContent = new StringBuilder();
+
+        @Override
+        public void consume(@NotNull final HttpObject message) {
+          try {
+            if (message instanceof HttpContent) {
+              myContent.append(((HttpContent)message).content().toString(CharsetUtil.UTF_8));
+            }
+            if (message instanceof LastHttpContent) {
+              responses.put(path, myContent.toString());
+              latch.countDown();
+            }
+          }
+          finally {
+            ReferenceCountUtil.release(message);
+          }
+        }
+
+        @Override
+        public void failed() {
+          failures.incrementAndGet();
+          latch.countDown();
+        }
+      });
+    }
+
+    assertTrue("requests timed out", latch.await(60, TimeUnit.SECONDS));
+
+    assertEquals(0, failures.get());
+    assertEquals(REQUEST_COUNT, responses.size());
+    for (Map.Entry<String, String> entry : responses.entrySet()) {
+      assertEquals(entry.getKey(), entry.getValue());
+    }
+    assertTrue("max parallel requests: " + myMaxActiveRequests.get(), myMaxActiveRequests.get() <= MAX_CONNECTIONS);
+    assertTrue(myPool.getOpenConnectionCount(myServerAddress) <= MAX_CONNECTIONS);
+  }
+
+  public void testResponseCache() throws Exception {
+    final PubServerResponseCache cache = new PubServerResponseCache();
+    final String path = "/packages/pkg/lib.dart";
+    final FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+
+    final InetSocketAddress otherServerAddress = new InetSocketAddress(myServerAddress.getAddress(), myServerAddress.getPort() + 1);
+
+    assertNull(cache.getResponse(myServerAddress, request, path));
+    assertNull(cache.startCollecting(myServerAddress, request, "/web/main.dart"));
+
+    final PubServerResponseCache.Collector collector = cache.startCollecting(myServerAddress, request, path);
+    assertNotNull(collector);
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaders.Names.ETAG, "\"1\"");
+    HttpHeaders.setTransferEncodingChunked(response);
+    collector.add(response);
+    final ByteBuf part1 = Unpooled.copiedBuffer("library ", CharsetUtil.UTF_8);
+    final ByteBuf part2 = Unpooled.copiedBuffer("lib;", CharsetUtil.UTF_8);
+    collector.add(new DefaultHttpContent(part1));
+    collector.add(new DefaultLastHttpContent(part2));
+    part1.release();
+    part2.release();
+
+    // the same path served for another directory is another asset
+    assertNull(cache.getResponse(otherServerAddress, request, path));
+
+    final FullHttpResponse cached = cache.getResponse(myServerAddress, request, path);
+    assertNotNull(cached);
+    assertEquals(HttpResponseStatus.OK, cached.getStatus());
+    assertEquals("library lib;", cached.content().toString(CharsetUtil.UTF_8));
+    assertEquals(12, HttpHeaders.getContentLength(cached));
+    assertFalse(HttpHeaders.isTransferEncodingChunked(cached));
+    cached.release();
+
+    request.headers().set(HttpHeaders.Names.IF_NONE_MATCH, "\"1\"");
+    final FullHttpResponse notModified = cache.getResponse(myServerAddress, request, path);
+    assertNotNull(notModified);
+    assertEquals(HttpResponseStatus.NOT_MODIFIED, notModified.getStatus());
+    notModified.release();
+
+    cache.clear();
+    assertNull(cache.getResponse(myServerAddress, request, path));
+    request.release();
+  }
+}
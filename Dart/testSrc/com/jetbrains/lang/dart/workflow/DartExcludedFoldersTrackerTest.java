@@ -0,0 +1,117 @@
+package com.jetbrains.lang.dart.workflow;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.roots.ContentEntry;
+import com.intellij.openapi.roots.ExcludeFolder;
+import com.intellij.openapi.roots.ModifiableRootModel;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.ui.UIUtil;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DartExcludedFoldersTrackerTest extends DartCodeInsightFixtureTestCase {
+
+  public void testFoldersCreatedAndDeleted() throws Exception {
+    final String rootUrl = ModuleRootManager.getInstance(myModule).getContentEntries()[0].getUrl();
+
+    myFixture.addFileToProject("pkg/pubspec.yaml", "name: pkg");
+    myFixture.addFileToProject("pkg/lib/foo.dart", "");
+    myFixture.addFileToProject("pkg/web/foo.dart", "");
+    waitForTracker();
+
+    assertSameElements(getExcludeFolderUrls(),
+                       rootUrl + "/pkg/packages/pkg",
+                       rootUrl + "/pkg/web/packages");
+
+    final VirtualFile sub = myFixture.addFileToProject("pkg/web/sub/foo.dart", "").getVirtualFile().getParent();
+    myFixture.addFileToProject("pkg/bin/foo.dart", "");
+    myFixture.addFileToProject("pkg/lib/sub/foo.dart", "");
+    // pub creates 'packages' folders and symlinks in them, nothing in them is excluded
+    myFixture.addFileToProject("pkg/web/packages/pkg/foo.dart", "");
+    waitForTracker();
+
+    assertSameElements(getExcludeFolderUrls(),
+                       rootUrl + "/pkg/packages/pkg",
+                       rootUrl + "/pkg/web/packages",
+                       rootUrl + "/pkg/web/sub/packages",
+                       rootUrl + "/pkg/bin/packages");
+
+    delete(sub);
+    waitForTracker();
+
+    assertSameElements(getExcludeFolderUrls(),
+                       rootUrl + "/pkg/packages/pkg",
+                       rootUrl + "/pkg/web/packages",
+                       rootUrl + "/pkg/bin/packages");
+  }
+
+  public void testPubspecYamlDeleted() throws Exception {
+    final String rootUrl = ModuleRootManager.getInstance(myModule).getContentEntries()[0].getUrl();
+
+    final VirtualFile pubspecYamlFile = myFixture.addFileToProject("pkg/pubspec.yaml", "name: pkg").getVirtualFile();
+    myFixture.addFileToProject("pkg/test/foo.dart", "");
+    waitForTracker();
+
+    assertSameElements(getExcludeFolderUrls(), rootUrl + "/pkg/test/packages");
+
+    delete(pubspecYamlFile);
+    waitForTracker();
+
+    assertEmpty(getExcludeFolderUrls());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      // the light project is shared between tests
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        public void run() {
+          final ModifiableRootModel model = ModuleRootManager.getInstance(myModule).getModifiableModel();
+          final ContentEntry contentEntry = model.getContentEntries()[0];
+          for (ExcludeFolder excludeFolder : contentEntry.getExcludeFolders()) {
+            contentEntry.removeExcludeFolder(excludeFolder);
+          }
+          model.commit();
+        }
+      });
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  private List<String> getExcludeFolderUrls() {
+    final String pkgUrl = ModuleRootManager.getInstance(myModule).getContentEntries()[0].getUrl() + "/pkg/";
+    final List<String> result = new ArrayList<String>();
+    for (String url : ModuleRootManager.getInstance(myModule).getContentEntries()[0].getExcludeFolderUrls()) {
+      if (url.startsWith(pkgUrl)) {
+        result.add(url);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The tracker updates excluded folders in a later EDT event, after the VFS events are over.
+   */
+  private static void waitForTracker() {
+    UIUtil.dispatchAllInvocationEvents();
+  }
+
+  private static void delete(final VirtualFile file) {
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      public void run() {
+        try {
+          file.delete(this);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+}
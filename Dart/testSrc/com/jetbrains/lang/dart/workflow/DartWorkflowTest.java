@@ -7,6 +7,7 @@ import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.libraries.Library;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.ui.UIUtil;
 import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
 import com.jetbrains.lang.dart.DartProjectComponent;
 import com.jetbrains.lang.dart.util.DartTestUtils;
@@ -45,6 +46,9 @@ public class DartWorkflowTest extends DartCodeInsightFixtureTestCase {
     myFixture.addFileToProject("dir2/example/web/foo.dart", "");
     myFixture.addFileToProject("dir2/example/web/sub/foo.dart", "");
 
+    // let the tracker handle the created files first, it excludes the folders of all 3 packages
+    UIUtil.dispatchAllInvocationEvents();
+
     ApplicationManager.getApplication().runWriteAction(new Runnable() {
       public void run() {
         final ModifiableRootModel model = ModuleRootManager.getInstance(myModule).getModifiableModel();
@@ -83,7 +87,11 @@ public class DartWorkflowTest extends DartCodeInsightFixtureTestCase {
                        rootUrl + "/dir2/example/lib/sub/packages",
                        rootUrl + "/dir2/example/web/packages",
                        rootUrl + "/dir2/example/web/sub/packages",
-                       rootUrl + "/dir2/example/packages/oldProject3Name"
+                       rootUrl + "/dir2/example/packages/oldProject3Name",
+                       rootUrl + "/dir2/example/packages/project3",
+                       rootUrl + "/dir2/example/packages/project2",
+                       // dir1/someFolder was not excluded yet when the tracker handled the created files
+                       rootUrl + "/dir2/example/packages/outside_project"
     );
 
     DartProjectComponent.excludePackagesFolders(myModule, pubspec3);
@@ -22,13 +22,15 @@ import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.StringUtil;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * @author Kir
  */
 public class SearchHistoryCommand implements UserCommand {
+  private static final int MAX_RESULTS = 1000;
+
   private final LocalMessageDispatcher myMessageDispatcher;
   private final IDEFacade myIdeFacade;
   private User myUser;
@@ -45,13 +47,7 @@ public class SearchHistoryCommand implements UserCommand {
         StringUtil.getMsg("search"));
 
     if (searchString != null) {
-      LocalMessage[] localMessages = myMessageDispatcher.getHistory(myUser, null);
-      List<LocalMessage> result = new ArrayList<LocalMessage>();
-      for (LocalMessage message : localMessages) {
-        if (message.containsString(searchString)) {
-          result.add(message);
-        }
-      }
+      List<LocalMessage> result = Arrays.asList(myMessageDispatcher.searchHistory(myUser, searchString, MAX_RESULTS));
 
       if (result.size() == 0) {
         myIdeFacade.showMessage(StringUtil.getMsg("SearchHistoryCommand.search.history", myUser.getDisplayName()),
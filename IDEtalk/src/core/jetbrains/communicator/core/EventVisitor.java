@@ -22,6 +22,7 @@ import jetbrains.communicator.core.transport.StacktraceEvent;
 import jetbrains.communicator.core.transport.TransportEvent;
 import jetbrains.communicator.core.users.GroupEvent;
 import jetbrains.communicator.core.users.SettingsChanged;
+import jetbrains.communicator.core.users.UserBatchEvent;
 import jetbrains.communicator.core.users.UserEvent;
 import jetbrains.communicator.ide.OwnMessageEvent;
 import jetbrains.communicator.ide.SendCodePointerEvent;
@@ -47,6 +48,12 @@ public class EventVisitor {
     visitUserEvent(event);
   }
 
+  public void visitUserBatch(UserBatchEvent event) {
+    for (UserEvent userEvent : event.getEvents()) {
+      userEvent.accept(this);
+    }
+  }
+
   public void visitGroupEvent(GroupEvent event) {
   }
 
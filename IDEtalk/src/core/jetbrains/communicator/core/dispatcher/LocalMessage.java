@@ -30,4 +30,11 @@ public interface LocalMessage extends Message {
 
   /** This method is used when searching messages by pattern */
   boolean containsString(String searchString);
+
+  /**
+   * Text used to index messages for search: every string for which {@link #containsString} returns true
+   * must be a substring of it.
+   * @return the text, or null if the message has to be checked with {@link #containsString} on every search
+   */
+  String getSearchableText();
 }
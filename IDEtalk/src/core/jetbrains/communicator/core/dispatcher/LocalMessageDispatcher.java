@@ -17,6 +17,7 @@
 package jetbrains.communicator.core.dispatcher;
 
 import jetbrains.communicator.core.users.User;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.util.Date;
@@ -37,6 +38,15 @@ public interface LocalMessageDispatcher extends MessageDispatcher {
   /** Oldest messages go first */
   LocalMessage[] getHistory(User user, Date since);
 
+  /** Number of messages returned by {@link #getHistory(User, Date)} */
+  int getHistorySize(User user, @Nullable Date since);
+
+  /** At most count messages of {@link #getHistory(User, Date)}, starting with the message number from */
+  LocalMessage[] getHistory(User user, @Nullable Date since, int from, int count);
+
+  /** At most maxCount latest messages which contain searchString, oldest messages go first */
+  LocalMessage[] searchHistory(User user, String searchString, int maxCount);
+
   void clearHistory();
   boolean isHistoryEmpty();
 }
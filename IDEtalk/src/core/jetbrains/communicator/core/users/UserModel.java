@@ -19,6 +19,8 @@ package jetbrains.communicator.core.users;
 import jetbrains.communicator.core.EventBroadcaster;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collection;
+
 /**
  * @author Kir Maximov
  */
@@ -35,6 +37,12 @@ public interface UserModel {
   /** remove user from contact list*/
   void removeUser(User user);
 
+  /** add users which are not in contact list yet publishing one {@link UserBatchEvent} */
+  void addUsers(Collection<User> users);
+
+  /** remove users from contact list publishing one {@link UserBatchEvent} */
+  void removeUsers(Collection<User> users);
+
   String[] getGroups();
   
   /**@return actually set name */
@@ -222,6 +222,11 @@ public class VFile implements Comparable, Cloneable {
             StringUtil.containedIn(getFQName(), searchString);
   }
 
+  /** @return text containing every string found by {@link #containsSearchString} */
+  public String getSearchableText() {
+    return StringUtil.joinSearchable(getContentPath(), getSourcePath(), getFullPath(), getFQName());
+  }
+
   private static String getNullableItem(List v, int index) {
     if (com.intellij.openapi.util.text.StringUtil.isEmptyOrSpaces((String)v.get(index))) return null;
     return v.get(index).toString();
@@ -156,4 +156,18 @@ public class StringUtil {
   public static boolean containedIn(@Nullable String s, @NotNull String searched) {
     return s != null && s.contains(searched);
   }
+
+  /**
+   * @return non-null strings separated by line breaks; a string found by {@link #containedIn} in any of them
+   * is found in the result as well
+   */
+  public static String joinSearchable(String... strings) {
+    StringBuilder result = new StringBuilder();
+    for (String s : strings) {
+      if (s == null) continue;
+      if (result.length() > 0) result.append('\n');
+      result.append(s);
+    }
+    return result.toString();
+  }
 }
@@ -30,7 +30,9 @@ import org.apache.log4j.Logger;
 import org.picocontainer.Disposable;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Kir
@@ -45,7 +47,10 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   private final Object myUser2MessagesLock = new Object();
   private final Map<User,List<Message>> myUser2Messages = new HashMap<User, List<Message>>();
   private final EventBroadcaster myEventBroadcaster;
-  private boolean myDispatching;
+  private final AtomicInteger myDispatchesInProgress = new AtomicInteger();
+  private MessageJournal myJournal;
+  /** the XML file of previous versions, deleted when the journal has been written */
+  private File myXmlFileToDelete;
 
   protected AbstractMessageDispatcher(EventBroadcaster eventBroadcaster, File dataDir) {
     myDataDir = dataDir;
@@ -56,6 +61,11 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
 
   public void dispose() {
     myEventListener.dispose();
+    synchronized (myUser2MessagesLock) {
+      if (myJournal != null) {
+        myJournal.close();
+      }
+    }
     //noinspection HardCodedStringLiteral
     LOG.debug("Disposed.");
   }
@@ -64,7 +74,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
 
   protected boolean performDispatch(User user, Message message) {
     try {
-      myDispatching = true;
+      myDispatchesInProgress.incrementAndGet();
       if (LOG.isDebugEnabled()) {
         //noinspection HardCodedStringLiteral
         LOG.debug("Start dispatching " + message + " to " + user);
@@ -74,13 +84,22 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
       synchronized(myUser2MessagesLock) {
         List<Message> userMessages = getMessages(user);
         if (result) {
-          userMessages.remove(message);
+          int index = userMessages.indexOf(message);
+          if (index >= 0) {
+            userMessages.remove(index);
+            if (myJournal != null) {
+              myJournal.messageRemoved(user, index);
+            }
+          }
           if (userMessages.size() == 0) {
             myUser2Messages.remove(user);
           }
         }
         else if (!userMessages.contains(message) ){
           userMessages.add(message);
+          if (myJournal != null) {
+            myJournal.messageAdded(user, message);
+          }
         }
       }
 
@@ -90,7 +109,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
       }
       return result;
     } finally {
-      myDispatching = false;
+      myDispatchesInProgress.decrementAndGet();
     }
   }
 
@@ -131,7 +150,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   }
 
   boolean isMessageDispatchInProgress() {
-    return myDispatching;
+    return myDispatchesInProgress.get() > 0;
   }
 
   protected void addPendingMessage(User user, Message message) {
@@ -145,6 +164,9 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
           LOG.debug("Added pending message " + message + "\nfor user " + user);
         }
         userMessages.add(message);
+        if (myJournal != null) {
+          myJournal.messageAdded(user, message);
+        }
         save();
       }
     }
@@ -154,6 +176,9 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     synchronized(myUser2MessagesLock) {
       List<Message> userMessages = getMessages(user);
       userMessages.remove(messageIndex);
+      if (myJournal != null) {
+        myJournal.messageRemoved(user, messageIndex);
+      }
       save();
     }
   }
@@ -161,6 +186,9 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   protected void clearAll() {
     synchronized (myUser2MessagesLock) {
       myUser2Messages.clear();
+      if (myJournal != null) {
+        myJournal.cleared();
+      }
       save();
     }
   }
@@ -176,11 +204,44 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     }
   }
 
+  /**
+   * Reads pending messages from the journal. If there is no journal yet, the messages are read from the XML file
+   * written by previous versions, which is then replaced with the journal. If the journal cannot be written,
+   * the XML file is kept and writing the journal is retried on {@link #save()}.
+   */
   protected final void load() {
     synchronized (myUser2MessagesLock) {
-      Object pendingEventsStorable = XMLUtil.fromXml(getXStream(), getFileName(), false);
-      if (pendingEventsStorable instanceof MessagesStorable) {
-        loadFromStorableMessages((MessagesStorable) pendingEventsStorable);
+      if (myJournal != null) {
+        myJournal.close();
+        myJournal = null;
+      }
+      myXmlFileToDelete = null;
+      if (myDataDir == null || !myDataDir.exists()) return;
+
+      MessageJournal journal = new MessageJournal(getJournalFile(), getXStream());
+      try {
+        File xmlFile = new File(getFileName());
+        if (!journal.exists() && xmlFile.exists()) {
+          Object pendingEventsStorable = XMLUtil.fromXml(getXStream(), getFileName(), false);
+          if (pendingEventsStorable instanceof MessagesStorable) {
+            loadFromStorableMessages((MessagesStorable) pendingEventsStorable);
+          }
+          // the journal is created from a temp file only when it is completely written, otherwise an empty
+          // journal would hide the messages of the XML file
+          if (journal.compact(createStorableMessages().getUser2Messages())) {
+            xmlFile.delete();
+          }
+          else {
+            myXmlFileToDelete = xmlFile;
+          }
+        }
+        else {
+          loadFromStorableMessages(new MessagesStorable(journal.open()));
+        }
+        myJournal = journal;
+      }
+      catch (IOException e) {
+        LOG.error("Cannot read " + journal.getFile() + ": " + e.getMessage(), e);
       }
     }
   }
@@ -194,22 +255,52 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     return new File(myDataDir, getEventsFileName()).getAbsolutePath();
   }
 
+  private File getJournalFile() {
+    String name = getEventsFileName();
+    if (name.endsWith(".xml")) {
+      name = name.substring(0, name.length() - ".xml".length());
+    }
+    return new File(myDataDir, name + ".journal");
+  }
+
   private void removeUser(User user) {
     synchronized (myUser2MessagesLock) {
-      myUser2Messages.remove(user);
+      if (myUser2Messages.remove(user) != null && myJournal != null) {
+        myJournal.userRemoved(user);
+      }
       save();
     }
   }
 
+  /**
+   * Changes are appended to the journal as they happen; this forces them to disk,
+   * or rewrites the journal when it has grown much bigger than the pending messages or could not be written.
+   */
   @SuppressWarnings({"HardCodedStringLiteral"})
   protected void save() {
-    if (myDataDir == null || !myDataDir.exists()) return;
-
-    LOG.debug("Save start");
     synchronized(myUser2MessagesLock) {
-      XMLUtil.toXml(getXStream(), getFileName(), createStorableMessages());
+      if (myJournal == null) return;
+
+      if (myJournal.needsCompaction(countMessages())) {
+        LOG.debug("Compact start");
+        if (myJournal.compact(createStorableMessages().getUser2Messages()) && myXmlFileToDelete != null) {
+          myXmlFileToDelete.delete();
+          myXmlFileToDelete = null;
+        }
+        LOG.debug("Compact finish");
+      }
+      else {
+        myJournal.sync();
+      }
     }
-    LOG.debug("Save finish");
+  }
+
+  private int countMessages() {
+    int result = 0;
+    for (List<Message> messages : myUser2Messages.values()) {
+      result += messages.size();
+    }
+    return result;
   }
 
   protected MessagesStorable createStorableMessages() {
@@ -27,31 +27,78 @@ import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.WaitFor;
 import org.apache.log4j.Logger;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
+ * Pending messages are delivered by a pool of {@link #DELIVERY_THREADS} threads, one task per user at a time,
+ * so that a peer which does not answer does not hold back messages to other users. Messages to the same user
+ * are sent in order, and delivery to the user stops at the first failed message.
+ * <p/>
+ * A delivery which takes longer than {@link #SLOW_DELIVERY_TIMEOUT} ms, e.g. the first attempt to reach a peer
+ * which does not answer, doesn't count against the pool size while it lasts, so that the pool gets a thread for
+ * other users instead.
+ * <p/>
+ * After a failure the user is retried with an exponentially growing delay, or as soon as the user comes online.
+ * Retries run on a separate pool, so peers which keep hanging cannot take all threads from the other users.
+ * Changes of the pending messages are written to disk at most once per {@link #SAVE_DELAY} ms.
+ *
  * @author Kir
  */
 public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implements AsyncMessageDispatcher, Runnable {
   private static final Logger LOG = Logger.getLogger(AsyncMessageDispatcherImpl.class);
 
   private static final String FILE_NAME = "pendingNetworkMessages.xml";
+  private static final int DELIVERY_THREADS = 4;
+  private static final long SLOW_DELIVERY_TIMEOUT = 500;
+  private static final long SAVE_DELAY = 500;
+  private static final long DISPOSE_TIMEOUT = 5000;
+
   private final MyEventListener myEventListener;
   private final IDEFacade myIdeFacade;
 
   private final Object myWorkingThreadLock = new Object();
-  private Thread myWorkingThread;
+  private volatile Thread myWorkingThread;
   private Thread myThread;
 
   private boolean myShouldDeliverNow;
 
+  // guarded by myWorkingThreadLock
+  private final Set<User> myUsersInDelivery = new HashSet<User>();
+  private final Map<User, Retry> myRetries = new HashMap<User, Retry>();
+  private long myInitialRetryDelay = 10 * 1000;
+  private long myMaxRetryDelay = 10 * 60 * 1000;
+  private long mySlowDeliveryTimeout = SLOW_DELIVERY_TIMEOUT;
+  private int mySlowDeliveries;
+
+  private final ThreadPoolExecutor myDeliveryPool;
+  private final ThreadPoolExecutor myRetryPool;
+  /** runs delayed saves and checks for slow deliveries */
+  private final ScheduledThreadPoolExecutor myScheduler;
+  private final AtomicBoolean mySaveScheduled = new AtomicBoolean();
+
   public AsyncMessageDispatcherImpl(EventBroadcaster broadcaster, IDEFacade ideFacade) {
     super(broadcaster, ideFacade.getCacheDir());
 
     myIdeFacade = ideFacade;
     myEventListener = new MyEventListener(broadcaster);
 
+    myDeliveryPool = createDeliveryPool("Network Message Delivery");
+    myRetryPool = createDeliveryPool("Network Message Retry");
+    myScheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Network Message Scheduler"));
+
     start();
   }
 
+  private static ThreadPoolExecutor createDeliveryPool(String name) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(DELIVERY_THREADS, DELIVERY_THREADS, 60, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
   private void start() {
     assert !isRunning(): "Already started";
     Thread t = new Thread(this, "Network Message Dispatcher");
@@ -75,7 +122,9 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
       while (notDisposed()) {
         synchronized(myWorkingThreadLock) {
           while (!myShouldDeliverNow && notDisposed()) {
-            myWorkingThreadLock.wait();
+            long timeout = getTimeTillNextRetry();
+            if (timeout == 0) break;
+            myWorkingThreadLock.wait(Math.max(timeout, 0));
           }
           myShouldDeliverNow = false;
         }
@@ -99,16 +148,118 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myWorkingThread != null;
   }
 
+  /** @return 0 if some user should be retried now, -1 if no retries are scheduled */
+  private long getTimeTillNextRetry() {
+    long result = -1;
+    long now = System.currentTimeMillis();
+    for (Map.Entry<User, Retry> entry : myRetries.entrySet()) {
+      if (myUsersInDelivery.contains(entry.getKey())) continue;
+
+      long timeout = Math.max(entry.getValue().myNextAttempt - now, 0);
+      if (result < 0 || timeout < result) {
+        result = timeout;
+      }
+    }
+    return result;
+  }
+
   private void dispatchAllMessages() {
     User[] usersWithMessages = getUsersWithMessages();
-    for (int i = 0; i < usersWithMessages.length && isRunning(); i++) {
-      User user = usersWithMessages[i];
-      Message[] pendingMessages = getPendingMessages(user);
-      for (int j = 0; j < pendingMessages.length && isRunning(); j++) {
-        performDispatch(user, pendingMessages[j]);
+    long now = System.currentTimeMillis();
+    synchronized(myWorkingThreadLock) {
+      myRetries.keySet().retainAll(Arrays.asList(usersWithMessages));
+      for (int i = 0; i < usersWithMessages.length && isRunning(); i++) {
+        User user = usersWithMessages[i];
+        Retry retry = myRetries.get(user);
+        if (myUsersInDelivery.contains(user) || retry != null && retry.myNextAttempt > now) continue;
+
+        myUsersInDelivery.add(user);
+        if (retry == null) {
+          myDeliveryPool.execute(new UserDelivery(user, true));
+        }
+        else {
+          myRetryPool.execute(new UserDelivery(user, false));
+        }
+      }
+    }
+  }
+
+  private boolean deliverPendingMessages(User user) {
+    Message[] pendingMessages = getPendingMessages(user);
+    for (int i = 0; i < pendingMessages.length && notDisposed(); i++) {
+      if (!performDispatch(user, pendingMessages[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void deliveryFinished(UserDelivery delivery, boolean delivered) {
+    User user = delivery.myUser;
+    synchronized(myWorkingThreadLock) {
+      delivery.myFinished = true;
+      if (delivery.mySlow) {
+        mySlowDeliveries--;
+        resizeDeliveryPool();
+      }
+
+      myUsersInDelivery.remove(user);
+      if (delivered) {
+        myRetries.remove(user);
+        if (getPendingMessages(user).length > 0) {
+          // messages were added while we were sending
+          myShouldDeliverNow = true;
+        }
+      }
+      else {
+        Retry retry = myRetries.get(user);
+        long delay = retry == null ? myInitialRetryDelay : Math.min(retry.myDelay * 2, myMaxRetryDelay);
+        myRetries.put(user, new Retry(delay));
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Delivery to " + user + " failed, retry in " + delay + " ms");
+        }
+      }
+      myWorkingThreadLock.notifyAll();
+    }
+  }
+
+  private void slowDeliveryCheck(UserDelivery delivery) {
+    synchronized(myWorkingThreadLock) {
+      if (delivery.myFinished) return;
+
+      delivery.mySlow = true;
+      mySlowDeliveries++;
+      resizeDeliveryPool();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Delivery to " + delivery.myUser + " is slow, " + mySlowDeliveries + " slow deliveries now");
       }
     }
-    save();
+  }
+
+  private void resizeDeliveryPool() {
+    int size = DELIVERY_THREADS + mySlowDeliveries;
+    // the core size must not exceed the maximum size at any moment
+    if (size > myDeliveryPool.getMaximumPoolSize()) {
+      myDeliveryPool.setMaximumPoolSize(size);
+      myDeliveryPool.setCorePoolSize(size);
+    }
+    else {
+      myDeliveryPool.setCorePoolSize(size);
+      myDeliveryPool.setMaximumPoolSize(size);
+    }
+  }
+
+  void setRetryDelays(long initialDelay, long maxDelay) {
+    synchronized(myWorkingThreadLock) {
+      myInitialRetryDelay = initialDelay;
+      myMaxRetryDelay = maxDelay;
+    }
+  }
+
+  void setSlowDeliveryTimeout(long timeout) {
+    synchronized(myWorkingThreadLock) {
+      mySlowDeliveryTimeout = timeout;
+    }
   }
 
   public void dispose() {
@@ -124,13 +275,70 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
       }
     };
 
+    // deliveries must finish before the final save, a message delivered after the journal is closed would be sent
+    // again after restart
+    myDeliveryPool.shutdown();
+    myRetryPool.shutdown();
+    boolean deliveriesFinished = awaitTermination(myDeliveryPool);
+    deliveriesFinished &= awaitTermination(myRetryPool);
+    if (!deliveriesFinished) {
+      LOG.info("Deliveries did not finish in " + DISPOSE_TIMEOUT + " ms, interrupting them");
+      myDeliveryPool.shutdownNow();
+      myRetryPool.shutdownNow();
+      awaitTermination(myDeliveryPool);
+      awaitTermination(myRetryPool);
+    }
+
+    // a delayed save must not run after the journal is closed, it is replaced with the final save below
+    myScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    myScheduler.shutdown();
+    try {
+      myScheduler.awaitTermination(SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      LOG.info(e.getMessage(), e);
+    }
+    super.save();
+
     super.dispose();
   }
 
+  private static boolean awaitTermination(ExecutorService pool) {
+    try {
+      return pool.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      LOG.info(e.getMessage(), e);
+      return false;
+    }
+  }
+
   protected String getEventsFileName() {
     return FILE_NAME;
   }
 
+  /**
+   * Several changes of pending messages made in quick succession are written with one save,
+   * instead of rewriting the file for every delivered message.
+   */
+  @Override
+  protected void save() {
+    if (!mySaveScheduled.compareAndSet(false, true)) return;
+
+    try {
+      myScheduler.schedule(new Runnable() {
+        public void run() {
+          mySaveScheduled.set(false);
+          AsyncMessageDispatcherImpl.super.save();
+        }
+      }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      // disposed, pending changes are saved by dispose()
+      mySaveScheduled.set(false);
+    }
+  }
+
   public void sendLater(User user, Message message) {
     synchronized(myWorkingThreadLock) {
       addPendingMessage(user, message);
@@ -149,6 +357,78 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     }
   }
 
+  private class UserDelivery implements Runnable {
+    private final User myUser;
+    private final boolean myCheckSlow;
+
+    // guarded by myWorkingThreadLock
+    private boolean mySlow;
+    private boolean myFinished;
+
+    UserDelivery(User user, boolean checkSlow) {
+      myUser = user;
+      myCheckSlow = checkSlow;
+    }
+
+    public void run() {
+      ScheduledFuture<?> slowCheck = myCheckSlow ? scheduleSlowCheck() : null;
+      boolean delivered = false;
+      try {
+        delivered = deliverPendingMessages(myUser);
+      }
+      finally {
+        if (slowCheck != null) {
+          slowCheck.cancel(false);
+        }
+        deliveryFinished(this, delivered);
+        save();
+      }
+    }
+
+    private ScheduledFuture<?> scheduleSlowCheck() {
+      long timeout;
+      synchronized(myWorkingThreadLock) {
+        timeout = mySlowDeliveryTimeout;
+      }
+      try {
+        return myScheduler.schedule(new Runnable() {
+          public void run() {
+            slowDeliveryCheck(UserDelivery.this);
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+      }
+      catch (RejectedExecutionException e) {
+        // disposed
+        return null;
+      }
+    }
+  }
+
+  private static class Retry {
+    private final long myDelay;
+    private final long myNextAttempt;
+
+    Retry(long delay) {
+      myDelay = delay;
+      myNextAttempt = System.currentTimeMillis() + delay;
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String myName;
+    private final AtomicInteger myCount = new AtomicInteger();
+
+    DaemonThreadFactory(String name) {
+      myName = name;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, myName + " " + myCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
   private class MyEventListener extends IDEtalkAdapter {
     private final EventBroadcaster myBroadcaster;
 
@@ -164,6 +444,9 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     public void afterChange(IDEtalkEvent event) {
       event.accept(new EventVisitor(){
         @Override public void visitUserOnline(UserEvent.Online online) {
+          synchronized(myWorkingThreadLock) {
+            myRetries.remove(online.getUser());
+          }
           triggerDelivery();
         }
       });
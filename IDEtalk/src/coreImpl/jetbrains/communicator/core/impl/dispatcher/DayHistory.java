@@ -17,17 +17,16 @@ package jetbrains.communicator.core.impl.dispatcher;
 
 import jetbrains.communicator.core.dispatcher.LocalMessage;
 import jetbrains.communicator.core.users.User;
-import jetbrains.communicator.util.TimeUtil;
 
 import java.util.*;
 
 /**
+ * Messages of one day, as history was saved by previous versions. It is read only to be moved to {@link HistoryStore}.
+ *
  * @author Kir
 */
 class DayHistory {
   private final Map<User, List<LocalMessage>> myData = new HashMap<User, List<LocalMessage>>();
-  private transient Date myOldestDate;
-  private transient boolean myHasFullHistory;
 
   private List<LocalMessage> getMessages(User user) {
     List<LocalMessage> list = myData.get(user);
@@ -43,18 +42,9 @@ class DayHistory {
   }
 
   public void addMessage(User user, LocalMessage message) {
-    if (myOldestDate == null || myOldestDate.after(message.getWhen())) {
-      myOldestDate = TimeUtil.getDay(message.getWhen());
-    }
     getMessages(user).add(message);
   }
 
-  public void clear() {
-    myOldestDate = null;
-    myHasFullHistory = false;
-    myData.clear();
-  }
-
   public Iterable<? extends User> keySet() {
     return myData.keySet();
   }
@@ -63,11 +53,6 @@ class DayHistory {
     return myData.get(user);
   }
 
-  public boolean hasHistorySince(Date since) {
-    if (myHasFullHistory) return true;
-    return myOldestDate != null && since != null && !since.before(myOldestDate) ;
-  }
-
   public void copyTo(DayHistory history) {
     for (User user : keySet()) {
       for (LocalMessage message : readMessages(user)) {
@@ -76,10 +61,6 @@ class DayHistory {
     }
   }
 
-  public void setHasFullHistory() {
-    myHasFullHistory = true;
-  }
-
   public void resort() {
     for (User user : myData.keySet()) {
       List<LocalMessage> list = myData.get(user);
@@ -0,0 +1,625 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+import jetbrains.communicator.core.dispatcher.LocalMessage;
+import jetbrains.communicator.core.users.User;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * Message history on disk. Every user has a directory of segment files, where records are appended in the order
+ * messages are added: <code>long when, int textLength, text, int xmlLength, xml</code>. The text is
+ * {@link LocalMessage#getSearchableText} and is used for search only; its length is -1 if the message has no such text.
+ * <p/>
+ * Only times and positions of records are kept in memory, sorted by time; messages are read from disk when a page
+ * of history is requested, and are kept with soft references.
+ * <p/>
+ * Search looks up candidates in a {@link TrigramIndex} and checks them with {@link LocalMessage#containsString}.
+ * The index of a user is built in portions by {@link #indexNext}, which {@link MessageHistory} calls in background
+ * after the first search; messages not indexed yet and messages without searchable text are always checked. As the
+ * searchable text contains every string the message is found by, search finds the same messages as a full scan.
+ * <p/>
+ * Not thread safe, access is guarded by {@link MessageHistory}.
+ */
+class HistoryStore {
+  private static final Logger LOG = Logger.getLogger(HistoryStore.class);
+
+  private static final long SEGMENT_SIZE = 1024 * 1024;
+  private static final int NO_TEXT = -1;
+  @NonNls
+  private static final String SEGMENT_EXTENSION = ".seg";
+
+  private final File myDir;
+  private final XStream myXStream;
+  private final Map<User, UserHistory> myUsers = new HashMap<User, UserHistory>();
+
+  HistoryStore(File dir, XStream xStream) {
+    myDir = dir;
+    myXStream = xStream;
+  }
+
+  public void addMessage(User user, LocalMessage message) {
+    getUserHistory(user).add(message);
+  }
+
+  /**
+   * Adds the message unless the user already has an equal message at the same time, so that history imported
+   * again after an interrupted import is not duplicated.
+   */
+  public void importMessage(User user, LocalMessage message) {
+    UserHistory history = getUserHistory(user);
+    if (!history.contains(message)) {
+      history.add(message);
+    }
+  }
+
+  /** @return number of messages after the given time, or of all messages if since is null */
+  public int count(User user, @Nullable Date since) {
+    UserHistory history = getUserHistory(user);
+    return history.size() - history.indexAfter(since);
+  }
+
+  /**
+   * @return at most count messages after the given time, starting with the message number from; oldest messages go first
+   */
+  public List<LocalMessage> getMessages(User user, @Nullable Date since, int from, int count) {
+    UserHistory history = getUserHistory(user);
+    int start = history.indexAfter(since) + from;
+    int end = start + Math.min(count, Math.max(history.size() - start, 0));
+    return history.read(start, end);
+  }
+
+  /**
+   * @return at most maxCount latest messages which contain the given string; oldest messages go first
+   */
+  public List<LocalMessage> search(User user, String searchString, int maxCount) {
+    return getUserHistory(user).search(searchString, maxCount);
+  }
+
+  public boolean isIndexed(User user) {
+    return getUserHistory(user).isIndexed();
+  }
+
+  /**
+   * Adds at most count more messages of the user to the search index.
+   *
+   * @return true if all messages of the user are indexed
+   */
+  public boolean indexNext(User user, int count) {
+    return getUserHistory(user).indexNext(count);
+  }
+
+  /**
+   * Writes messages added since the last flush.
+   *
+   * @param sync if true, written messages are forced to the disk
+   * @return false if some messages could not be written
+   */
+  public boolean flush(boolean sync) {
+    boolean result = true;
+    for (UserHistory history : myUsers.values()) {
+      result &= history.flush(sync);
+    }
+    return result;
+  }
+
+  public boolean isEmpty() {
+    for (UserHistory history : myUsers.values()) {
+      if (history.hasUnsavedMessages()) return false;
+    }
+    String[] files = myDir.list();
+    return files == null || files.length == 0;
+  }
+
+  public void clear() {
+    myUsers.clear();
+
+    File[] userDirs = myDir.listFiles();
+    if (userDirs == null) return;
+
+    Thread thread = Thread.currentThread();
+    for (File userDir : userDirs) {
+      File[] segments = userDir.listFiles();
+      if (segments != null) {
+        for (File segment : segments) {
+          if (thread.isInterrupted()) return;
+          segment.delete();
+        }
+      }
+      userDir.delete();
+    }
+  }
+
+  private UserHistory getUserHistory(User user) {
+    UserHistory history = myUsers.get(user);
+    if (history == null) {
+      history = new UserHistory(user, new File(myDir, getDirName(user)));
+      myUsers.put(user, history);
+    }
+    return history;
+  }
+
+  private static String getDirName(User user) {
+    String key = user.getTransportCode() + '_' + user.getName();
+    StringBuilder result = new StringBuilder(key.length() + 10);
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      result.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' ? c : '_');
+    }
+    return result.append('_').append(Integer.toHexString(key.hashCode())).toString();
+  }
+
+  private static class Entry {
+    private final long myWhen;
+    private final int myId;
+
+    private int mySegment = -1;
+    private long myOffset;
+
+    private LocalMessage myMessage;
+    private SoftReference<LocalMessage> myCachedMessage;
+    private String myXml;
+    private String myText;
+
+    Entry(long when, int id) {
+      myWhen = when;
+      myId = id;
+    }
+  }
+
+  private class UserHistory {
+    private final User myUser;
+    private final File myUserDir;
+
+    /** sorted by time */
+    private final List<Entry> myEntries = new ArrayList<Entry>();
+    /** in order of addition, index is the id */
+    private final List<Entry> myEntriesById = new ArrayList<Entry>();
+    private final List<Entry> myUnsaved = new ArrayList<Entry>();
+    private TrigramIndex myIndex;
+    /** messages with ids below are in the index */
+    private int myIndexedCount;
+    /** ids of indexed messages without searchable text */
+    private final BitSet myUnindexed = new BitSet();
+
+    private int myLastSegment;
+
+    UserHistory(User user, File userDir) {
+      myUser = user;
+      myUserDir = userDir;
+      load();
+    }
+
+    private void load() {
+      for (int segment : getSegments()) {
+        myLastSegment = segment;
+        try {
+          loadSegment(segment);
+        }
+        catch (IOException e) {
+          LOG.warn("Unable to read history of " + myUser + " from " + getSegmentFile(segment), e);
+        }
+      }
+    }
+
+    private int[] getSegments() {
+      String[] names = myUserDir.list();
+      if (names == null) return new int[0];
+
+      List<Integer> segments = new ArrayList<Integer>();
+      for (String name : names) {
+        if (name.endsWith(SEGMENT_EXTENSION)) {
+          try {
+            segments.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+          }
+          catch (NumberFormatException e) {
+            // ignore file of wrong format
+          }
+        }
+      }
+      Collections.sort(segments);
+
+      int[] result = new int[segments.size()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = segments.get(i);
+      }
+      return result;
+    }
+
+    private void loadSegment(int segment) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "rw");
+      try {
+        long length = file.length();
+        long position = 0;
+        while (position + 12 <= length) {
+          file.seek(position);
+          long when = file.readLong();
+          int textLength = file.readInt();
+          long textEnd = position + 12 + Math.max(textLength, 0);
+          if (textLength < NO_TEXT || textEnd + 4 > length) break;
+
+          file.seek(textEnd);
+          int xmlLength = file.readInt();
+          long end = textEnd + 4 + xmlLength;
+          if (xmlLength < 0 || end > length) break;
+
+          Entry entry = new Entry(when, myEntriesById.size());
+          entry.mySegment = segment;
+          entry.myOffset = position;
+          addEntry(entry);
+          position = end;
+        }
+
+        if (position < length) {
+          LOG.info("Dropped incomplete record at " + position + " in " + getSegmentFile(segment));
+          file.setLength(position);
+        }
+      }
+      finally {
+        file.close();
+      }
+    }
+
+    private File getSegmentFile(int segment) {
+      return new File(myUserDir, segment + SEGMENT_EXTENSION);
+    }
+
+    int size() {
+      return myEntries.size();
+    }
+
+    boolean hasUnsavedMessages() {
+      return !myUnsaved.isEmpty();
+    }
+
+    /** @return index of the first message after the given time */
+    int indexAfter(@Nullable Date since) {
+      return since == null ? 0 : indexAfter(since.getTime());
+    }
+
+    private int indexAfter(long time) {
+      int low = 0;
+      int high = myEntries.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (myEntries.get(middle).myWhen <= time) {
+          low = middle + 1;
+        }
+        else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    void add(LocalMessage message) {
+      Entry entry = new Entry(message.getWhen().getTime(), myEntriesById.size());
+      entry.myMessage = message;
+      addEntry(entry);
+      myUnsaved.add(entry);
+
+      // otherwise the message is indexed in its turn by indexNext
+      if (myIndex != null && myIndexedCount == entry.myId) {
+        serialize(entry);
+        index(entry.myId, entry.myText);
+        myIndexedCount++;
+      }
+    }
+
+    /** @return true if there is a message at the same time with the same XML */
+    boolean contains(LocalMessage message) {
+      long when = message.getWhen().getTime();
+      int start = indexAfter(when - 1);
+      int end = indexAfter(when);
+      if (start == end) return false;
+
+      String xml = toXml(message);
+      SegmentReader reader = new SegmentReader();
+      try {
+        for (int i = start; i < end; i++) {
+          Entry entry = myEntries.get(i);
+          try {
+            if (entry.mySegment < 0) {
+              serialize(entry);
+            }
+            if (xml.equals(entry.mySegment < 0 ? entry.myXml : reader.readXml(entry))) return true;
+          }
+          catch (Exception e) {
+            LOG.info("Unable to compare message of " + myUser + " with " + message, e);
+          }
+        }
+      }
+      finally {
+        reader.close();
+      }
+      return false;
+    }
+
+    private void addEntry(Entry entry) {
+      myEntries.add(indexAfter(entry.myWhen), entry);
+      myEntriesById.add(entry);
+    }
+
+    List<LocalMessage> read(int start, int end) {
+      List<LocalMessage> result = new ArrayList<LocalMessage>(Math.max(end - start, 0));
+      SegmentReader reader = new SegmentReader();
+      try {
+        for (int i = start; i < end; i++) {
+          LocalMessage message = getMessage(myEntries.get(i), reader);
+          if (message != null) {
+            result.add(message);
+          }
+        }
+      }
+      finally {
+        reader.close();
+      }
+      return result;
+    }
+
+    List<LocalMessage> search(String searchString, int maxCount) {
+      SegmentReader reader = new SegmentReader();
+      try {
+        int[] candidateIds = myIndex == null ? null : myIndex.find(searchString);
+        BitSet candidates = null;
+        if (candidateIds != null) {
+          candidates = new BitSet(myEntriesById.size());
+          for (int id : candidateIds) {
+            candidates.set(id);
+          }
+          candidates.or(myUnindexed);
+          candidates.set(myIndexedCount, myEntriesById.size());
+        }
+
+        List<LocalMessage> result = new ArrayList<LocalMessage>();
+        for (int i = myEntries.size() - 1; i >= 0 && result.size() < maxCount; i--) {
+          Entry entry = myEntries.get(i);
+          if (candidates != null && !candidates.get(entry.myId)) continue;
+
+          LocalMessage message = getMessage(entry, reader);
+          if (message != null && message.containsString(searchString)) {
+            result.add(message);
+          }
+        }
+        Collections.reverse(result);
+        return result;
+      }
+      finally {
+        reader.close();
+      }
+    }
+
+    boolean isIndexed() {
+      return myIndex != null && myIndexedCount == myEntriesById.size();
+    }
+
+    boolean indexNext(int count) {
+      if (myIndex == null) {
+        myIndex = new TrigramIndex();
+        myIndexedCount = 0;
+        myUnindexed.clear();
+      }
+
+      int end = Math.min(myEntriesById.size(), myIndexedCount + count);
+      SegmentReader reader = new SegmentReader();
+      try {
+        for (; myIndexedCount < end; myIndexedCount++) {
+          Entry entry = myEntriesById.get(myIndexedCount);
+          String text;
+          if (entry.mySegment < 0) {
+            serialize(entry);
+            text = entry.myText;
+          }
+          else {
+            try {
+              text = reader.readText(entry);
+            }
+            catch (IOException e) {
+              LOG.warn("Unable to read history of " + myUser, e);
+              // the message is checked on every search
+              text = null;
+            }
+          }
+          index(entry.myId, text);
+        }
+      }
+      finally {
+        reader.close();
+      }
+      return isIndexed();
+    }
+
+    private void index(int id, @Nullable String text) {
+      if (text == null) {
+        myUnindexed.set(id);
+      }
+      else {
+        myIndex.add(id, text);
+      }
+    }
+
+    @Nullable
+    private LocalMessage getMessage(Entry entry, SegmentReader reader) {
+      if (entry.myMessage != null) return entry.myMessage;
+
+      LocalMessage message = entry.myCachedMessage != null ? entry.myCachedMessage.get() : null;
+      if (message == null) {
+        try {
+          message = (LocalMessage)myXStream.fromXML(reader.readXml(entry));
+          entry.myCachedMessage = new SoftReference<LocalMessage>(message);
+        }
+        catch (Exception e) {
+          LOG.info("Unable to read message of " + myUser + " at " + entry.myOffset + " in " + getSegmentFile(entry.mySegment), e);
+        }
+      }
+      return message;
+    }
+
+    private void serialize(final Entry entry) {
+      if (entry.myXml != null) return;
+
+      entry.myXml = toXml(entry.myMessage);
+      entry.myText = entry.myMessage.getSearchableText();
+    }
+
+    private String toXml(LocalMessage message) {
+      StringWriter xml = new StringWriter();
+      myXStream.marshal(message, new CompactWriter(xml));
+      return xml.toString();
+    }
+
+    boolean flush(boolean sync) {
+      if (myUnsaved.isEmpty()) return true;
+
+      boolean result = true;
+      myUserDir.mkdirs();
+      RandomAccessFile file = null;
+      try {
+        file = new RandomAccessFile(getSegmentFile(myLastSegment), "rw");
+        while (!myUnsaved.isEmpty()) {
+          if (file.length() >= SEGMENT_SIZE) {
+            if (sync) {
+              file.getFD().sync();
+            }
+            file.close();
+            file = new RandomAccessFile(getSegmentFile(++myLastSegment), "rw");
+          }
+
+          Entry entry = myUnsaved.get(0);
+          try {
+            serialize(entry);
+          }
+          catch (RuntimeException e) {
+            // the message stays in memory till the end of the session
+            LOG.error("Unable to save message " + entry.myMessage + " of " + myUser, e);
+            myUnsaved.remove(0);
+            result = false;
+            continue;
+          }
+          long offset = file.length();
+          file.seek(offset);
+          file.write(createRecord(entry));
+
+          entry.mySegment = myLastSegment;
+          entry.myOffset = offset;
+          entry.myCachedMessage = new SoftReference<LocalMessage>(entry.myMessage);
+          entry.myMessage = null;
+          entry.myXml = null;
+          entry.myText = null;
+          myUnsaved.remove(0);
+        }
+        if (sync) {
+          file.getFD().sync();
+        }
+      }
+      catch (IOException e) {
+        LOG.error("Unable to save history of " + myUser, e);
+        result = false;
+      }
+      finally {
+        if (file != null) {
+          try {
+            file.close();
+          }
+          catch (IOException e) {
+            LOG.warn(e.getMessage(), e);
+            result = false;
+          }
+        }
+      }
+      return result;
+    }
+
+    private byte[] createRecord(Entry entry) throws IOException {
+      byte[] text = entry.myText == null ? null : entry.myText.getBytes("UTF-8");
+      byte[] xml = entry.myXml.getBytes("UTF-8");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + (text == null ? 0 : text.length) + xml.length);
+      DataOutputStream record = new DataOutputStream(bytes);
+      record.writeLong(entry.myWhen);
+      if (text == null) {
+        record.writeInt(NO_TEXT);
+      }
+      else {
+        record.writeInt(text.length);
+        record.write(text);
+      }
+      record.writeInt(xml.length);
+      record.write(xml);
+      record.close();
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Keeps the segment files open while a page is read.
+     */
+    private class SegmentReader {
+      private final Map<Integer, RandomAccessFile> myFiles = new HashMap<Integer, RandomAccessFile>();
+
+      @Nullable
+      String readText(Entry entry) throws IOException {
+        RandomAccessFile file = getFile(entry.mySegment);
+        file.seek(entry.myOffset + 8);
+        return readString(file);
+      }
+
+      String readXml(Entry entry) throws IOException {
+        RandomAccessFile file = getFile(entry.mySegment);
+        file.seek(entry.myOffset + 8);
+        file.skipBytes(Math.max(file.readInt(), 0));
+        return readString(file);
+      }
+
+      @Nullable
+      private String readString(RandomAccessFile file) throws IOException {
+        int length = file.readInt();
+        if (length == NO_TEXT) return null;
+
+        byte[] bytes = new byte[length];
+        file.readFully(bytes);
+        return new String(bytes, "UTF-8");
+      }
+
+      private RandomAccessFile getFile(int segment) throws IOException {
+        RandomAccessFile file = myFiles.get(segment);
+        if (file == null) {
+          file = new RandomAccessFile(getSegmentFile(segment), "r");
+          myFiles.put(segment, file);
+        }
+        return file;
+      }
+
+      void close() {
+        for (RandomAccessFile file : myFiles.values()) {
+          try {
+            file.close();
+          }
+          catch (IOException e) {
+            LOG.warn(e.getMessage(), e);
+          }
+        }
+        myFiles.clear();
+      }
+    }
+  }
+}
@@ -114,6 +114,21 @@ public class LocalMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myHistory.getHistory(user, since);
   }
 
+  @Override
+  public int getHistorySize(User user, Date since) {
+    return myHistory.getHistorySize(user, since);
+  }
+
+  @Override
+  public LocalMessage[] getHistory(User user, Date since, int from, int count) {
+    return myHistory.getHistory(user, since, from, count);
+  }
+
+  @Override
+  public LocalMessage[] searchHistory(User user, String searchString, int maxCount) {
+    return myHistory.search(user, searchString, maxCount);
+  }
+
   @Override
   public void clearHistory() {
     myHistory.clear();
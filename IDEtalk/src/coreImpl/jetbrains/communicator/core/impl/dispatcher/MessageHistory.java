@@ -21,7 +21,6 @@ import jetbrains.communicator.core.impl.users.UserImpl;
 import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.users.UserModel;
 import jetbrains.communicator.ide.IDEFacade;
-import jetbrains.communicator.util.TimeUtil;
 import jetbrains.communicator.util.XMLUtil;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NonNls;
@@ -29,12 +28,15 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FilenameFilter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.Future;
 
 /**
+ * Messages are kept in {@link HistoryStore}; history saved by previous versions as one XML file per day
+ * is moved there in background on start. Requests for history wait till it is moved.
+ * <p/>
+ * The search index of a user is built in background after the first search, see {@link HistoryStore#indexNext}.
+ *
  * @author Kir
  */
 class MessageHistory {
@@ -42,19 +44,20 @@ class MessageHistory {
   private static final Logger LOG = Logger.getLogger(MessageHistory.class);
 
   public static final long SAVE_TIMEOUT = 300;
+  private static final int INDEX_PORTION = 500;
   @NonNls
   private static final String HISTORY = "history";
 
-  private final DayHistory myHistory = new DayHistory();
   @NonNls
   private final XStream myXStream;
   private final UserModel myUserModel;
   private final IDEFacade myFacade;
+  private final HistoryStore myStore;
 
   private Future<?> myPendingSave;
-
-  @NonNls
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+  private boolean myImportDone;
+  private boolean myDisposed;
+  private final Set<User> myUsersBeingIndexed = new HashSet<User>();
 
   MessageHistory(IDEFacade facade, UserModel userModel) {
     myFacade = facade;
@@ -65,16 +68,22 @@ class MessageHistory {
     myXStream = XMLUtil.createXStream();
     setupXStream();
 
-    loadHistorySince(new Date());
+    myStore = new HistoryStore(getHistoryDir(), myXStream);
+    myFacade.runOnPooledThread(new Runnable() {
+      public void run() {
+        importDayHistory();
+      }
+    });
   }
 
   public synchronized void dispose() {
+    myDisposed = true;
     if (myPendingSave != null) {
       myPendingSave.cancel(true);
       myPendingSave = null;
     }
 
-    myHistory.clear();
+    myStore.flush(false);
   }
 
   private void setupXStream() {
@@ -86,24 +95,13 @@ class MessageHistory {
   }
 
   public synchronized void addMessage(User user, LocalMessage message) {
-    myHistory.addMessage(user, message);
+    myStore.addMessage(user, message);
     triggerSave();
   }
 
   public synchronized void clear() {
-    myHistory.clear();
-
-    deleteAllHistoryFiles();
-  }
-
-  private void deleteAllHistoryFiles() {
-    File historyDir = getHistoryDir();
-    Thread thread = Thread.currentThread();
-
-    for (File file : historyDir.listFiles()) {
-      if (thread.isInterrupted()) return;
-      file.delete();
-    }
+    waitForImport();
+    myStore.clear();
   }
 
   private File getHistoryDir() {
@@ -111,72 +109,107 @@ class MessageHistory {
   }
 
   public synchronized LocalMessage[] getHistory(User user, @Nullable Date since) {
-    loadHistorySince(since);
+    return getHistory(user, since, 0, Integer.MAX_VALUE);
+  }
 
-    List<LocalMessage> list = filterHistoryByDate(user, since);
+  public synchronized LocalMessage[] getHistory(User user, @Nullable Date since, int from, int count) {
+    waitForImport();
+    List<LocalMessage> list = myStore.getMessages(user, since, from, count);
     return list.toArray(new LocalMessage[list.size()]);
   }
 
-  private List<LocalMessage> filterHistoryByDate(User user, Date since) {
-    List<LocalMessage> list = myHistory.readMessages(user);
-    if (since != null) {
-      List<LocalMessage> result = new ArrayList<LocalMessage>(list.size());
-      for (LocalMessage message : list) {
-        if (message.getWhen().after(since)) {
-          result.add(message);
-        }
-      }
-      list = result;
-    }
-    return list;
+  public synchronized int getHistorySize(User user, @Nullable Date since) {
+    waitForImport();
+    return myStore.count(user, since);
   }
 
-  private void loadHistorySince(@Nullable Date since) {
-    if (since != null) {
-      since = TimeUtil.getDay(since);
-    }
-
-    if (!myHistory.hasHistorySince(since)) {
-      if (since == null) {
-        doLoadHistorySince(new Date(0));
-        myHistory.setHasFullHistory();
-      }
-      else {
-        doLoadHistorySince(since);
-      }
+  public synchronized LocalMessage[] search(User user, String searchString, int maxCount) {
+    waitForImport();
+    List<LocalMessage> list = myStore.search(user, searchString, maxCount);
+    if (!myStore.isIndexed(user)) {
+      triggerIndexing(user);
     }
+    return list.toArray(new LocalMessage[list.size()]);
   }
 
-  private void doLoadHistorySince(Date since) {
-    File historyDir = getHistoryDir();
+  /**
+   * Moves day history files to the store one by one. A file is deleted only when its messages are written to the
+   * disk, and messages already in the store are not added again, so an interrupted import is repeated on next start.
+   */
+  private void importDayHistory() {
+    try {
+      File historyDir = getHistoryDir();
+      String[] historyFiles = historyDir.list(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".xml");
+        }
+      });
+      if (historyFiles == null || historyFiles.length == 0) return;
 
-    String[] historyFiles = historyDir.list(new FilenameFilter() {
-      public boolean accept(File dir, String name) {
-        return name.endsWith(".xml");
-      }
-    });
+      LOG.info("Moving " + historyFiles.length + " day history files to the history store");
+      Arrays.sort(historyFiles);
+      for (String historyFile : historyFiles) {
+        synchronized (this) {
+          if (myDisposed) return;
 
-    Arrays.sort(historyFiles);
-    for (int i = historyFiles.length - 1; i >= 0; i--) {
-      String historyFile = historyFiles[i];
-      try {
-        Date date = DATE_FORMAT.parse(historyFile);
-        if (!date.before(since) && !myHistory.hasHistorySince(date)) {
-          DayHistory dayHistory = (DayHistory)XMLUtil.fromXml(myXStream, myFacade.getCacheDir(), getFileNameForDate(date), false);
+          DayHistory dayHistory = (DayHistory)XMLUtil.fromXml(myXStream, historyDir, historyFile, false);
           if (dayHistory != null) {
-            dayHistory.copyTo(myHistory);
+            for (User user : dayHistory.keySet()) {
+              for (LocalMessage message : dayHistory.get(user)) {
+                myStore.importMessage(user, message);
+              }
+            }
+          }
+
+          if (!myStore.flush(true)) {
+            LOG.warn("Unable to move day history " + historyFile + ", will try again on next start");
+            return;
           }
+          new File(historyDir, historyFile).delete();
         }
       }
-      catch (ParseException e) {
-        // ignore file of wrong format
+    }
+    finally {
+      synchronized (this) {
+        myImportDone = true;
+        notifyAll();
       }
-      catch (NumberFormatException e) {
-        // ignore file of wrong format
+    }
+  }
+
+  private void waitForImport() {
+    while (!myImportDone) {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
       }
     }
+  }
 
-    myHistory.resort();
+  private void triggerIndexing(final User user) {
+    if (!myUsersBeingIndexed.add(user)) return;
+
+    myFacade.runOnPooledThread(new Runnable() {
+      public void run() {
+        boolean indexed = false;
+        try {
+          while (!indexed) {
+            synchronized (MessageHistory.this) {
+              if (myDisposed) return;
+              indexed = myStore.indexNext(user, INDEX_PORTION);
+            }
+          }
+        }
+        finally {
+          synchronized (MessageHistory.this) {
+            myUsersBeingIndexed.remove(user);
+          }
+        }
+      }
+    });
   }
 
   private void triggerSave() {
@@ -199,52 +232,12 @@ class MessageHistory {
 
   private synchronized void saveHistory() {
     LOG.debug("Start history save");
-    Map<Date, DayHistory> map = getHistory();
-    for (Date date : map.keySet()) {
-      DayHistory dayHistory = map.get(date);
-      try {
-        XMLUtil.toXml(myXStream, myFacade.getCacheDir(), getFileNameForDate(date), dayHistory);
-      } catch (RuntimeException e) {
-        LOG.error("Unable to save dayHistory for " + date + ": " + dayHistory, e);
-      }
-    }
-
+    myStore.flush(false);
     LOG.debug("Done history save");
   }
 
-  private synchronized Map<Date, DayHistory> getHistory() {
-    Map<Date, DayHistory> result = new HashMap<Date, DayHistory>();
-
-    for (User user : myHistory.keySet()) {
-      List<LocalMessage> messages = myHistory.get(user);
-      for (LocalMessage message : messages) {
-        DayHistory dayHistory = getDayHistoryFor(message, result);
-
-        dayHistory.addMessage(user, message);
-      }
-    }
-
-    return result;
-  }
-
-  private DayHistory getDayHistoryFor(LocalMessage message, Map<Date, DayHistory> result) {
-    Date day = TimeUtil.getDay(message.getWhen());
-    DayHistory dayHistory = result.get(day);
-    if (dayHistory == null) {
-      dayHistory = new DayHistory();
-      result.put(day, dayHistory);
-    }
-    return dayHistory;
-  }
-
-  @NonNls
-  private String getFileNameForDate(Date date) {
-    //noinspection HardCodedStringLiteral
-    return HISTORY + '/' + DATE_FORMAT.format(date) + ".xml";
-  }
-
-  public boolean isEmpty() {
-    File historyDir = getHistoryDir();
-    return !(historyDir.isDirectory() && historyDir.list().length > 0);
+  public synchronized boolean isEmpty() {
+    waitForImport();
+    return myStore.isEmpty();
   }
 }
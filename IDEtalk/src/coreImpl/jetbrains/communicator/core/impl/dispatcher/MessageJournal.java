@@ -0,0 +1,348 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.thoughtworks.xstream.XStream;
+import jetbrains.communicator.core.dispatcher.Message;
+import jetbrains.communicator.core.users.User;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changes of pending messages, so that a change does not rewrite all pending messages.
+ * <p/>
+ * Every record is <code>int length, int crc32, byte[length]</code>; users and messages inside a record are
+ * stored as XStream XML. Records are written to the file right away, so they survive a crash of the IDE,
+ * and are forced to disk by {@link #sync()}. A record which was written partially is dropped on {@link #open()}.
+ * <p/>
+ * When the log has many more records than pending messages, {@link #compact} replaces it with a log
+ * which adds the pending messages only.
+ */
+class MessageJournal {
+  private static final Logger LOG = Logger.getLogger(MessageJournal.class);
+
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+  private static final byte REMOVE_USER = 3;
+  private static final byte CLEAR = 4;
+
+  private static final int MIN_RECORDS_TO_COMPACT = 1000;
+
+  private final File myFile;
+  private final File myTempFile;
+  private final XStream myXStream;
+
+  private FileOutputStream myFileOutput;
+  private DataOutputStream myOutput;
+  private int myRecordCount;
+  private boolean myNeedsSync;
+  private boolean myBroken;
+
+  MessageJournal(File file, XStream xStream) {
+    myFile = file;
+    myTempFile = new File(file.getPath() + ".tmp");
+    myXStream = xStream;
+  }
+
+  public File getFile() {
+    return myFile;
+  }
+
+  public synchronized boolean exists() {
+    return myFile.exists() || myTempFile.exists();
+  }
+
+  /**
+   * Reads pending messages from the log and opens it for appending.
+   */
+  public synchronized Map<User, List<Message>> open() throws IOException {
+    if (myTempFile.exists()) {
+      // the log is deleted only after the compacted one is completely written
+      if (myFile.exists()) {
+        myTempFile.delete();
+      }
+      else if (!myTempFile.renameTo(myFile)) {
+        throw new IOException("Cannot rename " + myTempFile + " to " + myFile);
+      }
+    }
+
+    Map<User, List<Message>> result = new HashMap<User, List<Message>>();
+    myRecordCount = 0;
+    if (myFile.exists()) {
+      long validLength = replay(result);
+      if (validLength < myFile.length()) {
+        LOG.info("Dropped " + (myFile.length() - validLength) + " bytes of incomplete records in " + myFile);
+        RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+        try {
+          file.setLength(validLength);
+        }
+        finally {
+          file.close();
+        }
+      }
+    }
+
+    openForAppend();
+    return result;
+  }
+
+  private long replay(Map<User, List<Message>> user2Messages) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+    long position = 0;
+    long fileLength = myFile.length();
+    try {
+      CRC32 crc = new CRC32();
+      while (position + 8 <= fileLength) {
+        int length = input.readInt();
+        int checksum = input.readInt();
+        if (length <= 0 || position + 8 + length > fileLength) break;
+
+        byte[] body = new byte[length];
+        input.readFully(body);
+        crc.reset();
+        crc.update(body);
+        if ((int)crc.getValue() != checksum) break;
+
+        try {
+          apply(user2Messages, new DataInputStream(new ByteArrayInputStream(body)));
+        }
+        catch (Exception e) {
+          LOG.info("Cannot read record at " + position + " in " + myFile, e);
+          break;
+        }
+        position += 8 + length;
+        myRecordCount++;
+      }
+    }
+    finally {
+      input.close();
+    }
+    return position;
+  }
+
+  private void apply(Map<User, List<Message>> user2Messages, DataInputStream record) throws IOException {
+    byte type = record.readByte();
+    switch (type) {
+      case ADD: {
+        User user = (User)readObject(record);
+        List<Message> messages = user2Messages.get(user);
+        if (messages == null) {
+          messages = new ArrayList<Message>(5);
+          user2Messages.put(user, messages);
+        }
+        messages.add((Message)readObject(record));
+        break;
+      }
+      case REMOVE: {
+        User user = (User)readObject(record);
+        List<Message> messages = user2Messages.get(user);
+        int index = record.readInt();
+        if (messages == null || index >= messages.size()) {
+          throw new IOException("No message " + index + " for " + user);
+        }
+        messages.remove(index);
+        if (messages.isEmpty()) {
+          user2Messages.remove(user);
+        }
+        break;
+      }
+      case REMOVE_USER:
+        user2Messages.remove((User)readObject(record));
+        break;
+      case CLEAR:
+        user2Messages.clear();
+        break;
+      default:
+        throw new IOException("Unknown record type " + type);
+    }
+  }
+
+  private Object readObject(DataInputStream record) throws IOException {
+    byte[] bytes = new byte[record.readInt()];
+    record.readFully(bytes);
+    return myXStream.fromXML(new String(bytes, "UTF-8"));
+  }
+
+  public synchronized void messageAdded(User user, Message message) {
+    append(ADD, user, message, -1);
+  }
+
+  public synchronized void messageRemoved(User user, int index) {
+    append(REMOVE, user, null, index);
+  }
+
+  public synchronized void userRemoved(User user) {
+    append(REMOVE_USER, user, null, -1);
+  }
+
+  public synchronized void cleared() {
+    append(CLEAR, null, null, -1);
+  }
+
+  private void append(byte type, User user, Message message, int index) {
+    if (myOutput == null) return;
+
+    try {
+      writeRecord(myOutput, createRecord(type, user, message, index));
+      myOutput.flush();
+      myRecordCount++;
+      myNeedsSync = true;
+    }
+    catch (IOException e) {
+      // the file may end with a partial record now; it will be rewritten by the next compaction
+      LOG.warn("Cannot write to " + myFile + ": " + e.getMessage(), e);
+      myBroken = true;
+    }
+  }
+
+  private byte[] createRecord(byte type, User user, Message message, int index) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(type);
+    if (user != null) {
+      writeObject(record, user);
+    }
+    if (message != null) {
+      writeObject(record, message);
+    }
+    if (index >= 0) {
+      record.writeInt(index);
+    }
+    record.close();
+    return bytes.toByteArray();
+  }
+
+  private void writeObject(DataOutputStream record, Object object) throws IOException {
+    byte[] bytes = myXStream.toXML(object).getBytes("UTF-8");
+    record.writeInt(bytes.length);
+    record.write(bytes);
+  }
+
+  private static void writeRecord(DataOutputStream output, byte[] body) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    output.writeInt(body.length);
+    output.writeInt((int)crc.getValue());
+    output.write(body);
+  }
+
+  /**
+   * Forces the appended records to disk.
+   */
+  public synchronized void sync() {
+    if (myOutput == null || !myNeedsSync) return;
+
+    try {
+      myOutput.flush();
+      myFileOutput.getFD().sync();
+      myNeedsSync = false;
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot sync " + myFile + ": " + e.getMessage(), e);
+    }
+  }
+
+  public synchronized boolean needsCompaction(int messageCount) {
+    return myBroken || myRecordCount > Math.max(MIN_RECORDS_TO_COMPACT, 2 * messageCount);
+  }
+
+  /**
+   * Replaces the log with records adding the given messages. The new log is written and forced to disk
+   * before the old one is deleted. If that fails, {@link #needsCompaction} stays true, so it is retried.
+   *
+   * @return false if the log could not be replaced
+   */
+  public synchronized boolean compact(Map<User, List<Message>> user2Messages) {
+    int recordCount;
+    try {
+      recordCount = writeSnapshot(user2Messages);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot compact " + myFile + ": " + e.getMessage(), e);
+      myTempFile.delete();
+      myBroken = true;
+      return false;
+    }
+
+    close();
+    boolean replaced = (!myFile.exists() || myFile.delete()) && myTempFile.renameTo(myFile);
+    if (replaced) {
+      myRecordCount = recordCount;
+      myBroken = false;
+    }
+    else {
+      LOG.warn("Cannot replace " + myFile + " with " + myTempFile);
+      myBroken = true;
+    }
+
+    // if the temp file is still there, it holds the complete log and open() will pick it up
+    if (!myTempFile.exists()) {
+      try {
+        openForAppend();
+      }
+      catch (IOException e) {
+        LOG.warn("Cannot open " + myFile + ": " + e.getMessage(), e);
+      }
+    }
+    return replaced;
+  }
+
+  private int writeSnapshot(Map<User, List<Message>> user2Messages) throws IOException {
+    int recordCount = 0;
+    FileOutputStream fileOutput = new FileOutputStream(myTempFile);
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+    try {
+      for (Map.Entry<User, List<Message>> entry : user2Messages.entrySet()) {
+        for (Message message : entry.getValue()) {
+          writeRecord(output, createRecord(ADD, entry.getKey(), message, -1));
+          recordCount++;
+        }
+      }
+      output.flush();
+      fileOutput.getFD().sync();
+    }
+    finally {
+      output.close();
+    }
+    return recordCount;
+  }
+
+  private void openForAppend() throws IOException {
+    myFileOutput = new FileOutputStream(myFile, true);
+    myOutput = new DataOutputStream(new BufferedOutputStream(myFileOutput));
+    myNeedsSync = false;
+  }
+
+  public synchronized void close() {
+    if (myOutput == null) return;
+
+    sync();
+    try {
+      myOutput.close();
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot close " + myFile + ": " + e.getMessage(), e);
+    }
+    myOutput = null;
+    myFileOutput = null;
+  }
+}
@@ -22,6 +22,9 @@ import java.util.List;
 import java.util.Map;
 
 /**
+ * Pending messages of all users. Previous versions stored it as XML, now it is read from
+ * and compacted into {@link MessageJournal}.
+ *
  * @author Kir
  */
 public class MessagesStorable {
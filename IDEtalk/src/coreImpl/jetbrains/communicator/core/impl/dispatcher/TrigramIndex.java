@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inverted index from every three-character substring of a text to the ids of texts containing it.
+ * Ids should be added in ascending order.
+ */
+class TrigramIndex {
+  private static final int[] EMPTY = new int[0];
+
+  private final Map<Long, Postings> myPostings = new HashMap<Long, Postings>();
+
+  public void add(int id, String text) {
+    for (int i = 0; i + 3 <= text.length(); i++) {
+      Long trigram = trigram(text, i);
+      Postings postings = myPostings.get(trigram);
+      if (postings == null) {
+        postings = new Postings();
+        myPostings.put(trigram, postings);
+      }
+      postings.add(id);
+    }
+  }
+
+  /**
+   * @return ascending ids of texts which may contain the given string,
+   * or null if the string is shorter than three characters and any text may contain it
+   */
+  @Nullable
+  public int[] find(String s) {
+    if (s.length() < 3) return null;
+
+    int[] result = null;
+    for (int i = 0; i + 3 <= s.length(); i++) {
+      Postings postings = myPostings.get(trigram(s, i));
+      if (postings == null) return EMPTY;
+
+      result = result == null ? postings.toArray() : postings.intersect(result);
+      if (result.length == 0) break;
+    }
+    return result;
+  }
+
+  private static Long trigram(String text, int offset) {
+    return ((long)text.charAt(offset) << 32) | ((long)text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+  }
+
+  private static class Postings {
+    private int[] myIds = new int[2];
+    private int mySize;
+
+    void add(int id) {
+      if (mySize > 0 && myIds[mySize - 1] == id) return;
+
+      if (mySize == myIds.length) {
+        int[] ids = new int[mySize * 2];
+        System.arraycopy(myIds, 0, ids, 0, mySize);
+        myIds = ids;
+      }
+      myIds[mySize++] = id;
+    }
+
+    int[] toArray() {
+      int[] result = new int[mySize];
+      System.arraycopy(myIds, 0, result, 0, mySize);
+      return result;
+    }
+
+    int[] intersect(int[] ids) {
+      int[] result = new int[Math.min(ids.length, mySize)];
+      int count = 0;
+      for (int i = 0, j = 0; i < ids.length && j < mySize;) {
+        if (ids[i] < myIds[j]) {
+          i++;
+        }
+        else if (ids[i] > myIds[j]) {
+          j++;
+        }
+        else {
+          result[count++] = ids[i];
+          i++;
+          j++;
+        }
+      }
+
+      int[] trimmed = new int[count];
+      System.arraycopy(result, 0, trimmed, 0, count);
+      return trimmed;
+    }
+  }
+}
@@ -21,6 +21,7 @@ import jetbrains.communicator.core.EventVisitor;
 import jetbrains.communicator.core.IDEtalkAdapter;
 import jetbrains.communicator.core.IDEtalkEvent;
 import jetbrains.communicator.core.users.GroupEvent;
+import jetbrains.communicator.core.users.UserBatchEvent;
 import jetbrains.communicator.core.users.UserEvent;
 import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.XMLUtil;
@@ -51,14 +52,26 @@ public class PersistentUserModelImpl extends UserModelImpl {
     mySaver = new IDEtalkAdapter() {
       public void afterChange(IDEtalkEvent event) {
         event.accept(new EventVisitor(){
+          private boolean myInBatch;
+          private boolean myBatchChanged;
+
+          @Override public void visitUserBatch(UserBatchEvent event) {
+            myInBatch = true;
+            super.visitUserBatch(event);
+            myInBatch = false;
+            if (myBatchChanged) {
+              saveAll();
+            }
+          }
+
           @Override public void visitUserAdded(UserEvent.Added event) {
             super.visitUserAdded(event);
-            saveAll();
+            save();
           }
 
           @Override public void visitUserRemoved(UserEvent.Removed event) {
             super.visitUserRemoved(event);
-            saveAll();
+            save();
           }
 
           @Override public void visitUserUpdated(UserEvent.Updated event) {
@@ -68,6 +81,15 @@ public class PersistentUserModelImpl extends UserModelImpl {
                 BaseUserImpl.DISPLAY_NAME.equals(event.getPropertyName()) ||
                 BaseUserImpl.GROUP.equals(event.getPropertyName())
                 ) {
+              save();
+            }
+          }
+
+          private void save() {
+            if (myInBatch) {
+              myBatchChanged = true;
+            }
+            else {
               saveAll();
             }
           }
@@ -86,6 +108,7 @@ public class PersistentUserModelImpl extends UserModelImpl {
     synchronized(myUsersGroupsLock) {
       myUsers.clear();
       myGroups.clear();
+      usersReplaced();
     }
     new File(getUsersFileName()).delete();
     myBroadcaster.removeListener(mySaver);
@@ -103,8 +126,11 @@ public class PersistentUserModelImpl extends UserModelImpl {
     Object persistentModel = XMLUtil.fromXml(myXStream, getUsersFileName(), false);
     if (persistentModel instanceof PersistentUserModelImpl) {
       PersistentUserModelImpl model = (PersistentUserModelImpl) persistentModel;
-      myGroups.addAll(model.myGroups);
-      myUsers.addAll(model.myUsers);
+      synchronized (myUsersGroupsLock) {
+        myGroups.addAll(model.myGroups);
+        myUsers.addAll(model.myUsers);
+        usersReplaced();
+      }
     }
   }
 
@@ -39,6 +39,8 @@ public class UserModelImpl implements UserModel, Disposable {
   protected final transient Object myUsersGroupsLock = new Object();
 
   private final transient AtomicReference<User[]> myCachedUsers = new AtomicReference<User[]>();
+  /** users by transport code and name, guarded by myUsersGroupsLock; built on first lookup */
+  private transient Map<String, User> myUserIndex;
 
   public UserModelImpl(EventBroadcaster eventBroadcaster) {
     myBroadcaster = eventBroadcaster;
@@ -72,13 +74,47 @@ public class UserModelImpl implements UserModel, Disposable {
       @Override
       public void run() {
         synchronized (myUsersGroupsLock) {
-          myUsers.add(user);
-          myGroups.add(user.getGroup());
+          doAddUser(user);
         }
       }
     });
   }
 
+  @Override
+  public void addUsers(Collection<User> users) {
+    final Set<User> toAdd = new LinkedHashSet<User>();
+    synchronized (myUsersGroupsLock) {
+      for (User user : users) {
+        if (!myUsers.contains(user) && (!user.isSelf() || Pico.isUnitTest())) {
+          toAdd.add(user);
+        }
+      }
+    }
+    if (toAdd.isEmpty()) return;
+
+    List<UserEvent> events = new ArrayList<UserEvent>(toAdd.size());
+    for (User user : toAdd) {
+      events.add(new UserEvent.Added(user));
+    }
+    myBroadcaster.doChange(new UserBatchEvent(events), new Runnable() {
+      @Override
+      public void run() {
+        synchronized (myUsersGroupsLock) {
+          for (User user : toAdd) {
+            doAddUser(user);
+          }
+        }
+      }
+    });
+  }
+
+  private void doAddUser(User user) {
+    if (myUsers.add(user) && myUserIndex != null) {
+      myUserIndex.put(getKey(user.getName(), user.getTransportCode()), user);
+    }
+    myGroups.add(user.getGroup());
+  }
+
   @Override
   public void removeUser(final User user) {
     synchronized (myUsersGroupsLock) {
@@ -91,12 +127,49 @@ public class UserModelImpl implements UserModel, Disposable {
       @Override
       public void run() {
         synchronized (myUsersGroupsLock) {
-          myUsers.remove(user);
+          doRemoveUser(user);
         }
       }
     });
   }
 
+  @Override
+  public void removeUsers(Collection<User> users) {
+    final Set<User> toRemove = new LinkedHashSet<User>();
+    synchronized (myUsersGroupsLock) {
+      for (User user : users) {
+        if (myUsers.contains(user)) {
+          toRemove.add(user);
+        }
+      }
+    }
+    if (toRemove.isEmpty()) return;
+
+    List<UserEvent> events = new ArrayList<UserEvent>(toRemove.size());
+    for (User user : toRemove) {
+      events.add(new UserEvent.Removed(user));
+    }
+    myBroadcaster.doChange(new UserBatchEvent(events), new Runnable() {
+      @Override
+      public void run() {
+        synchronized (myUsersGroupsLock) {
+          for (User user : toRemove) {
+            doRemoveUser(user);
+          }
+        }
+      }
+    });
+  }
+
+  private void doRemoveUser(User user) {
+    if (myUsers.remove(user) && myUserIndex != null) {
+      String key = getKey(user.getName(), user.getTransportCode());
+      if (user.equals(myUserIndex.get(key))) {
+        myUserIndex.remove(key);
+      }
+    }
+  }
+
   @Override
   public String[] getGroups() {
     Set<String> result = new TreeSet<String>();
@@ -156,12 +229,8 @@ public class UserModelImpl implements UserModel, Disposable {
 
   @Override
   public String getGroup(User user) {
-    for (User user1 : getUsersList()) {
-      if (user1.equals(user)) {
-        return user1.getGroup();
-      }
-    }
-    return null;
+    User inModel = findUser(user.getName(), user.getTransportCode());
+    return inModel != null && inModel.equals(user) ? inModel.getGroup() : null;
   }
 
   @Override
@@ -215,12 +284,27 @@ public class UserModelImpl implements UserModel, Disposable {
 
   @Override
   public User findUser(String userName, String transportCode) {
-    for (User user : getUsersList()) {
-      if (user.getName().equals(userName) && user.getTransportCode().equals(transportCode)) {
-        return user;
+    synchronized (myUsersGroupsLock) {
+      if (myUserIndex == null) {
+        myUserIndex = new HashMap<String, User>(myUsers.size() * 2);
+        for (User user : myUsers) {
+          myUserIndex.put(getKey(user.getName(), user.getTransportCode()), user);
+        }
       }
+      return myUserIndex.get(getKey(userName, transportCode));
     }
-    return null;
+  }
+
+  private static String getKey(String userName, String transportCode) {
+    return transportCode + ':' + userName;
+  }
+
+  /**
+   * Should be called under myUsersGroupsLock when myUsers is changed directly, without events.
+   */
+  protected void usersReplaced() {
+    myUserIndex = null;
+    myCachedUsers.set(null);
   }
 
   @Override
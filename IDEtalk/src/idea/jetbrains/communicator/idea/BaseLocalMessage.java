@@ -54,6 +54,10 @@ public abstract class BaseLocalMessage implements LocalMessage {
     return StringUtil.containedIn(myComment, searchString);
   }
 
+  public String getSearchableText() {
+    return StringUtil.joinSearchable(myComment);
+  }
+
   protected abstract Icon getIcon();
 
   public Icon getMessageIcon(int refreshCounter) {
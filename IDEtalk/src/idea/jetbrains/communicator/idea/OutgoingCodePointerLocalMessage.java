@@ -40,6 +40,10 @@ public class OutgoingCodePointerLocalMessage extends BaseOutgoingLocalMessage {
     return super.containsString(searchString) || myEvent.getFile().containsSearchString(searchString);
   }
 
+  public String getSearchableText() {
+    return StringUtil.joinSearchable(super.getSearchableText(), myEvent.getFile().getSearchableText());
+  }
+
   public ConsoleMessage createConsoleMessage(User user) {
     return new OwnConsoleMessage(user, StringUtil.getMsg("code.pointer"), getWhen()) {
       public void printMessage(Project project, ConsoleView console) {
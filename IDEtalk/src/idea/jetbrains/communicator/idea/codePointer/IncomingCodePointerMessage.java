@@ -71,6 +71,10 @@ public class IncomingCodePointerMessage extends BaseIncomingLocalMessage {
     return super.containsString(searchString) || myRemoteFile.containsSearchString(searchString);
   }
 
+  public String getSearchableText() {
+    return StringUtil.joinSearchable(super.getSearchableText(), myRemoteFile.getSearchableText());
+  }
+
   protected Icon getIcon() {
     return IdetalkCoreIcons.CodePointer;
   }
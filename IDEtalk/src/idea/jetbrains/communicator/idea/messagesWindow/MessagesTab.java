@@ -59,6 +59,8 @@ public class MessagesTab implements Disposable {
   private static final String LF = "LineFeed";
   @NonNls
   private static final String SEND = "Send";
+  /** a new tab shows no more than this number of the latest messages of today */
+  private static final int MAX_TODAYS_MESSAGES = 200;
 
   private JPanel myMainPanel;
   private JTextArea myInput;
@@ -112,7 +114,9 @@ public class MessagesTab implements Disposable {
   }
 
   private void loadTodaysMessages() {
-    LocalMessage[] history = myLocalMessageDispatcher.getHistory(myUser, TimeUtil.getDay(new Date()));
+    Date today = TimeUtil.getDay(new Date());
+    int size = myLocalMessageDispatcher.getHistorySize(myUser, today);
+    LocalMessage[] history = myLocalMessageDispatcher.getHistory(myUser, today, Math.max(size - MAX_TODAYS_MESSAGES, 0), MAX_TODAYS_MESSAGES);
     for (LocalMessage localMessage : history) {
       ConsoleMessage consoleMessage = ((BaseLocalMessage) localMessage).createConsoleMessage(myUser);
       outputMessage(consoleMessage);
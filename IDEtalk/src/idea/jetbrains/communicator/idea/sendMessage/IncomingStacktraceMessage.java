@@ -40,6 +40,11 @@ public class IncomingStacktraceMessage extends BaseIncomingLocalMessage {
     return super.containsString(searchString) || StringUtil.containedIn(myStacktrace, searchString);
   }
 
+  @Override
+  public String getSearchableText() {
+    return StringUtil.joinSearchable(super.getSearchableText(), myStacktrace);
+  }
+
   @Override
   protected void outputMessage(ConsoleView consoleView) {
     if (!com.intellij.openapi.util.text.StringUtil.isEmptyOrSpaces(getComment())) {
@@ -70,6 +70,10 @@ public class UsersTreeModel extends DefaultTreeModel implements Disposable {
             updateTree(null);
           }
 
+          @Override public void visitUserBatch(UserBatchEvent event) {
+            updateTree(null);
+          }
+
           @Override public void visitGroupEvent(GroupEvent event) {
             updateTree(event);
           }
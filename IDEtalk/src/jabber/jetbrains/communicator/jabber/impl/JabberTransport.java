@@ -60,6 +60,7 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   private static final Logger LOG = Logger.getLogger(JabberTransport.class);
 
   private static final int RESPONSE_TIMEOUT = 120*1000;
+  private static final int MAX_ROSTER_LOOKUPS = 20;
   @NonNls public static final String CODE = "Jabber";
 
   private final JabberUI myUI;
@@ -423,13 +424,10 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   private void updateJabberUsers(boolean removeUsersNotInRoster) {
     LOG.debug("Roster changed - update user model");
     Set<User> currentUsers = new HashSet<User>(Arrays.asList(myUserModel.getAllUsers()));
-    for (RosterEntry rosterEntry : getRoster().getEntries()) {
-      User user = addJabberUserToUserModelOrUpdateInfo(rosterEntry);
-      currentUsers.remove(user);
-    }
+    currentUsers.removeAll(updateJabberUsers(getRoster().getEntries()));
 
     if (removeUsersNotInRoster) {
-      removeUsers(currentUsers);
+      myUserModel.removeUsers(currentUsers);
     }
 
     if (LOG.isDebugEnabled()) {
@@ -437,27 +435,67 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
     }
   }
 
-  private void removeUsers(Set<User> currentUsers) {
-    for (User user : currentUsers) {
-      myUserModel.removeUser(user);
+  /** Updates users of the changed roster entries only */
+  private void rosterEntriesChanged(Collection<?> addresses) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Roster entries changed - update user model: " + addresses);
+    }
+    updateJabberUsers(getRosterEntries(addresses));
+  }
+
+  private List<User> updateJabberUsers(Collection<RosterEntry> rosterEntries) {
+    List<User> users = new ArrayList<User>(rosterEntries.size());
+    List<User> newUsers = new ArrayList<User>();
+    for (RosterEntry rosterEntry : rosterEntries) {
+      User user = updateJabberUserInfo(rosterEntry);
+      if (!myUserModel.hasUser(user)) {
+        newUsers.add(user);
+      }
+      users.add(user);
     }
+    myUserModel.addUsers(newUsers);
+    return users;
   }
 
-  private User addJabberUserToUserModelOrUpdateInfo(RosterEntry rosterEntry) {
-//    System.out.println("rosterEntry.getName() = " + rosterEntry.getName());
-//    System.out.println("rosterEntry.getUser() = " + rosterEntry.getUser());
+  /** @return user for the roster entry; if it is in the user model already, its group and name are updated */
+  private User updateJabberUserInfo(RosterEntry rosterEntry) {
     User user = myUserModel.createUser(getSimpleId(rosterEntry.getUser()), getName());
     String newGroup = getUserGroup(rosterEntry);
     if (newGroup != null) {
       user.setGroup(newGroup, myUserModel);
     }
     user.setDisplayName(rosterEntry.getName(), myUserModel);
-    myUserModel.addUser(user);
     String jabberId = getCurrentJabberID(user, rosterEntry);
     updateIsIDEtalkClient(jabberId, user);
     return user;
   }
 
+  private List<RosterEntry> getRosterEntries(Collection<?> addresses) {
+    Roster roster = getRoster();
+    List<RosterEntry> result = new ArrayList<RosterEntry>(addresses.size());
+    if (addresses.size() <= MAX_ROSTER_LOOKUPS) {
+      for (Object address : addresses) {
+        RosterEntry entry = roster.getEntry((String) address);
+        if (entry != null) {
+          result.add(entry);
+        }
+      }
+    }
+    else {
+      // Roster.getEntry() scans all entries, so many addresses are matched in one pass
+      Set<String> lowerCaseAddresses = new HashSet<String>();
+      for (Object address : addresses) {
+        lowerCaseAddresses.add(((String) address).toLowerCase());
+      }
+      for (RosterEntry entry : roster.getEntries()) {
+        if (lowerCaseAddresses.contains(entry.getUser().toLowerCase())) {
+          result.add(entry);
+        }
+      }
+    }
+    return result;
+  }
+
   private String getCurrentJabberID(User user, RosterEntry rosterEntry) {
     Presence presence = _getPresence(user);
     String jabberId = null;
@@ -545,17 +583,17 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   private class MyRosterListener implements RosterListener {
     @Override
     public void entriesAdded(Collection addresses) {
-      updateJabberUsers(false);
+      rosterEntriesChanged(addresses);
     }
 
     @Override
     public void entriesUpdated(Collection addresses) {
-      updateJabberUsers(false);
+      rosterEntriesChanged(addresses);
     }
 
     @Override
     public void entriesDeleted(Collection addresses) {
-      updateJabberUsers(false);
+      // users deleted from the roster are kept in the user model, they are removed by synchronizeRoster(true)
     }
 
     @Override
@@ -19,7 +19,6 @@ import jetbrains.communicator.core.Pico;
 import jetbrains.communicator.util.TimeoutCachedValue;
 import jetbrains.communicator.util.XmlRpcTarget;
 import org.apache.log4j.Logger;
-import org.apache.xmlrpc.XmlRpcClient;
 import org.apache.xmlrpc.XmlRpcException;
 import org.jetbrains.annotations.Nullable;
 
@@ -34,6 +33,8 @@ import java.util.*;
 public class NetworkUtil {
   private static final Logger LOG = Logger.getLogger(NetworkUtil.class);
 
+  private static final XmlRpcCallLimiter ourCalls = new XmlRpcCallLimiter();
+
   private static final TimeoutCachedValue<List<InetAddress>> ourInterfaces = new TimeoutCachedValue<List<InetAddress>>(30 * 1000) {
     @Override
     protected List<InetAddress> calculate() {
@@ -67,10 +68,18 @@ public class NetworkUtil {
   }
 
   public static Object sendMessage(XmlRpcTarget target, String xmlRpcId, String method, Object... parameters) {
-    return sendMessage(target, xmlRpcId, method, Arrays.asList(parameters));
+    return sendMessage(target, xmlRpcId, method, Arrays.asList(parameters), false);
+  }
+
+  /**
+   * Like {@link #sendMessage}, but the peer may need long to prepare the response, e.g. file contents.
+   */
+  public static Object sendMessageWaitingForResponse(XmlRpcTarget target, String xmlRpcId, String method, Object... parameters) {
+    return sendMessage(target, xmlRpcId, method, Arrays.asList(parameters), true);
   }
 
-  private static Object sendMessage(XmlRpcTarget target, String xmlRpcId, String method, List<Object> parameters) {
+  private static Object sendMessage(XmlRpcTarget target, String xmlRpcId, String method, List<Object> parameters,
+                                    boolean waitForResponse) {
     checkParameters(parameters, method);
 
     String url = "http://" + target.getAddress().getHostAddress() + ':' + target.getPort() + "/rpc2";
@@ -86,7 +95,10 @@ public class NetworkUtil {
     }
 
     try {
-      return new XmlRpcClient(url).execute(fullMethodName, new Vector<Object>(parameters));
+      Vector<Object> callParameters = new Vector<Object>(parameters);
+      return waitForResponse
+             ? ourCalls.executeWaitingForResponse(url, fullMethodName, callParameters)
+             : ourCalls.execute(url, fullMethodName, callParameters);
     }
     catch (MalformedURLException e) {
       LOG.info(buildFullLogLine(logLine, parameters) + ' ' + e.getLocalizedMessage());
@@ -100,6 +112,10 @@ public class NetworkUtil {
     return null;
   }
 
+  static XmlRpcCallLimiter getCallLimiter() {
+    return ourCalls;
+  }
+
   private static String buildFullLogLine(String logLine, List<?> parameters) {
     return logLine + '(' + parameters + ')';
   }
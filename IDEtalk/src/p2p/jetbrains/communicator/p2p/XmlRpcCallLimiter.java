@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.p2p;
+
+import org.apache.xmlrpc.XmlRpcClient;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcTransport;
+import org.apache.xmlrpc.XmlRpcTransportFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Makes XML-RPC calls to peers with connect and read timeouts, so that a peer which accepts connections but
+ * does not answer cannot block the caller for long. At most {@link #MAX_CALLS_PER_PEER} calls to a peer run at once,
+ * the other callers wait for their turn.
+ * <p/>
+ * The read timeout limits the time without any data from the peer, not the whole call. Calls which wait for
+ * a response the peer may need long to prepare, like file contents, use {@link #RESPONSE_READ_TIMEOUT}.
+ * <p/>
+ * Clients and connections are not pooled, each call opens a new URL connection.
+ */
+class XmlRpcCallLimiter {
+  static final int MAX_CALLS_PER_PEER = 4;
+  static final int CONNECT_TIMEOUT = 5 * 1000;
+  static final int DEFAULT_READ_TIMEOUT = 20 * 1000;
+  static final int RESPONSE_READ_TIMEOUT = 5 * 60 * 1000;
+  private static final long IDLE_TIMEOUT = 60 * 1000;
+
+  private final Map<String, PeerCalls> myPeers = new HashMap<String, PeerCalls>();
+  private long myLastEviction = System.currentTimeMillis();
+  private volatile int myReadTimeout = DEFAULT_READ_TIMEOUT;
+
+  public Object execute(String url, String method, Vector<Object> parameters) throws IOException, XmlRpcException {
+    return execute(url, method, parameters, myReadTimeout);
+  }
+
+  public Object executeWaitingForResponse(String url, String method, Vector<Object> parameters) throws IOException, XmlRpcException {
+    return execute(url, method, parameters, RESPONSE_READ_TIMEOUT);
+  }
+
+  private Object execute(String url, String method, Vector<Object> parameters, int readTimeout) throws IOException, XmlRpcException {
+    PeerCalls peerCalls = getPeerCalls(url);
+    try {
+      peerCalls.myPermits.acquire();
+    }
+    catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for a call to " + url);
+    }
+
+    try {
+      URL target = new URL(url);
+      return new XmlRpcClient(target, new TimeoutTransportFactory(target, readTimeout)).execute(method, parameters);
+    }
+    finally {
+      peerCalls.myLastUsed = System.currentTimeMillis();
+      peerCalls.myPermits.release();
+    }
+  }
+
+  void setReadTimeout(int readTimeout) {
+    myReadTimeout = readTimeout;
+  }
+
+  private synchronized PeerCalls getPeerCalls(String url) {
+    long now = System.currentTimeMillis();
+    if (now - myLastEviction > IDLE_TIMEOUT / 2) {
+      evictIdlePeers(now);
+      myLastEviction = now;
+    }
+
+    PeerCalls peerCalls = myPeers.get(url);
+    if (peerCalls == null) {
+      peerCalls = new PeerCalls();
+      myPeers.put(url, peerCalls);
+    }
+    return peerCalls;
+  }
+
+  private void evictIdlePeers(long now) {
+    for (Iterator<PeerCalls> it = myPeers.values().iterator(); it.hasNext();) {
+      PeerCalls peerCalls = it.next();
+      if (now - peerCalls.myLastUsed > IDLE_TIMEOUT && peerCalls.myPermits.availablePermits() == MAX_CALLS_PER_PEER) {
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    myPeers.clear();
+  }
+
+  private static class PeerCalls {
+    private final Semaphore myPermits = new Semaphore(MAX_CALLS_PER_PEER);
+    private volatile long myLastUsed = System.currentTimeMillis();
+  }
+
+  private static class TimeoutTransportFactory implements XmlRpcTransportFactory {
+    private final URL myUrl;
+    private final int myReadTimeout;
+
+    TimeoutTransportFactory(URL url, int readTimeout) {
+      myUrl = url;
+      myReadTimeout = readTimeout;
+    }
+
+    public XmlRpcTransport createTransport() {
+      return new TimeoutTransport(myUrl, myReadTimeout);
+    }
+
+    public void setProperty(String propertyName, Object value) {
+    }
+  }
+
+  /**
+   * The default XML-RPC transport with timeouts.
+   */
+  private static class TimeoutTransport implements XmlRpcTransport {
+    private final URL myUrl;
+    private final int myReadTimeout;
+    private URLConnection myConnection;
+
+    TimeoutTransport(URL url, int readTimeout) {
+      myUrl = url;
+      myReadTimeout = readTimeout;
+    }
+
+    public InputStream sendXmlRpc(byte[] request) throws IOException {
+      myConnection = myUrl.openConnection();
+      myConnection.setConnectTimeout(CONNECT_TIMEOUT);
+      myConnection.setReadTimeout(myReadTimeout);
+      myConnection.setDoInput(true);
+      myConnection.setDoOutput(true);
+      myConnection.setUseCaches(false);
+      myConnection.setAllowUserInteraction(false);
+      myConnection.setRequestProperty("Content-Length", Integer.toString(request.length));
+      myConnection.setRequestProperty("Content-Type", "text/xml");
+
+      OutputStream output = myConnection.getOutputStream();
+      try {
+        output.write(request);
+        output.flush();
+      }
+      finally {
+        output.close();
+      }
+      return myConnection.getInputStream();
+    }
+
+    public void endClientRequest() {
+      if (myConnection == null) return;
+
+      try {
+        myConnection.getInputStream().close();
+      }
+      catch (IOException e) {
+        // the call is over anyway
+      }
+    }
+  }
+}
@@ -54,10 +54,17 @@ public class P2PNetworkMessage implements Message {
     List<String> parameters = new ArrayList<String>();
     parameters.add(StringUtil.toXMLSafeString(StringUtil.getMyUsername()));
     parameters.addAll(myCommandParameters);
-    setResponse(NetworkUtil.sendMessage(target, myCommandId, myCommand, ArrayUtil.toObjectArray(parameters)));
+    Object[] callParameters = ArrayUtil.toObjectArray(parameters);
+    setResponse(waitsForResponse()
+                ? NetworkUtil.sendMessageWaitingForResponse(target, myCommandId, myCommand, callParameters)
+                : NetworkUtil.sendMessage(target, myCommandId, myCommand, callParameters));
     return null != myResponse;
   }
 
+  protected boolean waitsForResponse() {
+    return false;
+  }
+
   void setResponse(Object response) {
     myResponse = response;
   }
@@ -49,6 +49,11 @@ class P2PNetworkXmlMessage extends P2PNetworkMessage {
     return false;
   }
 
+  @Override
+  protected boolean waitsForResponse() {
+    return myMessage != null && myMessage.needsResponse();
+  }
+
   void processResponse() {
     if (myMessage == null || !myMessage.needsResponse()) return;
 
@@ -75,7 +75,7 @@ public class SearchHistoryCommandTest extends LightTestCase {
   public void testSearchHistory_NoResults() throws Exception {
     query("");
 
-    myDispatcherMock.expects(once()).method("getHistory").with(eq(myUser), eq(null)).will(returnValue(new LocalMessage[0]));
+    myDispatcherMock.expects(once()).method("searchHistory").with(eq(myUser), eq(""), ANYTHING).will(returnValue(new LocalMessage[0]));
 
     myIdeMock.expects(once()).method("showMessage").with(
         eq(StringUtil.getMsg("SearchHistoryCommand.search.history", myUser.getDisplayName())),
@@ -86,13 +86,12 @@ public class SearchHistoryCommandTest extends LightTestCase {
   }
 
   public void testSearchHistory_WithResult() throws Exception {
-    MockMessage m1 = new MockMessage(new Date(), "some text1");
     MockMessage m2 = new MockMessage(new Date(), "some text2");
     MockMessage m3 = new MockMessage(new Date(), "some text2 ataing");
 
     query("text2");
-    myDispatcherMock.expects(once()).method("getHistory").with(eq(myUser), eq(null)).will(
-        returnValue(new LocalMessage[]{m1, m2, m3}));
+    myDispatcherMock.expects(once()).method("searchHistory").with(eq(myUser), eq("text2"), ANYTHING).will(
+        returnValue(new LocalMessage[]{m2, m3}));
 
     myIdeMock.expects(once()).method("showSearchHistoryResults").with(
         eq(new ArrayList<LocalMessage>(Arrays.asList(m2, m3))),
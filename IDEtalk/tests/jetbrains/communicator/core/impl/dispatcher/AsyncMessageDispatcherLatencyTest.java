@@ -0,0 +1,280 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserEvent;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.mock.MockMessage;
+import jetbrains.communicator.mock.MockUser;
+import jetbrains.communicator.util.WaitFor;
+
+import java.util.*;
+
+/**
+ * Delivers messages through a stub transport whose peers answer with a given delay or do not answer at all,
+ * and measures the time from {@link AsyncMessageDispatcherImpl#sendLater} till the message is delivered.
+ */
+@SuppressWarnings({"HardCodedStringLiteral"})
+public class AsyncMessageDispatcherLatencyTest extends BaseTestCase {
+  /** how long a call to an unreachable peer takes before it fails, like a connection timeout */
+  private static final int OFFLINE_TIMEOUT = 2000;
+  /** the dispatcher schedules retries with the millisecond clock */
+  private static final int CLOCK_TOLERANCE = 2;
+
+  private AsyncMessageDispatcherImpl myDispatcher;
+  private StubTransport myTransport;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myTransport = new StubTransport();
+    myDispatcher = new AsyncMessageDispatcherImpl(getBroadcaster(), new MockIDEFacade(getClass()));
+
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.isRunning();
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myTransport.setAllOnline();
+    myDispatcher.clearAll();
+    myDispatcher.dispose();
+
+    super.tearDown();
+  }
+
+  public void testOfflinePeerDoesNotDelayOthers() throws Exception {
+    MockUser offline = myTransport.addPeer("offline", -1);
+    List<StubMessage> messages = new ArrayList<StubMessage>();
+    messages.add(myTransport.send(myDispatcher, offline));
+    for (int i = 0; i < 10; i++) {
+      MockUser peer = myTransport.addPeer("peer" + i, i % 2 == 0 ? 10 : 100);
+      for (int j = 0; j < 5; j++) {
+        messages.add(myTransport.send(myDispatcher, peer));
+      }
+    }
+
+    waitForDelivery(messages.subList(1, messages.size()), 10000);
+
+    long maxLatency = 0;
+    for (StubMessage message : messages.subList(1, messages.size())) {
+      maxLatency = Math.max(maxLatency, message.getLatency());
+    }
+    assertTrue("Delivery waited for the offline peer: " + maxLatency + " ms", maxLatency < OFFLINE_TIMEOUT);
+    assertEquals(1, myDispatcher.getPendingMessages(offline).length);
+  }
+
+  public void testHangingPeersInBackoffDoNotDelayOthers() throws Exception {
+    myDispatcher.setRetryDelays(50, 50);
+    List<StubMessage> hanging = new ArrayList<StubMessage>();
+    for (int i = 0; i < 4; i++) {
+      hanging.add(myTransport.send(myDispatcher, myTransport.addPeer("hanging" + i, -1)));
+    }
+    // let the first attempts fail, the peers are retried all the time from now on
+    waitForAttempts(hanging, 2);
+
+    StubMessage message = myTransport.send(myDispatcher, myTransport.addPeer("peer", 0));
+    waitForDelivery(Collections.singletonList(message), 10000);
+
+    assertTrue("Delivery waited for hanging peers: " + message.getLatency() + " ms", message.getLatency() < OFFLINE_TIMEOUT);
+  }
+
+  public void testHangingFirstAttemptsDoNotDelayOthers() throws Exception {
+    myDispatcher.setSlowDeliveryTimeout(200);
+    for (int i = 0; i < 4; i++) {
+      myTransport.send(myDispatcher, myTransport.addPeer("hanging" + i, -1));
+    }
+
+    StubMessage message = myTransport.send(myDispatcher, myTransport.addPeer("peer", 0));
+    waitForDelivery(Collections.singletonList(message), 10000);
+
+    assertTrue("Delivery waited for hanging peers: " + message.getLatency() + " ms", message.getLatency() < OFFLINE_TIMEOUT);
+  }
+
+  public void testMessagesToOneUserAreDeliveredInOrder() throws Exception {
+    MockUser peer = myTransport.addPeer("peer", 5);
+    List<StubMessage> messages = new ArrayList<StubMessage>();
+    for (int i = 0; i < 20; i++) {
+      messages.add(myTransport.send(myDispatcher, peer));
+    }
+
+    waitForDelivery(messages, 10000);
+
+    assertEquals(messages, myTransport.getDelivered(peer));
+  }
+
+  public void testBackoffAndRetryWhenOnline() throws Exception {
+    myDispatcher.setRetryDelays(50, 200);
+    MockUser peer = myTransport.addPeer("peer", 0);
+    myTransport.setOnline(peer, false);
+
+    StubMessage message = myTransport.send(myDispatcher, peer);
+    waitForAttempts(Collections.singletonList(message), 5);
+    assertFalse(message.isDelivered());
+
+    // a retry never comes earlier than its delay, it may come later on a busy machine
+    long[] delays = {50, 100, 200, 200};
+    List<Long> times = message.getAttemptTimes();
+    for (int i = 0; i < delays.length; i++) {
+      long interval = times.get(i + 1) - times.get(i);
+      assertTrue("Retry " + (i + 1) + " after " + interval + " ms", interval >= delays[i] - CLOCK_TOLERANCE);
+    }
+
+    myTransport.setOnline(peer, true);
+    getBroadcaster().fireEvent(new UserEvent.Online(peer));
+
+    waitForDelivery(Collections.singletonList(message), 10000);
+  }
+
+  private static void waitForAttempts(final List<StubMessage> messages, final int attempts) {
+    new WaitFor(10 * OFFLINE_TIMEOUT) {
+      @Override
+      protected boolean condition() {
+        for (StubMessage message : messages) {
+          if (message.getAttempts() < attempts) return false;
+        }
+        return true;
+      }
+    };
+    for (StubMessage message : messages) {
+      assertTrue(message + " attempts: " + message.getAttempts(), message.getAttempts() >= attempts);
+    }
+  }
+
+  private static void waitForDelivery(final List<StubMessage> messages, int timeout) {
+    new WaitFor(timeout) {
+      @Override
+      protected boolean condition() {
+        for (StubMessage message : messages) {
+          if (!message.isDelivered()) return false;
+        }
+        return true;
+      }
+    };
+    for (StubMessage message : messages) {
+      assertTrue(message + " not delivered", message.isDelivered());
+    }
+  }
+
+  /**
+   * Peers with a fixed answer delay; a negative delay or an offline peer makes the call fail after {@link #OFFLINE_TIMEOUT}.
+   */
+  private static class StubTransport {
+    private final Map<User, Integer> myDelays = new HashMap<User, Integer>();
+    private final Map<User, List<StubMessage>> myDelivered = new HashMap<User, List<StubMessage>>();
+
+    synchronized MockUser addPeer(String name, int delay) {
+      MockUser user = new MockUser(name, null, true);
+      myDelays.put(user, delay);
+      myDelivered.put(user, new ArrayList<StubMessage>());
+      return user;
+    }
+
+    synchronized void setOnline(MockUser user, boolean online) {
+      user.setOnline(online);
+    }
+
+    synchronized void setAllOnline() {
+      for (User user : myDelays.keySet()) {
+        ((MockUser)user).setOnline(true);
+        myDelays.put(user, 0);
+      }
+    }
+
+    synchronized List<StubMessage> getDelivered(User user) {
+      return new ArrayList<StubMessage>(myDelivered.get(user));
+    }
+
+    StubMessage send(AsyncMessageDispatcherImpl dispatcher, User user) {
+      StubMessage message = new StubMessage(this);
+      dispatcher.sendLater(user, message);
+      return message;
+    }
+
+    boolean deliver(User user, StubMessage message) {
+      int delay;
+      synchronized (this) {
+        delay = user.isOnline() ? myDelays.get(user) : 0;
+      }
+      try {
+        if (delay < 0) {
+          Thread.sleep(OFFLINE_TIMEOUT);
+          return false;
+        }
+        Thread.sleep(delay);
+      }
+      catch (InterruptedException e) {
+        return false;
+      }
+
+      synchronized (this) {
+        if (!user.isOnline()) return false;
+        myDelivered.get(user).add(message);
+        return true;
+      }
+    }
+  }
+
+  private static class StubMessage extends MockMessage {
+    private final StubTransport myTransport;
+    private final long myCreated = System.currentTimeMillis();
+    private volatile long myDelivered;
+    private final List<Long> myAttemptTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+    StubMessage(StubTransport transport) {
+      myTransport = transport;
+    }
+
+    @Override
+    public boolean send(User user) {
+      myAttemptTimes.add(System.currentTimeMillis());
+      boolean result = myTransport.deliver(user, this);
+      if (result) {
+        myDelivered = System.currentTimeMillis();
+      }
+      return result;
+    }
+
+    public boolean isDelivered() {
+      return myDelivered != 0;
+    }
+
+    public long getLatency() {
+      return myDelivered - myCreated;
+    }
+
+    public int getAttempts() {
+      return myAttemptTimes.size();
+    }
+
+    public List<Long> getAttemptTimes() {
+      synchronized (myAttemptTimes) {
+        return new ArrayList<Long>(myAttemptTimes);
+      }
+    }
+
+    public String toString() {
+      return "StubMessage@" + System.identityHashCode(this);
+    }
+  }
+}
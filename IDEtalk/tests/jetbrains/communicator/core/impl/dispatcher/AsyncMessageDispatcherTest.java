@@ -122,8 +122,17 @@ public class AsyncMessageDispatcherTest extends BaseTestCase {
     mockMessage.waitUntilDispatchingStarted();
     myDispatcher.sendLater(user2, new MockMessage(true));
 
-    assertEquals("Messages not delivered yet", 2,
-        myDispatcher.getUsersWithMessages().length);
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getPendingMessages(user2).length == 0;
+      }
+    };
+
+    assertEquals("Message to user2 should not wait for user1", 0,
+        myDispatcher.getPendingMessages(user2).length);
+    assertEquals("Message to user1 not delivered yet", 1,
+        myDispatcher.getPendingMessages(user1).length);
 
     triggerMessageProcessing(mockMessage);
 
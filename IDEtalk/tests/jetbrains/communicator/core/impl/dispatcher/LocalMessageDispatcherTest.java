@@ -15,6 +15,7 @@
  */
 package jetbrains.communicator.core.impl.dispatcher;
 
+import com.thoughtworks.xstream.XStream;
 import jetbrains.communicator.core.impl.BaseTestCase;
 import jetbrains.communicator.core.dispatcher.LocalMessage;
 import jetbrains.communicator.core.dispatcher.Message;
@@ -27,10 +28,12 @@ import jetbrains.communicator.mock.MockIDEFacade;
 import jetbrains.communicator.mock.MockMessage;
 import jetbrains.communicator.mock.MockTransport;
 import jetbrains.communicator.util.WatchDog;
+import jetbrains.communicator.util.XMLUtil;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
@@ -242,7 +245,7 @@ public class LocalMessageDispatcherTest extends BaseTestCase {
     myDispatcher.sendNow(myUser, new MockMessage(yesterday()));
 
     Thread.sleep(SAVE_WAIT_TIMEOUT);
-    assertEquals(2, new File(myIdeFacade.getCacheDir(), "history").listFiles().length);
+    assertEquals("One directory per user", 1, new File(myIdeFacade.getCacheDir(), "history").listFiles().length);
 
     LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
     LocalMessage[] messages = localMessageDispatcher.getHistory(myUser, a_moment_ago());
@@ -252,6 +255,125 @@ public class LocalMessageDispatcherTest extends BaseTestCase {
     assertEquals(2, messages.length);
   }
 
+  public void testHistoryPages() throws Exception {
+    long start = System.currentTimeMillis() - 60000;
+    for (int i = 0; i < 10; i++) {
+      myDispatcher.sendNow(myUser, new MockMessage(new Date(start + i * 1000L), "message" + i));
+    }
+
+    assertEquals(10, myDispatcher.getHistorySize(myUser, null));
+    assertEquals(5, myDispatcher.getHistorySize(myUser, new Date(start + 4000)));
+    assertHistory(myDispatcher.getHistory(myUser, null, 3, 4), "message3", "message4", "message5", "message6");
+    assertHistory(myDispatcher.getHistory(myUser, new Date(start + 4000), 3, 10), "message8", "message9");
+
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(10, localMessageDispatcher.getHistorySize(myUser, null));
+    assertHistory(localMessageDispatcher.getHistory(myUser, null, 3, 4), "message3", "message4", "message5", "message6");
+    assertHistory(localMessageDispatcher.getHistory(myUser, null, 10, 4));
+  }
+
+  public void testSearchHistory() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text1"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text2"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text2 ataing"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "other"));
+
+    assertHistory(myDispatcher.searchHistory(myUser, "text2", 10), "some text2", "some text2 ataing");
+    assertHistory(myDispatcher.searchHistory(myUser, "ext2", 1), "some text2 ataing");
+
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertHistory(localMessageDispatcher.searchHistory(myUser, "text2", 10), "some text2", "some text2 ataing");
+    assertHistory(localMessageDispatcher.searchHistory(myUser, "ot", 10), "other");
+    assertHistory(localMessageDispatcher.searchHistory(myUser, "nothing", 10));
+
+    localMessageDispatcher.sendNow(myUser, new MockMessage(new Date(), "text2 again"));
+    assertHistory(localMessageDispatcher.searchHistory(myUser, "text2", 10), "some text2", "some text2 ataing", "text2 again");
+  }
+
+  public void testSearchHistoryWithoutSearchableText() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "indexed text"));
+    myDispatcher.sendNow(myUser, new UnindexedMessage(new Date(), "unindexed text"));
+
+    assertHistory(myDispatcher.searchHistory(myUser, "text", 10), "indexed text", "unindexed text");
+    assertHistory(myDispatcher.searchHistory(myUser, "unindexed", 10), "unindexed text");
+
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertHistory(localMessageDispatcher.searchHistory(myUser, "unindexed", 10), "unindexed text");
+  }
+
+  public void testImportDayHistory() throws Exception {
+    myDispatcher.dispose();
+
+    XStream xStream = createDayHistoryXStream();
+    DayHistory yesterday = new DayHistory();
+    yesterday.addMessage(myUser, new MockMessage(yesterday(), "yesterday"));
+    DayHistory today = new DayHistory();
+    today.addMessage(myUser, new MockMessage(new Date(), "today"));
+    File historyDir = new File(myIdeFacade.getCacheDir(), "history");
+    XMLUtil.toXml(xStream, historyDir, "2000-01-02.xml", today);
+    XMLUtil.toXml(xStream, historyDir, "2000-01-01.xml", yesterday);
+
+    myDispatcher = new LocalMessageDispatcherImpl(getBroadcaster(), myIdeFacade, myUserModel);
+    assertHistory(myDispatcher.getHistory(myUser, null), "yesterday", "today");
+    assertEquals("Day history files should be replaced with the history store", 1, historyDir.listFiles().length);
+    assertHistory(myDispatcher.searchHistory(myUser, "yesterday", 10), "yesterday");
+  }
+
+  public void testImportDayHistoryAgain() throws Exception {
+    myDispatcher.dispose();
+
+    XStream xStream = createDayHistoryXStream();
+    DayHistory today = new DayHistory();
+    today.addMessage(myUser, new MockMessage(new Date(), "today"));
+    File historyDir = new File(myIdeFacade.getCacheDir(), "history");
+    XMLUtil.toXml(xStream, historyDir, "2000-01-02.xml", today);
+
+    myDispatcher = new LocalMessageDispatcherImpl(getBroadcaster(), myIdeFacade, myUserModel);
+    assertHistory(myDispatcher.getHistory(myUser, null), "today");
+    myDispatcher.dispose();
+
+    // as if the import was interrupted before the file was deleted
+    XMLUtil.toXml(xStream, historyDir, "2000-01-02.xml", today);
+
+    myDispatcher = new LocalMessageDispatcherImpl(getBroadcaster(), myIdeFacade, myUserModel);
+    assertHistory(myDispatcher.getHistory(myUser, null), "today");
+  }
+
+  private XStream createDayHistoryXStream() {
+    XStream xStream = XMLUtil.createXStream();
+    xStream.alias("user", UserImpl.class);
+    xStream.alias("dayHistory", DayHistory.class);
+    xStream.aliasField("historyEntries", DayHistory.class, "myData");
+    xStream.registerConverter(new UserConverter(myUserModel));
+    return xStream;
+  }
+
+  private static void assertHistory(LocalMessage[] messages, String... expected) {
+    String[] actual = new String[messages.length];
+    for (int i = 0; i < messages.length; i++) {
+      actual[i] = ((MockMessage)messages[i]).getMessage();
+    }
+    assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+  }
+
+  /** Found by {@link #containsString} only. */
+  private static class UnindexedMessage extends MockMessage {
+    UnindexedMessage(Date date, String msg) {
+      super(date, msg);
+    }
+
+    @Override
+    public String getSearchableText() {
+      return null;
+    }
+  }
+
   private Date yesterday() {
     return new Date(System.currentTimeMillis() - 1000 * 3600 * 24);
   }
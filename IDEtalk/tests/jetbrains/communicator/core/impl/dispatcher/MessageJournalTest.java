@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.thoughtworks.xstream.XStream;
+import jetbrains.communicator.core.dispatcher.Message;
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.mock.MockUser;
+import jetbrains.communicator.p2p.commands.P2PNetworkMessage;
+import jetbrains.communicator.util.XMLUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+@SuppressWarnings({"HardCodedStringLiteral"})
+public class MessageJournalTest extends BaseTestCase {
+  private File myDir;
+  private XStream myXStream;
+  private MessageJournal myJournal;
+  private MockUser myUser1;
+  private MockUser myUser2;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myDir = new MockIDEFacade(getClass()).getCacheDir();
+    myXStream = XMLUtil.createXStream();
+    myJournal = new MessageJournal(new File(myDir, "test.journal"), myXStream);
+    myUser1 = new MockUser("user1", null);
+    myUser2 = new MockUser("user2", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myJournal.close();
+    super.tearDown();
+  }
+
+  public void testReplay() throws Exception {
+    assertFalse(myJournal.exists());
+    assertEquals(0, myJournal.open().size());
+
+    myJournal.messageAdded(myUser1, message(1));
+    myJournal.messageAdded(myUser1, message(2));
+    myJournal.messageAdded(myUser1, message(3));
+    myJournal.messageAdded(myUser2, message(4));
+    myJournal.messageRemoved(myUser1, 1);
+    myJournal.userRemoved(myUser2);
+    myJournal.messageAdded(myUser2, message(5));
+    myJournal.close();
+
+    Map<User, List<Message>> expected = new HashMap<User, List<Message>>();
+    expected.put(myUser1, Arrays.<Message>asList(message(1), message(3)));
+    expected.put(myUser2, Arrays.<Message>asList(message(5)));
+    assertEquals(expected, myJournal.open());
+
+    myJournal.cleared();
+    myJournal.messageAdded(myUser2, message(6));
+    myJournal.close();
+
+    expected.clear();
+    expected.put(myUser2, Arrays.<Message>asList(message(6)));
+    assertEquals(expected, myJournal.open());
+  }
+
+  public void testIncompleteRecordIsDropped() throws Exception {
+    myJournal.open();
+    myJournal.messageAdded(myUser1, message(1));
+    myJournal.close();
+    long length = myJournal.getFile().length();
+
+    // a record cut in the middle, as after a crash
+    FileOutputStream output = new FileOutputStream(myJournal.getFile(), true);
+    output.write(new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5, 6});
+    output.close();
+
+    assertEquals(Arrays.<Message>asList(message(1)), myJournal.open().get(myUser1));
+    assertEquals(length, myJournal.getFile().length());
+
+    myJournal.messageAdded(myUser1, message(2));
+    myJournal.close();
+    assertEquals(Arrays.<Message>asList(message(1), message(2)), myJournal.open().get(myUser1));
+  }
+
+  public void testCompaction() throws Exception {
+    myJournal.open();
+    for (int i = 0; i < 1500; i++) {
+      myJournal.messageAdded(myUser1, message(i));
+      if (i % 10 != 0) {
+        myJournal.messageRemoved(myUser1, 1);
+      }
+    }
+    myJournal.close();
+    Map<User, List<Message>> user2Messages = myJournal.open();
+    assertEquals(150, user2Messages.get(myUser1).size());
+    assertTrue(myJournal.needsCompaction(150));
+
+    long length = myJournal.getFile().length();
+    assertTrue(myJournal.compact(user2Messages));
+    assertFalse(myJournal.needsCompaction(150));
+    assertTrue(myJournal.getFile().length() < length / 5);
+
+    myJournal.messageAdded(myUser2, message(-1));
+    myJournal.close();
+
+    Map<User, List<Message>> replayed = myJournal.open();
+    assertEquals(user2Messages.get(myUser1), replayed.get(myUser1));
+    assertEquals(Arrays.<Message>asList(message(-1)), replayed.get(myUser2));
+  }
+
+  public void testMigrationFromXml() throws Exception {
+    Map<User, List<Message>> user2Messages = new HashMap<User, List<Message>>();
+    user2Messages.put(myUser1, new ArrayList<Message>(Arrays.<Message>asList(message(1), message(2))));
+    XStream xStream = createDispatcherXStream();
+    XMLUtil.toXml(xStream, myDir, "pending.xml", new MessagesStorable(user2Messages));
+
+    AbstractMessageDispatcher dispatcher = createDispatcher();
+    assertEquals(2, dispatcher.getPendingMessages(myUser1).length);
+    assertFalse("XML file should be replaced with the journal", new File(myDir, "pending.xml").exists());
+    assertTrue(new File(myDir, "pending.journal").exists());
+
+    dispatcher.addPendingMessage(myUser2, message(3));
+    dispatcher.dispose();
+
+    dispatcher = createDispatcher();
+    assertEquals(Arrays.asList(message(1), message(2)), Arrays.asList(dispatcher.getPendingMessages(myUser1)));
+    assertEquals(Arrays.asList(message(3)), Arrays.asList(dispatcher.getPendingMessages(myUser2)));
+    dispatcher.clearAll();
+    dispatcher.dispose();
+  }
+
+  public void testChangeIsAppendedWithoutRewritingPendingMessages() throws Exception {
+    final int pendingCount = 300;
+
+    Map<User, List<Message>> user2Messages = new HashMap<User, List<Message>>();
+    List<Message> messages = new ArrayList<Message>();
+    for (int i = 0; i < pendingCount; i++) {
+      messages.add(message(i));
+    }
+    user2Messages.put(myUser1, messages);
+
+    myJournal.open();
+    assertTrue(myJournal.compact(user2Messages));
+    long length = myJournal.getFile().length();
+
+    myJournal.messageAdded(myUser1, message(pendingCount));
+    myJournal.sync();
+    long recordLength = myJournal.getFile().length() - length;
+    assertTrue("Record of " + recordLength + " bytes after " + length + " bytes", recordLength > 0 && recordLength < 2 * length / pendingCount);
+
+    myJournal.close();
+    assertEquals(pendingCount + 1, myJournal.open().get(myUser1).size());
+  }
+
+  private AbstractMessageDispatcher createDispatcher() {
+    return new AbstractMessageDispatcher(getBroadcaster(), myDir) {
+      @Override
+      protected String getEventsFileName() {
+        return "pending.xml";
+      }
+    };
+  }
+
+  private static XStream createDispatcherXStream() {
+    XStream xStream = XMLUtil.createXStream();
+    xStream.alias("pendingEvents", MessagesStorable.class);
+    return xStream;
+  }
+
+  private static P2PNetworkMessage message(int i) {
+    return new P2PNetworkMessage("id", "command", new String[]{String.valueOf(i)});
+  }
+}
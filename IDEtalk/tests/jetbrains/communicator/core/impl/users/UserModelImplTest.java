@@ -22,6 +22,7 @@ import jetbrains.communicator.core.TestFactory;
 import jetbrains.communicator.core.transport.EventFactory;
 import jetbrains.communicator.core.users.GroupEvent;
 import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserBatchEvent;
 import jetbrains.communicator.core.users.UserEvent;
 import jetbrains.communicator.core.users.UserModel;
 import jetbrains.communicator.mock.MockTransport;
@@ -219,6 +220,48 @@ public class UserModelImplTest extends BaseTestCase {
     myListener.assertLog("Expect no messages when not in model", "");
   }
 
+  public void testAddUsers() throws Exception {
+    MockUser user1 = new MockUser("user1", null);
+    MockUser user2 = new MockUser("user2", "group3");
+    myUserModel.addUsers(Arrays.<User>asList(user1, user2, user1, myUserModel.getAllUsers()[0]));
+
+    myListener.assertLog("Expect one batch event", "BeforeAfter");
+    assertTrue(myUserModel.hasUser(user1));
+    assertSame(user2, myUserModel.findUser("user2", user2.getTransportCode()));
+    assertEquals(7, myUserModel.getAllUsers().length);
+    assertTrue(Arrays.asList(myUserModel.getGroups()).contains("group3"));
+
+    myUserModel.addUsers(Arrays.<User>asList(user1, user2));
+    myListener.assertLog("Expect no messages when already in model", "");
+  }
+
+  public void testRemoveUsers() throws Exception {
+    User[] users = myUserModel.getUsers("group1");
+    MockUser notInModel = new MockUser("user", null);
+    myUserModel.removeUsers(Arrays.<User>asList(users[0], users[1], notInModel));
+
+    UserBatchEvent event = (UserBatchEvent) myListener.getEvents()[0];
+    assertEquals(2, event.getEvents().size());
+    assertTrue(event.getEvents().get(0) instanceof UserEvent.Removed);
+    myListener.assertLog("Expect one batch event", "BeforeAfter");
+    assertNull(myUserModel.findUser(users[0].getName(), users[0].getTransportCode()));
+    assertEquals(3, myUserModel.getAllUsers().length);
+
+    myUserModel.removeUsers(Arrays.<User>asList(users));
+    myListener.assertLog("Expect no messages when not in model", "");
+  }
+
+  public void testFindUser() throws Exception {
+    User user = myUserModel.getAllUsers()[2];
+    assertSame(user, myUserModel.findUser(user.getName(), user.getTransportCode()));
+    assertNull(myUserModel.findUser(user.getName(), "unknown transport"));
+
+    myUserModel.removeUser(user);
+    assertNull(myUserModel.findUser(user.getName(), user.getTransportCode()));
+    myUserModel.addUser(user);
+    assertSame(user, myUserModel.findUser(user.getName(), user.getTransportCode()));
+  }
+
   private void assertUser(String group, String name, User user) {
     assertEquals(group, user.getGroup());
     assertEquals(name, user.getDisplayName());
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.jabber.impl;
+
+import jetbrains.communicator.core.IDEtalkAdapter;
+import jetbrains.communicator.core.IDEtalkEvent;
+import jetbrains.communicator.core.dispatcher.AsyncMessageDispatcher;
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.impl.users.UserModelImpl;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserBatchEvent;
+import jetbrains.communicator.core.users.UserEvent;
+import jetbrains.communicator.jabber.JabberUI;
+import jetbrains.communicator.jabber.JabberUserFinder;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.util.WaitFor;
+import org.jmock.Mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Roster synchronization of {@link JabberTransport} against {@link StubXmppServer} with a big roster.
+ */
+@SuppressWarnings({"HardCodedStringLiteral"})
+public class JabberTransport_RosterTest extends BaseTestCase {
+  private static final int ROSTER_SIZE = 2000;
+  private static final int TIMEOUT = 10000;
+
+  private StubXmppServer myServer;
+  private JabberFacadeImpl myFacade;
+  private JabberTransport myTransport;
+  private UserModelImpl myUserModel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myServer = new StubXmppServer();
+    for (int i = 0; i < ROSTER_SIZE; i++) {
+      myServer.addRosterEntry(jid(i), "User " + i, group(i));
+    }
+
+    myUserModel = new UserModelImpl(getBroadcaster());
+    disposeOnTearDown(myUserModel);
+
+    MockIDEFacade ideFacade = new MockIDEFacade(getClass());
+    Mock dispatcherMock = mock(AsyncMessageDispatcher.class);
+    dispatcherMock.stubs().method("getIdeFacade").will(returnValue(ideFacade));
+    dispatcherMock.stubs().method("sendNow").will(returnValue(Boolean.TRUE));
+    Mock finderMock = mock(JabberUserFinder.class);
+    finderMock.stubs().method("registerForProject");
+
+    myFacade = new JabberFacadeImpl(ideFacade);
+    myTransport = new JabberTransport((JabberUI) mock(JabberUI.class).proxy(), myFacade, myUserModel,
+        (AsyncMessageDispatcher) dispatcherMock.proxy(), (JabberUserFinder) finderMock.proxy());
+    myTransport.setReconnectTimeout(-1);
+    disposeOnTearDown(myTransport);
+    disposeOnTearDown(myFacade);
+
+    addEventListener();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      super.tearDown();
+    }
+    finally {
+      myServer.stop();
+    }
+  }
+
+  @Override
+  protected IDEtalkAdapter createListener() {
+    return new IDEtalkAdapter() {
+      @Override
+      public void afterChange(IDEtalkEvent event) {
+        synchronized (myEvents) {
+          myEvents.add(event);
+        }
+      }
+    };
+  }
+
+  public void testInitialRosterIsAddedInOneBatch() throws Exception {
+    connect();
+
+    User user = myUserModel.findUser(jid(5), JabberTransport.CODE);
+    assertNotNull(user);
+    assertEquals("User 5", user.getDisplayName());
+    assertEquals(group(5), user.getGroup());
+
+    List<IDEtalkEvent> events = getEvents();
+    assertEquals(events.toString(), 1, events.size());
+    assertEquals(ROSTER_SIZE, ((UserBatchEvent) events.get(0)).getEvents().size());
+  }
+
+  public void testRosterPushUpdatesPushedEntriesOnly() throws Exception {
+    connect();
+    getEvents();
+
+    final int pushCount = 50;
+    for (int i = 0; i < pushCount; i++) {
+      myServer.pushRosterEntries(new String[]{jid(i)}, new String[]{"Renamed " + i}, group(i));
+    }
+    new WaitFor(TIMEOUT) {
+      @Override
+      protected boolean condition() {
+        return getEventCount() == pushCount;
+      }
+    };
+
+    List<IDEtalkEvent> events = getEvents();
+    assertEquals(events.toString(), pushCount, events.size());
+    for (int i = 0; i < pushCount; i++) {
+      UserEvent.Updated event = (UserEvent.Updated) events.get(i);
+      assertEquals(jid(i), event.getUser().getName());
+      assertEquals(UserEvent.Updated.DISPLAY_NAME, event.getPropertyName());
+      assertEquals("Renamed " + i, event.getNewValue());
+    }
+
+    myServer.pushRosterEntries(new String[]{"new1@localhost", "new2@localhost"}, new String[]{"New 1", "New 2"}, "new");
+    new WaitFor(TIMEOUT) {
+      @Override
+      protected boolean condition() {
+        return getEventCount() == 1;
+      }
+    };
+    events = getEvents();
+    assertEquals(events.toString(), 1, events.size());
+    List<UserEvent> added = ((UserBatchEvent) events.get(0)).getEvents();
+    assertEquals(2, added.size());
+    assertTrue(added.get(0) instanceof UserEvent.Added);
+    assertEquals("New 2", myUserModel.findUser("new2@localhost", JabberTransport.CODE).getDisplayName());
+    assertEquals(ROSTER_SIZE + 2, myUserModel.getAllUsers().length);
+  }
+
+  public void testRemovedEntriesAreRemovedInOneBatch() throws Exception {
+    connect();
+
+    for (int i = 0; i < 3; i++) {
+      myServer.pushRosterRemoval(jid(i));
+    }
+    new WaitFor(TIMEOUT) {
+      @Override
+      protected boolean condition() {
+        return myFacade.getConnection().getRoster().getEntryCount() == ROSTER_SIZE - 3;
+      }
+    };
+    assertEquals("Removal from roster should not remove users", ROSTER_SIZE, myUserModel.getAllUsers().length);
+    getEvents();
+
+    myTransport.synchronizeRoster(true);
+
+    List<IDEtalkEvent> events = getEvents();
+    assertEquals(events.toString(), 1, events.size());
+    assertEquals(3, ((UserBatchEvent) events.get(0)).getEvents().size());
+    assertNull(myUserModel.findUser(jid(0), JabberTransport.CODE));
+    assertEquals(ROSTER_SIZE - 3, myUserModel.getAllUsers().length);
+  }
+
+  private void connect() {
+    assertNull(myFacade.connect("someuser", "password", "localhost", myServer.getPort(), false));
+    new WaitFor(TIMEOUT) {
+      @Override
+      protected boolean condition() {
+        return myUserModel.getAllUsers().length == ROSTER_SIZE;
+      }
+    };
+    assertEquals(ROSTER_SIZE, myUserModel.getAllUsers().length);
+  }
+
+  private int getEventCount() {
+    synchronized (myEvents) {
+      return myEvents.size();
+    }
+  }
+
+  private List<IDEtalkEvent> getEvents() {
+    synchronized (myEvents) {
+      List<IDEtalkEvent> result = new ArrayList<IDEtalkEvent>(myEvents);
+      myEvents.clear();
+      return result;
+    }
+  }
+
+  private static String jid(int i) {
+    return "user" + i + "@localhost";
+  }
+
+  private static String group(int i) {
+    return "group" + i % 10;
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.jabber.impl;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local XMPP server which knows just enough of the protocol for Smack to log in with non-SASL authentication,
+ * load a roster and receive roster pushes. One client connection is served at a time.
+ */
+class StubXmppServer {
+  private static final Logger LOG = Logger.getLogger(StubXmppServer.class);
+
+  private final ServerSocket myServerSocket;
+  private final Thread myThread;
+  private final List<String> myRosterItems = new ArrayList<String>();
+
+  private Writer myWriter;
+  private int myPushId;
+
+  StubXmppServer() throws IOException {
+    myServerSocket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+    myThread = new Thread(new Runnable() {
+      public void run() {
+        while (!myServerSocket.isClosed()) {
+          try {
+            serve(myServerSocket.accept());
+          }
+          catch (IOException e) {
+            if (!myServerSocket.isClosed()) {
+              LOG.info(e.getMessage(), e);
+            }
+          }
+        }
+      }
+    }, "Stub XMPP Server");
+    myThread.setDaemon(true);
+    myThread.start();
+  }
+
+  public int getPort() {
+    return myServerSocket.getLocalPort();
+  }
+
+  /** Adds the entry to the roster sent to clients on login */
+  public synchronized void addRosterEntry(String jid, String name, String group) {
+    myRosterItems.add(createItem(jid, name, group, "both"));
+  }
+
+  /** Sends roster push with the given entries added or updated */
+  public void pushRosterEntries(String[] jids, String[] names, String group) {
+    StringBuilder items = new StringBuilder();
+    for (int i = 0; i < jids.length; i++) {
+      items.append(createItem(jids[i], names[i], group, "both"));
+    }
+    pushRoster(items.toString());
+  }
+
+  public void pushRosterRemoval(String jid) {
+    pushRoster(createItem(jid, null, null, "remove"));
+  }
+
+  private synchronized void pushRoster(String items) {
+    send("<iq type='set' id='push" + myPushId++ + "'><query xmlns='jabber:iq:roster'>" + items + "</query></iq>");
+  }
+
+  public void stop() throws Exception {
+    myServerSocket.close();
+    closeClient();
+    myThread.join(1000);
+  }
+
+  private static String createItem(String jid, String name, String group, String subscription) {
+    StringBuilder item = new StringBuilder("<item jid='").append(StringUtils.escapeForXML(jid)).append('\'');
+    if (name != null) {
+      item.append(" name='").append(StringUtils.escapeForXML(name)).append('\'');
+    }
+    item.append(" subscription='").append(subscription).append("'>");
+    if (group != null) {
+      item.append("<group>").append(StringUtils.escapeForXML(group)).append("</group>");
+    }
+    return item.append("</item>").toString();
+  }
+
+  private void serve(Socket socket) throws IOException {
+    synchronized (this) {
+      myWriter = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+    }
+    try {
+      XmlPullParser parser = new MXParser();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.setInput(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+
+      for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+        if (event == XmlPullParser.END_TAG && parser.getDepth() == 1) break;
+        if (event != XmlPullParser.START_TAG) continue;
+
+        if (parser.getDepth() == 1) {
+          send("<?xml version='1.0' encoding='UTF-8'?><stream:stream xmlns='jabber:client' " +
+               "xmlns:stream='http://etherx.jabber.org/streams' id='stub" + System.currentTimeMillis() +
+               "' from='localhost' version='1.0'><stream:features></stream:features>");
+        }
+        else if (parser.getDepth() == 2) {
+          processStanza(parser);
+        }
+      }
+    }
+    catch (Exception e) {
+      if (!myServerSocket.isClosed()) {
+        LOG.info(e.getMessage(), e);
+      }
+    }
+    finally {
+      closeClient();
+      socket.close();
+    }
+  }
+
+  private void processStanza(XmlPullParser parser) throws Exception {
+    String name = parser.getName();
+    String type = parser.getAttributeValue("", "type");
+    String id = parser.getAttributeValue("", "id");
+
+    String queryNamespace = null;
+    while (!(parser.next() == XmlPullParser.END_TAG && parser.getDepth() == 2)) {
+      if (parser.getEventType() == XmlPullParser.START_TAG && parser.getDepth() == 3 && queryNamespace == null) {
+        queryNamespace = parser.getNamespace();
+      }
+    }
+
+    if (!"iq".equals(name) || !("get".equals(type) || "set".equals(type))) return;
+
+    if ("jabber:iq:auth".equals(queryNamespace) && "get".equals(type)) {
+      send("<iq type='result' id='" + id + "'><query xmlns='jabber:iq:auth'>" +
+           "<username/><password/><resource/></query></iq>");
+    }
+    else if ("jabber:iq:roster".equals(queryNamespace) && "get".equals(type)) {
+      StringBuilder roster = new StringBuilder("<iq type='result' id='" + id + "'><query xmlns='jabber:iq:roster'>");
+      synchronized (this) {
+        for (String item : myRosterItems) {
+          roster.append(item);
+        }
+      }
+      send(roster.append("</query></iq>").toString());
+    }
+    else {
+      send("<iq type='result' id='" + id + "'/>");
+    }
+  }
+
+  private synchronized void send(String xml) {
+    if (myWriter == null) return;
+    try {
+      myWriter.write(xml);
+      myWriter.flush();
+    }
+    catch (IOException e) {
+      LOG.info(e.getMessage(), e);
+    }
+  }
+
+  private synchronized void closeClient() {
+    if (myWriter == null) return;
+    try {
+      myWriter.close();
+    }
+    catch (IOException e) {
+      // the client has gone
+    }
+    myWriter = null;
+  }
+}
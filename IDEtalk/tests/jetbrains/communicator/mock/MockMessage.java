@@ -50,6 +50,11 @@ public class MockMessage implements LocalMessage {
     return myMessage.indexOf(searchString) >= 0;
   }
 
+  @Override
+  public String getSearchableText() {
+    return myMessage;
+  }
+
   @Override
   public Icon getMessageIcon(int refreshCounter) {
     return new EmptyIcon(3,3);
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.p2p;
+
+import jetbrains.communicator.core.Pico;
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.impl.dispatcher.AsyncMessageDispatcherImpl;
+import jetbrains.communicator.core.impl.users.UserModelImpl;
+import jetbrains.communicator.core.transport.Transport;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.mock.MockIDEFacade;
+import org.jdom.Element;
+import org.picocontainer.Disposable;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends bursts of XML messages from one P2P transport to another one in the same process over loopback,
+ * and calls to a peer which never answers.
+ */
+@SuppressWarnings({"HardCodedStringLiteral"})
+public class P2PTransport_BurstTest extends BaseTestCase {
+  private static final int BURST = 200;
+  private static final int THREADS = 8;
+
+  private P2PTransport myReceiver;
+  private P2PTransport mySender;
+  private User myReceiverUser;
+  private final AtomicInteger myReceived = new AtomicInteger();
+  private final AtomicInteger myCallsInProgress = new AtomicInteger();
+  private final AtomicInteger myMaxCallsInProgress = new AtomicInteger();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    MockIDEFacade ideFacade = new MockIDEFacade(getClass());
+    UserModelImpl userModel = new UserModelImpl(getBroadcaster());
+    disposeOnTearDown(userModel);
+    AsyncMessageDispatcherImpl dispatcher = new AsyncMessageDispatcherImpl(getBroadcaster(), ideFacade);
+    disposeOnTearDown(dispatcher);
+
+    myReceiver = new P2PTransport(dispatcher, userModel);
+    mySender = new P2PTransport(dispatcher, userModel);
+    Pico.getInstance().registerComponentInstance(mySender);
+
+    final MockXmlResponseProvider provider = new MockXmlResponseProvider("burst", "burstNamespace", getBroadcaster()) {
+      @Override
+      public boolean processAndFillResponse(Element response, Element requestRoot, Transport transport, String remoteUser) {
+        int inProgress = myCallsInProgress.incrementAndGet();
+        synchronized (myMaxCallsInProgress) {
+          myMaxCallsInProgress.set(Math.max(inProgress, myMaxCallsInProgress.get()));
+        }
+        try {
+          Thread.sleep(5);
+        }
+        catch (InterruptedException e) {
+          // go on
+        }
+        myReceived.incrementAndGet();
+        myCallsInProgress.decrementAndGet();
+        return true;
+      }
+    };
+    Pico.getInstance().registerComponentInstance(provider);
+    disposeOnTearDown(new Disposable() {
+      @Override
+      public void dispose() {
+        Pico.getInstance().unregisterComponentByInstance(provider);
+      }
+    });
+
+    myReceiverUser = mySender.createUser("receiver", new OnlineUserInfo(InetAddress.getLocalHost(), myReceiver.getPort()));
+    mySender.setOnlineUsers(Collections.singleton(myReceiverUser));
+    NetworkUtil.getCallLimiter().clear();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mySender.dispose();
+    myReceiver.dispose();
+    Pico.getInstance().unregisterComponentByInstance(mySender);
+    NetworkUtil.getCallLimiter().setReadTimeout(XmlRpcCallLimiter.DEFAULT_READ_TIMEOUT);
+    NetworkUtil.getCallLimiter().clear();
+
+    super.tearDown();
+  }
+
+  public void testSequentialBurst() throws Exception {
+    send(BURST);
+
+    assertEquals(BURST, myReceived.get());
+    assertEquals(1, myMaxCallsInProgress.get());
+  }
+
+  public void testConcurrentBurst() throws Exception {
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREADS; i++) {
+      threads.add(new Thread("Burst " + i) {
+        @Override
+        public void run() {
+          send(BURST / THREADS);
+        }
+      });
+    }
+
+    joinAll(threads, 30000);
+
+    assertEquals(BURST, myReceived.get());
+    assertTrue("Too many calls at once: " + myMaxCallsInProgress.get(),
+               myMaxCallsInProgress.get() <= XmlRpcCallLimiter.MAX_CALLS_PER_PEER);
+  }
+
+  public void testHungPeerDoesNotHoldCalls() throws Exception {
+    NetworkUtil.getCallLimiter().setReadTimeout(500);
+
+    // connections are accepted by the OS into the backlog, but nobody ever reads or answers them
+    final ServerSocket hungPeer = new ServerSocket(0, 50, InetAddress.getLocalHost());
+    try {
+      final XmlRpcTargetImpl target = new XmlRpcTargetImpl(hungPeer.getLocalPort(), InetAddress.getLocalHost());
+      final AtomicInteger answered = new AtomicInteger();
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < THREADS; i++) {
+        threads.add(new Thread("Hung call " + i) {
+          @Override
+          public void run() {
+            if (NetworkUtil.sendMessage(target, "burst", "ping") != null) {
+              answered.incrementAndGet();
+            }
+          }
+        });
+      }
+
+      // without a read timeout the first calls never return, and the rest wait for a permit
+      joinAll(threads, 10000);
+      assertEquals(0, answered.get());
+    }
+    finally {
+      hungPeer.close();
+    }
+
+    send(1);
+    assertEquals(1, myReceived.get());
+  }
+
+  private static void joinAll(List<Thread> threads, long timeout) throws InterruptedException {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join(timeout);
+      assertFalse(thread.getName() + " has not finished", thread.isAlive());
+    }
+  }
+
+  private void send(int count) {
+    for (int i = 0; i < count; i++) {
+      MockXmlMessage message = new MockXmlMessage("burst", "burstNamespace");
+      message.setShouldWaitForResponse(true);
+      mySender.sendXmlMessage(myReceiverUser, message);
+    }
+  }
+}